@@ -7,6 +7,15 @@ package client;
 import com.lloseng.ocsf.client.*;
 import common.*;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class overrides some of the methods defined in the abstract superclass
@@ -18,6 +27,19 @@ import java.io.*;
  */
 public class ChatClient extends ObservableClient
 {
+    // Class variables *************************************************
+
+    /**
+     * The number of messages of a channel the server keeps to send again,
+     * counting the one that revealed a gap.
+     */
+    final private static int MAX_REFETCH = 256;
+
+    /**
+     * The bytes moved at a time between a file and the server.
+     */
+    final private static long CHUNK_SIZE = 1024 * 1024;
+
     // Instance variables **********************************************
 
     /**
@@ -36,6 +58,37 @@ public class ChatClient extends ObservableClient
      */
     private String password;
 
+    /**
+     * The id of the last message numbered by send.
+     */
+    private long lastMessageId;
+
+    /**
+     * The highest message id the server acknowledged.
+     */
+    private volatile long acknowledged;
+
+    /**
+     * The sequence numbers received from each channel, by channel name.
+     * Only used by the thread reading from the server.
+     */
+    private HashMap<String, ChannelSequence> sequences = new HashMap<String, ChannelSequence>();
+
+    /**
+     * The number of the last upload, which tags its replies.
+     */
+    private long lastUpload;
+
+    /**
+     * The uploads waiting for the server's go ahead, by tag.
+     */
+    private ConcurrentHashMap<String, FileOffer> uploads = new ConcurrentHashMap<String, FileOffer>();
+
+    /**
+     * The files offered to the client, by id.
+     */
+    private ConcurrentHashMap<Long, FileOffer> offers = new ConcurrentHashMap<Long, FileOffer>();
+
     // Constructors ****************************************************
 
     /**
@@ -63,6 +116,361 @@ public class ChatClient extends ObservableClient
 
     // Instance methods ************************************************
 
+    /**
+     * Records the acknowledgements of numbered messages instead of passing
+     * them on to the listeners, and checks the sequence numbers of channel
+     * messages: a gap is asked again from the server, and the listeners are
+     * passed each channel message once, without its number. The replies to
+     * uploads start sending the files, and the files offered are kept for
+     * download.
+     * @param message the message from the server.
+     */
+    protected void handleMessageFromServer(Object message)
+    {
+        if (message instanceof String)
+        {
+            String text = (String) message;
+            try
+            {
+                if (text.startsWith("#ack "))
+                {
+                    acknowledge(text);
+                    return;
+                }
+                if (text.startsWith("#seq "))
+                {
+                    sequenced(text);
+                    return;
+                }
+                if (text.startsWith("#refetched "))
+                {
+                    refetched(text);
+                    return;
+                }
+                if (text.startsWith("#skip "))
+                {
+                    skipped(text);
+                    return;
+                }
+                if (text.startsWith("#left "))
+                {
+                    // numbers restart from the next message after a join
+                    sequences.remove(text.split(" ")[1]);
+                    return;
+                }
+                if (text.startsWith("#upload-ready "))
+                {
+                    uploadReady(text);
+                    return;
+                }
+                if (text.startsWith("#upload-failed "))
+                {
+                    uploadFailed(text);
+                    return;
+                }
+                if (text.startsWith("#file "))
+                {
+                    offered(text);
+                    return;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // not from this protocol; shown as is
+            }
+        }
+        super.handleMessageFromServer(message);
+    }
+
+    /**
+     * Handles #ack n [duplicate].
+     */
+    private void acknowledge(String text)
+    {
+        String[] fields = text.split(" ");
+        long id = Long.parseLong(fields[1]);
+        if (id > acknowledged)
+        {
+            acknowledged = id;
+        }
+    }
+
+    /**
+     * Handles #seq channel epoch n message: passes the message on unless
+     * it was already received, and asks for the ones missing before it.
+     */
+    private void sequenced(String text)
+    {
+        String[] fields = text.split(" ", 5);
+        String channelName = fields[1];
+        long epoch = Long.parseLong(fields[2]);
+        long n = Long.parseLong(fields[3]);
+        String body = fields.length > 4 ? fields[4] : "";
+
+        ChannelSequence sequence = sequences.get(channelName);
+        if (sequence == null || sequence.epoch != epoch)
+        {
+            // the first message of the channel, or of a new channel with
+            // the same name
+            sequence = new ChannelSequence(epoch, n);
+            sequences.put(channelName, sequence);
+        }
+        else if (n > sequence.last)
+        {
+            if (n > sequence.last + 1)
+            {
+                long from = Math.max(sequence.last + 1, n - MAX_REFETCH + 1);
+                if (from > sequence.last + 1)
+                {
+                    missed(from - sequence.last - 1, channelName);
+                }
+                for (long missing = from; missing < n; missing++)
+                {
+                    sequence.missing.add(missing);
+                }
+                try
+                {
+                    sendToServer("#refetch " + channelName + " " + epoch
+                            + " " + from + " " + (n - 1));
+                }
+                catch (IOException e)
+                {
+                    // the connection is gone; so is the chance to ask
+                    sequence.missing.clear();
+                }
+            }
+            sequence.last = n;
+        }
+        else if (!sequence.missing.remove(n))
+        {
+            // received already
+            return;
+        }
+
+        // files shared in a channel are offered in sequence
+        if (body.startsWith("#file "))
+        {
+            offered(body);
+            return;
+        }
+        super.handleMessageFromServer(body);
+    }
+
+    /**
+     * Handles #skip channel epoch n: the numbers up to n not received were
+     * filtered out for the client, so they are not asked again.
+     */
+    private void skipped(String text)
+    {
+        String[] fields = text.split(" ");
+        String channelName = fields[1];
+        long epoch = Long.parseLong(fields[2]);
+        long n = Long.parseLong(fields[3]);
+        ChannelSequence sequence = sequences.get(channelName);
+        if (sequence == null || sequence.epoch != epoch)
+        {
+            sequences.put(channelName, new ChannelSequence(epoch, n));
+        }
+        else if (n > sequence.last)
+        {
+            sequence.last = n;
+        }
+    }
+
+    /**
+     * Handles #refetched channel epoch from to lost: stops waiting for the
+     * range, and tells the listeners about messages the server no longer
+     * had.
+     */
+    private void refetched(String text)
+    {
+        String[] fields = text.split(" ");
+        String channelName = fields[1];
+        ChannelSequence sequence = sequences.get(channelName);
+        if (sequence != null && sequence.epoch == Long.parseLong(fields[2]))
+        {
+            sequence.missing.subSet(Long.parseLong(fields[3]), true,
+                    Long.parseLong(fields[4]), true).clear();
+        }
+        long lost = Long.parseLong(fields[5]);
+        if (lost > 0)
+        {
+            missed(lost, channelName);
+        }
+    }
+
+    /**
+     * Tells the listeners that messages of a channel cannot be had again.
+     */
+    private void missed(long count, String channelName)
+    {
+        super.handleMessageFromServer("Missed " + count
+                + (count == 1 ? " message in " : " messages in ") + channelName);
+    }
+
+    /**
+     * Handles #upload-ready tag port token: sends the file on a connection
+     * of its own, so that chat messages keep flowing meanwhile.
+     */
+    private void uploadReady(String text)
+    {
+        String[] fields = text.split(" ");
+        final FileOffer upload = uploads.remove(fields[1]);
+        if (upload == null)
+        {
+            return;
+        }
+        upload.port = Integer.parseInt(fields[2]);
+        upload.token = fields[3];
+        Thread sender = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    sendFile(upload);
+                    transferred("Uploaded " + upload.name);
+                }
+                catch (IOException e)
+                {
+                    transferred("Upload of " + upload.name + " failed: "
+                            + e.getMessage());
+                }
+            }
+        }, "Upload " + upload.name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Handles #upload-failed tag reason.
+     */
+    private void uploadFailed(String text)
+    {
+        String[] fields = text.split(" ", 3);
+        FileOffer upload = uploads.remove(fields[1]);
+        if (upload != null)
+        {
+            transferred("Upload of " + upload.name + " failed: "
+                    + (fields.length > 2 ? fields[2] : ""));
+        }
+    }
+
+    /**
+     * Handles #file id port token sender size name: keeps the offer, and
+     * tells the listeners how to download the file.
+     */
+    private void offered(String text)
+    {
+        String[] fields = text.split(" ", 7);
+        FileOffer offer = new FileOffer(fields[6], Long.parseLong(fields[5]),
+                null);
+        offer.port = Integer.parseInt(fields[2]);
+        offer.token = fields[3];
+        long id = Long.parseLong(fields[1]);
+        offers.put(id, offer);
+        super.handleMessageFromServer(fields[4] + " shared " + offer.name
+                + " (" + offer.size + " bytes); type #download " + id
+                + " to get it");
+    }
+
+    /**
+     * Sends a file to the server, a chunk at a time straight from the file
+     * to the socket.
+     */
+    private void sendFile(FileOffer upload) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                getHost(), upload.port));
+        try
+        {
+            writeLine(channel, "PUT " + upload.token);
+            FileChannel file = FileChannel.open(upload.file.toPath(),
+                    StandardOpenOption.READ);
+            try
+            {
+                long position = 0;
+                while (position < upload.size)
+                {
+                    long moved = file.transferTo(position, Math.min(
+                            CHUNK_SIZE, upload.size - position), channel);
+                    if (moved == 0)
+                    {
+                        throw new IOException("the file got shorter");
+                    }
+                    position += moved;
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+            String reply = readLine(channel);
+            if (!reply.startsWith("OK"))
+            {
+                throw new IOException(reply);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Receives a file from the server, a chunk at a time straight from the
+     * socket to the file.
+     */
+    private void receiveFile(long id, FileOffer offer, File destination)
+            throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                getHost(), offer.port));
+        try
+        {
+            writeLine(channel, "GET " + id + " " + offer.token);
+            String reply = readLine(channel);
+            if (!reply.startsWith("OK "))
+            {
+                throw new IOException(reply);
+            }
+            long size = Long.parseLong(reply.substring(3));
+            FileChannel file = FileChannel.open(destination.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try
+            {
+                long position = 0;
+                while (position < size)
+                {
+                    long moved = file.transferFrom(channel, position, Math
+                            .min(CHUNK_SIZE, size - position));
+                    if (moved == 0)
+                    {
+                        throw new IOException("the server closed the connection");
+                    }
+                    position += moved;
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Tells the listeners how a transfer ended.
+     */
+    private void transferred(String outcome)
+    {
+        super.handleMessageFromServer(outcome);
+    }
+
     /**
      * Get the login id of the client
      * @return String loginid
@@ -148,6 +556,42 @@ public class ChatClient extends ObservableClient
         }
     }
 
+    /**
+     * Send a chat line numbered with a new message id, so that sending it
+     * again with resend after a timeout cannot deliver it twice.
+     * @param msg the chat line or command
+     * @return the message id, to resend the line with
+     * @throws IOException if cannot send the line to server
+     */
+    public synchronized long send(String msg) throws IOException
+    {
+        long id = ++lastMessageId;
+        resend(id, msg);
+        return id;
+    }
+
+    /**
+     * Send a numbered chat line again; the server drops it if it already
+     * had it and only acknowledges it.
+     * @param id the message id returned by send
+     * @param msg the same chat line or command
+     * @throws IOException if cannot send the line to server
+     */
+    public void resend(long id, String msg) throws IOException
+    {
+        String message = "#id " + id + " " + msg;
+        sendToServer(message);
+    }
+
+    /**
+     * Get the highest message id acknowledged by the server
+     * @return the id, 0 if none
+     */
+    public long getAcknowledged()
+    {
+        return acknowledged;
+    }
+
     /**
      * Private chat with another user.
      * @param username the username of the other user
@@ -181,14 +625,36 @@ public class ChatClient extends ObservableClient
         sendToServer(message);
     }
 
+    /**
+     * Leave the current channel.
+     * @throws IOException if cannot send leave command to server
+     */
+    public void leave() throws IOException
+    {
+        String message = "#leave";
+        sendToServer(message);
+    }
+
     /**
      * Leave the specified channel.
      * @param channelName the name of the channel
      * @throws IOException if cannot send channel name to server
      */
-    public void leave() throws IOException
+    public void leave(String channelName) throws IOException
     {
-        String message = "#leave";
+        String message = "#leave " + channelName;
+        sendToServer(message);
+    }
+
+    /**
+     * Send a message to one of the channels the client is in.
+     * @param channelName the name of the channel
+     * @param msg the message
+     * @throws IOException if cannot send message to server
+     */
+    public void say(String channelName, String msg) throws IOException
+    {
+        String message = "#say " + channelName + " " + msg;
         sendToServer(message);
     }
 
@@ -213,6 +679,19 @@ public class ChatClient extends ObservableClient
         sendToServer(message);
     }
 
+    /**
+     * Display a page of the current channels on the server.
+     * @param options prefix:p, page:n and version:v, separated by spaces;
+     * with the version last received, the server only answers if the
+     * channels changed
+     * @throws IOException if cannot send displayChannels command to server
+     */
+    public void displayChannels(String options) throws IOException
+    {
+        String message = "#displayChannels " + options;
+        sendToServer(message);
+    }
+
     /**
      * Back from being away.
      * @throws IOException if cannot send back command to server
@@ -223,6 +702,17 @@ public class ChatClient extends ObservableClient
         sendToServer(message);
     }
 
+    /**
+     * Back from being away for one monitor, which is relieved.
+     * @param monitor the monitor's username
+     * @throws IOException if cannot send back command to server
+     */
+    public void back(String monitor) throws IOException
+    {
+        String message = "#back " + monitor;
+        sendToServer(message);
+    }
+
     /**
      * Retrieve messages monitored while away.
      * @throws IOException if cannot send retrieve command to server
@@ -232,5 +722,243 @@ public class ChatClient extends ObservableClient
         String message = "#retrieve";
         sendToServer(message);
     }
+
+    /**
+     * Ask for the last messages of the current channel.
+     * @param count the number of messages
+     * @throws IOException if cannot send history command to server
+     */
+    public void history(String count) throws IOException
+    {
+        String message = "#history " + count;
+        sendToServer(message);
+    }
+
+    /**
+     * Ask to be told when some users log in and out.
+     * @param loginids the users' login ids separated by spaces, or * for
+     * everyone
+     * @throws IOException if cannot send watch command to server
+     */
+    public void watch(String loginids) throws IOException
+    {
+        String message = "#watch " + loginids;
+        sendToServer(message);
+    }
+
+    /**
+     * Stop being told when some users log in and out.
+     * @param loginids the users' login ids separated by spaces, or * for
+     * everyone
+     * @throws IOException if cannot send unwatch command to server
+     */
+    public void unwatch(String loginids) throws IOException
+    {
+        String message = "#unwatch " + loginids;
+        sendToServer(message);
+    }
+
+    /**
+     * Search the messages of the client's channels and private messages.
+     * @param query the terms, optionally preceded by in:channel
+     * @throws IOException if cannot send search command to server
+     */
+    public void search(String query) throws IOException
+    {
+        String message = "#search " + query;
+        sendToServer(message);
+    }
+
+    /**
+     * Stop or start receiving the messages of a user.
+     * @param loginid the user's login id
+     * @param ignore true to ignore the user, false to stop ignoring it
+     * @throws IOException if cannot send ignore command to server
+     */
+    public void ignore(String loginid, boolean ignore) throws IOException
+    {
+        String message = (ignore ? "#ignore " : "#unignore ") + loginid;
+        sendToServer(message);
+    }
+
+    /**
+     * Stop or start receiving the messages of a channel.
+     * @param channel the channel's name
+     * @param mute true to mute the channel, false to unmute it
+     * @throws IOException if cannot send mute command to server
+     */
+    public void mute(String channel, boolean mute) throws IOException
+    {
+        String message = (mute ? "#mute " : "#unmute ") + channel;
+        sendToServer(message);
+    }
+
+    /**
+     * List the users ignored and the channels muted.
+     * @throws IOException if cannot send filters command to server
+     */
+    public void filters() throws IOException
+    {
+        String message = "#filters";
+        sendToServer(message);
+    }
+
+    /**
+     * Share a file in a channel the client is a member of, or with a user.
+     * The file is sent on a connection of its own once the server agrees;
+     * the listeners are told when it is sent or why it was not.
+     * @param target the channel's name, or @loginid for a user
+     * @param file the file
+     * @throws IOException if the file cannot be read or the upload command
+     * cannot be sent to server
+     */
+    public void upload(String target, File file) throws IOException
+    {
+        if (!file.isFile() || !file.canRead())
+        {
+            throw new FileNotFoundException(file.getPath());
+        }
+        String tag;
+        synchronized (this)
+        {
+            tag = "u" + ++lastUpload;
+        }
+        FileOffer upload = new FileOffer(file.getName(), file.length(), file);
+        uploads.put(tag, upload);
+        String message = "#upload " + tag + " " + target + " " + upload.size
+                + " " + upload.name;
+        sendToServer(message);
+    }
+
+    /**
+     * Download a file offered to the client, on a connection of its own.
+     * The listeners are told when it is received or why it was not.
+     * @param id the id of the file, from the offer
+     * @param destination the file to write, or null for the offered name
+     * in the current directory
+     * @throws IOException if no such file was offered
+     */
+    public void download(final long id, File destination) throws IOException
+    {
+        final FileOffer offer = offers.get(id);
+        if (offer == null)
+        {
+            throw new IOException("No file " + id + " was offered");
+        }
+        final File file = destination != null ? destination : new File(
+                new File(offer.name).getName());
+        Thread receiver = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    receiveFile(id, offer, file);
+                    transferred("Downloaded " + offer.name + " to "
+                            + file.getPath());
+                }
+                catch (IOException e)
+                {
+                    transferred("Download of " + offer.name + " failed: "
+                            + e.getMessage());
+                }
+            }
+        }, "Download " + offer.name);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Reads a reply line of a file transfer, a byte at a time so that no
+     * file byte is read.
+     */
+    private static String readLine(SocketChannel channel) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true)
+        {
+            one.clear();
+            if (channel.read(one) < 0)
+            {
+                throw new IOException("the server closed the connection");
+            }
+            if (one.get(0) == '\n')
+            {
+                return new String(line.toByteArray(), StandardCharsets.UTF_8);
+            }
+            line.write(one.get(0));
+        }
+    }
+
+    private static void writeLine(SocketChannel channel, String line)
+            throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * A file being uploaded, or offered for download.
+     */
+    private static class FileOffer
+    {
+        /**
+         * The name and size of the file.
+         */
+        final String name;
+        final long size;
+
+        /**
+         * The file to upload, null for an offer.
+         */
+        final File file;
+
+        /**
+         * Where and with which token to transfer it.
+         */
+        int port;
+        String token;
+
+        FileOffer(String name, long size, File file)
+        {
+            this.name = name;
+            this.size = size;
+            this.file = file;
+        }
+    }
+
+    /**
+     * The sequence numbers received from one channel.
+     */
+    private static class ChannelSequence
+    {
+        /**
+         * The epoch of the channel.
+         */
+        final long epoch;
+
+        /**
+         * The highest number received.
+         */
+        long last;
+
+        /**
+         * The numbers asked again and not received yet.
+         */
+        final TreeSet<Long> missing = new TreeSet<Long>();
+
+        ChannelSequence(long epoch, long last)
+        {
+            this.epoch = epoch;
+            this.last = last;
+        }
+    }
 }
 // End of ChatClient class
@@ -0,0 +1,465 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simulated chat user used by the load generator. Instead of the blocking
+ * streams and reader thread of <code>AbstractClient</code>, it speaks the
+ * OCSF wire format (a Java serialization stream of String objects) directly
+ * over a non-blocking socket channel, so thousands of users can be driven by
+ * a single selector thread. Only the subset of the serialization protocol
+ * that the chat server emits is understood: strings, back references to
+ * strings, nulls and resets.
+ */
+public class VirtualUser
+{
+    // Class variables *************************************************
+
+    final private static short STREAM_MAGIC = (short) 0xaced;
+    final private static short STREAM_VERSION = 5;
+    final private static byte TC_NULL = (byte) 0x70;
+    final private static byte TC_REFERENCE = (byte) 0x71;
+    final private static byte TC_STRING = (byte) 0x74;
+    final private static byte TC_RESET = (byte) 0x79;
+    final private static byte TC_LONGSTRING = (byte) 0x7C;
+    final private static int BASE_WIRE_HANDLE = 0x7e0000;
+
+    /**
+     * Size of the receive buffer. Grows if a single message is larger.
+     */
+    final private static int READ_BUFFER_SIZE = 16 * 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The user's login id.
+     */
+    private String loginid;
+
+    /**
+     * The socket to the server, null until connect() is called.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The selection key of the socket.
+     */
+    private SelectionKey key;
+
+    /**
+     * Bytes received but not yet decoded, in write mode.
+     */
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Bytes encoded but not yet written, in write mode.
+     */
+    private ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Whether the serialization stream header has been received.
+     */
+    private boolean headerRead;
+
+    /**
+     * Strings received so far, indexed by wire handle.
+     */
+    private ArrayList<String> handles = new ArrayList<String>();
+
+    // Scenario state, maintained by the load generator.
+    private long connectStartedAt;
+    private long nextActionAt;
+    private boolean loggedIn;
+    private String channelName;
+    private boolean inChannel;
+    private String monitor;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a virtual user.
+     * @param loginid the login id used with the server.
+     */
+    public VirtualUser(String loginid)
+    {
+        this.loginid = loginid;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Starts a non-blocking connection to the server and queues the stream
+     * header that every OCSF connection begins with.
+     * @param host the server host.
+     * @param port the server port.
+     * @param selector the selector driving this user.
+     * @throws IOException if the socket cannot be opened.
+     */
+    public void connect(String host, int port, Selector selector)
+            throws IOException
+    {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        out.putShort(STREAM_MAGIC);
+        out.putShort(STREAM_VERSION);
+        int ops = channel.connect(new InetSocketAddress(host, port))
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_CONNECT;
+        key = channel.register(selector, ops, this);
+    }
+
+    /**
+     * Completes a pending connection.
+     * @return true if the connection is now established.
+     * @throws IOException if the connection failed.
+     */
+    public boolean finishConnect() throws IOException
+    {
+        if (!channel.finishConnect())
+        {
+            return false;
+        }
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    /**
+     * Queues a message for the server. It is written as soon as the socket
+     * accepts it.
+     * @param message the message to send.
+     */
+    public void send(String message)
+    {
+        int utflen = utfLength(message);
+        ensureOutCapacity(utflen + 9);
+        if (utflen <= 0xFFFF)
+        {
+            out.put(TC_STRING);
+            out.putShort((short) utflen);
+        }
+        else
+        {
+            out.put(TC_LONGSTRING);
+            out.putLong(utflen);
+        }
+        writeUtf(message);
+        if (key != null && key.isValid() && channel.isConnected())
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Writes as many queued bytes as the socket accepts.
+     * @throws IOException if the write fails.
+     */
+    public void flush() throws IOException
+    {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        if (out.position() == 0)
+        {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads what is available on the socket and decodes every complete
+     * message.
+     * @param messages receives the decoded messages.
+     * @return false if the server closed the connection.
+     * @throws IOException if the read fails or the stream is malformed.
+     */
+    public boolean read(List<String> messages) throws IOException
+    {
+        if (!in.hasRemaining())
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        int n = channel.read(in);
+        in.flip();
+        try
+        {
+            decode(messages);
+        }
+        finally
+        {
+            in.compact();
+        }
+        return n >= 0;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close()
+    {
+        try
+        {
+            if (channel != null)
+            {
+                channel.close();
+            }
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * Decodes complete messages from the receive buffer, leaving a partial
+     * trailing message in place.
+     */
+    private void decode(List<String> messages) throws IOException
+    {
+        if (!headerRead)
+        {
+            if (in.remaining() < 4)
+            {
+                return;
+            }
+            if (in.getShort() != STREAM_MAGIC
+                    || in.getShort() != STREAM_VERSION)
+            {
+                throw new IOException("invalid stream header");
+            }
+            headerRead = true;
+        }
+        while (in.hasRemaining())
+        {
+            int start = in.position();
+            byte tc = in.get();
+            long length;
+            if (tc == TC_STRING)
+            {
+                if (in.remaining() < 2)
+                {
+                    in.position(start);
+                    return;
+                }
+                length = in.getShort() & 0xFFFF;
+            }
+            else if (tc == TC_LONGSTRING)
+            {
+                if (in.remaining() < 8)
+                {
+                    in.position(start);
+                    return;
+                }
+                length = in.getLong();
+            }
+            else if (tc == TC_REFERENCE)
+            {
+                if (in.remaining() < 4)
+                {
+                    in.position(start);
+                    return;
+                }
+                messages.add(handles.get(in.getInt() - BASE_WIRE_HANDLE));
+                continue;
+            }
+            else if (tc == TC_RESET)
+            {
+                handles.clear();
+                continue;
+            }
+            else if (tc == TC_NULL)
+            {
+                messages.add(null);
+                continue;
+            }
+            else
+            {
+                throw new IOException("unsupported type code " + tc);
+            }
+            if (in.remaining() < length)
+            {
+                in.position(start);
+                return;
+            }
+            String s = readUtf((int) length);
+            handles.add(s);
+            messages.add(s);
+        }
+    }
+
+    /**
+     * Returns the length of a string in modified UTF-8.
+     */
+    private static int utfLength(String s)
+    {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+            {
+                length++;
+            }
+            else if (c > 0x07FF)
+            {
+                length += 3;
+            }
+            else
+            {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a string in modified UTF-8 into the send buffer.
+     */
+    private void writeUtf(String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+            {
+                out.put((byte) c);
+            }
+            else if (c > 0x07FF)
+            {
+                out.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else
+            {
+                out.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Decodes a modified UTF-8 string from the receive buffer.
+     */
+    private String readUtf(int length) throws IOException
+    {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end)
+        {
+            int b = in.get() & 0xFF;
+            if (b < 0x80)
+            {
+                chars[count++] = (char) b;
+            }
+            else if ((b & 0xE0) == 0xC0)
+            {
+                chars[count++] = (char) (((b & 0x1F) << 6)
+                        | (in.get() & 0x3F));
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                int b2 = in.get() & 0x3F;
+                chars[count++] = (char) (((b & 0x0F) << 12) | (b2 << 6)
+                        | (in.get() & 0x3F));
+            }
+            else
+            {
+                throw new IOException("malformed string");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Grows the send buffer if needed.
+     */
+    private void ensureOutCapacity(int needed)
+    {
+        if (out.remaining() < needed)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+                    out.capacity() * 2, out.position() + needed));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+    }
+
+    // Accessing methods ***********************************************
+
+    public String getLoginId()
+    {
+        return loginid;
+    }
+
+    public long getConnectStartedAt()
+    {
+        return connectStartedAt;
+    }
+
+    public void setConnectStartedAt(long connectStartedAt)
+    {
+        this.connectStartedAt = connectStartedAt;
+    }
+
+    public long getNextActionAt()
+    {
+        return nextActionAt;
+    }
+
+    public void setNextActionAt(long nextActionAt)
+    {
+        this.nextActionAt = nextActionAt;
+    }
+
+    public boolean isLoggedIn()
+    {
+        return loggedIn;
+    }
+
+    public void setLoggedIn(boolean loggedIn)
+    {
+        this.loggedIn = loggedIn;
+    }
+
+    public String getChannelName()
+    {
+        return channelName;
+    }
+
+    public void setChannelName(String channelName)
+    {
+        this.channelName = channelName;
+    }
+
+    public boolean isInChannel()
+    {
+        return inChannel;
+    }
+
+    public void setInChannel(boolean inChannel)
+    {
+        this.inChannel = inChannel;
+    }
+
+    public String getMonitor()
+    {
+        return monitor;
+    }
+
+    public void setMonitor(String monitor)
+    {
+        this.monitor = monitor;
+    }
+}
+// End of VirtualUser class
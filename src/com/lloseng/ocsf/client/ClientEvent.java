@@ -0,0 +1,92 @@
+package com.lloseng.ocsf.client;
+
+/**
+ * An event sent by an <code>ObservableClient</code> to its listeners.
+ * The type replaces the magic strings, such as
+ * <code>CONNECTION_CLOSED</code>, that were previously sent to observers.
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see com.lloseng.ocsf.client.ClientListener
+ */
+public class ClientEvent
+{
+  /**
+   * The kinds of events a client reports.
+   */
+  public enum Type
+  {
+    CONNECTION_ESTABLISHED,
+    CONNECTION_CLOSED,
+    CONNECTION_EXCEPTION,
+    WAITING_FOR_REPLY,
+    MESSAGE
+  }
+
+  /**
+   * The kind of event.
+   */
+  private Type type;
+
+  /**
+   * The message received, for message events.
+   */
+  private Object message;
+
+  /**
+   * The exception raised, for exception events.
+   */
+  private Exception exception;
+
+// Constructor ***************************************************************
+
+  /**
+   * Constructs an event.
+   *
+   * @param type the kind of event.
+   * @param message the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  public ClientEvent(Type type, Object message, Exception exception)
+  {
+    this.type = type;
+    this.message = message;
+    this.exception = exception;
+  }
+
+// Accessor methods *********************************************************
+
+  /**
+   * @return the kind of event.
+   */
+  public Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * @return the message received, or null.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return the exception raised, or null.
+   */
+  public Exception getException()
+  {
+    return exception;
+  }
+
+  /**
+   * Returns a description of the event.
+   *
+   * @return the event type and message.
+   */
+  public String toString()
+  {
+    return type + (message == null ? "" : ": " + message);
+  }
+}
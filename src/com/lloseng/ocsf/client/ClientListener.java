@@ -0,0 +1,20 @@
+package com.lloseng.ocsf.client;
+
+/**
+ * Receives the events of an <code>ObservableClient</code>.
+ * Listeners are called on the client's reading thread, or on the
+ * client's dispatch thread when asynchronous dispatch is enabled.
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see com.lloseng.ocsf.client.ObservableClient#addClientListener
+ */
+public interface ClientListener
+{
+  /**
+   * Called for each event of the client.
+   *
+   * @param event the event.
+   */
+  public abstract void clientEvent(ClientEvent event);
+}
@@ -8,36 +8,41 @@ import java.util.*;
 import java.io.*;
 import java.net.*;
 
+import com.lloseng.ocsf.event.*;
+
 /**
  * This class acts as a subclass of <code>AbstractClient</code>
- * and is also an <code>Observable</code> class.
- * Each time a new message is received, observers are notified.
+ * and notifies a list of <code>ClientListener</code>s.
+ * Each time a new message is received, listeners are notified.
+ * As with <code>ObservableServer</code>, listeners are held in a
+ * copy-on-write array and can optionally be called on a separate
+ * dispatch thread.
  *
  * @author Dr Robert Lagani&egrave;re
  * @author Dr Timothy C. Lethbridge
  * @author Fran&ccedil;ois B&eacute;lange
  * @version Febuary 2001
  */
-public class ObservableClient extends Observable
+public class ObservableClient
 {
-  // Class variables ***************************************************
+  //Instance variables **********************************************
 
   /**
-   * Indicates a close of the connection to server.
+   * The service instance used to simulate multiple class inheritance.
    */
-  public static final String CONNECTION_CLOSED = "#OC:Connection closed.";
+  private AdaptableClient service;
 
   /**
-   * Indicates establishment of a connection to server.
+   * The registered listeners.
    */
-  public static final String CONNECTION_ESTABLISHED = "#OC:Connection established.";
-
-  //Instance variables **********************************************
+  private ListenerList<ClientListener> listeners =
+    new ListenerList<ClientListener>();
 
   /**
-   * The service instance used to simulate multiple class inheritance.
+   * The dispatcher used when asynchronous dispatch is enabled,
+   * null otherwise.
    */
-  private AdaptableClient service;
+  private volatile EventDispatcher<ClientEvent> dispatcher;
 
   //Constructor *****************************************************
 
@@ -75,6 +80,93 @@ public class ObservableClient extends Observable
     service.sendToServer(msg);
   }
 
+  /**
+   * Registers a listener that will receive the events of this client.
+   *
+   * @param listener the listener to add.
+   */
+  public void addClientListener(ClientListener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregisters a listener.
+   *
+   * @param listener the listener to remove.
+   */
+  public void removeClientListener(ClientListener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Makes listeners run on a dedicated dispatch thread instead of the
+   * client's reading thread. Events are queued in a ring buffer
+   * of the given capacity; when it is full, the reading thread waits.
+   * Has no effect if asynchronous dispatch is already enabled.
+   *
+   * @param capacity the number of events that can be queued.
+   */
+  public synchronized void enableAsyncDispatch(int capacity)
+  {
+    if (dispatcher != null)
+      return;
+
+    dispatcher = new EventDispatcher<ClientEvent>(
+      "ObservableClient dispatcher", capacity,
+      new EventDispatcher.Handler<ClientEvent>()
+      {
+        public void onEvent(ClientEvent event)
+        {
+          deliver(event);
+        }
+      });
+  }
+
+  /**
+   * Makes listeners run again on the client's reading thread.
+   * Events already queued are still delivered.
+   */
+  public synchronized void disableAsyncDispatch()
+  {
+    if (dispatcher != null)
+    {
+      dispatcher.stop();
+      dispatcher = null;
+    }
+  }
+
+  /**
+   * Sends an event to the listeners, either directly or through the
+   * dispatch thread.
+   *
+   * @param event the event.
+   */
+  protected void fireEvent(ClientEvent event)
+  {
+    if (listeners.size() == 0)
+      return;
+
+    EventDispatcher<ClientEvent> current = dispatcher;
+    if (current != null)
+      current.publish(event);
+    else
+      deliver(event);
+  }
+
+  /**
+   * Calls each listener with an event.
+   *
+   * @param event the event.
+   */
+  private void deliver(ClientEvent event)
+  {
+    Object[] current = listeners.snapshot();
+    for (int i = 0; i < current.length; i++)
+      ((ClientListener) current[i]).clientEvent(event);
+  }
+
 // ACCESSING METHODS ------------------------------------------------
 
   /**
@@ -134,14 +226,13 @@ public class ObservableClient extends Observable
 
   /**
    * This method is used to handle messages from the server.  This method
-   * can be overriden but should always call notifyObservers().
+   * can be overriden but should always call fireEvent().
    *
    * @param message The message received from the client.
    */
   protected void handleMessageFromServer(Object message)
   {
-    setChanged();
-    notifyObservers(message);
+    fireEvent(new ClientEvent(ClientEvent.Type.MESSAGE, message, null));
   }
 
   /**
@@ -149,8 +240,8 @@ public class ObservableClient extends Observable
    */
   protected void connectionClosed()
   {
-    setChanged();
-    notifyObservers(CONNECTION_CLOSED);
+    fireEvent(new ClientEvent(ClientEvent.Type.CONNECTION_CLOSED,
+      null, null));
   }
 
   /**
@@ -161,8 +252,8 @@ public class ObservableClient extends Observable
    */
   protected void connectionException(Exception exception)
   {
-    setChanged();
-    notifyObservers(exception);
+    fireEvent(new ClientEvent(ClientEvent.Type.CONNECTION_EXCEPTION,
+      null, exception));
   }
 
   /**
@@ -170,7 +261,7 @@ public class ObservableClient extends Observable
    */
   protected void connectionEstablished()
   {
-    setChanged();
-    notifyObservers(CONNECTION_ESTABLISHED);
+    fireEvent(new ClientEvent(ClientEvent.Type.CONNECTION_ESTABLISHED,
+      null, null));
   }
 }
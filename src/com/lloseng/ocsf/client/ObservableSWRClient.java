@@ -10,8 +10,8 @@ import java.net.*;
 
 /**
  * This class acts as a subclass of <code>AbstractClient</code>
- * and is also an <code>Observable</code> class.
- * Each time a new message is received, observers are notified.
+ * and notifies a list of <code>ClientListener</code>s.
+ * Each time a new message is received, listeners are notified.
  * This class contains two blocking methods that can be used
  * when a user wishes to send a message and then wait for a reply
  * from the server.
@@ -21,12 +21,15 @@ import java.net.*;
  */
 public class ObservableSWRClient extends ObservableClient
 {
-  //Instance variables **********************************************
+  //Class variables *************************************************
 
   /**
-   * Indicates a that the client is still waiting for a reply.
+   * Placed in the list of expected replies while waiting for the
+   * connection to be established.
    */
-  public static final String WAITING_FOR_REPLY = "#OC:Waiting for reply.";
+  private static final Object CONNECTION_ESTABLISHED = new Object();
+
+  //Instance variables **********************************************
 
   /**
    * The service instance used to simulate multiple class inheritance.
@@ -47,8 +50,8 @@ public class ObservableSWRClient extends ObservableClient
   /**
    * Sets the wait time.
    * At the end of each wait time period,
-   * the instance will notify its observers with the
-   * WAITING_FOR_REPLY message.
+   * the instance will notify its listeners with a
+   * WAITING_FOR_REPLY event.
    *
    * @param waitTime The wait time in ms.
    */
@@ -61,8 +64,8 @@ public class ObservableSWRClient extends ObservableClient
    * Connects to the server and waits. This method
    * will block until the server confirm connection.
    * At the end of each wait time period,
-   * the instance will notify its observers with the
-   * WAITING_FOR_REPLY message.
+   * the instance will notify its listeners with a
+   * WAITING_FOR_REPLY event.
    *
    * @return true if successfully connected.
    * @exception IOException if an I/O error occurs when connecting.
@@ -77,8 +80,8 @@ public class ObservableSWRClient extends ObservableClient
     while ( !cancelled && !expected.isEmpty() )
     {
       wait(waitTime);
-      setChanged();
-      notifyObservers(WAITING_FOR_REPLY);
+      fireEvent(new ClientEvent(ClientEvent.Type.WAITING_FOR_REPLY,
+        null, null));
     }
 
     if (exception != null)
@@ -96,8 +99,8 @@ public class ObservableSWRClient extends ObservableClient
    * Sends a message to the server and waits for a reply.
    * This method will block until the server sends the expected reply.
    * At the end of each wait time period,
-   * the instance will notify its observers with the
-   * WAITING_FOR_REPLY message.
+   * the instance will notify its listeners with a
+   * WAITING_FOR_REPLY event.
    *
    * @param message The message sends to the server.
    * @param expectedObject The client will wait until it receives an object
@@ -119,8 +122,8 @@ public class ObservableSWRClient extends ObservableClient
    * This method will block until the server sends one
    * of the expected list of replies.
    * At the end of each wait time period,
-   * the instance will notify its observers with the
-   * WAITING_FOR_REPLY message.
+   * the instance will notify its listeners with a
+   * WAITING_FOR_REPLY event.
    *
    * @param message The message sends to the server.
    * @param expectedListOfObject The client will wait until it receives
@@ -143,8 +146,8 @@ public class ObservableSWRClient extends ObservableClient
     while ( !cancelled && !expected.isEmpty() )
     {
       wait(waitTime);
-      setChanged();
-      notifyObservers(WAITING_FOR_REPLY);
+      fireEvent(new ClientEvent(ClientEvent.Type.WAITING_FOR_REPLY,
+        null, null));
     }
 
     if (exception != null)
@@ -205,7 +208,7 @@ public class ObservableSWRClient extends ObservableClient
 
   /**
    * This method is used to handle messages from the server.  This method
-   * can be overriden but should always call notifyObservers().
+   * can be overriden but should always call fireEvent().
    *
    * @param message The message received from the client.
    */
@@ -213,8 +216,7 @@ public class ObservableSWRClient extends ObservableClient
   {
     receive(message);
 
-    setChanged();
-    notifyObservers(message);
+    super.handleMessageFromServer(message);
   }
 
   /**
@@ -224,8 +226,7 @@ public class ObservableSWRClient extends ObservableClient
   {
     notify(null);
 
-    setChanged();
-    notifyObservers(CONNECTION_CLOSED);
+    super.connectionClosed();
   }
 
   /**
@@ -238,8 +239,7 @@ public class ObservableSWRClient extends ObservableClient
   {
     notify(exception);
 
-    setChanged();
-    notifyObservers(exception);
+    super.connectionException(exception);
   }
 
   /**
@@ -249,7 +249,6 @@ public class ObservableSWRClient extends ObservableClient
   {
     receive(CONNECTION_ESTABLISHED);
 
-    setChanged();
-    notifyObservers(CONNECTION_ESTABLISHED);
+    super.connectionEstablished();
   }
 }
@@ -0,0 +1,311 @@
+package com.lloseng.ocsf.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events from the threads that produce them to a single dispatch
+ * thread through a bounded ring buffer. Producers claim a sequence number,
+ * store the event in the matching slot and publish it; the dispatch thread
+ * consumes slots in sequence order. Neither side takes a lock, so a slow
+ * listener only delays later listeners, not the I/O threads, until the ring
+ * is full. When the ring is full, <code>next()</code> waits for a free slot
+ * rather than drop events, while <code>tryNext()</code> returns at once so
+ * that the producer can apply its own policy.
+ * <p>
+ * The ring either holds references to events allocated by the producers
+ * (<code>publish(E)</code>), or, when constructed with a
+ * <code>Factory</code>, pre-allocated mutable events that producers fill in
+ * place (<code>next()</code>, <code>get()</code>, <code>publish(long)</code>).
+ * In the latter case no event is ever allocated after construction, and an
+ * event is only valid until the handler returns: its slot is then reused.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @param <E> the event type.
+ */
+public class EventDispatcher<E>
+{
+  /**
+   * Receives the events taken off the ring, on the dispatch thread.
+   */
+  public interface Handler<E>
+  {
+    /**
+     * Called once per published event, in publication order.
+     *
+     * @param event the event.
+     */
+    void onEvent(E event);
+  }
+
+  /**
+   * Creates the events that pre-populate the ring.
+   */
+  public interface Factory<E>
+  {
+    /**
+     * @return a new, empty event.
+     */
+    E newInstance();
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * The event slots. The slot of sequence s is s &amp; mask.
+   */
+  private final Object[] slots;
+
+  /**
+   * The sequence last published in each slot, -1 if none.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * Mask used to map sequences onto slots.
+   */
+  private final int mask;
+
+  /**
+   * The next sequence to be claimed by a producer.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * The last sequence fully handled by the dispatch thread.
+   */
+  private final AtomicLong consumed = new AtomicLong(-1);
+
+  /**
+   * The handler invoked on the dispatch thread.
+   */
+  private final Handler<E> handler;
+
+  /**
+   * The dispatch thread.
+   */
+  private final Thread dispatchThread;
+
+  /**
+   * True if the slots hold pre-allocated events that are reused.
+   */
+  private final boolean pooled;
+
+  /**
+   * Set when the dispatcher must stop once the ring is drained.
+   */
+  private volatile boolean stopping;
+
+  /**
+   * Set while the dispatch thread is parked waiting for events, so that
+   * producers only pay for an unpark when it is needed.
+   */
+  private volatile boolean idle;
+
+  //Constructor *****************************************************
+
+  /**
+   * Constructs a dispatcher and starts its dispatch thread.
+   *
+   * @param name the name of the dispatch thread.
+   * @param capacity the number of slots, rounded up to a power of two.
+   * @param handler the handler receiving the events.
+   */
+  public EventDispatcher(String name, int capacity, Handler<E> handler)
+  {
+    this(name, capacity, null, handler);
+  }
+
+  /**
+   * Constructs a dispatcher whose slots are pre-allocated with the given
+   * factory, and starts its dispatch thread. Events must be published with
+   * <code>next()</code>, <code>get()</code> and <code>publish(long)</code>.
+   *
+   * @param name the name of the dispatch thread.
+   * @param capacity the number of slots, rounded up to a power of two.
+   * @param factory creates the events, or null to hold references.
+   * @param handler the handler receiving the events.
+   */
+  public EventDispatcher(String name, int capacity, Factory<E> factory,
+    Handler<E> handler)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new Object[size];
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      published.set(i, -1);
+    mask = size - 1;
+    this.handler = handler;
+    pooled = factory != null;
+    if (pooled)
+    {
+      for (int i = 0; i < size; i++)
+        slots[i] = factory.newInstance();
+    }
+
+    dispatchThread = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          dispatchLoop();
+        }
+      }, name);
+    dispatchThread.setDaemon(true);
+    dispatchThread.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Publishes an event allocated by the caller. May be called from any
+   * thread. Waits if the ring is full.
+   *
+   * @param event the event to publish.
+   * @exception IllegalStateException if the slots are pre-allocated.
+   */
+  public void publish(E event)
+  {
+    if (pooled)
+      throw new IllegalStateException("pre-allocated ring");
+
+    long sequence = next();
+    slots[(int) sequence & mask] = event;
+    publish(sequence);
+  }
+
+  /**
+   * Claims the next slot of the ring. May be called from any thread.
+   * Waits if the ring is full. The claimed slot must be published with
+   * <code>publish(long)</code>, or the dispatch thread will stall.
+   *
+   * @return the sequence of the claimed slot.
+   */
+  public long next()
+  {
+    long sequence = claimed.getAndIncrement();
+
+    // wait until the dispatch thread has freed the slot
+    int spins = 0;
+    while (sequence - consumed.get() > mask + 1)
+    {
+      if (++spins < 100)
+        Thread.onSpinWait();
+      else if (spins < 200)
+        Thread.yield();
+      else
+        LockSupport.parkNanos(50000);
+    }
+    return sequence;
+  }
+
+  /**
+   * Claims the next slot of the ring if one is free, without waiting.
+   * May be called from any thread, along with <code>next()</code>. The
+   * claimed slot must be published with <code>publish(long)</code>.
+   *
+   * @return the sequence of the claimed slot, or -1 if the ring is full.
+   */
+  public long tryNext()
+  {
+    while (true)
+    {
+      long sequence = claimed.get();
+      if (sequence - consumed.get() > mask + 1)
+        return -1;
+      if (claimed.compareAndSet(sequence, sequence + 1))
+        return sequence;
+    }
+  }
+
+  /**
+   * Returns the event held by a claimed slot, to be filled in before
+   * it is published.
+   *
+   * @param sequence the sequence returned by <code>next()</code>.
+   * @return the pre-allocated event of that slot.
+   */
+  @SuppressWarnings("unchecked")
+  public E get(long sequence)
+  {
+    return (E) slots[(int) sequence & mask];
+  }
+
+  /**
+   * Makes a claimed slot visible to the dispatch thread.
+   *
+   * @param sequence the sequence returned by <code>next()</code>.
+   */
+  public void publish(long sequence)
+  {
+    published.set((int) sequence & mask, sequence);
+    if (idle)
+      LockSupport.unpark(dispatchThread);
+  }
+
+  /**
+   * Stops the dispatch thread once every published event
+   * has been handled.
+   */
+  public void stop()
+  {
+    stopping = true;
+    LockSupport.unpark(dispatchThread);
+  }
+
+  /**
+   * @return the number of events published but not yet handled.
+   */
+  public long getBacklog()
+  {
+    return claimed.get() - consumed.get() - 1;
+  }
+
+  /**
+   * Takes events off the ring and hands them to the handler.
+   */
+  @SuppressWarnings("unchecked")
+  private void dispatchLoop()
+  {
+    long next = 0;
+    int spins = 0;
+    while (true)
+    {
+      int index = (int) next & mask;
+      if (published.get(index) == next)
+      {
+        spins = 0;
+        E event = (E) slots[index];
+        if (!pooled)
+          slots[index] = null;
+        try
+        {
+          handler.onEvent(event);
+        }
+        catch (RuntimeException ex)
+        {
+          ex.printStackTrace();
+        }
+        consumed.lazySet(next);
+        next++;
+      }
+      else if (stopping && claimed.get() == next)
+      {
+        return;
+      }
+      else if (++spins < 1000)
+      {
+        Thread.onSpinWait();
+      }
+      else
+      {
+        // recheck after raising the flag so a publish cannot be missed
+        idle = true;
+        if (published.get(index) != next && !stopping)
+          LockSupport.parkNanos(100000);
+        idle = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.lloseng.ocsf.event;
+
+/**
+ * A copy-on-write list of listeners. Registration is rare and copies the
+ * backing array; notification reads a single volatile reference and walks
+ * the array without locking or copying, which makes it safe to iterate
+ * while listeners are being added or removed from other threads.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @param <L> the listener type.
+ */
+public class ListenerList<L>
+{
+  //Instance variables **********************************************
+
+  /**
+   * The registered listeners. Never mutated once published.
+   */
+  private volatile Object[] listeners = new Object[0];
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers a listener. Adding the same listener twice has no effect.
+   *
+   * @param listener the listener to add.
+   */
+  public synchronized void add(L listener)
+  {
+    if (listener == null)
+      throw new NullPointerException("listener");
+
+    Object[] current = listeners;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i] == listener)
+        return;
+    }
+
+    Object[] updated = new Object[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = listener;
+    listeners = updated;
+  }
+
+  /**
+   * Unregisters a listener.
+   *
+   * @param listener the listener to remove.
+   */
+  public synchronized void remove(L listener)
+  {
+    Object[] current = listeners;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i] == listener)
+      {
+        Object[] updated = new Object[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i,
+          current.length - i - 1);
+        listeners = updated;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Unregisters every listener.
+   */
+  public synchronized void clear()
+  {
+    listeners = new Object[0];
+  }
+
+  /**
+   * Returns the current listeners. The array must not be modified.
+   *
+   * @return a snapshot of the registered listeners.
+   */
+  public Object[] snapshot()
+  {
+    return listeners;
+  }
+
+  /**
+   * @return the number of registered listeners.
+   */
+  public int size()
+  {
+    return listeners.length;
+  }
+}
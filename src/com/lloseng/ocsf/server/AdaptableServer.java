@@ -55,11 +55,13 @@ class AdaptableServer extends AbstractServer
   }
 
   /**
-   * Hook method called each time a client disconnects.
+   * Hook method called each time a client disconnects. Synchronized
+   * like the reception of the messages, as AbstractServer requires.
    *
    * @param client the connection with the client.
    */
-  final protected void clientDisconnected(ConnectionToClient client)
+  synchronized final protected void clientDisconnected(
+    ConnectionToClient client)
   {
     server.clientDisconnected(client);
   }
@@ -93,9 +93,10 @@ public class ConnectionToClient extends Thread
    * The initial size of the map is small since it is not expected
    * that concrete servers will want to store many different types of
    * information about each client. Used by the setInfo and getInfo
-   * methods.
+   * methods, which may be called from threads other than this one.
    */
-  private HashMap savedInfo = new HashMap(10);
+  private Map<String, Object> savedInfo =
+    Collections.synchronizedMap(new HashMap<String, Object>(10));
 
 
 // CONSTRUCTORS *****************************************************
@@ -156,10 +157,15 @@ public class ConnectionToClient extends Thread
    */
   public void sendToClient(Object msg) throws IOException
   {
-    if (clientSocket == null || output == null)
+    ObjectOutputStream out = output;
+    if (clientSocket == null || out == null)
       throw new SocketException("socket does not exist");
 
-    output.writeObject(msg);
+    // several threads may send to the same client at once
+    synchronized (out)
+    {
+      out.writeObject(msg);
+    }
   }
 
   /**
@@ -6,11 +6,14 @@ package com.lloseng.ocsf.server;
 
 /**
 * The <code> ObservableOriginatorServer </code> is a subclass
-* of <code> ObservableServer </code> that sends
-* <code> OriginatorMessage </code> instances to its observers.
-* This class should be used when the observers need to know
+* of <code> ObservableServer </code> whose message events
+* also carry the client that sent the message.
+* This class should be used when the listeners need to know
 * the orginator of the messages received. The originator
-* is null when the message sent concerns the server.
+* is null when the event concerns the server.
+* No event object is allocated per message: events are
+* recycled by the server and are only valid while the
+* listener that receives them runs.
 *
 * Project Name: OCSF (Object Client-Server Framework)<p>
 *
@@ -39,7 +42,7 @@ public class ObservableOriginatorServer extends ObservableServer
 
   /**
    * This method is used to handle messages coming from the client.
-   * Observers are notfied by receiveing an instance of OriginatorMessage
+   * Listeners are notfied by receiveing a MESSAGE event
    * that contains both the message received and a reference to the
    * client who sent the message.
    *
@@ -49,49 +52,49 @@ public class ObservableOriginatorServer extends ObservableServer
   protected synchronized void handleMessageFromClient
     (Object message, ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, message));
+    fireEvent(ServerEvent.Type.MESSAGE,
+      client, message, null);
   }
 
   /**
    * Method called each time a new client connection is
-   * accepted. It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
+   * accepted. It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
    * containing a reference to that client and
-   * the message defined by the static variable CLIENT_CONNECTED.
+   * the type CLIENT_CONNECTED.
    *
    * @param client the connection connected to the client.
    */
   protected synchronized void clientConnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, CLIENT_CONNECTED));
+    fireEvent(ServerEvent.Type.CLIENT_CONNECTED,
+      client, null, null);
   }
 
   /**
    * Method called each time a client connection is
-   * disconnected. It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
+   * disconnected. It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
    * containing a reference to that client and
-   * the message defined by the static variable CLIENT_DISCONNECTED.
+   * the type CLIENT_DISCONNECTED.
    *
    * @param client the connection connected to the client.
    */
   synchronized protected void clientDisconnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, CLIENT_DISCONNECTED));
+    fireEvent(ServerEvent.Type.CLIENT_DISCONNECTED,
+      client, null, null);
   }
 
 
   /**
    * Method called each time an exception is raised
    * by a client connection.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
+   * It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
    * containing a reference to that client and
-   * the message defined by the static variable CLIENT_EXCEPTION
-   * to which is appended the exception message.
+   * the type CLIENT_EXCEPTION,
+   * the exception and its message.
    *
    * @param client the client that raised the exception.
    * @param Throwable the exception thrown.
@@ -99,67 +102,63 @@ public class ObservableOriginatorServer extends ObservableServer
   synchronized protected void clientException(
     ConnectionToClient client, Throwable exception)
   {
-    setChanged();
-    notifyObservers(
-      new OriginatorMessage(client,
-        CLIENT_EXCEPTION + exception.getMessage()));
+    fireEvent(ServerEvent.Type.CLIENT_EXCEPTION,
+      client, exception.getMessage(), exception);
   }
 
   /**
    * Method called each time an exception is raised
    * while listening.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable LISTENING_EXCEPTION
-   * to which is appended the exception message.
+   * It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
+   * containing the type LISTENING_EXCEPTION,
+   * the exception and its message.
    * The originator is set to null.
    *
    * @param exception the exception raised.
    */
   protected synchronized void listeningException(Throwable exception)
   {
-    setChanged();
-    notifyObservers(
-      new OriginatorMessage(null,
-        LISTENING_EXCEPTION + exception.getMessage()));
+    fireEvent(ServerEvent.Type.LISTENING_EXCEPTION,
+      null, exception.getMessage(), exception);
   }
 
   /**
    * Method called each time the server is started.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_STARTED.
+   * It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
+   * containing the type SERVER_STARTED.
    * The originator is set to null.
    */
   protected synchronized void serverStarted()
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_STARTED));
+    fireEvent(ServerEvent.Type.SERVER_STARTED,
+      null, null, null);
   }
 
   /**
    * Method called each time the server is stopped.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_STOPPED.
+   * It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
+   * containing the type SERVER_STOPPED.
    * The originator is set to null.
    */
   synchronized protected void serverStopped()
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_STOPPED));
+    fireEvent(ServerEvent.Type.SERVER_STOPPED,
+      null, null, null);
   }
 
   /**
    * Method called each time the server is closed.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_CLOSED.
+   * It notifies listeners by sending a
+   * <code> ServerEvent </code> instance
+   * containing the type SERVER_CLOSED.
    * The originator is set to null.
    */
   synchronized protected void serverClosed()
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_CLOSED));
+    fireEvent(ServerEvent.Type.SERVER_CLOSED,
+      null, null, null);
   }
 }
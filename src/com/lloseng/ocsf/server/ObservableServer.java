@@ -8,11 +8,17 @@ import java.util.*;
 import java.io.*;
 import java.net.*;
 
+import com.lloseng.ocsf.event.*;
+
 /**
  * This class acts as a subclass of <code>AbstractServer</code>
- * and is also an <code>Observable</code> class.
- * This means that when a message is received, all observers
- * are notified.
+ * and notifies a list of <code>ServerListener</code>s each time
+ * a message is received or the state of the server changes.
+ * Listeners are held in a copy-on-write array, so notification
+ * neither locks nor copies. Optionally, events can be handed to
+ * the listeners on a separate dispatch thread through a ring
+ * buffer, so that a slow listener cannot stall the threads that
+ * read from the clients.
  *
  * @author Fran&ccedil;ois B&eacute;lange
  * @author Dr Timothy C. Lethbridge
@@ -20,54 +26,36 @@ import java.net.*;
  * @version August 2000
  */
 
-public class ObservableServer extends Observable
+public class ObservableServer
 {
-  // Class variables ************************************************
-
-  /**
-   * The string sent to the observers when a client has connected.
-   */
-  public static final String CLIENT_CONNECTED= "#OS:Client connected.";
-
-  /**
-   * The string sent to the observers when a client has disconnected.
-   */
-  public static final String CLIENT_DISCONNECTED= "#OS:Client disconnected.";
-
-  /**
-   * The string sent to the observers when an exception occurred with a client.
-   * The error message of that exception will be appended to this string.
-   */
-  public static final String CLIENT_EXCEPTION= "#OS:Client exception.";
+  //Instance variables **********************************************
 
   /**
-   * The string sent to the observers when a listening exception occurred.
-   * The error message of that exception will be appended to this string.
+   * The service used to simulate multiple class inheritance.
    */
-  public static final String LISTENING_EXCEPTION= "#OS:Listening exception.";
+  private AdaptableServer service;
 
   /**
-   * The string sent to the observers when the server has closed.
+   * The registered listeners.
    */
-  public static final String SERVER_CLOSED= "#OS:Server closed.";
+  private ListenerList<ServerListener> listeners =
+    new ListenerList<ServerListener>();
 
   /**
-   * The string sent to the observers when the server has started.
+   * The dispatcher used when asynchronous dispatch is enabled,
+   * null otherwise.
    */
-  public static final String SERVER_STARTED= "#OS:Server started.";
+  private volatile EventDispatcher<ServerEvent> dispatcher;
 
   /**
-   * The string sent to the observers when the server has stopped.
+   * The event reused for synchronous dispatch. Guarded by this.
    */
-  public static final String SERVER_STOPPED= "#OS:Server stopped.";
-
-
-  //Instance variables **********************************************
+  private ServerEvent reusableEvent = new ServerEvent();
 
   /**
-   * The service used to simulate multiple class inheritance.
+   * True while reusableEvent is being delivered. Guarded by this.
    */
-  private AdaptableServer service;
+  private boolean reusableEventInUse;
 
 
   //Constructor *****************************************************
@@ -118,6 +106,165 @@ public class ObservableServer extends Observable
     service.sendToAllClients(msg);
   }
 
+  /**
+   * Runs a task holding the lock under which the messages received
+   * from the clients and their disconnections are handled, so that
+   * the task runs between two of them.
+   *
+   * @param task the task to run.
+   */
+  final protected void runLocked(Runnable task)
+  {
+    synchronized (service)
+    {
+      task.run();
+    }
+  }
+
+  /**
+   * Registers a listener that will receive the events of this server.
+   *
+   * @param listener the listener to add.
+   */
+  public void addServerListener(ServerListener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregisters a listener.
+   *
+   * @param listener the listener to remove.
+   */
+  public void removeServerListener(ServerListener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Makes listeners run on a dedicated dispatch thread instead of the
+   * thread that raised the event. Events are queued in a ring buffer
+   * of the given capacity, whose event instances are allocated once and
+   * then reused; when it is full, the raising thread waits.
+   * Has no effect if asynchronous dispatch is already enabled.
+   *
+   * @param capacity the number of events that can be queued.
+   */
+  public synchronized void enableAsyncDispatch(int capacity)
+  {
+    if (dispatcher != null)
+      return;
+
+    dispatcher = new EventDispatcher<ServerEvent>(
+      "ObservableServer dispatcher", capacity,
+      new EventDispatcher.Factory<ServerEvent>()
+      {
+        public ServerEvent newInstance()
+        {
+          return new ServerEvent();
+        }
+      },
+      new EventDispatcher.Handler<ServerEvent>()
+      {
+        public void onEvent(ServerEvent event)
+        {
+          try
+          {
+            deliver(event);
+          }
+          finally
+          {
+            event.clear();
+          }
+        }
+      });
+  }
+
+  /**
+   * Makes listeners run again on the thread that raised the event.
+   * Events already queued are still delivered.
+   */
+  public synchronized void disableAsyncDispatch()
+  {
+    if (dispatcher != null)
+    {
+      dispatcher.stop();
+      dispatcher = null;
+    }
+  }
+
+  /**
+   * Sends an event to the listeners, either directly or through the
+   * dispatch thread. The event is copied into a recycled instance,
+   * so the caller keeps ownership of it.
+   *
+   * @param event the event.
+   */
+  protected void fireEvent(ServerEvent event)
+  {
+    fireEvent(event.getType(), event.getOriginator(), event.getMessage(),
+      event.getException());
+  }
+
+  /**
+   * Sends an event to the listeners, either directly or through the
+   * dispatch thread, without allocating. The event instance handed to
+   * the listeners is either a slot of the dispatch ring or, for
+   * synchronous dispatch, an instance reused under the server's lock;
+   * a fresh instance is only created when a listener causes another
+   * event to be fired while the reused one is being delivered.
+   *
+   * @param type the kind of event.
+   * @param client the client concerned, or null.
+   * @param message the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  protected void fireEvent(ServerEvent.Type type, ConnectionToClient client,
+    Object message, Throwable exception)
+  {
+    if (listeners.size() == 0)
+      return;
+
+    EventDispatcher<ServerEvent> current = dispatcher;
+    if (current != null)
+    {
+      long sequence = current.next();
+      current.get(sequence).set(type, client, message, exception);
+      current.publish(sequence);
+      return;
+    }
+
+    synchronized (this)
+    {
+      boolean reuse = !reusableEventInUse;
+      ServerEvent event = reuse ? reusableEvent : new ServerEvent();
+      event.set(type, client, message, exception);
+      reusableEventInUse = true;
+      try
+      {
+        deliver(event);
+      }
+      finally
+      {
+        event.clear();
+        if (reuse)
+          reusableEventInUse = false;
+      }
+    }
+  }
+
+  /**
+   * Calls each listener with an event.
+   *
+   * @param event the event.
+   */
+  private void deliver(ServerEvent event)
+  {
+    Object[] current = listeners.snapshot();
+    for (int i = 0; i < current.length; i++)
+      ((ServerListener) current[i]).serverEvent(event);
+  }
+
 // ACCESSING METHODS ------------------------------------------------
 
   /**
@@ -204,8 +351,8 @@ public class ObservableServer extends Observable
    */
   protected synchronized void clientConnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(CLIENT_CONNECTED);
+    fireEvent(ServerEvent.Type.CLIENT_CONNECTED,
+      client, null, null);
   }
 
   /**
@@ -216,8 +363,8 @@ public class ObservableServer extends Observable
    */
   protected synchronized void clientDisconnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(CLIENT_DISCONNECTED);
+    fireEvent(ServerEvent.Type.CLIENT_DISCONNECTED,
+      client, null, null);
   }
 
   /**
@@ -233,8 +380,8 @@ public class ObservableServer extends Observable
   protected synchronized void clientException(ConnectionToClient client,
                                         Throwable exception)
   {
-    setChanged();
-    notifyObservers(CLIENT_EXCEPTION);
+    fireEvent(ServerEvent.Type.CLIENT_EXCEPTION,
+      client, null, exception);
     try
     {
       client.close();
@@ -253,8 +400,8 @@ public class ObservableServer extends Observable
    */
   protected synchronized void listeningException(Throwable exception)
   {
-    setChanged();
-    notifyObservers(LISTENING_EXCEPTION);
+    fireEvent(ServerEvent.Type.LISTENING_EXCEPTION,
+      null, null, exception);
     stopListening();
   }
 
@@ -265,8 +412,8 @@ public class ObservableServer extends Observable
    */
   synchronized protected void serverStopped()
   {
-    setChanged();
-    notifyObservers(SERVER_STOPPED);
+    fireEvent(ServerEvent.Type.SERVER_STOPPED,
+      null, null, null);
   }
 
   /**
@@ -275,8 +422,8 @@ public class ObservableServer extends Observable
    */
   synchronized protected void serverClosed()
   {
-    setChanged();
-    notifyObservers(SERVER_CLOSED);
+    fireEvent(ServerEvent.Type.SERVER_CLOSED,
+      null, null, null);
   }
 
   /**
@@ -285,16 +432,16 @@ public class ObservableServer extends Observable
    */
   protected synchronized void serverStarted()
   {
-    setChanged();
-    notifyObservers(SERVER_STARTED);
+    fireEvent(ServerEvent.Type.SERVER_STARTED,
+      null, null, null);
   }
 
   /**
    * This method is used to handle messages coming from the client.
-   * Observers are notfied by receiveing the transmitted message.
+   * Listeners are notfied by receiveing a MESSAGE event.
    * Note that, in this implementation, the information concerning
    * the client that sent the message is lost.
-   * It can be overriden, but is still expected to call notifyObservers().
+   * It can be overriden, but is still expected to call fireEvent().
    *
    * @param message The message received from the client.
    * @param client The connection to the client.
@@ -303,7 +450,7 @@ public class ObservableServer extends Observable
   protected synchronized void handleMessageFromClient
     (Object message, ConnectionToClient client)
   {
-     setChanged();
-     notifyObservers(message);
+     fireEvent(ServerEvent.Type.MESSAGE,
+       null, message, null);
   }
 }
@@ -37,6 +37,19 @@ public class OriginatorMessage
     this.message = message;
   }
 
+  /**
+   * Changes the contents of this message. Used by the framework to
+   * recycle pre-allocated event instances.
+   *
+   * @param originator The client who created this message
+   * @param message The contents of the message
+   */
+  void set(ConnectionToClient originator, Object message)
+  {
+    this.originator = originator;
+    this.message = message;
+  }
+
 // Accessor methods *********************************************************
 
   /**
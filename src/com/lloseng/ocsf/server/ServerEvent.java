@@ -0,0 +1,138 @@
+package com.lloseng.ocsf.server;
+
+/**
+ * An event sent by an <code>ObservableServer</code> to its listeners.
+ * The type replaces the magic strings, such as <code>CLIENT_CONNECTED</code>,
+ * that were previously sent to observers. Being an
+ * <code>OriginatorMessage</code>, it also carries the client concerned by
+ * the event, if any, and the message received, if any.
+ * <p>
+ * Events are recycled by the server: an event instance is only valid
+ * until the listener method it was passed to returns. Listeners that
+ * need the event later, e.g. on another thread, must copy its fields
+ * or call <code>copy()</code>.
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see com.lloseng.ocsf.server.ServerListener
+ */
+public class ServerEvent extends OriginatorMessage
+{
+  /**
+   * The kinds of events a server reports.
+   */
+  public enum Type
+  {
+    CLIENT_CONNECTED,
+    CLIENT_DISCONNECTED,
+    CLIENT_EXCEPTION,
+    LISTENING_EXCEPTION,
+    SERVER_STARTED,
+    SERVER_STOPPED,
+    SERVER_CLOSED,
+    MESSAGE
+  }
+
+  /**
+   * The kind of event.
+   */
+  private Type type;
+
+  /**
+   * The exception raised, for exception events.
+   */
+  private Throwable exception;
+
+// Constructors **************************************************************
+
+  /**
+   * Constructs an empty event, to be filled in with <code>set()</code>.
+   */
+  ServerEvent()
+  {
+    super(null, null);
+  }
+
+  /**
+   * Constructs an event.
+   *
+   * @param type the kind of event.
+   * @param originator the client concerned, or null.
+   * @param message the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  public ServerEvent(Type type, ConnectionToClient originator,
+    Object message, Throwable exception)
+  {
+    super(originator, message);
+    this.type = type;
+    this.exception = exception;
+  }
+
+// Instance methods *********************************************************
+
+  /**
+   * Changes the contents of this event.
+   *
+   * @param type the kind of event.
+   * @param originator the client concerned, or null.
+   * @param message the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  void set(Type type, ConnectionToClient originator, Object message,
+    Throwable exception)
+  {
+    set(originator, message);
+    this.type = type;
+    this.exception = exception;
+  }
+
+  /**
+   * Drops the references held by this event so that a recycled
+   * event does not keep clients or messages reachable.
+   */
+  void clear()
+  {
+    set(null, null, null, null);
+  }
+
+  /**
+   * Returns an event with the same contents that is not recycled
+   * by the server and may therefore be kept.
+   *
+   * @return a copy of this event.
+   */
+  public ServerEvent copy()
+  {
+    return new ServerEvent(type, getOriginator(), getMessage(), exception);
+  }
+
+// Accessor methods *********************************************************
+
+  /**
+   * @return the kind of event.
+   */
+  public Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * @return the exception raised, or null if the event does not
+   * concern an exception.
+   */
+  public Throwable getException()
+  {
+    return exception;
+  }
+
+  /**
+   * Returns a description of the event.
+   *
+   * @return the event type and message.
+   */
+  public String toString()
+  {
+    return type + (getMessage() == null ? "" : ": " + getMessage());
+  }
+}
@@ -0,0 +1,22 @@
+package com.lloseng.ocsf.server;
+
+/**
+ * Receives the events of an <code>ObservableServer</code>.
+ * Listeners are called on the thread that raised the event, or on the
+ * server's dispatch thread when asynchronous dispatch is enabled.
+ * The event passed to a listener is recycled once the listener returns
+ * and must not be kept.
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see com.lloseng.ocsf.server.ObservableServer#addServerListener
+ */
+public interface ServerListener
+{
+  /**
+   * Called for each event of the server.
+   *
+   * @param event the event.
+   */
+  public abstract void serverEvent(ServerEvent event);
+}
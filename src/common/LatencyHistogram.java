@@ -0,0 +1,170 @@
+package common;
+
+/**
+ * A fixed-size, log-linear histogram of latency samples. Values are bucketed
+ * with roughly 1% precision so percentiles can be read back without storing
+ * the individual samples. The histogram never allocates after construction
+ * and is not thread safe; each recording thread should own its instance and
+ * use <code>add()</code> to combine them.
+ */
+public class LatencyHistogram
+{
+    // Class variables *************************************************
+
+    /**
+     * Number of bits used for the linear part of each bucket range.
+     */
+    final private static int SUB_BUCKET_BITS = 7;
+
+    /**
+     * Number of linear buckets below the first doubling.
+     */
+    final private static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets in each following doubling.
+     */
+    final private static int HALF_BUCKETS = SUB_BUCKETS / 2;
+
+    /**
+     * Number of doublings tracked above the linear range.
+     */
+    final private static int DOUBLINGS = 40;
+
+    // Instance variables **********************************************
+
+    /**
+     * Sample count per bucket.
+     */
+    private long[] counts = new long[SUB_BUCKETS + DOUBLINGS * HALF_BUCKETS];
+
+    /**
+     * Total number of samples recorded.
+     */
+    private long total;
+
+    /**
+     * Largest value recorded.
+     */
+    private long max;
+
+    // Instance methods ************************************************
+
+    /**
+     * Records a sample.
+     * @param value the sample, negative values are recorded as 0.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        counts[index(value)]++;
+        total++;
+        if (value > max)
+        {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds all the samples of another histogram to this one.
+     * @param other the histogram to merge.
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Discards all the samples.
+     */
+    public void reset()
+    {
+        java.util.Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * @return the number of samples recorded.
+     */
+    public long getCount()
+    {
+        return total;
+    }
+
+    /**
+     * @return the largest sample recorded.
+     */
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the value below which the given fraction of samples fall.
+     * @param fraction a number between 0 and 1, e.g. 0.999 for p999.
+     * @return the upper bound of the matching bucket, 0 when empty.
+     */
+    public long percentile(double fraction)
+    {
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        if (rank < 1)
+        {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Maps a value onto its bucket.
+     */
+    private int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value)
+                - (SUB_BUCKET_BITS - 1);
+        int index = SUB_BUCKETS + (shift - 1) * HALF_BUCKETS
+                + (int) ((value >> shift) - HALF_BUCKETS);
+        return Math.min(index, counts.length - 1);
+    }
+
+    /**
+     * Returns the largest value that maps onto a bucket.
+     */
+    private long upperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int k = index - SUB_BUCKETS;
+        int shift = k / HALF_BUCKETS + 1;
+        long mantissa = k % HALF_BUCKETS + HALF_BUCKETS;
+        return (mantissa << shift) + (1L << shift) - 1;
+    }
+}
+// End of LatencyHistogram class
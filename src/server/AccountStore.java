@@ -0,0 +1,478 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class stores the accounts (login id and password pairs) of the chat
+ * server. Accounts are kept in memory and every change is appended to a log
+ * file by a background thread, which writes the changes queued meanwhile in
+ * one batch and syncs them to disk with a single fsync. When the log grows
+ * larger than the snapshot, it is compacted in the background into a new
+ * snapshot file. At startup the snapshot is loaded and the log replayed, so
+ * no account is lost on a crash and stopping the server never rewrites the
+ * whole file.
+ * <p>
+ * Both files hold one <code>loginid:password</code> record per line; the
+ * snapshot has the format of the original accounts file.
+ */
+public class AccountStore
+{
+    /**
+     * Told of every account created or changed, on the thread making the
+     * change.
+     */
+    public interface Listener
+    {
+        void accountChanged(String loginid, String password);
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Smallest log size that triggers a compaction.
+     */
+    final private static long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The accounts, by login id.
+     */
+    private ConcurrentHashMap<String, String> accounts = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The snapshot file, e.g. accounts.txt.
+     */
+    private File snapshotFile;
+
+    /**
+     * The log being appended to, e.g. accounts.txt.log.
+     */
+    private File logFile;
+
+    /**
+     * The log being compacted into the snapshot, e.g. accounts.txt.log.old.
+     */
+    private File oldLogFile;
+
+    /**
+     * Records waiting to be appended to the log.
+     */
+    private LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+
+    /**
+     * Number of records queued so far. Guarded by this.
+     */
+    private long queued;
+
+    /**
+     * Number of records durably written so far. Guarded by this.
+     */
+    private long synced;
+
+    /**
+     * The channel of the log file, only used by the writer thread.
+     */
+    private FileChannel log;
+
+    /**
+     * The thread appending records to the log.
+     */
+    private Thread writer;
+
+    /**
+     * The running compaction, if any.
+     */
+    private volatile Thread compactor;
+
+    /**
+     * Told of changes, if set.
+     */
+    private volatile Listener listener;
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens an account store, loading the snapshot and replaying the log.
+     * @param fileName the snapshot file; the log files are named after it.
+     * @throws IOException if the files cannot be read or the log opened.
+     */
+    public AccountStore(String fileName) throws IOException
+    {
+        snapshotFile = new File(fileName);
+        logFile = new File(fileName + ".log");
+        oldLogFile = new File(fileName + ".log.old");
+
+        // the old log is only present if a compaction was interrupted
+        load(snapshotFile, false);
+        load(oldLogFile, true);
+        load(logFile, true);
+
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (oldLogFile.exists())
+        {
+            startCompaction();
+        }
+
+        writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "AccountStore writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Sets the listener told of every account created or changed.
+     * @param listener the listener.
+     */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * @return a read-only live view of the accounts, by login id.
+     */
+    public Map<String, String> asMap()
+    {
+        return Collections.unmodifiableMap(accounts);
+    }
+
+    /**
+     * @param loginid a login id.
+     * @return the account's password, null if there is no such account.
+     */
+    public String get(String loginid)
+    {
+        return accounts.get(loginid);
+    }
+
+    /**
+     * @param loginid a login id.
+     * @return true if there is an account with that login id.
+     */
+    public boolean containsKey(String loginid)
+    {
+        return accounts.containsKey(loginid);
+    }
+
+    /**
+     * @return the number of accounts.
+     */
+    public int size()
+    {
+        return accounts.size();
+    }
+
+    /**
+     * Creates an account unless one already exists. The account is queued
+     * for the log and written shortly after.
+     * @param loginid the login id.
+     * @param password the password.
+     * @return the existing password, or null if the account was created.
+     */
+    public String putIfAbsent(String loginid, String password)
+    {
+        checkRecord(loginid, password);
+        String existing = accounts.putIfAbsent(loginid, password);
+        if (existing == null)
+        {
+            append(loginid, password);
+            changed(loginid, password);
+        }
+        return existing;
+    }
+
+    /**
+     * Creates or changes an account. The change is queued for the log and
+     * written shortly after.
+     * @param loginid the login id.
+     * @param password the password.
+     */
+    public void put(String loginid, String password)
+    {
+        checkRecord(loginid, password);
+        accounts.put(loginid, password);
+        append(loginid, password);
+        changed(loginid, password);
+    }
+
+    /**
+     * Waits until every change made so far has been synced to disk.
+     */
+    public synchronized void flush()
+    {
+        long target = queued;
+        while (synced < target && writer.isAlive())
+        {
+            try
+            {
+                wait(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a record for the log.
+     */
+    private void append(String loginid, String password)
+    {
+        synchronized (this)
+        {
+            queued++;
+            pending.add(loginid + ":" + password + "\n");
+        }
+    }
+
+    /**
+     * Tells the listener of a change.
+     */
+    private void changed(String loginid, String password)
+    {
+        Listener current = listener;
+        if (current != null)
+        {
+            current.accountChanged(loginid, password);
+        }
+    }
+
+    /**
+     * Rejects values that would break the one record per line format.
+     */
+    private static void checkRecord(String loginid, String password)
+    {
+        if (loginid.indexOf(':') >= 0 || loginid.indexOf('\n') >= 0
+                || password.indexOf('\n') >= 0)
+        {
+            throw new IllegalArgumentException("invalid account " + loginid);
+        }
+    }
+
+    /**
+     * Appends the queued records to the log, one batch and one fsync at a
+     * time. Records queued while a batch is being synced form the next
+     * batch.
+     */
+    private void writeLoop()
+    {
+        ArrayList<String> batch = new ArrayList<String>();
+        while (true)
+        {
+            try
+            {
+                if (batch.isEmpty())
+                {
+                    batch.add(pending.take());
+                    pending.drainTo(batch);
+                }
+
+                StringBuilder text = new StringBuilder();
+                for (String record : batch)
+                {
+                    text.append(record);
+                }
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(text
+                        .toString());
+                while (bytes.hasRemaining())
+                {
+                    log.write(bytes);
+                }
+                log.force(false);
+
+                synchronized (this)
+                {
+                    synced += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+
+                if (log.size() > Math.max(MIN_COMPACTION_BYTES,
+                        snapshotFile.length()) && compactor == null)
+                {
+                    rotate();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (IOException e)
+            {
+                // keep the batch and retry it, so records stay in order; a
+                // record written twice is harmless since the last one wins
+                e.printStackTrace();
+                try
+                {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException ie)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the current log aside and starts a new one, then compacts the
+     * old log into the snapshot in the background. Called by the writer
+     * thread only.
+     */
+    private void rotate() throws IOException
+    {
+        log.close();
+        try
+        {
+            Files.move(logFile.toPath(), oldLogFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            // if the move failed, keep appending to the current log
+            log = FileChannel.open(logFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        startCompaction();
+    }
+
+    /**
+     * Writes every account to a new snapshot, replaces the old snapshot
+     * atomically and then deletes the old log, in a background thread. The
+     * accounts in memory include everything in the old snapshot and old log,
+     * so the new snapshot makes both redundant.
+     */
+    private void startCompaction()
+    {
+        compactor = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                File tmp = new File(snapshotFile.getPath() + ".tmp");
+                try
+                {
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    BufferedWriter output = new BufferedWriter(
+                            new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    for (Map.Entry<String, String> account : accounts
+                            .entrySet())
+                    {
+                        output.write(account.getKey());
+                        output.write(':');
+                        output.write(account.getValue());
+                        output.write('\n');
+                    }
+                    output.flush();
+                    out.getFD().sync();
+                    output.close();
+
+                    Files.move(tmp.toPath(), snapshotFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    oldLogFile.delete();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    compactor = null;
+                }
+            }
+        }, "AccountStore compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Loads the records of a snapshot or log file. In a log, a last line
+     * without a newline was torn by a crash and is ignored; a snapshot is
+     * replaced whole, so its last line is kept even if hand edited without
+     * a newline.
+     * @param file the snapshot or log file.
+     * @param log true if the file is appended to.
+     */
+    private void load(File file, boolean log) throws IOException
+    {
+        if (!file.exists())
+        {
+            return;
+        }
+        BufferedReader input = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try
+        {
+            boolean complete = !log || endsWithNewline(file);
+            String line = input.readLine();
+            while (line != null)
+            {
+                String next = input.readLine();
+                int colon = line.indexOf(':');
+                if (colon > 0 && (next != null || complete))
+                {
+                    accounts.put(line.substring(0, colon),
+                            line.substring(colon + 1));
+                }
+                line = next;
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * @return true if the file is empty or its last byte is a newline.
+     */
+    private static boolean endsWithNewline(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath());
+        try
+        {
+            if (channel.size() == 0)
+            {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
+// End of AccountStore class
@@ -0,0 +1,343 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class verifies login ids and passwords against an
+ * <code>AccountStore</code>. Passwords are stored as salted PBKDF2 hashes,
+ * which are slow to compute on purpose, so hashing runs on a small bounded
+ * pool of worker threads rather than in the thread handling the client's
+ * messages, and the result is handed to a callback. Logins that were
+ * verified recently are recognized with a cheap digest and answered without
+ * hashing again.
+ * <p>
+ * Passwords have always been compared ignoring case; they are lower-cased
+ * before hashing to keep that behaviour. Accounts still holding a plaintext
+ * password are verified the old way and upgraded to a hash.
+ */
+public class Authenticator
+{
+    // Class variables *************************************************
+
+    /**
+     * Prefix of hashed passwords in the account store.
+     */
+    final private static String HASH_PREFIX = "pbkdf2$";
+
+    /**
+     * The key derivation algorithm.
+     */
+    final private static String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    /**
+     * Iterations of the key derivation for new hashes.
+     */
+    final private static int ITERATIONS = 20000;
+
+    /**
+     * Length of salts, in bytes.
+     */
+    final private static int SALT_LENGTH = 16;
+
+    /**
+     * Length of hashes, in bits.
+     */
+    final private static int HASH_BITS = 256;
+
+    /**
+     * Number of logins waiting for a worker above which logins are refused.
+     */
+    final private static int MAX_PENDING = 256;
+
+    /**
+     * Number of recently verified logins remembered.
+     */
+    final private static int CACHE_SIZE = 10000;
+
+    // Instance variables **********************************************
+
+    /**
+     * The accounts being verified.
+     */
+    private AccountStore accounts;
+
+    /**
+     * The workers hashing passwords.
+     */
+    private ThreadPoolExecutor workers;
+
+    /**
+     * Recently verified logins by login id, least recently used first.
+     */
+    private LinkedHashMap<String, Verified> verified = new LinkedHashMap<String, Verified>(
+            16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Source of salts.
+     */
+    private SecureRandom random = new SecureRandom();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an authenticator. Half of the processors, but at least one,
+     * are used for hashing so that chat traffic keeps the others.
+     * @param accounts the accounts to verify logins against.
+     */
+    public Authenticator(AccountStore accounts)
+    {
+        this.accounts = accounts;
+        int threads = Math.max(1,
+                Runtime.getRuntime().availableProcessors() / 2);
+        workers = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        MAX_PENDING), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "Authenticator");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Verifies a login, creating the account if it does not exist. The
+     * callback is called once, either right away if the login was verified
+     * recently, or later from a worker thread.
+     * @param loginid the login id.
+     * @param password the password.
+     * @param callback told whether the login succeeded.
+     * @return false if too many logins are pending and the login was not
+     * attempted; the callback is then not called.
+     */
+    public boolean login(final String loginid, final String password,
+            final Callback callback)
+    {
+        final String normalized = password.toLowerCase(Locale.ROOT);
+        String stored = accounts.get(loginid);
+        if (stored != null && isCached(loginid, stored, normalized))
+        {
+            callback.authenticated(true);
+            return true;
+        }
+
+        try
+        {
+            workers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    callback.authenticated(verify(loginid, normalized));
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the workers; pending logins are dropped.
+     */
+    public void shutdown()
+    {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Verifies a login on a worker thread.
+     */
+    private boolean verify(String loginid, String password)
+    {
+        String stored = accounts.get(loginid);
+
+        // if username does not exist, create new account
+        if (stored == null)
+        {
+            String hash = hash(password);
+            stored = accounts.putIfAbsent(loginid, hash);
+            if (stored == null)
+            {
+                remember(loginid, hash, password);
+                return true;
+            }
+        }
+
+        if (!stored.startsWith(HASH_PREFIX))
+        {
+            // plaintext account from before hashing: upgrade it
+            if (!stored.equalsIgnoreCase(password))
+            {
+                return false;
+            }
+            String hash = hash(password);
+            accounts.put(loginid, hash);
+            remember(loginid, hash, password);
+            return true;
+        }
+
+        if (!matches(stored, password))
+        {
+            return false;
+        }
+        remember(loginid, stored, password);
+        return true;
+    }
+
+    /**
+     * Hashes a password with a new salt.
+     * @return pbkdf2$iterations$salt$hash, salt and hash in Base64.
+     */
+    private String hash(String password)
+    {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return HASH_PREFIX + ITERATIONS + "$" + base64.encodeToString(salt)
+                + "$" + base64.encodeToString(derive(password, salt,
+                        ITERATIONS));
+    }
+
+    /**
+     * Checks a password against a stored hash.
+     */
+    private static boolean matches(String stored, String password)
+    {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+        {
+            return false;
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] salt = base64.decode(parts[2]);
+        byte[] expected = base64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, salt,
+                Integer.parseInt(parts[1])));
+    }
+
+    /**
+     * Runs the key derivation.
+     */
+    private static byte[] derive(String password, byte[] salt, int iterations)
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                iterations, HASH_BITS);
+        try
+        {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+                    .getEncoded();
+        }
+        catch (GeneralSecurityException e)
+        {
+            // PBKDF2WithHmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Remembers a verified login.
+     */
+    private void remember(String loginid, String stored, String password)
+    {
+        Verified entry = new Verified(stored, digest(stored, password));
+        synchronized (verified)
+        {
+            verified.put(loginid, entry);
+        }
+    }
+
+    /**
+     * @return true if the login was verified recently with this password
+     * and the account has not changed since.
+     */
+    private boolean isCached(String loginid, String stored, String password)
+    {
+        Verified entry;
+        synchronized (verified)
+        {
+            entry = verified.get(loginid);
+        }
+        return entry != null && entry.stored.equals(stored)
+                && MessageDigest.isEqual(entry.digest, digest(stored, password));
+    }
+
+    /**
+     * Computes the cheap digest remembered for a verified login. The stored
+     * hash is mixed in so that the digest is salted.
+     */
+    private static byte[] digest(String stored, String password)
+    {
+        try
+        {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(stored.getBytes(StandardCharsets.UTF_8));
+            return sha.digest(password
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This interface is implemented by the receivers of login results.
+     */
+    public interface Callback
+    {
+        /**
+         * Called once a login has been verified.
+         * @param success true if the password matched or the account was
+         * created.
+         */
+        public abstract void authenticated(boolean success);
+    }
+
+    /**
+     * A recently verified login.
+     */
+    private static class Verified
+    {
+        final String stored;
+        final byte[] digest;
+
+        Verified(String stored, byte[] digest)
+        {
+            this.stored = stored;
+            this.digest = digest;
+        }
+    }
+}
+// End of Authenticator class
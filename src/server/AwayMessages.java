@@ -0,0 +1,283 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class holds the messages received by a user while away, as seen by
+ * the user's monitor. The most recent messages are kept in a ring buffer of
+ * bounded size; when it is full the oldest ones are moved to a spill file,
+ * so the memory used per away user is capped. The spill file is bounded
+ * too; messages beyond it are dropped and counted.
+ * <p>
+ * Messages are read back oldest first, in pages of several messages, so a
+ * client is sent one frame per page rather than one per message.
+ */
+public class AwayMessages
+{
+    // Class variables *************************************************
+
+    /**
+     * Number of messages kept in memory.
+     */
+    final private static int RING_SIZE = 256;
+
+    /**
+     * Characters kept in memory, over all messages.
+     */
+    final private static int MAX_CHARS = 64 * 1024;
+
+    /**
+     * Size of the spill file above which messages are dropped.
+     */
+    final private static long MAX_SPILL_BYTES = 4L * 1024 * 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory of the spill files.
+     */
+    private File directory;
+
+    /**
+     * The most recent messages.
+     */
+    private String[] ring = new String[RING_SIZE];
+
+    /**
+     * Index of the oldest message of the ring.
+     */
+    private int head;
+
+    /**
+     * Number of messages in the ring.
+     */
+    private int count;
+
+    /**
+     * Characters in the ring.
+     */
+    private int chars;
+
+    /**
+     * The spill file, created on the first spill.
+     */
+    private File spillFile;
+
+    /**
+     * Output to the spill file.
+     */
+    private DataOutputStream spill;
+
+    /**
+     * Number of messages in the spill file.
+     */
+    private int spilled;
+
+    /**
+     * Bytes written to the spill file.
+     */
+    private long spillBytes;
+
+    /**
+     * Number of messages dropped because the spill file was full.
+     */
+    private int dropped;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an empty set of away messages.
+     * @param directory the directory to create the spill file in.
+     */
+    public AwayMessages(File directory)
+    {
+        this.directory = directory;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Adds a message, moving the oldest ones to disk if needed.
+     * @param message the message.
+     */
+    public synchronized void add(String message)
+    {
+        while (count == RING_SIZE
+                || (count > 0 && chars + message.length() > MAX_CHARS))
+        {
+            evict();
+        }
+        ring[(head + count) % RING_SIZE] = message;
+        count++;
+        chars += message.length();
+    }
+
+    /**
+     * @return the number of messages, including dropped ones.
+     */
+    public synchronized int size()
+    {
+        return spilled + count + dropped;
+    }
+
+    /**
+     * Hands the messages to a handler, oldest first, a page at a time. The
+     * messages of a page are separated by newlines. The number of dropped
+     * messages is reported where they would have been.
+     * @param pageSize the number of messages in a page.
+     * @param handler receives the pages.
+     * @throws IOException if the spill file cannot be read or the handler
+     * fails.
+     */
+    public synchronized void pages(int pageSize, PageHandler handler)
+            throws IOException
+    {
+        StringBuilder page = new StringBuilder();
+        int inPage = 0;
+
+        // the spilled messages are the oldest
+        if (spilled > 0)
+        {
+            spill.flush();
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(spillFile)));
+            try
+            {
+                for (int i = 0; i < spilled; i++)
+                {
+                    byte[] bytes = new byte[input.readInt()];
+                    input.readFully(bytes);
+                    page.append(new String(bytes, StandardCharsets.UTF_8));
+                    if (++inPage == pageSize)
+                    {
+                        handler.page(page.toString());
+                        page.setLength(0);
+                        inPage = 0;
+                    }
+                    else
+                    {
+                        page.append('\n');
+                    }
+                }
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+
+        // the dropped messages came between the spilled ones and the ring
+        if (dropped > 0)
+        {
+            page.append("(" + dropped + " messages were dropped)\n");
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            page.append(ring[(head + i) % RING_SIZE]);
+            if (++inPage == pageSize)
+            {
+                handler.page(page.toString());
+                page.setLength(0);
+                inPage = 0;
+            }
+            else
+            {
+                page.append('\n');
+            }
+        }
+
+        if (page.length() > 0)
+        {
+            page.setLength(page.length() - 1);
+            handler.page(page.toString());
+        }
+    }
+
+    /**
+     * Forgets the messages and deletes the spill file.
+     */
+    public synchronized void close()
+    {
+        if (spill != null)
+        {
+            try
+            {
+                spill.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            spillFile.delete();
+            spill = null;
+        }
+        ring = new String[RING_SIZE];
+        head = count = chars = spilled = dropped = 0;
+        spillBytes = 0;
+    }
+
+    /**
+     * Moves the oldest message of the ring to the spill file, or drops it
+     * if the spill file is full or cannot be written.
+     */
+    private void evict()
+    {
+        String message = ring[head];
+        ring[head] = null;
+        head = (head + 1) % RING_SIZE;
+        count--;
+        chars -= message.length();
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (spillBytes + 4 + bytes.length > MAX_SPILL_BYTES)
+        {
+            dropped++;
+            return;
+        }
+        try
+        {
+            if (spill == null)
+            {
+                directory.mkdirs();
+                spillFile = File.createTempFile("away", ".spill", directory);
+                spillFile.deleteOnExit();
+                spill = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(spillFile)));
+            }
+            spill.writeInt(bytes.length);
+            spill.write(bytes);
+            spillBytes += 4 + bytes.length;
+            spilled++;
+        }
+        catch (IOException e)
+        {
+            // stop spilling; the messages written so far stay readable
+            e.printStackTrace();
+            spillBytes = MAX_SPILL_BYTES;
+            dropped++;
+        }
+    }
+
+    /**
+     * This interface is implemented by the receivers of pages of messages.
+     */
+    public interface PageHandler
+    {
+        /**
+         * Called for each page, oldest first.
+         * @param page the messages of the page, separated by newlines.
+         * @throws IOException if the page cannot be sent.
+         */
+        public abstract void page(String page) throws IOException;
+    }
+}
+// End of AwayMessages class
@@ -0,0 +1,247 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class lists the channels for #displayChannels. It keeps the channel
+ * names as a sorted immutable snapshot with a version number: creating or
+ * removing a channel only bumps the version, and the snapshot is rebuilt by
+ * the next request that finds it out of date. Requests are then served from
+ * the snapshot without locking, a page at a time, and a prefix is found by
+ * binary search. A client that sends the version it last saw can be told
+ * that nothing changed instead of being sent the list again.
+ * <p>
+ * It is safe to use from several threads at once.
+ */
+public class ChannelDirectory
+{
+    /**
+     * Where the channels are found.
+     */
+    public interface Source
+    {
+        /**
+         * @return the names of the channels, in any order.
+         */
+        Collection<String> channelNames();
+
+        /**
+         * @param channelName the name of a channel.
+         * @return its number of members, read when a page is requested, or
+         * -1 if not known.
+         */
+        int memberCount(String channelName);
+    }
+
+    /**
+     * One page of channels.
+     */
+    public static class Page
+    {
+        /**
+         * The version of the snapshot the page was taken from.
+         */
+        final public long version;
+
+        /**
+         * The number of the page, from 1, and the number of pages.
+         */
+        final public int number, pageCount;
+
+        /**
+         * The number of channels matching the prefix.
+         */
+        final public int matching;
+
+        /**
+         * The channel names of the page and their member counts.
+         */
+        final public String[] names;
+        final public int[] memberCounts;
+
+        Page(long version, int number, int pageCount, int matching,
+                String[] names, int[] memberCounts)
+        {
+            this.version = version;
+            this.number = number;
+            this.pageCount = pageCount;
+            this.matching = matching;
+            this.names = names;
+            this.memberCounts = memberCounts;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * Where the channels are found.
+     */
+    private Source source;
+
+    /**
+     * Bumped at every change of the channels.
+     */
+    private AtomicLong version = new AtomicLong(1);
+
+    /**
+     * The sorted names, and the version they were read at. Replaced, never
+     * modified.
+     */
+    private volatile Snapshot snapshot = new Snapshot(0, new String[0]);
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a directory.
+     * @param source where the channels are found.
+     */
+    public ChannelDirectory(Source source)
+    {
+        this.source = source;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Records that a channel was created or removed.
+     */
+    public void changed()
+    {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the current version of the directory.
+     */
+    public long version()
+    {
+        return snapshot().version;
+    }
+
+    /**
+     * Returns a page of the channels whose names start with a prefix.
+     * @param prefix the prefix, empty for every channel.
+     * @param number the number of the page, from 1; past the last page,
+     * the last page is returned.
+     * @param pageSize the number of channels per page.
+     * @return the page.
+     */
+    public Page page(String prefix, int number, int pageSize)
+    {
+        Snapshot current = snapshot();
+        String[] names = current.names;
+
+        // the names starting with the prefix are a range of the sorted names
+        int from = lowerBound(names, prefix);
+        int to = prefixEnd(names, from, prefix);
+
+        int matching = to - from;
+        int pageCount = Math.max(1, (matching + pageSize - 1) / pageSize);
+        number = Math.max(1, Math.min(number, pageCount));
+        int start = from + (number - 1) * pageSize;
+        int end = Math.min(to, start + pageSize);
+        String[] page = Arrays.copyOfRange(names, start, end);
+        int[] memberCounts = new int[page.length];
+        for (int i = 0; i < page.length; i++)
+        {
+            memberCounts[i] = source.memberCount(page[i]);
+        }
+        return new Page(current.version, number, pageCount, matching, page,
+                memberCounts);
+    }
+
+    /**
+     * Returns the snapshot, rebuilt first if a channel was created or
+     * removed since it was taken.
+     */
+    private Snapshot snapshot()
+    {
+        Snapshot current = snapshot;
+        if (current.version == version.get())
+        {
+            return current;
+        }
+        synchronized (this)
+        {
+            // the version is read before the names, so that a change made
+            // while they are read leaves the snapshot out of date
+            long latest = version.get();
+            current = snapshot;
+            if (current.version != latest)
+            {
+                Collection<String> channelNames = source.channelNames();
+                String[] names = channelNames.toArray(new String[channelNames
+                        .size()]);
+                Arrays.sort(names);
+                current = new Snapshot(latest, names);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return the index of the first name not before the key.
+     */
+    private static int lowerBound(String[] names, String key)
+    {
+        int low = 0;
+        int high = names.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (names[middle].compareTo(key) < 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first name after a start that does not
+     * begin with the prefix; the names that do are all before the others.
+     */
+    private static int prefixEnd(String[] names, int start, String prefix)
+    {
+        int low = start;
+        int high = names.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (names[middle].startsWith(prefix))
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The sorted names at one version.
+     */
+    private static class Snapshot
+    {
+        final long version;
+        final String[] names;
+
+        Snapshot(long version, String[] names)
+        {
+            this.version = version;
+            this.names = names;
+        }
+    }
+}
+// End of ChannelDirectory class
@@ -0,0 +1,493 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lloseng.ocsf.event.EventDispatcher;
+
+/**
+ * This class keeps the history of the messages sent to each channel, so that
+ * clients can see what was said before they joined. Each channel has a
+ * directory of segment files named after the sequence number of their first
+ * message; a new segment is started when the current one is full, and the
+ * oldest segments are deleted once a channel's history exceeds its size or
+ * age limit. The age limit is also checked every <code>SWEEP_INTERVAL</code>,
+ * so that the history of a quiet channel expires too.
+ * <p>
+ * Appending only claims a slot in a ring buffer, and drops the message if
+ * the ring is full rather than hold up the sender; the messages are written
+ * to the memory-mapped segments by a background thread, which also syncs them
+ * to disk whenever it catches up, at most every
+ * <code>FORCE_INTERVAL</code>; messages written to a mapped file survive a
+ * crash of the server even before they are synced. Reads decode the
+ * messages straight from the mapped segments.
+ */
+public class ChannelHistory
+{
+    // Class variables *************************************************
+
+    /**
+     * Size of a segment file.
+     */
+    final private static int SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Size of a channel's history above which its oldest segments are
+     * deleted.
+     */
+    final private static long MAX_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Age of a segment's last message above which the segment is deleted,
+     * in milliseconds.
+     */
+    final private static long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Minimum time between two syncs to disk, in milliseconds.
+     */
+    final private static long FORCE_INTERVAL = 200;
+
+    /**
+     * Time between two checks of the age limit of every channel, in
+     * milliseconds.
+     */
+    final private static long SWEEP_INTERVAL = 60 * 1000;
+
+    /**
+     * Capacity of the ring buffer of messages waiting to be written.
+     */
+    final private static int QUEUE_CAPACITY = 4096;
+
+    /**
+     * Suffix of segment files.
+     */
+    final private static String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Returned when there is no history.
+     */
+    final private static HistorySegment[] NO_SEGMENTS = new HistorySegment[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory holding a directory per channel.
+     */
+    private File directory;
+
+    /**
+     * The history of each channel opened so far, by channel name.
+     */
+    private ConcurrentHashMap<String, ChannelLog> logs = new ConcurrentHashMap<String, ChannelLog>();
+
+    /**
+     * Hands messages to the writer thread.
+     */
+    private EventDispatcher<Entry> writer;
+
+    /**
+     * The messages dropped because the ring was full, since the writer
+     * last reported them.
+     */
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Segments written to since the last sync. Writer thread only.
+     */
+    private HashSet<HistorySegment> dirty = new HashSet<HistorySegment>();
+
+    /**
+     * Time of the last sync. Writer thread only.
+     */
+    private long lastForce;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a history store and starts its writer thread.
+     * @param directory the directory of the history files, created if
+     * needed.
+     */
+    public ChannelHistory(String directory)
+    {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+        writer = new EventDispatcher<Entry>("ChannelHistory writer",
+                QUEUE_CAPACITY, new EventDispatcher.Factory<Entry>()
+                {
+                    public Entry newInstance()
+                    {
+                        return new Entry();
+                    }
+                }, new EventDispatcher.Handler<Entry>()
+                {
+                    public void onEvent(Entry entry)
+                    {
+                        write(entry);
+                    }
+                });
+
+        // the sweeps run on the writer thread, between the messages
+        Thread sweeper = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(SWEEP_INTERVAL);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    long sequence = writer.tryNext();
+                    if (sequence >= 0)
+                    {
+                        writer.get(sequence).time = System.currentTimeMillis();
+                        writer.publish(sequence);
+                    }
+                }
+            }
+        }, "ChannelHistory sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Adds a message to a channel's history. The message is written shortly
+     * after by the writer thread, or dropped if the writer is that far
+     * behind.
+     * @param channelName the channel.
+     * @param message the message, as it was sent to the members.
+     */
+    public void append(String channelName, String message)
+    {
+        long sequence = writer.tryNext();
+        if (sequence < 0)
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+        Entry entry = writer.get(sequence);
+        entry.channelName = channelName;
+        entry.message = message;
+        entry.time = System.currentTimeMillis();
+        writer.publish(sequence);
+    }
+
+    /**
+     * Returns the last messages of a channel, oldest first. Messages still
+     * waiting for the writer thread are not included.
+     * @param channelName the channel.
+     * @param n the maximum number of messages.
+     * @return the messages.
+     */
+    public List<String> last(String channelName, int n)
+    {
+        ArrayList<String> messages = new ArrayList<String>(Math.min(n, 64));
+        HistorySegment[] segments;
+        try
+        {
+            segments = open(channelName).segments;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return messages;
+        }
+        if (segments.length == 0 || n <= 0)
+        {
+            return messages;
+        }
+
+        long end = segments[segments.length - 1].end();
+        long from = Math.max(segments[0].base(), end - n);
+        for (HistorySegment segment : segments)
+        {
+            if (segment.end() > from)
+            {
+                segment.read(from, end, messages);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Stops the writer thread once it has written the pending messages.
+     */
+    public void close()
+    {
+        writer.stop();
+    }
+
+    /**
+     * Writes a message. Called by the writer thread only.
+     */
+    private void write(Entry entry)
+    {
+        // an entry without a channel asks for a sweep
+        if (entry.channelName == null)
+        {
+            sweep(entry.time);
+            return;
+        }
+
+        try
+        {
+            ChannelLog log = open(entry.channelName);
+            byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+            HistorySegment[] segments = log.segments;
+            HistorySegment active = segments.length == 0 ? null
+                    : segments[segments.length - 1];
+            if (active == null || !active.append(entry.time, message))
+            {
+                active = roll(log, active, message.length);
+                active.append(entry.time, message);
+            }
+            dirty.add(active);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            entry.channelName = null;
+            entry.message = null;
+        }
+
+        // sync once caught up, so a burst of messages costs a single sync
+        if (writer.getBacklog() <= 1
+                && entry.time - lastForce >= FORCE_INTERVAL)
+        {
+            for (HistorySegment segment : dirty)
+            {
+                segment.force();
+            }
+            dirty.clear();
+            lastForce = entry.time;
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+            {
+                System.out.println("ChannelHistory: " + lost
+                        + " messages not kept while the writer was behind");
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment after the active one, then deletes the segments
+     * beyond the size and age limits. Called by the writer thread only.
+     */
+    private HistorySegment roll(ChannelLog log, HistorySegment active,
+            int messageLength) throws IOException
+    {
+        if (active != null)
+        {
+            active.force();
+            dirty.remove(active);
+        }
+        long base = active == null ? 0 : active.end();
+        HistorySegment segment = new HistorySegment(new File(log.directory,
+                segmentName(base)), base, Math.max(SEGMENT_SIZE,
+                HistorySegment.HEADER + messageLength));
+
+        HistorySegment[] segments = Arrays.copyOf(log.segments,
+                log.segments.length + 1);
+        segments[segments.length - 1] = segment;
+        log.bytes += segment.size();
+
+        // the new segment is always kept
+        log.segments = expire(log, segments, System.currentTimeMillis()
+                - MAX_AGE, 1);
+        return segment;
+    }
+
+    /**
+     * Deletes the segments of every channel whose last message is older
+     * than the age limit, including the channels not used since the server
+     * started. Called by the writer thread only.
+     */
+    private void sweep(long now)
+    {
+        String[] names = directory.list();
+        for (int i = 0; names != null && i < names.length; i++)
+        {
+            try
+            {
+                open(URLDecoder.decode(names[i], "UTF-8"));
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        for (ChannelLog log : logs.values())
+        {
+            HistorySegment[] segments = log.segments;
+            if (segments.length > 0
+                    && segments[0].lastTime() < now - MAX_AGE)
+            {
+                // a channel whose history is all expired starts afresh
+                log.segments = expire(log, segments, now - MAX_AGE, 0);
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments of a channel while its history is beyond
+     * the size or age limit, keeping at least the given number of segments.
+     * Called by the writer thread only.
+     * @return the remaining segments.
+     */
+    private HistorySegment[] expire(ChannelLog log,
+            HistorySegment[] segments, long oldest, int keep)
+    {
+        int dropped = 0;
+        while (dropped < segments.length - keep
+                && (log.bytes > MAX_BYTES || segments[dropped].lastTime() < oldest))
+        {
+            log.bytes -= segments[dropped].size();
+            dirty.remove(segments[dropped]);
+            segments[dropped].delete();
+            dropped++;
+        }
+        return Arrays.copyOfRange(segments, dropped, segments.length);
+    }
+
+    /**
+     * Returns the history of a channel, opening its segments the first time.
+     */
+    private ChannelLog open(String channelName) throws IOException
+    {
+        ChannelLog log = logs.get(channelName);
+        if (log != null)
+        {
+            return log;
+        }
+        synchronized (logs)
+        {
+            log = logs.get(channelName);
+            if (log == null)
+            {
+                log = load(channelName);
+                logs.put(channelName, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Maps the existing segments of a channel.
+     */
+    private ChannelLog load(String channelName) throws IOException
+    {
+        ChannelLog log = new ChannelLog(new File(directory,
+                directoryName(channelName)));
+        log.directory.mkdirs();
+        String[] names = log.directory.list();
+        if (names == null)
+        {
+            throw new IOException("Cannot list " + log.directory);
+        }
+
+        // segment names are zero padded, so they sort by sequence number
+        Arrays.sort(names);
+        ArrayList<HistorySegment> segments = new ArrayList<HistorySegment>();
+        for (String name : names)
+        {
+            if (name.endsWith(SEGMENT_SUFFIX))
+            {
+                long base = Long.parseLong(name.substring(0, name.length()
+                        - SEGMENT_SUFFIX.length()));
+                HistorySegment segment = new HistorySegment(new File(
+                        log.directory, name), base, SEGMENT_SIZE);
+                segments.add(segment);
+                log.bytes += segment.size();
+            }
+        }
+        log.segments = segments.toArray(NO_SEGMENTS);
+        return log;
+    }
+
+    /**
+     * @return the file name of the segment starting at a sequence number.
+     */
+    private static String segmentName(long base)
+    {
+        return String.format("%020d", base) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * @return a directory name for a channel that is safe on any file
+     * system.
+     */
+    private static String directoryName(String channelName)
+    {
+        try
+        {
+            return URLEncoder.encode(channelName, "UTF-8").replace(".", "%2E")
+                    .replace("*", "%2A");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The history of a channel.
+     */
+    private static class ChannelLog
+    {
+        /**
+         * The directory of the channel's segments.
+         */
+        final File directory;
+
+        /**
+         * The segments, oldest first; the last one is being appended to.
+         * Replaced by the writer thread, read by any thread.
+         */
+        volatile HistorySegment[] segments = NO_SEGMENTS;
+
+        /**
+         * Total size of the segments. Writer thread only.
+         */
+        long bytes;
+
+        ChannelLog(File directory)
+        {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * A message waiting for the writer thread, recycled through the ring
+     * buffer.
+     */
+    private static class Entry
+    {
+        String channelName;
+        String message;
+        long time;
+    }
+}
+// End of ChannelHistory class
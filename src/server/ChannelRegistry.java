@@ -0,0 +1,1262 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lloseng.ocsf.event.EventDispatcher;
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This class keeps track of the chat channels and their members. A client
+ * may be a member of any number of channels. Channels and connections are
+ * given dense int ids, reused once freed, and memberships are kept in both
+ * directions as sets of primitive ints: the connection ids of each channel
+ * and the channel ids of each connection. This keeps the index compact with
+ * many users in many channels.
+ * <p>
+ * Each channel is owned by one shard, chosen by a hash of its name. A shard
+ * is a single thread fed by a lock-free ring of tasks; it alone creates,
+ * joins, leaves and sends to its channels, so channel state needs no lock
+ * and shards never contend with one another. Creating, joining, leaving
+ * and messages are all handed to the owning shard without waiting for it;
+ * a membership change is reported to a callback once applied, so a shard
+ * held up by a slow client only delays its own channels, and never the
+ * thread that asked. The channels of a connection are changed by the
+ * shards, under the lock of the connection's entry.
+ * <p>
+ * No thread ever waits for a shard's ring either. When it is full, a
+ * message is dropped and its number becomes a gap that members can ask
+ * for, while a membership change, which must not be lost, waits in the
+ * shard's overflow queue until the shard takes its next task. A client that
+ * holds up its shard by not reading is disconnected after
+ * <code>SLOW_CLIENT_TIMEOUT</code>.
+ * <p>
+ * The shard stamps each text message of a channel with the channel's next
+ * sequence number, as <code>#seq channel epoch n message</code>, and keeps
+ * the last stamped messages so that a client that finds a gap in the
+ * numbers can have only the missing ones sent again. The epoch changes
+ * whenever a channel is created, so numbers restarting in a new channel of
+ * the same name are not taken for a gap. A member that filtered out
+ * messages is sent <code>#skip channel epoch n</code> before its next
+ * message, n being the number before it, so the numbers it was not meant
+ * to have are not taken for a gap; a member leaving is sent
+ * <code>#left channel epoch</code>, so numbers sent while it was away are
+ * not taken for one after it joins again.
+ */
+public class ChannelRegistry
+{
+    /**
+     * Told when a channel is created or removed, on the thread of the
+     * channel's shard.
+     */
+    public interface Listener
+    {
+        void channelCreated(String channelName);
+
+        void channelRemoved(String channelName);
+    }
+
+    /**
+     * Told whether a membership change applied, on the thread of the
+     * channel's shard.
+     */
+    public interface Change
+    {
+        /**
+         * @param applied false if the channel did not exist, or already
+         * existed for a create, if the client was not a member for a leave,
+         * or if the client was unregistered meanwhile.
+         */
+        void changed(boolean applied);
+    }
+
+    /**
+     * Chooses the members a message is not sent to, on the thread of the
+     * channel's shard.
+     */
+    public interface Filter
+    {
+        /**
+         * @param connectionId the connection id of a member.
+         * @return true if the message is not sent to the member.
+         */
+        boolean blocks(int connectionId);
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Returned when a client is in no channel.
+     */
+    final private static String[] NO_CHANNELS = new String[0];
+
+    /**
+     * The number of tasks that can be queued for one shard.
+     */
+    final private static int SHARD_CAPACITY = 4096;
+
+    /**
+     * Milliseconds a shard may spend sending one message to a client before
+     * the client is disconnected.
+     */
+    final private static long SLOW_CLIENT_TIMEOUT = 5000;
+
+    /**
+     * Task kinds.
+     */
+    final private static int CREATE = 0;
+    final private static int JOIN = 1;
+    final private static int JOIN_OR_CREATE = 2;
+    final private static int LEAVE = 3;
+    final private static int BROADCAST = 4;
+    final private static int REFETCH = 5;
+    final private static int WAKE = 6;
+
+    /**
+     * The number of stamped messages kept per channel to be sent again.
+     */
+    final public static int RECENT_MESSAGES = 256;
+
+    // Instance variables **********************************************
+
+    /**
+     * The shards, indexed by the hash of a channel name.
+     */
+    private Shard[] shards;
+
+    /**
+     * The existing channels by name, maintained by the shards, so that any
+     * thread can tell whether a channel exists and how many members it has.
+     */
+    private ConcurrentHashMap<String, Channel> byName = new ConcurrentHashMap<String, Channel>();
+
+    /**
+     * Told of created and removed channels, if set.
+     */
+    private volatile Listener listener;
+
+    /**
+     * The channel names by id. Guarded by this.
+     */
+    private String[] channelNamesById = new String[16];
+
+    /**
+     * The registered connections by id. Guarded by this.
+     */
+    private Member[] membersById = new Member[16];
+
+    /**
+     * Allocates channel ids. Guarded by this.
+     */
+    private IdPool channelIds = new IdPool();
+
+    /**
+     * Allocates connection ids. Guarded by this.
+     */
+    private IdPool connectionIds = new IdPool();
+
+    /**
+     * Gives each new channel its epoch. Starts at the time the registry is
+     * built so that epochs also change across restarts.
+     */
+    private AtomicLong epochs = new AtomicLong(System.currentTimeMillis());
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a registry with one shard per available processor.
+     */
+    public ChannelRegistry()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a registry and starts its shards.
+     * @param shardCount the number of shards.
+     */
+    public ChannelRegistry(int shardCount)
+    {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = new Shard(i);
+        }
+
+        // disconnects the clients that hold up a shard
+        Thread watchdog = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(SLOW_CLIENT_TIMEOUT / 5);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (Shard shard : shards)
+                    {
+                        shard.relieve();
+                    }
+                }
+            }
+        }, "Channel shard watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Sets the listener told of created and removed channels. Must be set
+     * before the first channel is created.
+     * @param listener the listener.
+     */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Gives a connection an id. Must be called before the connection joins
+     * a channel.
+     * @param client the new connection.
+     */
+    public void register(ConnectionToClient client)
+    {
+        synchronized (this)
+        {
+            int id = connectionIds.allocate();
+            if (id == membersById.length)
+            {
+                membersById = java.util.Arrays.copyOf(membersById, id * 2);
+            }
+            membersById[id] = new Member(id, client);
+            client.setInfo("connectionId", Integer.valueOf(id));
+        }
+    }
+
+    /**
+     * Removes a connection from all its channels, and frees its id once the
+     * shards have removed it. Returns without waiting; changes still queued
+     * for the connection no longer apply.
+     * @param client the connection, which is going away.
+     */
+    public void unregister(ConnectionToClient client)
+    {
+        final Member member = memberOf(client);
+        if (member == null)
+        {
+            return;
+        }
+        client.setInfo("connectionId", null);
+        int[] joined;
+        synchronized (member)
+        {
+            member.closed = true;
+            joined = member.joined.toArray();
+        }
+        if (joined.length == 0)
+        {
+            free(member);
+            return;
+        }
+
+        // the shards are done with the id once the last leave is applied
+        final AtomicInteger leaving = new AtomicInteger(joined.length);
+        Change left = new Change()
+        {
+            public void changed(boolean applied)
+            {
+                if (leaving.decrementAndGet() == 0)
+                {
+                    free(member);
+                }
+            }
+        };
+        for (String channelName : names(joined))
+        {
+            change(LEAVE, channelName, member, left);
+        }
+    }
+
+    /**
+     * Creates a channel with a first member.
+     * @param channelName the name of the channel.
+     * @param creator the client creating the channel.
+     * @param change told whether the channel was created; not if a channel
+     * with that name already exists.
+     */
+    public void create(String channelName, ConnectionToClient creator,
+            Change change)
+    {
+        change(CREATE, channelName, memberOf(creator), change);
+    }
+
+    /**
+     * Adds a client to a channel.
+     * @param channelName the name of the channel.
+     * @param client the client joining.
+     * @param create true to create the channel if it does not exist.
+     * @param change told whether the client joined; not if the channel does
+     * not exist and is not created.
+     */
+    public void join(String channelName, ConnectionToClient client,
+            boolean create, Change change)
+    {
+        change(create ? JOIN_OR_CREATE : JOIN, channelName, memberOf(client),
+                change);
+    }
+
+    /**
+     * Removes a client from a channel. The channel is removed when its last
+     * member leaves.
+     * @param channelName the name of the channel.
+     * @param client the client leaving.
+     * @param change told whether the client left; not if it was not a
+     * member of the channel.
+     */
+    public void leave(String channelName, ConnectionToClient client,
+            Change change)
+    {
+        change(LEAVE, channelName, memberOf(client), change);
+    }
+
+    /**
+     * Sends a message to the members of a channel, from the channel's
+     * shard. Returns without waiting for the message to be sent.
+     * @param channelName the name of the channel.
+     * @param message the message to send.
+     */
+    public void broadcast(String channelName, Object message)
+    {
+        broadcast(channelName, message, null);
+    }
+
+    /**
+     * Sends a message to the members of a channel that a filter does not
+     * block, from the channel's shard. Returns without waiting for the
+     * message to be sent.
+     * @param channelName the name of the channel.
+     * @param message the message to send.
+     * @param filter the filter, or null to send to every member.
+     */
+    public void broadcast(String channelName, Object message, Filter filter)
+    {
+        Shard shard = shardOf(channelName);
+        long sequence = shard.ring.tryNext();
+        if (sequence < 0)
+        {
+            // the members are told of the gap by the next number
+            Channel channel = byName.get(channelName);
+            if (channel != null && message instanceof String)
+            {
+                channel.dropped.incrementAndGet();
+            }
+            shard.dropped.incrementAndGet();
+            return;
+        }
+        Task task = shard.ring.get(sequence);
+        task.kind = BROADCAST;
+        task.channelName = channelName;
+        task.message = message;
+        task.filter = filter;
+        shard.ring.publish(sequence);
+    }
+
+    /**
+     * Sends a client again the stamped messages of a channel in a range of
+     * sequence numbers, from the channel's shard, followed by
+     * <code>#refetched channel epoch from to lost</code>, where lost counts
+     * the messages no longer kept. Messages the filter given with them now
+     * blocks for the client are left out. Returns without waiting; dropped
+     * if the shard is full, in which case the next gap is asked for again.
+     * @param channelName the name of the channel.
+     * @param client the client, a member of the channel.
+     * @param epoch the epoch of the channel the numbers belong to.
+     * @param from the first sequence number.
+     * @param to the last sequence number.
+     */
+    public void refetch(String channelName, ConnectionToClient client,
+            long epoch, long from, long to)
+    {
+        Member member = memberOf(client);
+        if (member == null)
+        {
+            return;
+        }
+        Shard shard = shardOf(channelName);
+        long sequence = shard.ring.tryNext();
+        if (sequence < 0)
+        {
+            return;
+        }
+        Task task = shard.ring.get(sequence);
+        task.kind = REFETCH;
+        task.channelName = channelName;
+        task.member = member;
+        task.epoch = epoch;
+        task.from = from;
+        task.to = to;
+        shard.ring.publish(sequence);
+    }
+
+    /**
+     * @param channelName the name of a channel.
+     * @param client a client.
+     * @return true if the client is a member of the channel.
+     */
+    public boolean isMember(String channelName, ConnectionToClient client)
+    {
+        for (String name : channelsOf(client))
+        {
+            if (name.equals(channelName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param client a client.
+     * @return the names of the channels the client is a member of, as
+     * applied by the shards so far; none once it is unregistered.
+     */
+    public String[] channelsOf(ConnectionToClient client)
+    {
+        Member member = memberOf(client);
+        if (member == null)
+        {
+            return NO_CHANNELS;
+        }
+        int[] ids;
+        synchronized (member)
+        {
+            ids = member.joined.toArray();
+        }
+        return names(ids);
+    }
+
+    /**
+     * @param channelName the name of a channel.
+     * @return true if the channel exists.
+     */
+    public boolean exists(String channelName)
+    {
+        return byName.containsKey(channelName);
+    }
+
+    /**
+     * @param channelName the name of a channel.
+     * @return its number of members, 0 if it does not exist.
+     */
+    public int memberCount(String channelName)
+    {
+        Channel channel = byName.get(channelName);
+        return channel == null ? 0 : channel.size;
+    }
+
+    /**
+     * @return a live view of the channel names.
+     */
+    public Set<String> names()
+    {
+        return byName.keySet();
+    }
+
+    /**
+     * Describes the load of each shard: the tasks waiting in its ring, the
+     * most seen waiting, the tasks handled, the messages dropped because
+     * the ring was full, and the share of the time since
+     * the previous call that the shard spent handling tasks.
+     * @return one line per shard.
+     */
+    public synchronized String shardStats()
+    {
+        StringBuilder stats = new StringBuilder();
+        long now = System.nanoTime();
+        for (Shard shard : shards)
+        {
+            long busy = shard.busyNanos;
+            long utilization = now == shard.reportedAt ? 0
+                    : (busy - shard.reportedBusy) * 100
+                            / (now - shard.reportedAt);
+            shard.reportedAt = now;
+            shard.reportedBusy = busy;
+            stats.append("shard ").append(shard.index)
+                    .append(": channels=").append(shard.channelCount)
+                    .append(" queued=").append(shard.ring.getBacklog())
+                    .append(" peak=").append(shard.peakBacklog)
+                    .append(" handled=").append(shard.handled)
+                    .append(" dropped=").append(shard.dropped.get())
+                    .append(" busy=").append(utilization).append("%\n");
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Hands a membership change to the owning shard, which applies it to
+     * the channel and to the connection's channel ids, then tells the
+     * change. An unregistered connection is told at once that the change
+     * did not apply. A change that finds the ring full is queued aside, and
+     * the shard woken up in case it emptied the ring meanwhile.
+     */
+    private void change(int kind, String channelName, Member member,
+            Change change)
+    {
+        if (member == null)
+        {
+            if (change != null)
+            {
+                change.changed(false);
+            }
+            return;
+        }
+        Shard shard = shardOf(channelName);
+        long sequence = shard.ring.tryNext();
+        Task task = sequence < 0 ? new Task() : shard.ring.get(sequence);
+        task.kind = kind;
+        task.channelName = channelName;
+        task.member = member;
+        task.change = change;
+        if (sequence >= 0)
+        {
+            shard.ring.publish(sequence);
+            return;
+        }
+
+        shard.overflow.add(task);
+        sequence = shard.ring.tryNext();
+        if (sequence >= 0)
+        {
+            shard.ring.get(sequence).kind = WAKE;
+            shard.ring.publish(sequence);
+        }
+    }
+
+    /**
+     * Returns the shard owning a channel.
+     */
+    private Shard shardOf(String channelName)
+    {
+        int h = channelName.hashCode();
+        h ^= h >>> 16;
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * Returns the entry of a connection, null if it is not registered.
+     */
+    private synchronized Member memberOf(ConnectionToClient client)
+    {
+        Integer id = (Integer) client.getInfo("connectionId");
+        return id == null ? null : membersById[id];
+    }
+
+    /**
+     * Returns the names of channels.
+     */
+    private String[] names(int[] ids)
+    {
+        if (ids.length == 0)
+        {
+            return NO_CHANNELS;
+        }
+        String[] names = new String[ids.length];
+        synchronized (this)
+        {
+            for (int i = 0; i < ids.length; i++)
+            {
+                names[i] = channelNamesById[ids[i]];
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Frees the id of an unregistered connection.
+     */
+    private synchronized void free(Member member)
+    {
+        membersById[member.id] = null;
+        connectionIds.free(member.id);
+    }
+
+    /**
+     * Gives a new channel an id.
+     */
+    private synchronized int allocateChannel(String channelName)
+    {
+        int id = channelIds.allocate();
+        if (id == channelNamesById.length)
+        {
+            channelNamesById = java.util.Arrays.copyOf(channelNamesById,
+                    id * 2);
+        }
+        channelNamesById[id] = channelName;
+        return id;
+    }
+
+    /**
+     * Frees the id of a removed channel.
+     */
+    private synchronized void freeChannel(int id)
+    {
+        channelNamesById[id] = null;
+        channelIds.free(id);
+    }
+
+    /**
+     * Returns the connection with an id, for building snapshots.
+     */
+    private synchronized ConnectionToClient connection(int id)
+    {
+        Member member = membersById[id];
+        return member == null ? null : member.client;
+    }
+
+    /**
+     * One thread and the channels it owns. Only the shard's thread uses its
+     * channels; the counters are written by it and read by shardStats.
+     */
+    private class Shard implements EventDispatcher.Handler<Task>
+    {
+        /**
+         * The index of the shard.
+         */
+        final int index;
+
+        /**
+         * The tasks for this shard.
+         */
+        final EventDispatcher<Task> ring;
+
+        /**
+         * The membership changes that found the ring full, applied before
+         * the next task.
+         */
+        final ConcurrentLinkedQueue<Task> overflow = new ConcurrentLinkedQueue<Task>();
+
+        /**
+         * The client a message is being sent to, null between two sends,
+         * and when the send started; the time is written first.
+         */
+        private volatile ConnectionToClient sendingTo;
+        private volatile long sendingSince;
+
+        /**
+         * The channels owned by this shard, by name.
+         */
+        private HashMap<String, Channel> channels = new HashMap<String, Channel>();
+
+        /**
+         * The number of channels owned.
+         */
+        volatile int channelCount;
+
+        /**
+         * The number of tasks handled.
+         */
+        volatile long handled;
+
+        /**
+         * The time spent handling tasks.
+         */
+        volatile long busyNanos;
+
+        /**
+         * The most tasks seen queued.
+         */
+        volatile long peakBacklog;
+
+        /**
+         * The messages dropped because the ring was full.
+         */
+        final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * The time and busy time at the previous report. Guarded by the
+         * registry.
+         */
+        long reportedAt = System.nanoTime();
+        long reportedBusy;
+
+        Shard(int index)
+        {
+            this.index = index;
+            ring = new EventDispatcher<Task>("Channel shard " + index,
+                    SHARD_CAPACITY, new EventDispatcher.Factory<Task>()
+                    {
+                        public Task newInstance()
+                        {
+                            return new Task();
+                        }
+                    }, this);
+        }
+
+        public void onEvent(Task task)
+        {
+            long start = System.nanoTime();
+            long backlog = ring.getBacklog();
+            if (backlog > peakBacklog)
+            {
+                peakBacklog = backlog;
+            }
+            for (Task queued = overflow.poll(); queued != null; queued = overflow
+                    .poll())
+            {
+                handle(queued);
+            }
+            handle(task);
+            busyNanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Disconnects the client this shard has been sending to for longer
+         * than SLOW_CLIENT_TIMEOUT, which holds up every channel of the
+         * shard. Called by the watchdog.
+         */
+        void relieve()
+        {
+            ConnectionToClient client = sendingTo;
+            if (client == null || System.nanoTime() - sendingSince
+                    < SLOW_CLIENT_TIMEOUT * 1000000)
+            {
+                return;
+            }
+            System.out.println("Disconnecting " + client.getInfo("loginid")
+                    + ": not reading its channel messages");
+            try
+            {
+                // the send in progress fails, and the shard goes on
+                client.close();
+            }
+            catch (java.io.IOException e)
+            {
+                // closed anyway
+            }
+        }
+
+        private void handle(Task task)
+        {
+            try
+            {
+                boolean applied;
+                switch (task.kind)
+                {
+                case CREATE:
+                    applied = create(task.channelName, task.member);
+                    break;
+                case JOIN:
+                    applied = join(task.channelName, task.member);
+                    break;
+                case JOIN_OR_CREATE:
+                    applied = join(task.channelName, task.member)
+                            || create(task.channelName, task.member);
+                    break;
+                case LEAVE:
+                    applied = leave(task.channelName, task.member);
+                    break;
+                case REFETCH:
+                    refetch(task.channelName, task.member, task.epoch,
+                            task.from, task.to);
+                    return;
+                case WAKE:
+                    return;
+                default:
+                    broadcast(task.channelName, task.message, task.filter);
+                    return;
+                }
+                if (task.change != null)
+                {
+                    task.change.changed(applied);
+                }
+            }
+            finally
+            {
+                // the slot is reused; do not keep the message alive
+                task.channelName = null;
+                task.message = null;
+                task.filter = null;
+                task.member = null;
+                task.change = null;
+                handled++;
+            }
+        }
+
+        /**
+         * Sends a message to a client, noting which client it is so that a
+         * client that does not read can be disconnected.
+         */
+        private void send(ConnectionToClient client, Object message)
+                throws java.io.IOException
+        {
+            sendingSince = System.nanoTime();
+            sendingTo = client;
+            try
+            {
+                client.sendToClient(message);
+            }
+            finally
+            {
+                sendingTo = null;
+            }
+        }
+
+        private boolean create(String channelName, Member member)
+        {
+            if (channels.containsKey(channelName))
+            {
+                return false;
+            }
+            Channel channel;
+            synchronized (member)
+            {
+                // an unregistered connection joins nothing more
+                if (member.closed)
+                {
+                    return false;
+                }
+                channel = new Channel(allocateChannel(channelName),
+                        epochs.incrementAndGet());
+                channel.add(member.id);
+                member.joined.add(channel.id);
+            }
+            channels.put(channelName, channel);
+            channelCount = channels.size();
+            byName.put(channelName, channel);
+            if (listener != null)
+            {
+                listener.channelCreated(channelName);
+            }
+            return true;
+        }
+
+        private boolean join(String channelName, Member member)
+        {
+            Channel channel = channels.get(channelName);
+            if (channel == null)
+            {
+                return false;
+            }
+            synchronized (member)
+            {
+                if (member.closed)
+                {
+                    return false;
+                }
+                channel.add(member.id);
+                member.joined.add(channel.id);
+            }
+
+            return true;
+        }
+
+        private boolean leave(String channelName, Member member)
+        {
+            Channel channel = channels.get(channelName);
+            if (channel == null)
+            {
+                return false;
+            }
+            synchronized (member)
+            {
+                if (!channel.remove(member.id))
+                {
+                    return false;
+                }
+                member.joined.remove(channel.id);
+            }
+
+            // a connection going away needs no reset
+            if (!member.closed && channel.sequence > 0)
+            {
+                try
+                {
+                    send(member.client, "#left " + channelName + " "
+                            + channel.epoch);
+                }
+                catch (java.io.IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            if (channel.members.isEmpty())
+            {
+                channels.remove(channelName);
+                channelCount = channels.size();
+                byName.remove(channelName);
+                freeChannel(channel.id);
+                if (listener != null)
+                {
+                    listener.channelRemoved(channelName);
+                }
+            }
+            return true;
+        }
+
+        private void broadcast(String channelName, Object message,
+                Filter filter)
+        {
+            Channel channel = channels.get(channelName);
+            if (channel == null)
+            {
+                return;
+            }
+            boolean stamped = message instanceof String;
+            if (stamped)
+            {
+                message = channel.stamp(channelName, (String) message, filter);
+            }
+            ConnectionToClient[] members = channel.snapshot();
+            int[] ids = channel.snapshotIds;
+            for (int i = 0; i < members.length; i++)
+            {
+                if (filter != null && filter.blocks(ids[i]))
+                {
+                    // told before its next message that this is no gap
+                    if (stamped)
+                    {
+                        channel.skipping.add(ids[i]);
+                    }
+                    continue;
+                }
+                if (stamped && !channel.skipping.isEmpty()
+                        && channel.skipping.remove(ids[i]))
+                {
+                    skip(members[i], channelName, channel,
+                            channel.sequence - 1);
+                }
+                try
+                {
+                    send(members[i], message);
+                }
+                catch (java.io.IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Tells a member that the numbers of a channel up to n it does not
+         * have were filtered out for it.
+         */
+        private void skip(ConnectionToClient client, String channelName,
+                Channel channel, long n)
+        {
+            try
+            {
+                send(client, "#skip " + channelName + " "
+                        + channel.epoch + " " + n);
+            }
+            catch (java.io.IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        private void refetch(String channelName, Member member, long epoch,
+                long from, long to)
+        {
+            ConnectionToClient client = member.client;
+            int connectionId = member.id;
+            Channel channel = channels.get(channelName);
+            if (member.closed || from < 1 || to < from)
+            {
+                return;
+            }
+            long lost = to - from + 1;
+            if (channel != null && channel.epoch == epoch
+                    && channel.members.contains(connectionId))
+            {
+                // only the kept messages that were sent can be sent again
+                long first = Math.max(from, channel.oldest());
+                long last = Math.min(to, channel.sequence);
+                lost = Math.max(0, Math.min(to, first - 1) - from + 1);
+                for (long n = first; n <= last; n++)
+                {
+                    int slot = channel.slot(n);
+                    Filter filter = channel.recentFilters[slot];
+                    if (channel.recent[slot] == null)
+                    {
+                        // dropped on the way to the shard
+                        lost++;
+                        continue;
+                    }
+                    if (filter != null && filter.blocks(connectionId))
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        send(client, channel.recent[slot]);
+                    }
+                    catch (java.io.IOException e)
+                    {
+                        return;
+                    }
+                }
+            }
+            try
+            {
+                send(client, "#refetched " + channelName + " " + epoch
+                        + " " + from + " " + to + " " + lost);
+            }
+            catch (java.io.IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The members of one channel, only used by the thread of its shard
+     * except for its size. Fan-out iterates a cached array of the members,
+     * only rebuilt after a change.
+     */
+    private class Channel
+    {
+        /**
+         * The id of the channel.
+         */
+        final int id;
+
+        /**
+         * The epoch of the channel, new for each channel created.
+         */
+        final long epoch;
+
+        /**
+         * The sequence number of the last message stamped, 0 before the
+         * first.
+         */
+        long sequence;
+
+        /**
+         * The last stamped messages and the filters sent with them, by
+         * sequence number modulo their length, which grows up to
+         * RECENT_MESSAGES.
+         */
+        String[] recent = new String[16];
+        Filter[] recentFilters = new Filter[16];
+
+        /**
+         * The connection ids of the members.
+         */
+        IntSet members = new IntSet();
+
+        /**
+         * The members that filtered out messages since the last one they
+         * were sent.
+         */
+        IntSet skipping = new IntSet();
+
+        /**
+         * The number of members, for other threads.
+         */
+        volatile int size;
+
+        /**
+         * The messages dropped because the shard was full, numbered with
+         * the next message stamped.
+         */
+        final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * The members as an array, null after a change.
+         */
+        private ConnectionToClient[] snapshot;
+
+        /**
+         * The connection ids of the snapshot's members, in the same order.
+         */
+        int[] snapshotIds;
+
+        Channel(int id, long epoch)
+        {
+            this.id = id;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Gives a message the next sequence number, and keeps it, after
+         * the numbers of the messages dropped before it, which are kept
+         * empty.
+         * @return the stamped message.
+         */
+        String stamp(String channelName, String message, Filter filter)
+        {
+            long lost = dropped.get() == 0 ? 0 : dropped.getAndSet(0);
+            while (lost-- > 0)
+            {
+                int slot = slot(advance());
+                recent[slot] = null;
+                recentFilters[slot] = null;
+            }
+            long n = advance();
+            String stamped = "#seq " + channelName + " " + epoch + " " + n
+                    + " " + message;
+            int slot = slot(n);
+            recent[slot] = stamped;
+            recentFilters[slot] = filter;
+            return stamped;
+        }
+
+        /**
+         * Takes the next sequence number, growing the kept messages if
+         * needed.
+         */
+        private long advance()
+        {
+            long n = ++sequence;
+            if (n > recent.length && recent.length < RECENT_MESSAGES)
+            {
+                // the ring holds 1 to n - 1; place them in a larger one
+                String[] messages = recent;
+                Filter[] filters = recentFilters;
+                recent = new String[messages.length * 2];
+                recentFilters = new Filter[messages.length * 2];
+                for (long kept = 1; kept < n; kept++)
+                {
+                    int from = (int) (kept & (messages.length - 1));
+                    recent[slot(kept)] = messages[from];
+                    recentFilters[slot(kept)] = filters[from];
+                }
+            }
+            return n;
+        }
+
+        /**
+         * @return the sequence number of the oldest message kept.
+         */
+        long oldest()
+        {
+            return Math.max(1, sequence - recent.length + 1);
+        }
+
+        int slot(long n)
+        {
+            return (int) (n & (recent.length - 1));
+        }
+
+        void add(int connectionId)
+        {
+            if (members.add(connectionId))
+            {
+                size = members.size();
+                snapshot = null;
+            }
+        }
+
+        boolean remove(int connectionId)
+        {
+            if (!members.remove(connectionId))
+            {
+                return false;
+            }
+            skipping.remove(connectionId);
+            size = members.size();
+            snapshot = null;
+            return true;
+        }
+
+        ConnectionToClient[] snapshot()
+        {
+            if (snapshot == null)
+            {
+                int[] ids = members.toArray();
+                ConnectionToClient[] resolved = new ConnectionToClient[ids.length];
+                for (int i = 0; i < ids.length; i++)
+                {
+                    resolved[i] = connection(ids[i]);
+                }
+                snapshot = resolved;
+                snapshotIds = ids;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * A slot of a shard's ring, filled in by the thread submitting the
+     * task.
+     */
+    private static class Task
+    {
+        int kind;
+        String channelName;
+        Object message;
+        Filter filter;
+        Member member;
+        long epoch;
+        long from;
+        long to;
+        Change change;
+    }
+
+    /**
+     * A registered connection and the ids of its channels. The ids are
+     * changed by the shards and read by any thread, under the lock of the
+     * entry; once closed, the connection joins no channel.
+     */
+    private static class Member
+    {
+        final int id;
+        final ConnectionToClient client;
+        final IntSet joined = new IntSet();
+        volatile boolean closed;
+
+        Member(int id, ConnectionToClient client)
+        {
+            this.id = id;
+            this.client = client;
+        }
+    }
+
+    /**
+     * Allocates dense ids, reusing freed ones first. Guarded by the
+     * registry's lock.
+     */
+    private static class IdPool
+    {
+        /**
+         * The next never used id.
+         */
+        private int next;
+
+        /**
+         * The freed ids, used as a stack.
+         */
+        private int[] free = new int[16];
+
+        /**
+         * The number of freed ids.
+         */
+        private int freeCount;
+
+        int allocate()
+        {
+            return freeCount > 0 ? free[--freeCount] : next++;
+        }
+
+        void free(int id)
+        {
+            if (freeCount == free.length)
+            {
+                free = java.util.Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = id;
+        }
+    }
+}
+// End of ChannelRegistry class
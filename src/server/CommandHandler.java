@@ -0,0 +1,21 @@
+package server;
+
+import java.io.IOException;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This interface is implemented by the handlers registered in a
+ * <code>CommandTable</code>.
+ */
+public interface CommandHandler
+{
+    /**
+     * Handles a command. The number of arguments has already been checked.
+     * @param client the connection the command came from.
+     * @param line the tokenized command, valid only during the call.
+     * @throws IOException if a reply cannot be sent.
+     */
+    public abstract void handle(ConnectionToClient client, CommandLine line)
+            throws IOException;
+}
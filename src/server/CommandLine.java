@@ -0,0 +1,153 @@
+package server;
+
+/**
+ * A message from a client split into space separated tokens. The tokenizer
+ * makes a single pass over the text and only records where each token
+ * starts and ends; no String is created unless a handler asks for one. An
+ * instance is meant to be reused for every message parsed by a thread.
+ * Token 0 is the command, e.g. <code>#join</code>, and tokens 1 and up are
+ * its arguments.
+ */
+public class CommandLine
+{
+    // Instance variables **********************************************
+
+    /**
+     * The text being parsed.
+     */
+    private String text;
+
+    /**
+     * The number of tokens.
+     */
+    private int count;
+
+    /**
+     * Offset of the first character of each token.
+     */
+    private int[] starts = new int[8];
+
+    /**
+     * Offset after the last character of each token.
+     */
+    private int[] ends = new int[8];
+
+    // Instance methods ************************************************
+
+    /**
+     * Tokenizes a message, replacing the previous one.
+     * @param message the message to tokenize.
+     * @return this command line.
+     */
+    public CommandLine parse(String message)
+    {
+        text = message;
+        count = 0;
+        int length = message.length();
+        int i = 0;
+        while (i < length)
+        {
+            while (i < length && message.charAt(i) == ' ')
+            {
+                i++;
+            }
+            if (i == length)
+            {
+                break;
+            }
+            int start = i;
+            while (i < length && message.charAt(i) != ' ')
+            {
+                i++;
+            }
+            if (count == starts.length)
+            {
+                starts = java.util.Arrays.copyOf(starts, count * 2);
+                ends = java.util.Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = i;
+            count++;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if the message starts with a command, i.e. a token
+     * beginning with '#'.
+     */
+    public boolean isCommand()
+    {
+        return count > 0 && text.charAt(starts[0]) == '#';
+    }
+
+    /**
+     * @return the number of arguments after the command.
+     */
+    public int argCount()
+    {
+        return count == 0 ? 0 : count - 1;
+    }
+
+    /**
+     * @param i a token number, 0 being the command.
+     * @return the offset of the first character of the token.
+     */
+    public int start(int i)
+    {
+        return starts[i];
+    }
+
+    /**
+     * @param i a token number, 0 being the command.
+     * @return the offset after the last character of the token.
+     */
+    public int end(int i)
+    {
+        return ends[i];
+    }
+
+    /**
+     * Returns an argument as a String. This allocates; prefer
+     * <code>argEquals</code> for comparisons.
+     * @param i the argument number, starting at 1.
+     * @return the argument.
+     */
+    public String arg(int i)
+    {
+        return text.substring(starts[i], ends[i]);
+    }
+
+    /**
+     * Compares a token with a string without allocating.
+     * @param i a token number, 0 being the command.
+     * @param s the string to compare with.
+     * @return true if the token is equal to the string.
+     */
+    public boolean argEquals(int i, String s)
+    {
+        return ends[i] - starts[i] == s.length()
+                && text.regionMatches(starts[i], s, 0, s.length());
+    }
+
+    /**
+     * Returns the text from an argument to the end of the message, with its
+     * original spacing, e.g. the body of a private message.
+     * @param i the first argument, starting at 1.
+     * @return the rest of the message, empty if there are not that many
+     * arguments.
+     */
+    public String rest(int i)
+    {
+        return i < count ? text.substring(starts[i]) : "";
+    }
+
+    /**
+     * @return the whole message.
+     */
+    public String text()
+    {
+        return text;
+    }
+}
+// End of CommandLine class
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.IOException;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This class maps command names, such as <code>#join</code>, onto their
+ * handlers. Lookups hash and compare the command straight from the
+ * tokenized message, so dispatching a message does not allocate. Argument
+ * count checking and the replies to unknown or malformed commands are done
+ * here once for every command. Commands are registered up front, before the
+ * table is used.
+ */
+public class CommandTable
+{
+    // Instance variables **********************************************
+
+    /**
+     * The registered commands, in an open addressing hash table.
+     */
+    private Entry[] entries = new Entry[32];
+
+    /**
+     * The number of registered commands.
+     */
+    private int size;
+
+    // Instance methods ************************************************
+
+    /**
+     * Registers a command.
+     * @param name the command, including its leading '#'.
+     * @param minArgs the minimum number of arguments.
+     * @param usage the usage shown when arguments are missing.
+     * @param handler the handler of the command.
+     */
+    public void register(String name, int minArgs, String usage,
+            CommandHandler handler)
+    {
+        if ((size + 1) * 2 > entries.length)
+        {
+            Entry[] old = entries;
+            entries = new Entry[old.length * 2];
+            for (Entry e : old)
+            {
+                if (e != null)
+                {
+                    insert(e);
+                }
+            }
+        }
+        insert(new Entry(name, minArgs, usage, handler));
+        size++;
+    }
+
+    /**
+     * @param line a tokenized message.
+     * @return true if the message starts with a registered command.
+     */
+    public boolean isRegistered(CommandLine line)
+    {
+        return line.isCommand() && lookup(line) != null;
+    }
+
+    /**
+     * Hands a command to its handler after checking its arguments. The
+     * client is told if the command is unknown or lacks arguments.
+     * @param client the connection the command came from.
+     * @param line the tokenized command.
+     * @return false if the command is not registered.
+     */
+    public boolean dispatch(ConnectionToClient client, CommandLine line)
+    {
+        Entry entry = line.isCommand() ? lookup(line) : null;
+        try
+        {
+            if (entry == null)
+            {
+                client.sendToClient("Error. Unknown command");
+                return false;
+            }
+            if (line.argCount() < entry.minArgs)
+            {
+                client.sendToClient("Error. Usage: " + entry.usage);
+                return true;
+            }
+            entry.handler.handle(client, line);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Finds the entry of the command of a message.
+     */
+    private Entry lookup(CommandLine line)
+    {
+        int start = line.start(0);
+        int length = line.end(0) - start;
+        String text = line.text();
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+        {
+            hash = 31 * hash + text.charAt(start + i);
+        }
+        int mask = entries.length - 1;
+        for (int i = spread(hash) & mask; entries[i] != null; i = (i + 1) & mask)
+        {
+            Entry e = entries[i];
+            if (e.hash == hash && e.name.length() == length
+                    && text.regionMatches(start, e.name, 0, length))
+            {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an entry to the hash table.
+     */
+    private void insert(Entry entry)
+    {
+        int mask = entries.length - 1;
+        int i = spread(entry.hash) & mask;
+        while (entries[i] != null)
+        {
+            if (entries[i].name.equals(entry.name))
+            {
+                entries[i] = entry;
+                size--;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        entries[i] = entry;
+    }
+
+    /**
+     * Mixes the high bits of a hash into the low ones.
+     */
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A registered command.
+     */
+    private static class Entry
+    {
+        final String name;
+        final int hash;
+        final int minArgs;
+        final String usage;
+        final CommandHandler handler;
+
+        Entry(String name, int minArgs, String usage, CommandHandler handler)
+        {
+            this.name = name;
+            this.hash = name.hashCode();
+            this.minArgs = minArgs;
+            this.usage = usage;
+            this.handler = handler;
+        }
+    }
+}
+// End of CommandTable class
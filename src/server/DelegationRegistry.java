@@ -0,0 +1,199 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This class records who monitors the private messages of whom while they
+ * are away. A client may select several monitors, and a monitor may cover
+ * several clients, so the delegations are kept in both directions: the
+ * monitors of each client and the clients of each monitor. Each side maps
+ * a connection onto an array of connections that is never modified once
+ * stored, so forwarding a message iterates an array without locking.
+ * Changes are rare and are made under this lock, so both sides always
+ * agree; dropping a connection only touches its own delegations.
+ */
+public class DelegationRegistry
+{
+    // Class variables *************************************************
+
+    /**
+     * Returned for connections without delegations.
+     */
+    final private static ConnectionToClient[] NONE = new ConnectionToClient[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The monitors of each client.
+     */
+    private ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]> monitors = new ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]>();
+
+    /**
+     * The clients of each monitor.
+     */
+    private ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]> delegators = new ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]>();
+
+    // Instance methods ************************************************
+
+    /**
+     * Makes a connection a monitor of a client.
+     * @param client the client going away.
+     * @param monitor the monitor.
+     * @return false if it already was.
+     */
+    public synchronized boolean add(ConnectionToClient client,
+            ConnectionToClient monitor)
+    {
+        if (!add(monitors, client, monitor))
+        {
+            return false;
+        }
+        add(delegators, monitor, client);
+        return true;
+    }
+
+    /**
+     * Relieves a monitor of a client.
+     * @param client the client.
+     * @param monitor the monitor.
+     * @return false if it was not a monitor of the client.
+     */
+    public synchronized boolean remove(ConnectionToClient client,
+            ConnectionToClient monitor)
+    {
+        if (!remove(monitors, client, monitor))
+        {
+            return false;
+        }
+        remove(delegators, monitor, client);
+        return true;
+    }
+
+    /**
+     * Relieves all the monitors of a client.
+     * @param client the client.
+     * @return the monitors relieved.
+     */
+    public synchronized ConnectionToClient[] removeMonitors(
+            ConnectionToClient client)
+    {
+        ConnectionToClient[] relieved = monitors.remove(client);
+        if (relieved == null)
+        {
+            return NONE;
+        }
+        for (ConnectionToClient monitor : relieved)
+        {
+            remove(delegators, monitor, client);
+        }
+        return relieved;
+    }
+
+    /**
+     * Drops the delegations of a monitor to all its clients.
+     * @param monitor the monitor.
+     * @return the clients that lost the monitor.
+     */
+    public synchronized ConnectionToClient[] removeDelegators(
+            ConnectionToClient monitor)
+    {
+        ConnectionToClient[] clients = delegators.remove(monitor);
+        if (clients == null)
+        {
+            return NONE;
+        }
+        for (ConnectionToClient client : clients)
+        {
+            remove(monitors, client, monitor);
+        }
+        return clients;
+    }
+
+    /**
+     * @param client a client.
+     * @return its monitors; the array must not be modified.
+     */
+    public ConnectionToClient[] monitorsOf(ConnectionToClient client)
+    {
+        ConnectionToClient[] current = monitors.get(client);
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * @param monitor a monitor.
+     * @return the clients it monitors; the array must not be modified.
+     */
+    public ConnectionToClient[] delegatorsOf(ConnectionToClient monitor)
+    {
+        ConnectionToClient[] current = delegators.get(monitor);
+        return current == null ? NONE : current;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Adds a value to the array of a key, replacing the array.
+     * @return false if the value was there.
+     */
+    private static boolean add(
+            ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]> map,
+            ConnectionToClient key, ConnectionToClient value)
+    {
+        ConnectionToClient[] current = map.get(key);
+        if (current == null)
+        {
+            map.put(key, new ConnectionToClient[] { value });
+            return true;
+        }
+        for (ConnectionToClient c : current)
+        {
+            if (c == value)
+            {
+                return false;
+            }
+        }
+        ConnectionToClient[] updated = new ConnectionToClient[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = value;
+        map.put(key, updated);
+        return true;
+    }
+
+    /**
+     * Removes a value from the array of a key, replacing the array.
+     * @return false if the value was not there.
+     */
+    private static boolean remove(
+            ConcurrentHashMap<ConnectionToClient, ConnectionToClient[]> map,
+            ConnectionToClient key, ConnectionToClient value)
+    {
+        ConnectionToClient[] current = map.get(key);
+        if (current == null)
+        {
+            return false;
+        }
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == value)
+            {
+                if (current.length == 1)
+                {
+                    map.remove(key);
+                }
+                else
+                {
+                    ConnectionToClient[] updated = new ConnectionToClient[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i,
+                            current.length - i - 1);
+                    map.put(key, updated);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
+// End of DelegationRegistry class
@@ -0,0 +1,977 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * This class links chat servers into a cluster, so that channels and private
+ * messages span several nodes. Nodes are linked over TCP, each pair by one
+ * link, and every node is expected to be linked to every other: messages
+ * are never relayed.
+ * <p>
+ * Each node tells its peers which channels have local members and which
+ * users are logged in locally, and keeps a routing table of the same
+ * information received from its peers. A channel message is therefore sent
+ * once to each node with members of the channel, whatever the number of
+ * members there, and a private message only to the nodes the recipient is
+ * logged in on. A message is encoded once for all the links it is sent on.
+ * <p>
+ * Every link has a writer thread fed by a bounded queue, so a slow peer
+ * never blocks the threads sending to it; a peer that falls too far behind
+ * is disconnected, and resynchronised when the link comes back. Links that
+ * this node dialed are redialed after a delay, unless the peer is linked
+ * by another link. When two nodes dial each other at once, both keep the
+ * link dialed by the node with the lower id and close the other. Each link is pinged to
+ * measure its round trip time, and counts the frames and bytes it carries.
+ */
+public class Federation
+{
+    /**
+     * Receives the messages sent by peers, on the thread of their link.
+     */
+    public interface Handler
+    {
+        /**
+         * @param channelName the channel the message was sent to.
+         * @param sender the login id of the sender.
+         * @param message the rendered message.
+         */
+        void channelMessage(String channelName, String sender, String message);
+
+        /**
+         * @param recipient the login id of the recipient.
+         * @param sender the login id of the sender.
+         * @param message the text of the message.
+         */
+        void privateMessage(String recipient, String sender, String message);
+
+        /**
+         * @param message the rendered message, for all clients.
+         */
+        void broadcast(String message);
+
+        /**
+         * Told when a user logs in on a peer or has no more sessions
+         * there, including when the link to the peer is lost.
+         * @param loginid the login id of the user.
+         */
+        void presenceChanged(String loginid);
+
+        /**
+         * Told when a peer gains or loses a channel, including when the
+         * link to the peer is lost.
+         */
+        void channelsChanged();
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Frame types.
+     */
+    final private static int HELLO = 0;
+    final private static int CHANNEL_UP = 1;
+    final private static int CHANNEL_DOWN = 2;
+    final private static int USER_UP = 3;
+    final private static int USER_DOWN = 4;
+    final private static int CHANNEL_MESSAGE = 5;
+    final private static int PRIVATE = 6;
+    final private static int BROADCAST = 7;
+    final private static int PING = 8;
+    final private static int PONG = 9;
+
+    /**
+     * The most frames queued for a link before its peer is disconnected.
+     */
+    final private static int MAX_QUEUED_FRAMES = 65536;
+
+    /**
+     * The largest frame accepted from a peer.
+     */
+    final private static int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Bytes written to a link before it is flushed, when frames keep coming.
+     */
+    final private static int FLUSH_BYTES = 64 * 1024;
+
+    /**
+     * Milliseconds between pings on a link.
+     */
+    final private static long PING_INTERVAL = 1000;
+
+    /**
+     * Milliseconds before a lost link is dialed again.
+     */
+    final private static long RECONNECT_DELAY = 2000;
+
+    /**
+     * Returned when no peer is routed to.
+     */
+    final private static Link[] NO_LINKS = new Link[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The id of this node, so that peers can tell nodes apart.
+     */
+    private String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    /**
+     * Receives the messages sent by peers.
+     */
+    private Handler handler;
+
+    /**
+     * The links whose peers have said hello. The array is never modified
+     * once stored; changes replace it under this lock.
+     */
+    private volatile Link[] links = NO_LINKS;
+
+    /**
+     * The channels with local members, announced to new peers. Guarded by
+     * this.
+     */
+    private Set<String> localChannels = new HashSet<String>();
+
+    /**
+     * The users logged in locally, announced to new peers. Guarded by this.
+     */
+    private Set<String> localUsers = new HashSet<String>();
+
+    /**
+     * The links to the nodes with members of each channel.
+     */
+    private ConcurrentHashMap<String, Link[]> channelRoutes = new ConcurrentHashMap<String, Link[]>();
+
+    /**
+     * The links to the nodes each user is logged in on.
+     */
+    private ConcurrentHashMap<String, Link[]> userRoutes = new ConcurrentHashMap<String, Link[]>();
+
+    /**
+     * The socket accepting links from peers, if listening.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Set once the federation is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The time of the previous call to stats. Guarded by this.
+     */
+    private long reportedAt = System.nanoTime();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a federation with no links.
+     * @param handler receives the messages sent by peers.
+     */
+    public Federation(Handler handler)
+    {
+        this.handler = handler;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Accepts links from peers on a port.
+     * @param port the port to listen on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public synchronized void listen(int port) throws IOException
+    {
+        if (serverSocket != null)
+        {
+            throw new IOException("Already listening on port "
+                    + serverSocket.getLocalPort());
+        }
+        final ServerSocket socket = new ServerSocket(port);
+        serverSocket = socket;
+        start("Federation listener on port " + port, new Runnable()
+        {
+            public void run()
+            {
+                while (!closed)
+                {
+                    try
+                    {
+                        final Link link = new Link(socket.accept(), false);
+                        start("Federation link from "
+                                + link.socket.getRemoteSocketAddress(),
+                                new Runnable()
+                                {
+                                    public void run()
+                                    {
+                                        link.run();
+                                    }
+                                });
+                    }
+                    catch (IOException e)
+                    {
+                        if (!closed)
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Dials a peer, and dials it again whenever the link is lost, unless
+     * the peer is linked by a link it dialed.
+     * @param host the host of the peer.
+     * @param port the port the peer listens on for links.
+     */
+    public void link(final String host, final int port)
+    {
+        start("Federation link to " + host + ":" + port, new Runnable()
+        {
+            public void run()
+            {
+                String peerId = null;
+                while (!closed)
+                {
+                    try
+                    {
+                        if (peerId == null || !isLinked(peerId))
+                        {
+                            Link link = new Link(new Socket(host, port), true);
+                            link.run();
+                            peerId = link.peerId;
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        // the peer is not up yet
+                    }
+                    try
+                    {
+                        Thread.sleep(RECONNECT_DELAY);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the peers that a channel has local members.
+     * @param channelName the name of the channel.
+     */
+    public synchronized void channelUp(String channelName)
+    {
+        if (localChannels.add(channelName))
+        {
+            sendToAll(frame(CHANNEL_UP, channelName));
+        }
+    }
+
+    /**
+     * Tells the peers that a channel has no more local members.
+     * @param channelName the name of the channel.
+     */
+    public synchronized void channelDown(String channelName)
+    {
+        if (localChannels.remove(channelName))
+        {
+            sendToAll(frame(CHANNEL_DOWN, channelName));
+        }
+    }
+
+    /**
+     * Tells the peers that a user has logged in locally.
+     * @param loginid the login id of the user.
+     */
+    public synchronized void userUp(String loginid)
+    {
+        if (localUsers.add(loginid))
+        {
+            sendToAll(frame(USER_UP, loginid));
+        }
+    }
+
+    /**
+     * Tells the peers that a user has no more local sessions.
+     * @param loginid the login id of the user.
+     */
+    public synchronized void userDown(String loginid)
+    {
+        if (localUsers.remove(loginid))
+        {
+            sendToAll(frame(USER_DOWN, loginid));
+        }
+    }
+
+    /**
+     * @param channelName the name of a channel.
+     * @return true if a peer has members of the channel.
+     */
+    public boolean hasChannel(String channelName)
+    {
+        return channelRoutes.containsKey(channelName);
+    }
+
+    /**
+     * @return a live view of the channels with members on a peer.
+     */
+    public Set<String> remoteChannels()
+    {
+        return channelRoutes.keySet();
+    }
+
+    /**
+     * @param loginid the login id of a user.
+     * @return true if the user is logged in on a peer.
+     */
+    public boolean hasUser(String loginid)
+    {
+        return userRoutes.containsKey(loginid);
+    }
+
+    /**
+     * Sends a channel message to the peers with members of the channel.
+     * @param channelName the name of the channel.
+     * @param sender the login id of the sender, for the members filtering
+     * it.
+     * @param message the rendered message.
+     */
+    public void sendToChannel(String channelName, String sender,
+            String message)
+    {
+        Link[] route = channelRoutes.get(channelName);
+        if (route != null)
+        {
+            send(route, frame(CHANNEL_MESSAGE, channelName, sender, message));
+        }
+    }
+
+    /**
+     * Sends a private message to the peers the recipient is logged in on.
+     * @param recipient the login id of the recipient.
+     * @param sender the login id of the sender.
+     * @param message the text of the message.
+     * @return false if the recipient is not logged in on any peer.
+     */
+    public boolean sendPrivate(String recipient, String sender, String message)
+    {
+        Link[] route = userRoutes.get(recipient);
+        if (route == null)
+        {
+            return false;
+        }
+        send(route, frame(PRIVATE, recipient, sender, message));
+        return true;
+    }
+
+    /**
+     * Sends a message for all clients to every peer.
+     * @param message the rendered message.
+     */
+    public void broadcast(String message)
+    {
+        send(links, frame(BROADCAST, message));
+    }
+
+    /**
+     * Describes each link: its peer, the frames waiting to be written, the
+     * rates in each direction since the previous call, and the round trip
+     * time.
+     * @return one line per link.
+     */
+    public synchronized String stats()
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - reportedAt) / 1e9;
+        reportedAt = now;
+
+        StringBuilder stats = new StringBuilder("node " + nodeId + ": "
+                + links.length + " links, " + channelRoutes.size()
+                + " remote channels, " + userRoutes.size()
+                + " remote users\n");
+        for (Link link : links)
+        {
+            long framesOut = link.framesOut, bytesOut = link.bytesOut;
+            long framesIn = link.framesIn, bytesIn = link.bytesIn;
+            stats.append(String.format(
+                    "%s %s: queued=%d out=%.0f frames/s %.1f KB/s in=%.0f frames/s %.1f KB/s rtt=%dus\n",
+                    link.peerId, link.socket.getRemoteSocketAddress(),
+                    link.queue.size(),
+                    (framesOut - link.reportedFramesOut) / seconds,
+                    (bytesOut - link.reportedBytesOut) / seconds / 1024,
+                    (framesIn - link.reportedFramesIn) / seconds,
+                    (bytesIn - link.reportedBytesIn) / seconds / 1024,
+                    link.rttNanos / 1000));
+            link.reportedFramesOut = framesOut;
+            link.reportedBytesOut = bytesOut;
+            link.reportedFramesIn = framesIn;
+            link.reportedBytesIn = bytesIn;
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Stops accepting and dialing links, and closes the current ones.
+     */
+    public void close()
+    {
+        closed = true;
+        synchronized (this)
+        {
+            if (serverSocket != null)
+            {
+                try
+                {
+                    serverSocket.close();
+                }
+                catch (IOException e)
+                {
+                    // closing anyway
+                }
+            }
+        }
+        for (Link link : links)
+        {
+            link.close();
+        }
+    }
+
+    /**
+     * Queues a frame on every link. Called with this lock held, so that
+     * announcements reach each peer in the order they were made.
+     */
+    private void sendToAll(byte[] frame)
+    {
+        send(links, frame);
+    }
+
+    /**
+     * Queues a frame on some links.
+     */
+    private static void send(Link[] route, byte[] frame)
+    {
+        for (Link link : route)
+        {
+            link.send(frame);
+        }
+    }
+
+    /**
+     * @param peerId the node id of a peer.
+     * @return true if there is a link to the peer.
+     */
+    private synchronized boolean isLinked(String peerId)
+    {
+        for (Link link : links)
+        {
+            if (link.peerId.equals(peerId))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a link whose peer said hello, and announces the local channels
+     * and users to it. Of two links to the same node, the one dialed by the
+     * node with the lower id is kept, which both nodes agree on; of two
+     * links dialed by the same node, the newer is kept, as that node only
+     * dials again once it lost the older.
+     * @return false if the link already kept to the same node stays.
+     */
+    private synchronized boolean add(Link link)
+    {
+        for (Link other : links)
+        {
+            if (other.peerId.equals(link.peerId))
+            {
+                if (other.dialed != link.dialed
+                        && other.dialed == (nodeId.compareTo(other.peerId) < 0))
+                {
+                    return false;
+                }
+
+                // its thread forgets its routes by identity
+                other.close();
+                remove(other);
+                break;
+            }
+        }
+        Link[] updated = java.util.Arrays.copyOf(links, links.length + 1);
+        updated[links.length] = link;
+        links = updated;
+        for (String channelName : localChannels)
+        {
+            link.send(frame(CHANNEL_UP, channelName));
+        }
+        for (String loginid : localUsers)
+        {
+            link.send(frame(USER_UP, loginid));
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a lost link.
+     */
+    private synchronized void remove(Link link)
+    {
+        for (int i = 0; i < links.length; i++)
+        {
+            if (links[i] == link)
+            {
+                Link[] updated = new Link[links.length - 1];
+                System.arraycopy(links, 0, updated, 0, i);
+                System.arraycopy(links, i + 1, updated, i, links.length - i
+                        - 1);
+                links = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that a link leads to a channel or user.
+     */
+    private static void addRoute(ConcurrentHashMap<String, Link[]> routes,
+            String key, final Link link)
+    {
+        routes.compute(key, new BiFunction<String, Link[], Link[]>()
+        {
+            public Link[] apply(String key, Link[] current)
+            {
+                if (current == null)
+                {
+                    return new Link[] { link };
+                }
+                for (Link l : current)
+                {
+                    if (l == link)
+                    {
+                        return current;
+                    }
+                }
+                Link[] updated = java.util.Arrays.copyOf(current,
+                        current.length + 1);
+                updated[current.length] = link;
+                return updated;
+            }
+        });
+    }
+
+    /**
+     * Records that a link no longer leads to a channel or user.
+     */
+    private static void removeRoute(ConcurrentHashMap<String, Link[]> routes,
+            String key, final Link link)
+    {
+        routes.computeIfPresent(key, new BiFunction<String, Link[], Link[]>()
+        {
+            public Link[] apply(String key, Link[] current)
+            {
+                for (int i = 0; i < current.length; i++)
+                {
+                    if (current[i] == link)
+                    {
+                        if (current.length == 1)
+                        {
+                            return null;
+                        }
+                        Link[] updated = new Link[current.length - 1];
+                        System.arraycopy(current, 0, updated, 0, i);
+                        System.arraycopy(current, i + 1, updated, i,
+                                current.length - i - 1);
+                        return updated;
+                    }
+                }
+                return current;
+            }
+        });
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Encodes a frame: its length, its type, then each field as a length
+     * and UTF-8 bytes.
+     */
+    private static byte[] frame(int type, String... fields)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            for (String field : fields)
+            {
+                byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+        catch (IOException e)
+        {
+            // not thrown by byte array streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes the fields of a frame body.
+     */
+    private static String[] fields(byte[] body) throws IOException
+    {
+        String[] fields = new String[3];
+        int count = 0;
+        int offset = 1;
+        while (offset < body.length)
+        {
+            if (offset + 4 > body.length || count == fields.length)
+            {
+                throw new IOException("Bad frame");
+            }
+            int length = ((body[offset] & 0xff) << 24)
+                    | ((body[offset + 1] & 0xff) << 16)
+                    | ((body[offset + 2] & 0xff) << 8)
+                    | (body[offset + 3] & 0xff);
+            offset += 4;
+            if (length < 0 || offset + length > body.length)
+            {
+                throw new IOException("Bad frame");
+            }
+            fields[count++] = new String(body, offset, length,
+                    StandardCharsets.UTF_8);
+            offset += length;
+        }
+        return java.util.Arrays.copyOf(fields, count);
+    }
+    /**
+     * Starts a daemon thread.
+     */
+    private static void start(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A TCP link to a peer. The thread that runs the link reads and handles
+     * the peer's frames; a writer thread writes the queued frames, flushing
+     * when the queue runs dry.
+     */
+    private class Link
+    {
+        /**
+         * The socket to the peer.
+         */
+        final Socket socket;
+
+        /**
+         * The frames waiting to be written.
+         */
+        final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(
+                MAX_QUEUED_FRAMES);
+
+        /**
+         * True if this node dialed the link, false if the peer did.
+         */
+        final boolean dialed;
+
+        /**
+         * The node id of the peer, once it said hello.
+         */
+        volatile String peerId;
+
+        /**
+         * The channels and users routed to this link, only used by the
+         * reading thread.
+         */
+        private Set<String> channels = new HashSet<String>();
+        private Set<String> users = new HashSet<String>();
+
+        /**
+         * Counters, each written by one thread.
+         */
+        volatile long framesOut, bytesOut, framesIn, bytesIn, rttNanos;
+
+        /**
+         * The counters at the previous report. Guarded by the federation.
+         */
+        long reportedFramesOut, reportedBytesOut, reportedFramesIn,
+                reportedBytesIn;
+
+        /**
+         * Set once the link is closed.
+         */
+        private volatile boolean linkClosed;
+
+        Link(Socket socket, boolean dialed)
+        {
+            this.socket = socket;
+            this.dialed = dialed;
+        }
+
+        /**
+         * Queues a frame. Disconnects the peer if too many are queued.
+         */
+        void send(byte[] frame)
+        {
+            if (!linkClosed && !queue.offer(frame))
+            {
+                System.out.println("Federation link to " + peerId
+                        + " fell behind, disconnecting");
+                close();
+            }
+        }
+
+        void close()
+        {
+            linkClosed = true;
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+        }
+
+        /**
+         * Says hello, then handles the peer's frames until the link is lost.
+         */
+        void run()
+        {
+            boolean added = false;
+            try
+            {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                queue.add(frame(HELLO, nodeId));
+                start(Thread.currentThread().getName() + " writer",
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                write();
+                            }
+                        });
+
+                while (!linkClosed)
+                {
+                    int length = in.readInt();
+                    if (length < 1 || length > MAX_FRAME_BYTES)
+                    {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    framesIn++;
+                    bytesIn += 4 + length;
+                    String[] fields = fields(body);
+
+                    int type = body[0];
+                    if (type == HELLO)
+                    {
+                        peerId = fields[0];
+                        if (!add(this))
+                        {
+                            // already linked to that node
+                            return;
+                        }
+                        added = true;
+                        System.out.println("Federation link to " + peerId
+                                + " is up");
+                    }
+                    else if (!added)
+                    {
+                        throw new IOException("Frame before hello");
+                    }
+                    else
+                    {
+                        handle(type, fields);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // the link is lost
+            }
+            finally
+            {
+                close();
+                if (added)
+                {
+                    forget();
+                    System.out.println("Federation link to " + peerId
+                            + " is down");
+                }
+            }
+        }
+
+        /**
+         * Handles a frame from a peer that said hello.
+         */
+        private void handle(int type, String[] fields)
+        {
+            switch (type)
+            {
+            case CHANNEL_UP:
+                channels.add(fields[0]);
+                addRoute(channelRoutes, fields[0], this);
+                handler.channelsChanged();
+                break;
+            case CHANNEL_DOWN:
+                channels.remove(fields[0]);
+                removeRoute(channelRoutes, fields[0], this);
+                handler.channelsChanged();
+                break;
+            case USER_UP:
+                users.add(fields[0]);
+                addRoute(userRoutes, fields[0], this);
+                handler.presenceChanged(fields[0]);
+                break;
+            case USER_DOWN:
+                users.remove(fields[0]);
+                removeRoute(userRoutes, fields[0], this);
+                handler.presenceChanged(fields[0]);
+                break;
+            case CHANNEL_MESSAGE:
+                handler.channelMessage(fields[0], fields[1], fields[2]);
+                break;
+            case PRIVATE:
+                handler.privateMessage(fields[0], fields[1], fields[2]);
+                break;
+            case BROADCAST:
+                handler.broadcast(fields[0]);
+                break;
+            case PING:
+                send(frame(PONG, fields[0]));
+                break;
+            case PONG:
+                rttNanos = System.nanoTime() - Long.parseLong(fields[0]);
+                break;
+            default:
+                // sent by a newer node
+                break;
+            }
+        }
+
+        /**
+         * Forgets the routes through this link and the link itself.
+         */
+        private void forget()
+        {
+            for (String channelName : channels)
+            {
+                removeRoute(channelRoutes, channelName, this);
+            }
+            if (!channels.isEmpty())
+            {
+                handler.channelsChanged();
+            }
+            for (String loginid : users)
+            {
+                removeRoute(userRoutes, loginid, this);
+                handler.presenceChanged(loginid);
+            }
+            Federation.this.remove(this);
+        }
+
+        /**
+         * Writes the queued frames, and a ping every interval, until the
+         * link is closed.
+         */
+        private void write()
+        {
+            try
+            {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(),
+                                FLUSH_BYTES));
+                // the hello queued by the reading thread goes first
+                long nextPing = System.nanoTime() + PING_INTERVAL * 1000000;
+                while (!linkClosed)
+                {
+                    long now = System.nanoTime();
+                    if (now >= nextPing)
+                    {
+                        write(out, frame(PING, Long.toString(now)));
+                        out.flush();
+                        nextPing = now + PING_INTERVAL * 1000000;
+                    }
+                    byte[] frame = queue.poll(
+                            (nextPing - now) / 1000000 + 1,
+                            TimeUnit.MILLISECONDS);
+                    int unflushed = 0;
+                    while (frame != null)
+                    {
+                        write(out, frame);
+                        unflushed += frame.length;
+                        if (unflushed >= FLUSH_BYTES)
+                        {
+                            out.flush();
+                            unflushed = 0;
+                        }
+                        frame = queue.poll();
+                    }
+                    out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                // the reading thread sees the link closed
+            }
+            catch (InterruptedException e)
+            {
+                // stopping
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        private void write(DataOutputStream out, byte[] frame)
+                throws IOException
+        {
+            out.write(frame);
+            framesOut++;
+            bytesOut += frame.length;
+        }
+    }
+}
+// End of Federation class
@@ -0,0 +1,581 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class moves files between users. File bytes never go through the
+ * chat connection, whose serialized objects would hold a whole file on the
+ * heap and hold up the chat messages behind it: a user is given a token on
+ * the chat connection, then opens a raw connection to the data port of
+ * this class and sends <code>PUT token</code> and the bytes, or
+ * <code>GET id token</code> to receive them.
+ * <p>
+ * Uploads are staged in a directory with <code>FileChannel.transferFrom</code>
+ * and sent with <code>FileChannel.transferTo</code>, so the bytes go from
+ * socket to file and from file to socket without being copied into the
+ * heap. Both move a chunk at a time; each chunk waits for TCP, whose window
+ * holds back a sender faster than the disk or a receiver slower than it,
+ * and a transfer that makes no progress for a while is dropped. Staged
+ * files are deleted once they expire.
+ * <p>
+ * Each data connection has its own thread; the header lines are the only
+ * bytes read into the heap.
+ */
+public class FileTransfer
+{
+    /**
+     * Told of every upload completed, on the thread of its data connection.
+     */
+    public interface Listener
+    {
+        void uploaded(Upload upload);
+    }
+
+    /**
+     * A file announced by a user, and then staged.
+     */
+    public static class Upload
+    {
+        /**
+         * The id of the file, for the downloads.
+         */
+        final public long id;
+
+        /**
+         * The secret that allows the upload and the downloads.
+         */
+        final public String token;
+
+        /**
+         * The login id of the sender, the channel or @loginid the file is
+         * for, and the name of the file.
+         */
+        final public String sender, target, name;
+
+        /**
+         * The size of the file, in bytes.
+         */
+        final public long size;
+
+        /**
+         * When the upload was announced, then when the file was staged.
+         */
+        volatile long since = System.currentTimeMillis();
+
+        Upload(long id, String token, String sender, String target,
+                String name, long size)
+        {
+            this.id = id;
+            this.token = token;
+            this.sender = sender;
+            this.target = target;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * The largest file accepted.
+     */
+    final public static long MAX_FILE_SIZE = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * The bytes moved at a time between a socket and a file.
+     */
+    final private static long CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * How long a transfer may make no progress, and an announced upload may
+     * wait for its bytes, in milliseconds.
+     */
+    final private static long IDLE_TIMEOUT = 30 * 1000;
+
+    /**
+     * How long staged files are kept, in milliseconds.
+     */
+    final private static long TIME_TO_LIVE = 60 * 60 * 1000;
+
+    /**
+     * The longest header line.
+     */
+    final private static int MAX_HEADER = 256;
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory of the staged files.
+     */
+    private File directory;
+
+    /**
+     * Told of the uploads completed.
+     */
+    private Listener listener;
+
+    /**
+     * The data port, once bound.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The uploads announced and not started, by token.
+     */
+    private ConcurrentHashMap<String, Upload> announced = new ConcurrentHashMap<String, Upload>();
+
+    /**
+     * The staged files, by id.
+     */
+    private ConcurrentHashMap<Long, Upload> staged = new ConcurrentHashMap<Long, Upload>();
+
+    /**
+     * The data connections moving bytes.
+     */
+    private Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Gives the uploads their ids.
+     */
+    private AtomicLong ids = new AtomicLong();
+
+    /**
+     * Makes the tokens.
+     */
+    private SecureRandom random = new SecureRandom();
+
+    /**
+     * The bytes received and sent so far.
+     */
+    private AtomicLong received = new AtomicLong();
+    private AtomicLong sent = new AtomicLong();
+
+    // Constructors ****************************************************
+
+    /**
+     * Prepares the staging directory, deleting the files left by a previous
+     * run, and starts the thread expiring transfers and files.
+     * @param directory the staging directory, created if needed.
+     * @param listener told of the uploads completed.
+     */
+    public FileTransfer(String directory, Listener listener)
+    {
+        this.directory = new File(directory);
+        this.listener = listener;
+        this.directory.mkdirs();
+        File[] leftovers = this.directory.listFiles();
+        if (leftovers != null)
+        {
+            for (File leftover : leftovers)
+            {
+                leftover.delete();
+            }
+        }
+
+        Thread sweeper = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(IDLE_TIMEOUT / 6);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    sweep();
+                }
+            }
+        }, "FileTransfer sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Binds the data port and starts accepting data connections, unless
+     * already done.
+     * @param port the port, 0 for any free port.
+     * @return the port bound.
+     * @throws IOException if the port cannot be bound.
+     */
+    public synchronized int listen(int port) throws IOException
+    {
+        if (serverChannel == null)
+        {
+            final ServerSocketChannel bound = ServerSocketChannel.open();
+            bound.bind(new InetSocketAddress(port));
+            serverChannel = bound;
+            start("FileTransfer acceptor", new Runnable()
+            {
+                public void run()
+                {
+                    accept(bound);
+                }
+            });
+        }
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Announces an upload, to be sent on a data connection with the token
+     * returned.
+     * @param sender the login id of the sender.
+     * @param target the channel, or @loginid, the file is for.
+     * @param name the name of the file.
+     * @param size the size of the file, in bytes.
+     * @return the upload, with its id and token.
+     */
+    public Upload announce(String sender, String target, String name,
+            long size)
+    {
+        byte[] secret = new byte[16];
+        random.nextBytes(secret);
+        StringBuilder token = new StringBuilder();
+        for (byte b : secret)
+        {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                    Character.forDigit(b & 0xF, 16));
+        }
+        Upload upload = new Upload(ids.incrementAndGet(), token.toString(),
+                sender, target, name, size);
+        announced.put(upload.token, upload);
+        return upload;
+    }
+
+    /**
+     * @return the transfers in progress, the files staged and the bytes
+     * moved, for the server console.
+     */
+    public String stats()
+    {
+        long bytes = 0;
+        for (Upload upload : staged.values())
+        {
+            bytes += upload.size;
+        }
+        return "Files: " + transfers.size() + " transfers in progress, "
+                + staged.size() + " files staged (" + bytes + " bytes), "
+                + received.get() + " bytes received, " + sent.get()
+                + " bytes sent";
+    }
+
+    /**
+     * Stops accepting data connections and drops the transfers.
+     */
+    public synchronized void close()
+    {
+        if (serverChannel != null)
+        {
+            try
+            {
+                serverChannel.close();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+            serverChannel = null;
+        }
+        for (Transfer transfer : transfers)
+        {
+            transfer.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel bound)
+    {
+        while (true)
+        {
+            final SocketChannel channel;
+            try
+            {
+                channel = bound.accept();
+            }
+            catch (IOException e)
+            {
+                // closed
+                return;
+            }
+            start("FileTransfer " + channel.socket().getRemoteSocketAddress(),
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            serve(channel);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Handles one data connection.
+     */
+    private void serve(SocketChannel channel)
+    {
+        Transfer transfer = new Transfer(channel);
+        transfers.add(transfer);
+        try
+        {
+            String[] header = readLine(channel).split(" ");
+            if (header.length == 2 && header[0].equals("PUT"))
+            {
+                put(transfer, header[1]);
+            }
+            else if (header.length == 3 && header[0].equals("GET"))
+            {
+                get(transfer, Long.parseLong(header[1]), header[2]);
+            }
+            else
+            {
+                writeLine(channel, "ERROR bad request");
+            }
+        }
+        catch (IOException e)
+        {
+            // the peer went away, or the transfer was idle too long
+        }
+        catch (NumberFormatException e)
+        {
+            // a bad id; the connection is dropped
+        }
+        finally
+        {
+            transfers.remove(transfer);
+            transfer.close();
+        }
+    }
+
+    /**
+     * Receives the bytes of an announced upload into a staged file.
+     */
+    private void put(Transfer transfer, String token) throws IOException
+    {
+        Upload upload = announced.remove(token);
+        if (upload == null)
+        {
+            writeLine(transfer.channel, "ERROR unknown upload");
+            return;
+        }
+
+        File part = new File(directory, upload.id + ".part");
+        FileChannel file = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        boolean complete = false;
+        try
+        {
+            long position = 0;
+            while (position < upload.size)
+            {
+                long moved = file.transferFrom(transfer.channel, position,
+                        Math.min(CHUNK_SIZE, upload.size - position));
+                if (moved == 0)
+                {
+                    // the sender closed before the end
+                    return;
+                }
+                position += moved;
+                received.addAndGet(moved);
+                transfer.progressed();
+            }
+            complete = true;
+        }
+        finally
+        {
+            file.close();
+            if (!complete)
+            {
+                part.delete();
+            }
+        }
+
+        Files.move(part.toPath(), staged(upload).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        upload.since = System.currentTimeMillis();
+        staged.put(upload.id, upload);
+        writeLine(transfer.channel, "OK " + upload.id);
+        listener.uploaded(upload);
+    }
+
+    /**
+     * Sends a staged file.
+     */
+    private void get(Transfer transfer, long id, String token)
+            throws IOException
+    {
+        Upload upload = staged.get(id);
+        if (upload == null || !upload.token.equals(token))
+        {
+            writeLine(transfer.channel, "ERROR unknown file");
+            return;
+        }
+
+        // an expired file may be deleted while it is sent; the open
+        // channel keeps reading it
+        FileChannel file;
+        try
+        {
+            file = FileChannel.open(staged(upload).toPath(),
+                    StandardOpenOption.READ);
+        }
+        catch (IOException e)
+        {
+            writeLine(transfer.channel, "ERROR unknown file");
+            return;
+        }
+        try
+        {
+            writeLine(transfer.channel, "OK " + upload.size);
+            long position = 0;
+            while (position < upload.size)
+            {
+                long moved = file.transferTo(position, Math.min(CHUNK_SIZE,
+                        upload.size - position), transfer.channel);
+                position += moved;
+                sent.addAndGet(moved);
+                transfer.progressed();
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Drops the transfers without progress, the uploads announced and not
+     * started in time, and the expired files.
+     */
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        for (Transfer transfer : transfers)
+        {
+            if (now - transfer.progressedAt > IDLE_TIMEOUT)
+            {
+                transfer.close();
+            }
+        }
+        for (Iterator<Upload> i = announced.values().iterator(); i.hasNext();)
+        {
+            if (now - i.next().since > IDLE_TIMEOUT)
+            {
+                i.remove();
+            }
+        }
+        for (Iterator<Upload> i = staged.values().iterator(); i.hasNext();)
+        {
+            Upload upload = i.next();
+            if (now - upload.since > TIME_TO_LIVE)
+            {
+                i.remove();
+                staged(upload).delete();
+            }
+        }
+    }
+
+    private File staged(Upload upload)
+    {
+        return new File(directory, Long.toString(upload.id));
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Reads a header line, a byte at a time so that no file byte is read.
+     */
+    private static String readLine(SocketChannel channel) throws IOException
+    {
+        ByteBuffer line = ByteBuffer.allocate(MAX_HEADER);
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true)
+        {
+            one.clear();
+            if (channel.read(one) < 0)
+            {
+                throw new IOException("closed before the header");
+            }
+            byte b = one.get(0);
+            if (b == '\n')
+            {
+                return new String(line.array(), 0, line.position(),
+                        StandardCharsets.UTF_8);
+            }
+            if (!line.hasRemaining())
+            {
+                throw new IOException("header too long");
+            }
+            line.put(b);
+        }
+    }
+
+    private static void writeLine(SocketChannel channel, String line)
+            throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+    }
+
+    private static void start(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A data connection, and when it last moved bytes.
+     */
+    private static class Transfer
+    {
+        final SocketChannel channel;
+        volatile long progressedAt = System.currentTimeMillis();
+
+        Transfer(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void progressed()
+        {
+            progressedAt = System.currentTimeMillis();
+        }
+
+        void close()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+        }
+    }
+}
+// End of FileTransfer class
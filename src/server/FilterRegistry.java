@@ -0,0 +1,503 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the users each user ignores and the channels each user
+ * muted, and tells the fan-out of a message which recipients to skip.
+ * Users and channels are given dense int ids, and the filter of a user is
+ * an immutable object holding a 64 bit Bloom word over everything it
+ * filters and the exact ids as sorted arrays; a change replaces the filter.
+ * <p>
+ * Checking a recipient costs two array reads and a mask test, and the
+ * exact arrays are only searched when the Bloom word matches. Most messages
+ * need no check at all: the number of users ignoring each sender and
+ * muting each channel is counted, and a message whose sender and channel
+ * are filtered by nobody is sent without one.
+ * <p>
+ * Connections are mapped to users by the connection ids of the channel
+ * registry. Changes are made under this lock; checks read the maps and
+ * arrays without locking, and skip everything while nobody has a filter.
+ */
+public class FilterRegistry
+{
+    // Class variables *************************************************
+
+    /**
+     * Marks a connection that has not logged in.
+     */
+    final private static int NONE = -1;
+
+    /**
+     * Returned for users without filters.
+     */
+    final private static int[] NO_IDS = new int[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The ids of the users and of the channels muted.
+     */
+    private ConcurrentHashMap<String, Integer> userIds = new ConcurrentHashMap<String, Integer>();
+    private ConcurrentHashMap<String, Integer> channelIds = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The login ids and channel names, by id.
+     */
+    private List<String> userNames = new ArrayList<String>();
+    private List<String> channelNames = new ArrayList<String>();
+
+    /**
+     * The user id of each connection id, or NONE.
+     */
+    private volatile int[] usersByConnection = new int[16];
+
+    /**
+     * The filter of each user id, or null.
+     */
+    private volatile Filter[] filters = new Filter[16];
+
+    /**
+     * The number of users ignoring each user id, and muting each channel
+     * id.
+     */
+    private volatile int[] ignoredBy = new int[16];
+    private volatile int[] mutedBy = new int[16];
+
+    /**
+     * The number of users with a filter.
+     */
+    private volatile int filtering;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a registry without filters.
+     */
+    public FilterRegistry()
+    {
+        Arrays.fill(usersByConnection, NONE);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Records the user a connection logged in as.
+     * @param connectionId the id of the connection in the channel registry.
+     * @param loginid the login id.
+     */
+    public synchronized void login(int connectionId, String loginid)
+    {
+        int[] current = usersByConnection;
+        if (connectionId >= current.length)
+        {
+            int length = current.length;
+            current = Arrays.copyOf(current, Math.max(connectionId + 1,
+                    length * 2));
+            Arrays.fill(current, length, current.length, NONE);
+        }
+        current[connectionId] = userId(loginid);
+        usersByConnection = current;
+    }
+
+    /**
+     * Forgets the user of a connection, before its id is reused.
+     * @param connectionId the id of the connection.
+     */
+    public synchronized void logout(int connectionId)
+    {
+        if (connectionId < usersByConnection.length)
+        {
+            usersByConnection[connectionId] = NONE;
+        }
+    }
+
+    /**
+     * Makes a user ignore the messages of another.
+     * @param loginid the user.
+     * @param ignored the user ignored.
+     * @return false if it already was.
+     */
+    public synchronized boolean ignore(String loginid, String ignored)
+    {
+        int user = userId(loginid);
+        int other = userId(ignored);
+        Filter filter = filterOf(user);
+        if (Arrays.binarySearch(filter.ignored, other) >= 0)
+        {
+            return false;
+        }
+        setFilter(user, new Filter(insert(filter.ignored, other),
+                filter.muted));
+        ignoredBy = count(ignoredBy, other, 1);
+        return true;
+    }
+
+    /**
+     * Stops a user from ignoring another.
+     * @param loginid the user.
+     * @param ignored the user ignored.
+     * @return false if it was not ignored.
+     */
+    public synchronized boolean unignore(String loginid, String ignored)
+    {
+        Integer user = userIds.get(loginid);
+        Integer other = userIds.get(ignored);
+        if (user == null || other == null
+                || Arrays.binarySearch(filterOf(user).ignored, other) < 0)
+        {
+            return false;
+        }
+        Filter filter = filterOf(user);
+        setFilter(user, new Filter(delete(filter.ignored, other),
+                filter.muted));
+        ignoredBy = count(ignoredBy, other, -1);
+        return true;
+    }
+
+    /**
+     * Makes a user ignore the messages of a channel.
+     * @param loginid the user.
+     * @param channelName the channel.
+     * @return false if it already was muted.
+     */
+    public synchronized boolean mute(String loginid, String channelName)
+    {
+        int user = userId(loginid);
+        int channel = channelId(channelName);
+        Filter filter = filterOf(user);
+        if (Arrays.binarySearch(filter.muted, channel) >= 0)
+        {
+            return false;
+        }
+        setFilter(user, new Filter(filter.ignored, insert(filter.muted,
+                channel)));
+        mutedBy = count(mutedBy, channel, 1);
+        return true;
+    }
+
+    /**
+     * Stops a user from ignoring a channel.
+     * @param loginid the user.
+     * @param channelName the channel.
+     * @return false if it was not muted.
+     */
+    public synchronized boolean unmute(String loginid, String channelName)
+    {
+        Integer user = userIds.get(loginid);
+        Integer channel = channelIds.get(channelName);
+        if (user == null || channel == null
+                || Arrays.binarySearch(filterOf(user).muted, channel) < 0)
+        {
+            return false;
+        }
+        Filter filter = filterOf(user);
+        setFilter(user, new Filter(filter.ignored, delete(filter.muted,
+                channel)));
+        mutedBy = count(mutedBy, channel, -1);
+        return true;
+    }
+
+    /**
+     * @param loginid a user.
+     * @return the login ids the user ignores.
+     */
+    public synchronized List<String> ignored(String loginid)
+    {
+        List<String> names = new ArrayList<String>();
+        Integer user = userIds.get(loginid);
+        if (user != null)
+        {
+            for (int id : filterOf(user).ignored)
+            {
+                names.add(userNames.get(id));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param loginid a user.
+     * @return the channels the user muted.
+     */
+    public synchronized List<String> muted(String loginid)
+    {
+        List<String> names = new ArrayList<String>();
+        Integer user = userIds.get(loginid);
+        if (user != null)
+        {
+            for (int id : filterOf(user).muted)
+            {
+                names.add(channelNames.get(id));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Prepares the check of the recipients of a message.
+     * @param sender the login id of the sender, or null.
+     * @param channelName the channel the message is sent to, or null.
+     * @return the check, or null if no recipient can filter the message.
+     */
+    public Check check(String sender, String channelName)
+    {
+        if (filtering == 0)
+        {
+            return null;
+        }
+        int user = NONE;
+        int channel = NONE;
+        if (sender != null)
+        {
+            Integer id = userIds.get(sender);
+            int[] counts = ignoredBy;
+            if (id != null && id < counts.length && counts[id] > 0)
+            {
+                user = id;
+            }
+        }
+        if (channelName != null)
+        {
+            Integer id = channelIds.get(channelName);
+            int[] counts = mutedBy;
+            if (id != null && id < counts.length && counts[id] > 0)
+            {
+                channel = id;
+            }
+        }
+        if (user == NONE && channel == NONE)
+        {
+            return null;
+        }
+        return new Check(user, channel);
+    }
+
+    /**
+     * @param recipient the login id of the recipient of a private message.
+     * @param sender the login id of its sender.
+     * @return true if the recipient ignores the sender.
+     */
+    public boolean ignores(String recipient, String sender)
+    {
+        if (filtering == 0)
+        {
+            return false;
+        }
+        Integer user = userIds.get(recipient);
+        Integer other = userIds.get(sender);
+        return user != null && other != null
+                && filterOf(user).ignores(other, bits(userKey(other)));
+    }
+
+    /**
+     * Returns the id of a user, giving it one if needed.
+     */
+    private int userId(String loginid)
+    {
+        Integer id = userIds.get(loginid);
+        if (id == null)
+        {
+            id = userNames.size();
+            userIds.put(loginid, id);
+            userNames.add(loginid);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of a channel, giving it one if needed.
+     */
+    private int channelId(String channelName)
+    {
+        Integer id = channelIds.get(channelName);
+        if (id == null)
+        {
+            id = channelNames.size();
+            channelIds.put(channelName, id);
+            channelNames.add(channelName);
+        }
+        return id;
+    }
+
+    private Filter filterOf(int user)
+    {
+        Filter[] current = filters;
+        Filter filter = user < current.length ? current[user] : null;
+        return filter == null ? Filter.EMPTY : filter;
+    }
+
+    private void setFilter(int user, Filter filter)
+    {
+        Filter[] current = filters;
+        if (user >= current.length)
+        {
+            current = Arrays.copyOf(current, Math.max(user + 1,
+                    current.length * 2));
+        }
+        boolean had = current[user] != null;
+        current[user] = filter.isEmpty() ? null : filter;
+        filters = current;
+        filtering += (current[user] != null ? 1 : 0) - (had ? 1 : 0);
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Adds a delta to the count of an id, growing the array if needed.
+     */
+    private static int[] count(int[] counts, int id, int delta)
+    {
+        if (id >= counts.length)
+        {
+            counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+        }
+        counts[id] += delta;
+        return counts;
+    }
+
+    private static int[] insert(int[] sorted, int id)
+    {
+        int at = -Arrays.binarySearch(sorted, id) - 1;
+        int[] inserted = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, inserted, 0, at);
+        inserted[at] = id;
+        System.arraycopy(sorted, at, inserted, at + 1, sorted.length - at);
+        return inserted;
+    }
+
+    private static int[] delete(int[] sorted, int id)
+    {
+        if (sorted.length == 1)
+        {
+            return NO_IDS;
+        }
+        int at = Arrays.binarySearch(sorted, id);
+        int[] deleted = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, deleted, 0, at);
+        System.arraycopy(sorted, at + 1, deleted, at, deleted.length - at);
+        return deleted;
+    }
+
+    /**
+     * Users and channels share the Bloom word, with distinct keys.
+     */
+    private static int userKey(int user)
+    {
+        return user << 1;
+    }
+
+    private static int channelKey(int channel)
+    {
+        return (channel << 1) | 1;
+    }
+
+    /**
+     * Returns the two bits of a key in a Bloom word.
+     */
+    private static long bits(int key)
+    {
+        int h = key * 0x9E3779B9;
+        h ^= h >>> 15;
+        return (1L << (h & 63)) | (1L << ((h >>> 6) & 63));
+    }
+
+    /**
+     * The check of the recipients of one message.
+     */
+    public class Check implements ChannelRegistry.Filter
+    {
+        /**
+         * The sender and channel of the message, NONE when nobody filters
+         * them, and their bits in a Bloom word.
+         */
+        final private int user, channel;
+        final private long userBits, channelBits;
+
+        Check(int user, int channel)
+        {
+            this.user = user;
+            this.channel = channel;
+            userBits = user == NONE ? 0 : bits(userKey(user));
+            channelBits = channel == NONE ? 0 : bits(channelKey(channel));
+        }
+
+        /**
+         * @param connectionId the connection id of a recipient.
+         * @return true if the recipient filters the message.
+         */
+        public boolean blocks(int connectionId)
+        {
+            int[] users = usersByConnection;
+            if (connectionId >= users.length)
+            {
+                return false;
+            }
+            int recipient = users[connectionId];
+            Filter[] current = filters;
+            if (recipient == NONE || recipient >= current.length)
+            {
+                return false;
+            }
+            Filter filter = current[recipient];
+            return filter != null
+                    && (filter.ignores(user, userBits) || filter.mutes(
+                            channel, channelBits));
+        }
+    }
+
+    /**
+     * What one user filters. Never modified once built.
+     */
+    private static class Filter
+    {
+        final static Filter EMPTY = new Filter(NO_IDS, NO_IDS);
+
+        /**
+         * The bits of every user ignored and channel muted.
+         */
+        final long bloom;
+
+        /**
+         * The ids of the users ignored and of the channels muted, sorted.
+         */
+        final int[] ignored, muted;
+
+        Filter(int[] ignored, int[] muted)
+        {
+            this.ignored = ignored;
+            this.muted = muted;
+            long bloom = 0;
+            for (int user : ignored)
+            {
+                bloom |= bits(userKey(user));
+            }
+            for (int channel : muted)
+            {
+                bloom |= bits(channelKey(channel));
+            }
+            this.bloom = bloom;
+        }
+
+        boolean isEmpty()
+        {
+            return ignored.length == 0 && muted.length == 0;
+        }
+
+        boolean ignores(int user, long userBits)
+        {
+            return userBits != 0 && (bloom & userBits) == userBits
+                    && Arrays.binarySearch(ignored, user) >= 0;
+        }
+
+        boolean mutes(int channel, long channelBits)
+        {
+            return channelBits != 0 && (bloom & channelBits) == channelBits
+                    && Arrays.binarySearch(muted, channel) >= 0;
+        }
+    }
+}
+// End of FilterRegistry class
@@ -0,0 +1,240 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * One segment file of a channel's history. A segment is a memory-mapped
+ * file of fixed size holding consecutive messages, numbered from the
+ * segment's base sequence number. Each record is an int length, a long
+ * timestamp and the message in UTF-8; the length counts the timestamp and
+ * message, so a zero length marks the end of the records. A sparse index
+ * holds the position of every <code>INDEX_INTERVAL</code>th record.
+ * <p>
+ * Records are appended by a single writer thread. Readers may read the
+ * records counted by <code>end()</code> from any thread.
+ */
+class HistorySegment
+{
+    // Class variables *************************************************
+
+    /**
+     * Number of records between two entries of the sparse index.
+     */
+    final static int INDEX_INTERVAL = 64;
+
+    /**
+     * Bytes of a record before the message.
+     */
+    final static int HEADER = 12;
+
+    // Instance variables **********************************************
+
+    /**
+     * The segment file.
+     */
+    private File file;
+
+    /**
+     * Sequence number of the first record.
+     */
+    private long base;
+
+    /**
+     * The mapped file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Position of records 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL...
+     */
+    private int[] index;
+
+    /**
+     * Number of records, published to readers.
+     */
+    private volatile int count;
+
+    /**
+     * Position of the next record.
+     */
+    private int position;
+
+    /**
+     * Timestamp of the last record.
+     */
+    private long lastTime;
+
+    // Constructors ****************************************************
+
+    /**
+     * Maps a segment file, creating it if needed, and finds its records.
+     * @param file the segment file.
+     * @param base the sequence number of its first record.
+     * @param capacity the size of a new file; an existing one keeps its
+     * size.
+     * @throws IOException if the file cannot be mapped.
+     */
+    HistorySegment(File file, long base, int capacity) throws IOException
+    {
+        this.file = file;
+        this.base = base;
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try
+        {
+            long size = Math.max(channel.size(), capacity);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally
+        {
+            // the mapping stays valid once the channel is closed
+            channel.close();
+        }
+        index = new int[buffer.capacity() / (HEADER * INDEX_INTERVAL) + 1];
+
+        // find the end of the records
+        int n = 0;
+        int pos = 0;
+        while (pos + HEADER <= buffer.capacity())
+        {
+            int length = buffer.getInt(pos);
+            if (length < 8 || pos + 4 + length > buffer.capacity())
+            {
+                break;
+            }
+            if (n % INDEX_INTERVAL == 0)
+            {
+                index[n / INDEX_INTERVAL] = pos;
+            }
+            lastTime = buffer.getLong(pos + 4);
+            pos += 4 + length;
+            n++;
+        }
+        position = pos;
+        count = n;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Appends a record. Called by the writer thread only.
+     * @param time the timestamp of the message.
+     * @param message the message in UTF-8.
+     * @return false if the segment is full.
+     */
+    boolean append(long time, byte[] message)
+    {
+        int pos = position;
+        if (pos + HEADER + message.length > buffer.capacity())
+        {
+            return false;
+        }
+        int n = count;
+        if (n % INDEX_INTERVAL == 0)
+        {
+            index[n / INDEX_INTERVAL] = pos;
+        }
+
+        // the length goes in last, making the record valid
+        buffer.putLong(pos + 4, time);
+        ByteBuffer body = buffer.duplicate();
+        body.position(pos + HEADER);
+        body.put(message);
+        buffer.putInt(pos, 8 + message.length);
+
+        position = pos + HEADER + message.length;
+        lastTime = time;
+        count = n + 1;
+        return true;
+    }
+
+    /**
+     * Reads records, decoding them straight from the mapped file.
+     * @param from the sequence number of the first record to read.
+     * @param to the sequence number after the last record to read.
+     * @param messages the list the messages are added to.
+     */
+    void read(long from, long to, List<String> messages)
+    {
+        int first = (int) (Math.max(from, base) - base);
+        int last = (int) (Math.min(to, end()) - base);
+        if (first >= last)
+        {
+            return;
+        }
+
+        // start at the closest indexed record and skip to the first
+        ByteBuffer view = buffer.duplicate();
+        int pos = index[first / INDEX_INTERVAL];
+        for (int n = first - first % INDEX_INTERVAL; n < first; n++)
+        {
+            pos += 4 + view.getInt(pos);
+        }
+        for (int n = first; n < last; n++)
+        {
+            int length = view.getInt(pos);
+            view.limit(pos + 4 + length).position(pos + HEADER);
+            messages.add(StandardCharsets.UTF_8.decode(view).toString());
+            view.limit(view.capacity());
+            pos += 4 + length;
+        }
+    }
+
+    /**
+     * @return the sequence number of the first record.
+     */
+    long base()
+    {
+        return base;
+    }
+
+    /**
+     * @return the sequence number after the last record.
+     */
+    long end()
+    {
+        return base + count;
+    }
+
+    /**
+     * @return the timestamp of the last record, 0 if there is none.
+     */
+    long lastTime()
+    {
+        return lastTime;
+    }
+
+    /**
+     * @return the size of the segment file.
+     */
+    int size()
+    {
+        return buffer.capacity();
+    }
+
+    /**
+     * Writes the appended records to disk.
+     */
+    void force()
+    {
+        buffer.force();
+    }
+
+    /**
+     * Deletes the segment file. Readers holding the segment can still read
+     * it until they let go of it.
+     */
+    void delete()
+    {
+        file.delete();
+    }
+}
+// End of HistorySegment class
@@ -0,0 +1,200 @@
+package server;
+
+/**
+ * A set of non-negative ints stored in an open addressing hash table of
+ * primitive ints, so that members are neither boxed nor held through
+ * separate entry objects. Used for channel memberships, which are mostly
+ * small. Not synchronized.
+ */
+public class IntSet
+{
+    // Class variables *************************************************
+
+    /**
+     * Marks an empty slot.
+     */
+    final private static int EMPTY = -1;
+
+    /**
+     * Returned by toArray for an empty set.
+     */
+    final private static int[] NO_INTS = new int[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The slots; the table is at most three quarters full.
+     */
+    private int[] slots;
+
+    /**
+     * The number of members.
+     */
+    private int size;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an empty set with room for a few members.
+     */
+    public IntSet()
+    {
+        slots = new int[4];
+        java.util.Arrays.fill(slots, EMPTY);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Adds a member.
+     * @param value a non-negative int.
+     * @return false if the value was already a member.
+     */
+    public boolean add(int value)
+    {
+        if ((size + 1) * 4 > slots.length * 3)
+        {
+            resize(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != EMPTY)
+        {
+            if (slots[i] == value)
+            {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a member.
+     * @param value the value to remove.
+     * @return false if the value was not a member.
+     */
+    public boolean remove(int value)
+    {
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != value)
+        {
+            if (slots[i] == EMPTY)
+            {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // shift back the following members of the run, so that lookups
+        // never stop early at the freed slot
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = mix(slots[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask))
+            {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = EMPTY;
+        size--;
+
+        if (slots.length > 4 && size * 8 < slots.length)
+        {
+            resize(slots.length / 2);
+        }
+        return true;
+    }
+
+    /**
+     * @param value a value.
+     * @return true if the value is a member.
+     */
+    public boolean contains(int value)
+    {
+        int mask = slots.length - 1;
+        for (int i = mix(value) & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+        {
+            if (slots[i] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of members.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if there are no members.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the members, in no particular order.
+     */
+    public int[] toArray()
+    {
+        if (size == 0)
+        {
+            return NO_INTS;
+        }
+        int[] values = new int[size];
+        int n = 0;
+        for (int value : slots)
+        {
+            if (value != EMPTY)
+            {
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Rehashes the members into a table of another size.
+     */
+    private void resize(int capacity)
+    {
+        int[] old = slots;
+        slots = new int[capacity];
+        java.util.Arrays.fill(slots, EMPTY);
+        int mask = capacity - 1;
+        for (int value : old)
+        {
+            if (value != EMPTY)
+            {
+                int i = mix(value) & mask;
+                while (slots[i] != EMPTY)
+                {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Spreads consecutive ids over the table.
+     */
+    private static int mix(int value)
+    {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+// End of IntSet class
@@ -0,0 +1,145 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class renders the messages the server sends to clients. Each message
+ * is rendered once per event and the same String is then sent to every
+ * recipient, so fan-out does not allocate per recipient. The parts that do
+ * not change between messages, such as <code>"Channel: name> "</code> and
+ * <code>"loginid says: "</code>, are built once and cached; rendering a
+ * message only appends the payload to a cached prefix.
+ */
+public class MessageFormatter
+{
+    // Class variables *************************************************
+
+    /**
+     * Number of cached prefixes of each kind above which the cache is
+     * dropped and rebuilt on demand.
+     */
+    final private static int MAX_CACHED_PREFIXES = 100000;
+
+    // Instance variables **********************************************
+
+    /**
+     * "Channel: name> " by channel name.
+     */
+    private ConcurrentHashMap<String, String> channelPrefixes = new ConcurrentHashMap<String, String>();
+
+    /**
+     * "loginid says: " by login id.
+     */
+    private ConcurrentHashMap<String, String> userPrefixes = new ConcurrentHashMap<String, String>();
+
+    // Instance methods ************************************************
+
+    /**
+     * Renders a message sent to a channel.
+     * @param channelName the channel.
+     * @param loginid the sender.
+     * @param message the payload.
+     * @return "Channel: channelName> loginid says: message"
+     */
+    public String channelMessage(String channelName, String loginid,
+            String message)
+    {
+        String channelPrefix = channelPrefixes.get(channelName);
+        if (channelPrefix == null)
+        {
+            channelPrefix = cache(channelPrefixes, channelName, "Channel: "
+                    + channelName + "> ");
+        }
+        String userPrefix = userPrefix(loginid);
+        return new StringBuilder(channelPrefix.length() + userPrefix.length()
+                + message.length()).append(channelPrefix).append(userPrefix)
+                .append(message).toString();
+    }
+
+    /**
+     * Renders a message sent to every client.
+     * @param loginid the sender.
+     * @param message the payload.
+     * @return "loginid says: message"
+     */
+    public String broadcast(String loginid, String message)
+    {
+        return userPrefix(loginid).concat(message);
+    }
+
+    /**
+     * Renders the copy of a private message shown to its sender.
+     * @param recipient the recipient.
+     * @param message the payload.
+     * @return "To recipient:> message"
+     */
+    public String privateTo(String recipient, String message)
+    {
+        return concat("To ", recipient, ":> ", message);
+    }
+
+    /**
+     * Renders a private message for its recipient.
+     * @param sender the sender.
+     * @param message the payload.
+     * @return "From sender:> message"
+     */
+    public String privateFrom(String sender, String message)
+    {
+        return concat("From ", sender, ":> ", message);
+    }
+
+    /**
+     * Renders a private message forwarded to the recipient's monitor.
+     * @param recipient the user who is away.
+     * @param sender the sender.
+     * @param message the payload.
+     * @return "Message for: recipient from sender> message"
+     */
+    public String monitored(String recipient, String sender, String message)
+    {
+        return new StringBuilder(20 + recipient.length() + sender.length()
+                + message.length()).append("Message for: ")
+                .append(recipient).append(" from ").append(sender)
+                .append("> ").append(message).toString();
+    }
+
+    /**
+     * Returns "loginid says: ", building it if needed.
+     */
+    private String userPrefix(String loginid)
+    {
+        String key = String.valueOf(loginid);
+        String prefix = userPrefixes.get(key);
+        if (prefix == null)
+        {
+            prefix = cache(userPrefixes, key, key + " says: ");
+        }
+        return prefix;
+    }
+
+    /**
+     * Adds a prefix to a cache, dropping the cache first if it is full.
+     */
+    private static String cache(ConcurrentHashMap<String, String> cache,
+            String key, String prefix)
+    {
+        if (cache.size() >= MAX_CACHED_PREFIXES)
+        {
+            cache.clear();
+        }
+        String previous = cache.putIfAbsent(key, prefix);
+        return previous == null ? prefix : previous;
+    }
+
+    /**
+     * Concatenates four strings with a single allocation of the result.
+     */
+    private static String concat(String a, String b, String c, String d)
+    {
+        return new StringBuilder(a.length() + b.length() + c.length()
+                + d.length()).append(a).append(b).append(c).append(d)
+                .toString();
+    }
+}
+// End of MessageFormatter class
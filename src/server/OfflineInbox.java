@@ -0,0 +1,620 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class keeps the private messages sent to users who are not
+ * connected, and delivers them when they next log in. Each user with
+ * pending messages has a file of records holding an expiry time and a
+ * message.
+ * <p>
+ * All file work is done by a single writer thread, in the order it was
+ * asked for. Messages queued while the writer was busy are appended in one
+ * batch, with one write and one sync per user. At login the writer moves the
+ * user's file aside and reads it; the messages are then sent in pages of
+ * several messages per frame by a delivery thread, so a large backlog only
+ * occupies that thread and the recipient's connection. Messages expire after
+ * a time to live; a timing wheel tells the writer when the oldest message of
+ * an inbox is due, and the writer rewrites that inbox without the expired
+ * messages.
+ */
+public class OfflineInbox
+{
+    // Class variables *************************************************
+
+    /**
+     * Suffix of inbox files.
+     */
+    final private static String INBOX_SUFFIX = ".inbox";
+
+    /**
+     * Suffix of inbox files being delivered.
+     */
+    final private static String DELIVERING_SUFFIX = ".delivering";
+
+    /**
+     * Size of an inbox file above which new messages are dropped.
+     */
+    final private static long MAX_INBOX_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Number of messages sent per frame when delivering.
+     */
+    final private static int PAGE_SIZE = 100;
+
+    /**
+     * Kinds of requests handled by the writer.
+     */
+    final private static int ADD = 0, DELIVER = 1, EXPIRE = 2;
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory of the inbox files.
+     */
+    private File directory;
+
+    /**
+     * How long messages are kept, in milliseconds.
+     */
+    private long timeToLive;
+
+    /**
+     * Requests waiting for the writer.
+     */
+    private LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+    /**
+     * The non-empty inboxes, by login id. Writer thread only.
+     */
+    private HashMap<String, Inbox> inboxes = new HashMap<String, Inbox>();
+
+    /**
+     * Messages to append in the current batch, by login id. Writer thread
+     * only.
+     */
+    private LinkedHashMap<String, ByteArrayOutputStream> batch = new LinkedHashMap<String, ByteArrayOutputStream>();
+
+    /**
+     * Number of inboxes moved aside for delivery so far, to name them.
+     * Writer thread only.
+     */
+    private long deliveries;
+
+    /**
+     * Tells the writer when inboxes have messages to expire.
+     */
+    private TimingWheel expiries;
+
+    /**
+     * Sends the delivered messages.
+     */
+    private ExecutorService deliverer;
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens the inboxes and starts the writer and delivery threads. Inboxes
+     * whose delivery was interrupted are merged back to be delivered again.
+     * @param directory the directory of the inbox files, created if needed.
+     * @param timeToLive how long messages are kept, in milliseconds.
+     * @throws IOException if the inboxes cannot be read.
+     */
+    public OfflineInbox(String directory, long timeToLive) throws IOException
+    {
+        this.directory = new File(directory);
+        this.timeToLive = timeToLive;
+        this.directory.mkdirs();
+        expiries = new TimingWheel("OfflineInbox expiry", 1000, 3600);
+        deliverer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "OfflineInbox delivery");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        recover();
+
+        Thread writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "OfflineInbox writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Adds a message to a user's inbox. The message is written shortly
+     * after by the writer thread.
+     * @param loginid the recipient.
+     * @param message the message, as it will be sent.
+     */
+    public void add(String loginid, String message)
+    {
+        requests.add(new Request(ADD, loginid, message, null));
+    }
+
+    /**
+     * Delivers the messages of a user's inbox, if any, and empties it. The
+     * messages are handed to the recipient from the delivery thread.
+     * @param loginid the user.
+     * @param recipient receives the messages.
+     */
+    public void deliver(String loginid, Recipient recipient)
+    {
+        requests.add(new Request(DELIVER, loginid, null, recipient));
+    }
+
+    /**
+     * Handles the requests, in order. Additions are gathered in a batch
+     * that is written before any other request and whenever the queue runs
+     * empty.
+     */
+    private void writeLoop()
+    {
+        ArrayList<Request> drained = new ArrayList<Request>();
+        while (true)
+        {
+            try
+            {
+                drained.add(requests.take());
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            requests.drainTo(drained);
+
+            for (Request request : drained)
+            {
+                try
+                {
+                    if (request.kind == ADD)
+                    {
+                        queue(request.loginid, request.message);
+                        continue;
+                    }
+                    writeBatch();
+                    if (request.kind == DELIVER)
+                    {
+                        moveForDelivery(request.loginid, request.recipient);
+                    }
+                    else
+                    {
+                        expire(request.loginid);
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            drained.clear();
+
+            try
+            {
+                writeBatch();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the current batch, unless the inbox is full.
+     */
+    private void queue(String loginid, String message) throws IOException
+    {
+        Inbox inbox = inboxes.get(loginid);
+        if (inbox == null)
+        {
+            inbox = new Inbox();
+            inboxes.put(loginid, inbox);
+        }
+        if (inbox.bytes >= MAX_INBOX_BYTES)
+        {
+            System.out.println("Inbox of " + loginid
+                    + " is full, message dropped");
+            return;
+        }
+
+        long expiresAt = System.currentTimeMillis() + timeToLive;
+        ByteArrayOutputStream bytes = batch.get(loginid);
+        if (bytes == null)
+        {
+            bytes = new ByteArrayOutputStream();
+            batch.put(loginid, bytes);
+        }
+        int before = bytes.size();
+        writeRecord(new DataOutputStream(bytes), expiresAt, message);
+        inbox.bytes += bytes.size() - before;
+        if (!inbox.expiryScheduled)
+        {
+            scheduleExpiry(loginid, inbox, expiresAt);
+        }
+    }
+
+    /**
+     * Appends the current batch, one write and one sync per inbox.
+     */
+    private void writeBatch() throws IOException
+    {
+        for (Map.Entry<String, ByteArrayOutputStream> entry : batch.entrySet())
+        {
+            FileOutputStream out = new FileOutputStream(
+                    inboxFile(entry.getKey()), true);
+            try
+            {
+                entry.getValue().writeTo(out);
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Moves an inbox aside, reads it and hands it to the delivery thread,
+     * which deletes the file once the messages are sent.
+     */
+    private void moveForDelivery(final String loginid,
+            final Recipient recipient) throws IOException
+    {
+        Inbox inbox = inboxes.remove(loginid);
+        File file = inboxFile(loginid);
+        if (inbox == null || !file.exists())
+        {
+            return;
+        }
+        final File delivering = new File(directory, fileName(loginid) + "."
+                + (deliveries++) + DELIVERING_SUFFIX);
+        if (!file.renameTo(delivering))
+        {
+            throw new IOException("Cannot rename " + file);
+        }
+        final ArrayList<String> messages = readMessages(delivering,
+                System.currentTimeMillis());
+
+        deliverer.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    StringBuilder page = new StringBuilder();
+                    int inPage = 0;
+                    for (String message : messages)
+                    {
+                        if (inPage > 0)
+                        {
+                            page.append('\n');
+                        }
+                        page.append(message);
+                        if (++inPage == PAGE_SIZE)
+                        {
+                            recipient.deliver(page.toString());
+                            page.setLength(0);
+                            inPage = 0;
+                        }
+                    }
+                    if (inPage > 0)
+                    {
+                        recipient.deliver(page.toString());
+                    }
+                    delivering.delete();
+                }
+                catch (IOException e)
+                {
+                    // kept, and delivered again at the next start
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites an inbox without its expired messages, and schedules the next
+     * expiry if messages are left.
+     */
+    private void expire(String loginid) throws IOException
+    {
+        Inbox inbox = inboxes.get(loginid);
+        if (inbox == null)
+        {
+            // delivered meanwhile
+            return;
+        }
+        inbox.expiryScheduled = false;
+        File file = inboxFile(loginid);
+        long now = System.currentTimeMillis();
+        ArrayList<Long> times = new ArrayList<Long>();
+        ArrayList<String> messages = readMessages(file, now, times);
+        if (messages.isEmpty())
+        {
+            inboxes.remove(loginid);
+            file.delete();
+            return;
+        }
+
+        File tmp = new File(directory, fileName(loginid) + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(out));
+            for (int i = 0; i < messages.size(); i++)
+            {
+                writeRecord(output, times.get(i), messages.get(i));
+            }
+            output.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+        {
+            throw new IOException("Cannot rename " + tmp);
+        }
+        inbox.bytes = file.length();
+        scheduleExpiry(loginid, inbox, times.get(0));
+    }
+
+    /**
+     * Asks the timing wheel to queue an expiry request at a given time.
+     */
+    private void scheduleExpiry(final String loginid, Inbox inbox,
+            long deadline)
+    {
+        inbox.expiryScheduled = true;
+        expiries.schedule(deadline, new Runnable()
+        {
+            public void run()
+            {
+                requests.add(new Request(EXPIRE, loginid, null, null));
+            }
+        });
+    }
+
+    /**
+     * Loads the existing inboxes and merges back the ones whose delivery
+     * was interrupted. Called before the writer starts.
+     */
+    private void recover() throws IOException
+    {
+        String[] names = directory.list();
+        if (names == null)
+        {
+            throw new IOException("Cannot list " + directory);
+        }
+        long now = System.currentTimeMillis();
+        for (String name : names)
+        {
+            if (name.endsWith(DELIVERING_SUFFIX))
+            {
+                String encoded = name.substring(0, name.indexOf('.'));
+                String loginid = URLDecoder.decode(encoded, "UTF-8");
+                File file = new File(directory, name);
+                ArrayList<Long> times = new ArrayList<Long>();
+                ArrayList<String> messages = readMessages(file, now, times);
+                for (int i = 0; i < messages.size(); i++)
+                {
+                    queueRecovered(loginid, times.get(i), messages.get(i));
+                }
+                writeBatch();
+                file.delete();
+            }
+        }
+
+        names = directory.list();
+        for (String name : names)
+        {
+            if (name.endsWith(INBOX_SUFFIX))
+            {
+                String loginid = URLDecoder.decode(name.substring(0,
+                        name.length() - INBOX_SUFFIX.length()), "UTF-8");
+                File file = new File(directory, name);
+                Inbox inbox = new Inbox();
+                inbox.bytes = file.length();
+                inboxes.put(loginid, inbox);
+
+                // records are in time order, so the first expires first
+                DataInputStream input = new DataInputStream(
+                        new FileInputStream(file));
+                try
+                {
+                    scheduleExpiry(loginid, inbox, input.readLong());
+                }
+                catch (EOFException e)
+                {
+                    scheduleExpiry(loginid, inbox, now);
+                }
+                finally
+                {
+                    input.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a recovered message to the batch, keeping its expiry time.
+     */
+    private void queueRecovered(String loginid, long expiresAt,
+            String message) throws IOException
+    {
+        ByteArrayOutputStream bytes = batch.get(loginid);
+        if (bytes == null)
+        {
+            bytes = new ByteArrayOutputStream();
+            batch.put(loginid, bytes);
+        }
+        writeRecord(new DataOutputStream(bytes), expiresAt, message);
+    }
+
+    /**
+     * Reads the messages of an inbox file that have not expired.
+     */
+    private static ArrayList<String> readMessages(File file, long now)
+            throws IOException
+    {
+        return readMessages(file, now, null);
+    }
+
+    /**
+     * Reads the messages of an inbox file that have not expired, and their
+     * expiry times if asked to. A record cut short by a crash ends the file.
+     */
+    private static ArrayList<String> readMessages(File file, long now,
+            ArrayList<Long> times) throws IOException
+    {
+        ArrayList<String> messages = new ArrayList<String>();
+        if (!file.exists())
+        {
+            return messages;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try
+        {
+            while (true)
+            {
+                long expiresAt = input.readLong();
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                if (expiresAt > now)
+                {
+                    messages.add(new String(bytes, StandardCharsets.UTF_8));
+                    if (times != null)
+                    {
+                        times.add(expiresAt);
+                    }
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            return messages;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes a record: expiry time, length and message in UTF-8.
+     */
+    private static void writeRecord(DataOutputStream output, long expiresAt,
+            String message) throws IOException
+    {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        output.writeLong(expiresAt);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        output.flush();
+    }
+
+    /**
+     * @return the inbox file of a user.
+     */
+    private File inboxFile(String loginid)
+    {
+        return new File(directory, fileName(loginid) + INBOX_SUFFIX);
+    }
+
+    /**
+     * @return a file name for a login id that is safe on any file system
+     * and contains no '.'.
+     */
+    private static String fileName(String loginid)
+    {
+        try
+        {
+            return URLEncoder.encode(loginid, "UTF-8").replace(".", "%2E")
+                    .replace("*", "%2A");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This interface is implemented by the receivers of delivered messages.
+     */
+    public interface Recipient
+    {
+        /**
+         * Called for each page of messages, oldest first, from the delivery
+         * thread.
+         * @param page the messages of the page, separated by newlines.
+         * @throws IOException if the page cannot be sent; the inbox is then
+         * kept and delivered again at the next start.
+         */
+        public abstract void deliver(String page) throws IOException;
+    }
+
+    /**
+     * What the writer knows of a non-empty inbox.
+     */
+    private static class Inbox
+    {
+        long bytes;
+        boolean expiryScheduled;
+    }
+
+    /**
+     * A request for the writer.
+     */
+    private static class Request
+    {
+        final int kind;
+        final String loginid;
+        final String message;
+        final Recipient recipient;
+
+        Request(int kind, String loginid, String message, Recipient recipient)
+        {
+            this.kind = kind;
+            this.loginid = loginid;
+            this.message = message;
+            this.recipient = recipient;
+        }
+    }
+}
+// End of OfflineInbox class
@@ -0,0 +1,395 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This class tells clients when the users they watch log in and out. Rather
+ * than sending a message to every client at every login, it collects the
+ * users whose sessions changed and, at a fixed interval, sends each
+ * subscriber one message with the net changes it cares about: the users it
+ * watches that came online or went offline, or for clients watching
+ * everyone, the number of users that arrived and left. A user logging out
+ * and in again within an interval is not reported, and a burst of logins
+ * costs one message per subscriber per interval instead of one per login
+ * per client.
+ * <p>
+ * It is safe to use from several threads at once. Messages are sent by the
+ * service's own thread.
+ */
+public class PresenceService
+{
+    /**
+     * Tells whether a user is online.
+     */
+    public interface Source
+    {
+        /**
+         * @param loginid the login id of a user.
+         * @return true if the user has a session.
+         */
+        boolean isOnline(String loginid);
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Subscribes to every user.
+     */
+    final public static String EVERYONE = "*";
+
+    /**
+     * The most login ids listed in a message to clients watching everyone.
+     */
+    final private static int MAX_LISTED = 20;
+
+    // Instance variables **********************************************
+
+    /**
+     * Tells whether a user is online.
+     */
+    private Source source;
+
+    /**
+     * Milliseconds between two messages to a subscriber.
+     */
+    private volatile long interval;
+
+    /**
+     * The users whose sessions changed since the last publication. Guarded
+     * by this.
+     */
+    private Set<String> changed = new LinkedHashSet<String>();
+
+    /**
+     * The clients watching each user. Guarded by this.
+     */
+    private HashMap<String, Set<ConnectionToClient>> watchers = new HashMap<String, Set<ConnectionToClient>>();
+
+    /**
+     * The users each client watches. Guarded by this.
+     */
+    private HashMap<ConnectionToClient, Set<String>> watched = new HashMap<ConnectionToClient, Set<String>>();
+
+    /**
+     * The clients watching everyone. Guarded by this.
+     */
+    private Set<ConnectionToClient> watchingEveryone = new HashSet<ConnectionToClient>();
+
+    /**
+     * The users reported online, only used by the publishing thread.
+     */
+    private Set<String> published = new HashSet<String>();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a presence service and starts its thread.
+     * @param source tells whether a user is online.
+     * @param interval milliseconds between two messages to a subscriber.
+     */
+    public PresenceService(Source source, long interval)
+    {
+        this.source = source;
+        setInterval(interval);
+
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                publishLoop();
+            }
+        }, "Presence publisher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Changes the interval between two messages to a subscriber.
+     * @param interval the interval, in milliseconds.
+     */
+    public void setInterval(long interval)
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("interval " + interval);
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * @return the interval between two messages to a subscriber, in
+     * milliseconds.
+     */
+    public long getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * Records that a user gained or lost a session. Whether the user came
+     * online or went offline is looked up when the change is published.
+     * @param loginid the login id of the user.
+     */
+    public synchronized void changed(String loginid)
+    {
+        changed.add(loginid);
+    }
+
+    /**
+     * Subscribes a client to the presence of a user, or of everyone.
+     * @param client the subscriber.
+     * @param loginid the login id of the user, or EVERYONE.
+     */
+    public synchronized void watch(ConnectionToClient client, String loginid)
+    {
+        if (loginid.equals(EVERYONE))
+        {
+            watchingEveryone.add(client);
+            return;
+        }
+        Set<String> users = watched.get(client);
+        if (users == null)
+        {
+            users = new HashSet<String>();
+            watched.put(client, users);
+        }
+        users.add(loginid);
+        Set<ConnectionToClient> clients = watchers.get(loginid);
+        if (clients == null)
+        {
+            clients = new HashSet<ConnectionToClient>();
+            watchers.put(loginid, clients);
+        }
+        clients.add(client);
+    }
+
+    /**
+     * Unsubscribes a client from the presence of a user, or of everyone.
+     * Unsubscribing from everyone keeps the subscriptions to single users.
+     * @param client the subscriber.
+     * @param loginid the login id of the user, or EVERYONE.
+     */
+    public synchronized void unwatch(ConnectionToClient client, String loginid)
+    {
+        if (loginid.equals(EVERYONE))
+        {
+            watchingEveryone.remove(client);
+            return;
+        }
+        Set<String> users = watched.get(client);
+        if (users != null && users.remove(loginid))
+        {
+            if (users.isEmpty())
+            {
+                watched.remove(client);
+            }
+            Set<ConnectionToClient> clients = watchers.get(loginid);
+            clients.remove(client);
+            if (clients.isEmpty())
+            {
+                watchers.remove(loginid);
+            }
+        }
+    }
+
+    /**
+     * Drops all the subscriptions of a client.
+     * @param client the client, which is going away.
+     */
+    public synchronized void remove(ConnectionToClient client)
+    {
+        watchingEveryone.remove(client);
+        Set<String> users = watched.remove(client);
+        if (users != null)
+        {
+            for (String loginid : users)
+            {
+                Set<ConnectionToClient> clients = watchers.get(loginid);
+                clients.remove(client);
+                if (clients.isEmpty())
+                {
+                    watchers.remove(loginid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the changes every interval.
+     */
+    private void publishLoop()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            try
+            {
+                publish();
+            }
+            catch (RuntimeException e)
+            {
+                // keep publishing
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends each subscriber the net changes since the last publication.
+     */
+    private void publish()
+    {
+        Set<String> batch;
+        synchronized (this)
+        {
+            if (changed.isEmpty())
+            {
+                return;
+            }
+            batch = changed;
+            changed = new LinkedHashSet<String>();
+        }
+
+        // only keep the users whose state differs from what was published
+        ArrayList<String> arrived = new ArrayList<String>();
+        ArrayList<String> left = new ArrayList<String>();
+        for (String loginid : batch)
+        {
+            if (source.isOnline(loginid))
+            {
+                if (published.add(loginid))
+                {
+                    arrived.add(loginid);
+                }
+            }
+            else if (published.remove(loginid))
+            {
+                left.add(loginid);
+            }
+        }
+        if (arrived.isEmpty() && left.isEmpty())
+        {
+            return;
+        }
+
+        // one message per subscriber, built under the lock, sent outside
+        Map<ConnectionToClient, StringBuilder> messages = new HashMap<ConnectionToClient, StringBuilder>();
+        ConnectionToClient[] everyone;
+        synchronized (this)
+        {
+            for (String loginid : arrived)
+            {
+                append(messages, loginid, " online");
+            }
+            for (String loginid : left)
+            {
+                append(messages, loginid, " offline");
+            }
+            everyone = watchingEveryone.toArray(new ConnectionToClient[watchingEveryone.size()]);
+        }
+
+        if (everyone.length > 0)
+        {
+            String summary = "Presence: +" + arrived.size() + " users"
+                    + list(arrived) + ", -" + left.size() + " users"
+                    + list(left);
+            for (ConnectionToClient client : everyone)
+            {
+                // the summary covers the users the client watches
+                messages.remove(client);
+                send(client, summary);
+            }
+        }
+        for (Map.Entry<ConnectionToClient, StringBuilder> entry : messages
+                .entrySet())
+        {
+            send(entry.getKey(), entry.getValue().toString());
+        }
+    }
+
+    /**
+     * Adds a change to the messages of the watchers of a user. Called with
+     * this lock held.
+     */
+    private void append(Map<ConnectionToClient, StringBuilder> messages,
+            String loginid, String state)
+    {
+        Set<ConnectionToClient> clients = watchers.get(loginid);
+        if (clients == null)
+        {
+            return;
+        }
+        for (ConnectionToClient client : clients)
+        {
+            StringBuilder message = messages.get(client);
+            if (message == null)
+            {
+                message = new StringBuilder("Presence:");
+                messages.put(client, message);
+            }
+            else
+            {
+                message.append(',');
+            }
+            message.append(' ').append(loginid).append(state);
+        }
+    }
+
+    /**
+     * Lists the first login ids of a change, in parentheses.
+     */
+    private static String list(ArrayList<String> loginids)
+    {
+        if (loginids.isEmpty())
+        {
+            return "";
+        }
+        StringBuilder list = new StringBuilder(" (");
+        for (int i = 0; i < loginids.size() && i < MAX_LISTED; i++)
+        {
+            if (i > 0)
+            {
+                list.append(", ");
+            }
+            list.append(loginids.get(i));
+        }
+        if (loginids.size() > MAX_LISTED)
+        {
+            list.append(" and ").append(loginids.size() - MAX_LISTED)
+                    .append(" more");
+        }
+        return list.append(')').toString();
+    }
+
+    /**
+     * Sends a message to a subscriber that may have gone away.
+     */
+    private static void send(ConnectionToClient client, String message)
+    {
+        try
+        {
+            client.sendToClient(message);
+        }
+        catch (java.io.IOException e)
+        {
+            // the subscription goes away with the client
+        }
+    }
+}
+// End of PresenceService class
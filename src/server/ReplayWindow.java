@@ -0,0 +1,105 @@
+package server;
+
+/**
+ * This class tells which message ids of a session were already seen, so
+ * that a message sent again by a client retrying after a timeout is not
+ * handled twice. Clients number their messages from 1 up; the window keeps
+ * the highest id seen and one bit for each of the WINDOW_SIZE ids below it,
+ * so its memory is the same however many messages the session sends. Ids
+ * may arrive out of order within the window; an id older than the window
+ * is taken as seen, since a client only retries its recent messages.
+ * <p>
+ * Not synchronized; a session's messages are handled under the server
+ * lock.
+ */
+public class ReplayWindow
+{
+    // Class variables *************************************************
+
+    /**
+     * The number of ids below the highest that are remembered; a multiple
+     * of 64.
+     */
+    final public static int WINDOW_SIZE = 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The highest id seen, 0 before the first.
+     */
+    private long highest;
+
+    /**
+     * One bit per id of the window, at the id modulo WINDOW_SIZE, set if
+     * the id was seen.
+     */
+    private long[] seen = new long[WINDOW_SIZE / 64];
+
+    // Instance methods ************************************************
+
+    /**
+     * Records an id.
+     * @param id a message id, from 1.
+     * @return true if the id is new, false if it was seen or is too old to
+     * tell.
+     */
+    public boolean accept(long id)
+    {
+        if (id <= 0 || id <= highest - WINDOW_SIZE)
+        {
+            return false;
+        }
+        if (id > highest)
+        {
+            // forget the ids that slide out of the window
+            long shift = id - highest;
+            if (shift >= WINDOW_SIZE)
+            {
+                java.util.Arrays.fill(seen, 0);
+            }
+            else
+            {
+                for (long cleared = highest + 1; cleared < id; cleared++)
+                {
+                    clear(cleared);
+                }
+            }
+            highest = id;
+            set(id);
+            return true;
+        }
+        if (isSet(id))
+        {
+            return false;
+        }
+        set(id);
+        return true;
+    }
+
+    /**
+     * @return the highest id seen, 0 before the first.
+     */
+    public long highest()
+    {
+        return highest;
+    }
+
+    private boolean isSet(long id)
+    {
+        int bit = (int) (id & (WINDOW_SIZE - 1));
+        return (seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(long id)
+    {
+        int bit = (int) (id & (WINDOW_SIZE - 1));
+        seen[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long id)
+    {
+        int bit = (int) (id & (WINDOW_SIZE - 1));
+        seen[bit >>> 6] &= ~(1L << bit);
+    }
+}
+// End of ReplayWindow class
@@ -0,0 +1,303 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the state of the logged in users that a standby server
+ * needs to take over from a primary: the channels of each user, its current
+ * channel, its monitors and the private messages it received while away.
+ * Connections do not survive a takeover, so the state is kept by login id;
+ * the sessions of a user share one entry, and the entry goes away when the
+ * user's last session does.
+ * <p>
+ * The primary records every change here, the replication log sends them to
+ * the standby, and the standby records them in its own copy. Once the
+ * standby has taken over, the entries become pending: each user is given
+ * back its state at its next login. The entries are also saved in a
+ * snapshot file, and become pending in the same way when the server
+ * restarts. Not synchronized; the replication log guards it.
+ */
+public class ReplicaState
+{
+    // Class variables *************************************************
+
+    /**
+     * The most away messages kept per user; older ones are dropped.
+     */
+    final public static int MAX_AWAY_MESSAGES = 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The state of each logged in user.
+     */
+    private HashMap<String, User> users = new HashMap<String, User>();
+
+    /**
+     * The state of the users that have not logged in since the takeover.
+     */
+    private HashMap<String, User> pending = new HashMap<String, User>();
+
+    /**
+     * The pending users monitored by each user, so that delegations are
+     * restored whichever of the two logs in first.
+     */
+    private HashMap<String, List<String>> pendingDelegators = new HashMap<String, List<String>>();
+
+    // Instance methods ************************************************
+
+    void joined(String loginid, String channelName)
+    {
+        user(loginid).channels.add(channelName);
+    }
+
+    void left(String loginid, String channelName)
+    {
+        User user = users.get(loginid);
+        if (user != null)
+        {
+            user.channels.remove(channelName);
+            if (channelName.equals(user.channel))
+            {
+                user.channel = null;
+            }
+        }
+    }
+
+    void switched(String loginid, String channelName)
+    {
+        user(loginid).channel = channelName.length() == 0 ? null
+                : channelName;
+    }
+
+    void monitorAdded(String loginid, String monitor)
+    {
+        user(loginid).monitors.add(monitor);
+    }
+
+    void monitorRemoved(String loginid, String monitor)
+    {
+        User user = users.get(loginid);
+        if (user != null)
+        {
+            user.monitors.remove(monitor);
+        }
+    }
+
+    void awayMessage(String loginid, String message)
+    {
+        ArrayDeque<String> away = user(loginid).away;
+        if (away.size() == MAX_AWAY_MESSAGES)
+        {
+            away.removeFirst();
+        }
+        away.addLast(message);
+    }
+
+    void awayCleared(String loginid)
+    {
+        User user = users.get(loginid);
+        if (user != null)
+        {
+            user.away.clear();
+        }
+    }
+
+    void loggedOff(String loginid)
+    {
+        users.remove(loginid);
+    }
+
+    /**
+     * Forgets everything, before a new copy is received.
+     */
+    void clear()
+    {
+        users.clear();
+    }
+
+    /**
+     * Makes every entry pending, once this server has taken over.
+     */
+    void takeOver()
+    {
+        HashMap<String, User> all = users;
+        users = new HashMap<String, User>();
+        addPending(all);
+    }
+
+    /**
+     * Makes the entries of a saved snapshot pending, once the server has
+     * restarted.
+     * @param saved the state of each user, which is kept.
+     */
+    void addPending(Map<String, User> saved)
+    {
+        for (Map.Entry<String, User> entry : saved.entrySet())
+        {
+            pending.put(entry.getKey(), entry.getValue());
+            for (String monitor : entry.getValue().monitors)
+            {
+                List<String> delegators = pendingDelegators.get(monitor);
+                if (delegators == null)
+                {
+                    delegators = new ArrayList<String>();
+                    pendingDelegators.put(monitor, delegators);
+                }
+                delegators.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Copies every entry, logged in or pending, for a snapshot taken
+     * without holding the lock while it is written.
+     * @return the copies, by login id.
+     */
+    HashMap<String, User> copy()
+    {
+        HashMap<String, User> copy = new HashMap<String, User>(
+                (users.size() + pending.size()) * 4 / 3 + 1);
+        copy(pending, copy);
+        copy(users, copy);
+        return copy;
+    }
+
+    private static void copy(HashMap<String, User> from,
+            HashMap<String, User> to)
+    {
+        for (Map.Entry<String, User> entry : from.entrySet())
+        {
+            User user = entry.getValue();
+            User copy = new User();
+            copy.channels.addAll(user.channels);
+            copy.channel = user.channel;
+            copy.monitors.addAll(user.monitors);
+            copy.away.addAll(user.away);
+            to.put(entry.getKey(), copy);
+        }
+    }
+
+    /**
+     * Hands out the state a user had before the takeover, once.
+     * @param loginid the login id of the user.
+     * @return the state, or null if there is none.
+     */
+    User restore(String loginid)
+    {
+        return pending.remove(loginid);
+    }
+
+    /**
+     * Hands out the users that selected a user as monitor before the
+     * takeover, once.
+     * @param loginid the login id of the monitor.
+     * @return their login ids, or null if there are none.
+     */
+    List<String> restoreDelegators(String loginid)
+    {
+        return pendingDelegators.remove(loginid);
+    }
+
+    /**
+     * Describes every entry as the records that would rebuild it.
+     * @param records receives the records.
+     */
+    void snapshot(Records records)
+    {
+        for (Map.Entry<String, User> entry : users.entrySet())
+        {
+            String loginid = entry.getKey();
+            User user = entry.getValue();
+            for (String channelName : user.channels)
+            {
+                records.joined(loginid, channelName);
+            }
+            if (user.channel != null)
+            {
+                records.switched(loginid, user.channel);
+            }
+            for (String monitor : user.monitors)
+            {
+                records.monitorAdded(loginid, monitor);
+            }
+            for (String message : user.away)
+            {
+                records.awayMessage(loginid, message);
+            }
+        }
+    }
+
+    /**
+     * @return the number of users with state.
+     */
+    int size()
+    {
+        return users.size();
+    }
+
+    /**
+     * @return the number of users whose state was not restored yet.
+     */
+    int pendingSize()
+    {
+        return pending.size();
+    }
+
+    private User user(String loginid)
+    {
+        User user = users.get(loginid);
+        if (user == null)
+        {
+            user = new User();
+            users.put(loginid, user);
+        }
+        return user;
+    }
+
+    /**
+     * Receives the records describing the state.
+     */
+    interface Records
+    {
+        void joined(String loginid, String channelName);
+
+        void switched(String loginid, String channelName);
+
+        void monitorAdded(String loginid, String monitor);
+
+        void awayMessage(String loginid, String message);
+    }
+
+    /**
+     * The state of one user.
+     */
+    public static class User
+    {
+        /**
+         * The channels of the user, in the order joined.
+         */
+        final public LinkedHashSet<String> channels = new LinkedHashSet<String>();
+
+        /**
+         * The current channel, or null.
+         */
+        public String channel;
+
+        /**
+         * The login ids of the user's monitors.
+         */
+        final public LinkedHashSet<String> monitors = new LinkedHashSet<String>();
+
+        /**
+         * The private messages received while away, oldest first.
+         */
+        final public ArrayDeque<String> away = new ArrayDeque<String>();
+    }
+}
+// End of ReplicaState class
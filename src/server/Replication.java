@@ -0,0 +1,991 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class streams the state of a primary server to a hot standby, so
+ * that the standby can take over the port if the primary dies. Every change
+ * of the state kept in ReplicaState, and every account created or changed,
+ * is recorded here as a numbered record, applied to the local copy and
+ * queued for the standby.
+ * <p>
+ * A standby connecting to the primary's replication port is first sent a
+ * copy of the whole state, taken under the same lock as the records, then
+ * every new record. The primary sends a heartbeat when it has nothing else
+ * to send. The standby applies the records as they come, to its own copy
+ * and its own account store, and acknowledges the last one applied
+ * whenever it has caught up; the primary measures the replication lag from
+ * the time each record was queued to the time it was acknowledged.
+ * <p>
+ * When the link is lost the standby dials the primary again. It takes over
+ * as soon as the primary refuses the connection, which is what happens when
+ * the primary process died, or when it has not heard from the primary for
+ * <code>FAILOVER_TIMEOUT</code>, provided that it can bind the port of the
+ * clients: a primary that is only paused still holds it, and is followed
+ * again. A standby may itself accept a standby, to
+ * which it forwards what it applies. Standbys are only accepted from the
+ * primary's own machine, as they are sent the accounts with their
+ * passwords.
+ */
+public class Replication
+{
+    /**
+     * Told when a standby takes over.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on the replication thread when the primary seems gone; the
+         * standby should start serving clients if it can. Called with the
+         * replication locked, so that no user restores its state before the
+         * state is handed out.
+         * @param silentMillis how long the primary had been silent.
+         * @return false if the standby cannot serve the clients yet, such
+         *     as while the primary still holds their port; the primary is
+         *     then followed again.
+         */
+        boolean takeOver(long silentMillis);
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Record types.
+     */
+    final private static int RESET = 0;
+    final private static int ACCOUNT = 1;
+    final private static int JOINED = 2;
+    final private static int LEFT = 3;
+    final private static int SWITCHED = 4;
+    final private static int MONITOR_ADDED = 5;
+    final private static int MONITOR_REMOVED = 6;
+    final private static int AWAY_MESSAGE = 7;
+    final private static int AWAY_CLEARED = 8;
+    final private static int LOGGED_OFF = 9;
+    final private static int HEARTBEAT = 10;
+    final private static int ACK = 11;
+
+    /**
+     * Milliseconds without records before the primary sends a heartbeat.
+     */
+    final private static long HEARTBEAT_INTERVAL = 100;
+
+    /**
+     * Milliseconds without hearing from the primary before the standby
+     * takes over.
+     */
+    final private static long FAILOVER_TIMEOUT = 1000;
+
+    /**
+     * Milliseconds between two attempts to dial the primary.
+     */
+    final private static long RETRY_DELAY = 50;
+
+    /**
+     * Bytes queued for a standby before it is disconnected.
+     */
+    final private static long MAX_BACKLOG_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The largest record accepted.
+     */
+    final private static int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Bytes written to a standby before it is flushed, when records keep
+     * coming.
+     */
+    final private static int FLUSH_BYTES = 64 * 1024;
+
+    /**
+     * Number of records whose queueing time is remembered to measure the
+     * lag; a power of two.
+     */
+    final private static int LAG_WINDOW = 1 << 16;
+
+    // Instance variables **********************************************
+
+    /**
+     * The accounts, replicated along with the state.
+     */
+    private AccountStore accounts;
+
+    /**
+     * The replicated state. Guarded by this.
+     */
+    private ReplicaState state = new ReplicaState();
+
+    /**
+     * The number of the last record. Guarded by this.
+     */
+    private long sequence;
+
+    /**
+     * When the last records were queued, by record number modulo
+     * LAG_WINDOW. Guarded by this.
+     */
+    private long[] queuedAt = new long[LAG_WINDOW];
+
+    /**
+     * The connected standby, if any. Changed under this lock.
+     */
+    private volatile Standby standby;
+
+    /**
+     * The socket accepting standbys, if listening.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * The primary followed, as host:port, while this is a standby.
+     */
+    private volatile String primary;
+
+    /**
+     * When the primary was last heard from, while this is a standby.
+     */
+    private volatile long lastHeard;
+
+    /**
+     * The records applied from the primary.
+     */
+    private volatile long applied;
+
+    /**
+     * How long the primary had been silent when this standby took over, or
+     * -1.
+     */
+    private volatile long tookOverAfter = -1;
+
+    /**
+     * Set once replication is closed.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the replication of a server's state, without standby.
+     * @param accounts the accounts of the server, replicated too.
+     */
+    public Replication(AccountStore accounts)
+    {
+        this.accounts = accounts;
+        accounts.setListener(new AccountStore.Listener()
+        {
+            public void accountChanged(String loginid, String password)
+            {
+                record(ACCOUNT, loginid, password);
+            }
+        });
+    }
+
+    // Instance methods ************************************************
+
+    public void joined(String loginid, String channelName)
+    {
+        record(JOINED, loginid, channelName);
+    }
+
+    public void left(String loginid, String channelName)
+    {
+        record(LEFT, loginid, channelName);
+    }
+
+    /**
+     * @param loginid the login id of the user.
+     * @param channelName its current channel, or null for none.
+     */
+    public void switched(String loginid, String channelName)
+    {
+        record(SWITCHED, loginid, channelName == null ? "" : channelName);
+    }
+
+    public void monitorAdded(String loginid, String monitor)
+    {
+        record(MONITOR_ADDED, loginid, monitor);
+    }
+
+    public void monitorRemoved(String loginid, String monitor)
+    {
+        record(MONITOR_REMOVED, loginid, monitor);
+    }
+
+    public void awayMessage(String loginid, String message)
+    {
+        record(AWAY_MESSAGE, loginid, message);
+    }
+
+    public void awayCleared(String loginid)
+    {
+        record(AWAY_CLEARED, loginid);
+    }
+
+    /**
+     * Forgets the state of a user whose last session ended.
+     * @param loginid the login id of the user.
+     */
+    public void loggedOff(String loginid)
+    {
+        record(LOGGED_OFF, loginid);
+    }
+
+    /**
+     * Hands out, once, the state a user had on the primary, after this
+     * standby took over.
+     * @param loginid the login id of the user.
+     * @return the state, or null if there is none.
+     */
+    public synchronized ReplicaState.User restore(String loginid)
+    {
+        return state.restore(loginid);
+    }
+
+    /**
+     * Hands out, once, the users that had selected a user as monitor on
+     * the primary, after this standby took over.
+     * @param loginid the login id of the monitor.
+     * @return their login ids, or null if there are none.
+     */
+    public synchronized List<String> restoreDelegators(String loginid)
+    {
+        return state.restoreDelegators(loginid);
+    }
+
+    /**
+     * Copies the state of every user, including the users whose state was
+     * not restored yet, to save it in a snapshot.
+     * @return the state of each user, by login id.
+     */
+    public synchronized Map<String, ReplicaState.User> copyState()
+    {
+        return state.copy();
+    }
+
+    /**
+     * Adds the state saved in a snapshot, to be handed out as users log in
+     * again after a restart.
+     * @param saved the state of each user, by login id.
+     */
+    public synchronized void addSavedState(Map<String, ReplicaState.User> saved)
+    {
+        state.addPending(saved);
+    }
+
+    /**
+     * @return true while this is the standby of a primary.
+     */
+    public boolean isStandby()
+    {
+        return primary != null;
+    }
+
+    /**
+     * Accepts standbys on a port of the loopback address, as a standby
+     * runs on the primary's machine and is sent every account. A standby
+     * connecting replaces the previous one.
+     * @param port the port to listen on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public synchronized void listen(int port) throws IOException
+    {
+        if (serverSocket != null)
+        {
+            throw new IOException("Already listening on port "
+                    + serverSocket.getLocalPort());
+        }
+        final ServerSocket socket = new ServerSocket(port, 50,
+                InetAddress.getLoopbackAddress());
+        serverSocket = socket;
+        start("Replication listener on port " + port, new Runnable()
+        {
+            public void run()
+            {
+                while (!closed)
+                {
+                    try
+                    {
+                        final Standby standby = new Standby(socket.accept());
+                        start("Replication to "
+                                + standby.socket.getRemoteSocketAddress(),
+                                new Runnable()
+                                {
+                                    public void run()
+                                    {
+                                        standby.run();
+                                    }
+                                });
+                    }
+                    catch (IOException e)
+                    {
+                        if (!closed)
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes this server the standby of a primary: the primary's state is
+     * copied and followed until the primary is gone, then the listener is
+     * told to take over.
+     * @param host the host of the primary.
+     * @param port the port the primary accepts standbys on.
+     * @param listener told when the primary is gone.
+     */
+    public void follow(final String host, final int port,
+            final Listener listener)
+    {
+        primary = host + ":" + port;
+        lastHeard = System.nanoTime();
+        start("Replication from " + primary, new Runnable()
+        {
+            public void run()
+            {
+                followLoop(host, port, listener);
+            }
+        });
+    }
+
+    /**
+     * Describes the replication: the standby and its lag on a primary, the
+     * records applied and the silence of the primary on a standby.
+     * @return a one line description.
+     */
+    public String stats()
+    {
+        long now = System.nanoTime();
+        StringBuilder stats = new StringBuilder("Replication: ");
+        synchronized (this)
+        {
+            if (primary != null)
+            {
+                stats.append("standby of ").append(primary).append(", ")
+                        .append(applied).append(" records applied, primary heard ")
+                        .append((now - lastHeard) / 1000000).append(" ms ago");
+            }
+            else
+            {
+                stats.append("primary, ").append(sequence).append(" records");
+                if (tookOverAfter >= 0)
+                {
+                    stats.append(", took over after ").append(tookOverAfter)
+                            .append(" ms of silence");
+                }
+            }
+            stats.append(", ").append(state.size()).append(" users");
+            if (state.pendingSize() > 0)
+            {
+                stats.append(" (").append(state.pendingSize())
+                        .append(" to restore)");
+            }
+        }
+
+        Standby current = standby;
+        if (current == null)
+        {
+            stats.append(", no standby");
+        }
+        else
+        {
+            stats.append(", standby ")
+                    .append(current.socket.getRemoteSocketAddress())
+                    .append(" acked ").append(current.acked).append(" (")
+                    .append(current.queuedBytes.get()).append(" bytes queued)")
+                    .append(", lag last ")
+                    .append(current.lastLagNanos / 1000).append(" us, max ")
+                    .append(current.maxLagNanos / 1000).append(" us");
+            current.maxLagNanos = 0;
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Stops accepting standbys and disconnects the current one.
+     */
+    public void close()
+    {
+        closed = true;
+        synchronized (this)
+        {
+            if (serverSocket != null)
+            {
+                try
+                {
+                    serverSocket.close();
+                }
+                catch (IOException e)
+                {
+                    // closing anyway
+                }
+            }
+        }
+        Standby current = standby;
+        if (current != null)
+        {
+            current.close();
+        }
+    }
+
+    /**
+     * Applies a record to the state and queues it for the standby.
+     */
+    private synchronized void record(int type, String... fields)
+    {
+        // clients that have not logged in have no state to replicate
+        if (fields.length > 0 && fields[0] == null)
+        {
+            return;
+        }
+
+        switch (type)
+        {
+        case RESET:
+            state.clear();
+            break;
+        case JOINED:
+            state.joined(fields[0], fields[1]);
+            break;
+        case LEFT:
+            state.left(fields[0], fields[1]);
+            break;
+        case SWITCHED:
+            state.switched(fields[0], fields[1]);
+            break;
+        case MONITOR_ADDED:
+            state.monitorAdded(fields[0], fields[1]);
+            break;
+        case MONITOR_REMOVED:
+            state.monitorRemoved(fields[0], fields[1]);
+            break;
+        case AWAY_MESSAGE:
+            state.awayMessage(fields[0], fields[1]);
+            break;
+        case AWAY_CLEARED:
+            state.awayCleared(fields[0]);
+            break;
+        case LOGGED_OFF:
+            state.loggedOff(fields[0]);
+            break;
+        default:
+            // accounts are kept by the account store
+            break;
+        }
+
+        sequence++;
+        Standby current = standby;
+        if (current != null)
+        {
+            queuedAt[(int) (sequence & (LAG_WINDOW - 1))] = System.nanoTime();
+            current.send(frame(type, sequence, fields));
+        }
+    }
+
+    /**
+     * Makes a standby the current one, and queues the copy of the state
+     * for it before any new record.
+     */
+    private synchronized void attach(final Standby standby)
+    {
+        Standby previous = this.standby;
+        if (previous != null)
+        {
+            previous.close();
+        }
+
+        standby.attachedAt = sequence;
+        standby.send(frame(RESET, sequence));
+        for (Map.Entry<String, String> account : accounts.asMap().entrySet())
+        {
+            standby.send(frame(ACCOUNT, sequence, account.getKey(),
+                    account.getValue()));
+        }
+        state.snapshot(new ReplicaState.Records()
+        {
+            public void joined(String loginid, String channelName)
+            {
+                standby.send(frame(JOINED, sequence, loginid, channelName));
+            }
+
+            public void switched(String loginid, String channelName)
+            {
+                standby.send(frame(SWITCHED, sequence, loginid, channelName));
+            }
+
+            public void monitorAdded(String loginid, String monitor)
+            {
+                standby.send(frame(MONITOR_ADDED, sequence, loginid, monitor));
+            }
+
+            public void awayMessage(String loginid, String message)
+            {
+                standby.send(frame(AWAY_MESSAGE, sequence, loginid, message));
+            }
+        });
+        this.standby = standby;
+        System.out.println("Replication to "
+                + standby.socket.getRemoteSocketAddress() + " started, "
+                + accounts.size() + " accounts and " + state.size()
+                + " users copied");
+    }
+
+    private synchronized void detach(Standby standby)
+    {
+        if (this.standby == standby)
+        {
+            this.standby = null;
+        }
+    }
+
+    /**
+     * Records that a standby applied the records up to a number, and
+     * measures the lag of the oldest of them.
+     */
+    private synchronized void acknowledged(Standby standby, long acked)
+    {
+        long first = Math.max(standby.acked, standby.attachedAt) + 1;
+        if (acked >= first && sequence - first < LAG_WINDOW)
+        {
+            long lag = System.nanoTime()
+                    - queuedAt[(int) (first & (LAG_WINDOW - 1))];
+            standby.lastLagNanos = lag;
+            standby.maxLagNanos = Math.max(standby.maxLagNanos, lag);
+        }
+        standby.acked = Math.max(standby.acked, acked);
+    }
+
+    /**
+     * Follows the primary, dialing it again when the link is lost, until
+     * it is gone.
+     */
+    private void followLoop(String host, int port, Listener listener)
+    {
+        boolean connected = false;
+        boolean stalled = false;
+        while (!closed)
+        {
+            boolean refused = false;
+            try
+            {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port),
+                        (int) FAILOVER_TIMEOUT);
+                if (!connected)
+                {
+                    System.out.println("Replication from " + primary
+                            + " started");
+                    connected = true;
+                }
+                receive(socket);
+            }
+            catch (ConnectException e)
+            {
+                refused = true;
+            }
+            catch (IOException e)
+            {
+                // the link is lost
+            }
+
+            // a primary that was up and no longer accepts is gone, unless
+            // it still holds the port of its clients
+            long silent = (System.nanoTime() - lastHeard) / 1000000;
+            if (connected && (refused || silent >= FAILOVER_TIMEOUT))
+            {
+                synchronized (this)
+                {
+                    if (listener.takeOver(silent))
+                    {
+                        primary = null;
+                        tookOverAfter = silent;
+                        state.takeOver();
+                    }
+                }
+                if (primary == null)
+                {
+                    System.out.println("Replication: primary silent for "
+                            + silent + " ms, took over");
+                    return;
+                }
+                if (!stalled)
+                {
+                    System.out.println("Replication: primary silent for "
+                            + silent + " ms but still serving, following it");
+                    stalled = true;
+                }
+            }
+            else
+            {
+                stalled = false;
+            }
+            try
+            {
+                Thread.sleep(RETRY_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the primary's records until the link is lost, acknowledging
+     * them whenever there are no more to read.
+     */
+    private void receive(Socket socket) throws IOException
+    {
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) FAILOVER_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            long last = 0;
+            boolean unacked = false;
+            while (!closed)
+            {
+                int length = in.readInt();
+                if (length < 9 || length > MAX_FRAME_BYTES)
+                {
+                    throw new IOException("Bad record length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                lastHeard = System.nanoTime();
+
+                int type = body[0];
+                if (type != HEARTBEAT)
+                {
+                    last = sequenceOf(body);
+                    apply(type, fields(body));
+                    applied++;
+                    unacked = true;
+                }
+                if (unacked && in.available() == 0)
+                {
+                    out.write(frame(ACK, last));
+                    out.flush();
+                    unacked = false;
+                }
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            // the primary is silent
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Applies a record received from the primary, forwarding it to this
+     * server's own standby.
+     */
+    private void apply(int type, String[] fields)
+    {
+        if (type == ACCOUNT)
+        {
+            // recorded by the account store's listener; the copy of the
+            // state sent at every reconnection is not logged again
+            if (!fields[1].equals(accounts.get(fields[0])))
+            {
+                accounts.put(fields[0], fields[1]);
+            }
+        }
+        else
+        {
+            record(type, fields);
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Encodes a record: its length, its type, its number, then each field
+     * as a length and UTF-8 bytes.
+     */
+    private static byte[] frame(int type, long sequence, String... fields)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeLong(sequence);
+            for (String field : fields)
+            {
+                byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+        catch (IOException e)
+        {
+            // not thrown by byte array streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes the number of a record body.
+     */
+    private static long sequenceOf(byte[] body)
+    {
+        long sequence = 0;
+        for (int i = 1; i < 9; i++)
+        {
+            sequence = (sequence << 8) | (body[i] & 0xff);
+        }
+        return sequence;
+    }
+
+    /**
+     * Decodes the fields of a record body.
+     */
+    private static String[] fields(byte[] body) throws IOException
+    {
+        String[] fields = new String[2];
+        int count = 0;
+        int offset = 9;
+        while (offset < body.length)
+        {
+            if (offset + 4 > body.length || count == fields.length)
+            {
+                throw new IOException("Bad record");
+            }
+            int length = ((body[offset] & 0xff) << 24)
+                    | ((body[offset + 1] & 0xff) << 16)
+                    | ((body[offset + 2] & 0xff) << 8)
+                    | (body[offset + 3] & 0xff);
+            offset += 4;
+            if (length < 0 || offset + length > body.length)
+            {
+                throw new IOException("Bad record");
+            }
+            fields[count++] = new String(body, offset, length,
+                    StandardCharsets.UTF_8);
+            offset += length;
+        }
+        return java.util.Arrays.copyOf(fields, count);
+    }
+
+    /**
+     * Starts a daemon thread.
+     */
+    private static void start(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The connection to a standby, on the primary. The thread that runs it
+     * reads the acknowledgements; a writer thread writes the queued
+     * records, and heartbeats when there are none.
+     */
+    private class Standby
+    {
+        /**
+         * The socket to the standby.
+         */
+        final Socket socket;
+
+        /**
+         * The records waiting to be written, and their size.
+         */
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        final AtomicLong queuedBytes = new AtomicLong();
+
+        /**
+         * The number of the last record before the copy of the state, and
+         * of the last record acknowledged. Guarded by the replication.
+         */
+        long attachedAt;
+        volatile long acked;
+
+        /**
+         * The lag of the last acknowledgement and the highest since the
+         * last report.
+         */
+        volatile long lastLagNanos, maxLagNanos;
+
+        /**
+         * Set once the connection is closed.
+         */
+        private volatile boolean standbyClosed;
+
+        Standby(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        /**
+         * Queues a record. Disconnects the standby if too much is queued.
+         */
+        void send(byte[] frame)
+        {
+            if (standbyClosed)
+            {
+                return;
+            }
+            if (queuedBytes.addAndGet(frame.length) > MAX_BACKLOG_BYTES)
+            {
+                System.out.println("Replication to "
+                        + socket.getRemoteSocketAddress()
+                        + " fell behind, disconnecting");
+                close();
+                return;
+            }
+            queue.add(frame);
+        }
+
+        void close()
+        {
+            standbyClosed = true;
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // closing anyway
+            }
+        }
+
+        /**
+         * Sends the copy of the state, then reads acknowledgements until
+         * the standby is lost.
+         */
+        void run()
+        {
+            try
+            {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                attach(this);
+                start(Thread.currentThread().getName() + " writer",
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                write();
+                            }
+                        });
+
+                while (!standbyClosed)
+                {
+                    int length = in.readInt();
+                    if (length < 9 || length > MAX_FRAME_BYTES)
+                    {
+                        throw new IOException("Bad record length " + length);
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    if (body[0] == ACK)
+                    {
+                        acknowledged(this, sequenceOf(body));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // the standby is lost
+            }
+            finally
+            {
+                close();
+                detach(this);
+                System.out.println("Replication to "
+                        + socket.getRemoteSocketAddress() + " stopped");
+            }
+        }
+
+        /**
+         * Writes the queued records, and a heartbeat whenever there were
+         * none for an interval, until the connection is closed.
+         */
+        private void write()
+        {
+            try
+            {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(),
+                                FLUSH_BYTES));
+                byte[] heartbeat = frame(HEARTBEAT, 0);
+                while (!standbyClosed)
+                {
+                    byte[] frame = queue.poll(HEARTBEAT_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+                    if (frame == null)
+                    {
+                        out.write(heartbeat);
+                        out.flush();
+                        continue;
+                    }
+                    int unflushed = 0;
+                    while (frame != null)
+                    {
+                        out.write(frame);
+                        queuedBytes.addAndGet(-frame.length);
+                        unflushed += frame.length;
+                        if (unflushed >= FLUSH_BYTES)
+                        {
+                            out.flush();
+                            unflushed = 0;
+                        }
+                        frame = queue.poll();
+                    }
+                    out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                // the reading thread sees the connection closed
+            }
+            catch (InterruptedException e)
+            {
+                // stopping
+            }
+            finally
+            {
+                close();
+            }
+        }
+    }
+}
+// End of Replication class
@@ -0,0 +1,1031 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lloseng.ocsf.event.EventDispatcher;
+
+/**
+ * This class is a full-text index of the messages sent to channels and of
+ * private messages, so that users can search past conversations. Each
+ * message is indexed with a scope, the channel it was sent to or the two
+ * users of a private conversation, so that a search only returns what the
+ * searching user may see.
+ * <p>
+ * Adding a message only claims a slot in a ring buffer, and drops the
+ * message if the ring is full rather than wait. An indexer thread
+ * splits the messages into terms and collects them in memory; at least every
+ * <code>FLUSH_INTERVAL</code>, or sooner when enough messages are waiting,
+ * it writes them out as a new immutable segment file, which searches see
+ * from then on. A merger thread merges runs of consecutive segments of
+ * similar size into one, so that there are few segments to search however
+ * many messages were indexed. A file listing the current segments is
+ * replaced atomically after every flush and merge; messages not yet flushed
+ * when the server stops are not indexed.
+ * <p>
+ * Searches rank the messages holding any of the terms with BM25, and only
+ * decode the postings of the searched terms from the mapped segments. Ties
+ * go to the most recent message.
+ */
+public class SearchIndex
+{
+    /**
+     * Tells which scopes a search may return messages from.
+     */
+    public interface ScopeFilter
+    {
+        /**
+         * @param scope a scope, made by channelScope or privateScope.
+         * @return true if messages of the scope may be returned.
+         */
+        boolean accept(String scope);
+    }
+
+    /**
+     * A message found by a search.
+     */
+    public static class Hit
+    {
+        /**
+         * When the message was indexed, in milliseconds.
+         */
+        final public long time;
+
+        /**
+         * The message.
+         */
+        final public String message;
+
+        Hit(long time, String message)
+        {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    // Class variables *************************************************
+
+    /**
+     * Maximum time a message waits to be searchable, in milliseconds.
+     */
+    final private static long FLUSH_INTERVAL = 1000;
+
+    /**
+     * Number of waiting messages that triggers a flush.
+     */
+    final private static int FLUSH_DOCS = 16384;
+
+    /**
+     * Number of consecutive segments of similar size merged into one.
+     */
+    final private static int MERGE_FACTOR = 8;
+
+    /**
+     * Size of the smallest tier of segments; each tier is
+     * <code>MERGE_FACTOR</code> times bigger than the previous one.
+     */
+    final private static long TIER_BYTES = 64 * 1024;
+
+    /**
+     * Size above which segments are not merged, so that a segment can be
+     * mapped at once.
+     */
+    final private static long MAX_SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * Terms longer than this are not indexed.
+     */
+    final private static int MAX_TERM_LENGTH = 64;
+
+    /**
+     * BM25 parameters.
+     */
+    final private static double K1 = 1.2, B = 0.75;
+
+    /**
+     * Capacity of the ring buffer of messages waiting to be indexed.
+     */
+    final private static int QUEUE_CAPACITY = 4096;
+
+    /**
+     * The file listing the current segments.
+     */
+    final private static String SEGMENTS_FILE = "segments";
+
+    /**
+     * Suffix of segment files.
+     */
+    final private static String SEGMENT_SUFFIX = ".seg";
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory of the index files.
+     */
+    private File directory;
+
+    /**
+     * The searchable segments, oldest first. The array is never modified
+     * once stored; changes replace it under this lock.
+     */
+    private volatile SearchSegment[] segments;
+
+    /**
+     * The number of the next segment file. Guarded by this.
+     */
+    private long nextSegment;
+
+    /**
+     * True while a merge is running. Guarded by this.
+     */
+    private boolean merging;
+
+    /**
+     * Hands messages to the indexer thread.
+     */
+    private EventDispatcher<Entry> indexer;
+
+    /**
+     * Runs the merges.
+     */
+    private ExecutorService merger;
+
+    /**
+     * The messages waiting to be flushed. Indexer thread only.
+     */
+    private ArrayList<Entry> pending = new ArrayList<Entry>();
+
+    /**
+     * The postings of the messages waiting to be flushed, by term: pairs
+     * of message number and number of occurrences. Indexer thread only.
+     */
+    private HashMap<String, Postings> pendingPostings = new HashMap<String, Postings>();
+
+    /**
+     * The number of messages waiting to be flushed, for the flusher.
+     */
+    private volatile int pendingCount;
+
+    /**
+     * The messages dropped because the ring was full, since the indexer
+     * last reported them.
+     */
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Counts the terms of the message being indexed. Indexer thread only.
+     */
+    private HashMap<String, int[]> termCounts = new HashMap<String, int[]>();
+
+    /**
+     * Set once the index is closed.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens an index, creating it if needed, and starts its threads.
+     * Segment files left over by an interrupted flush or merge are deleted.
+     * @param directory the directory of the index files.
+     * @throws IOException if a listed segment cannot be opened.
+     */
+    public SearchIndex(String directory) throws IOException
+    {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+
+        // open the listed segments, forget the others
+        HashSet<String> listed = new HashSet<String>();
+        ArrayList<SearchSegment> opened = new ArrayList<SearchSegment>();
+        File list = new File(this.directory, SEGMENTS_FILE);
+        if (list.exists())
+        {
+            for (String name : Files.readAllLines(list.toPath(),
+                    StandardCharsets.UTF_8))
+            {
+                if (name.length() > 0)
+                {
+                    listed.add(name);
+                    opened.add(new SearchSegment(new File(this.directory,
+                            name)));
+                }
+            }
+        }
+        File[] files = this.directory.listFiles();
+        for (File file : files == null ? new File[0] : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX))
+            {
+                nextSegment = Math.max(nextSegment, Long.parseLong(name
+                        .substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+                if (!listed.contains(name))
+                {
+                    file.delete();
+                }
+            }
+        }
+        segments = opened.toArray(new SearchSegment[opened.size()]);
+
+        merger = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "SearchIndex merger");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        indexer = new EventDispatcher<Entry>("SearchIndex indexer",
+                QUEUE_CAPACITY, new EventDispatcher.Factory<Entry>()
+                {
+                    public Entry newInstance()
+                    {
+                        return new Entry();
+                    }
+                }, new EventDispatcher.Handler<Entry>()
+                {
+                    public void onEvent(Entry entry)
+                    {
+                        index(entry);
+                    }
+                });
+
+        // makes the indexer flush messages that waited long enough
+        Thread flusher = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (!closed)
+                {
+                    try
+                    {
+                        Thread.sleep(FLUSH_INTERVAL);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    if (pendingCount > 0)
+                    {
+                        // an indexer that is behind flushes on its own
+                        long sequence = indexer.tryNext();
+                        if (sequence >= 0)
+                        {
+                            publish(sequence, null, null);
+                        }
+                    }
+                }
+            }
+        }, "SearchIndex flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        maybeMerge();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Adds a message to the index. The message is indexed shortly after by
+     * the indexer thread, or dropped if the indexer is that far behind,
+     * rather than hold up the sender.
+     * @param scope the scope of the message, from channelScope or
+     * privateScope.
+     * @param message the message, as it is to be shown in search results.
+     */
+    public void add(String scope, String message)
+    {
+        long sequence = indexer.tryNext();
+        if (sequence < 0)
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+        publish(sequence, scope, message);
+    }
+
+    /**
+     * Finds the messages holding the most of some terms, in the scopes a
+     * filter accepts.
+     * @param query the terms, separated by spaces or punctuation.
+     * @param filter the scopes to search.
+     * @param max the maximum number of messages returned.
+     * @return the messages found, best first.
+     */
+    public List<Hit> search(String query, ScopeFilter filter, int max)
+    {
+        List<String> terms = new ArrayList<String>(tokenize(query).keySet());
+        SearchSegment[] current = segments;
+        if (terms.isEmpty() || current.length == 0 || max <= 0)
+        {
+            return Collections.emptyList();
+        }
+
+        // the statistics of the whole index
+        long docCount = 0;
+        long tokenCount = 0;
+        for (SearchSegment segment : current)
+        {
+            docCount += segment.docCount();
+            tokenCount += segment.totalTokens();
+        }
+        double averageLength = Math.max(1.0, (double) tokenCount
+                / Math.max(1, docCount));
+        SearchSegment.TermCursor[][] found = new SearchSegment.TermCursor[current.length][terms.size()];
+        double[] idf = new double[terms.size()];
+        for (int t = 0; t < terms.size(); t++)
+        {
+            long docFreq = 0;
+            for (int s = 0; s < current.length; s++)
+            {
+                found[s][t] = current[s].lookup(terms.get(t));
+                if (found[s][t] != null)
+                {
+                    docFreq += found[s][t].docFreq;
+                }
+            }
+            idf[t] = Math.log(1 + (docCount - docFreq + 0.5)
+                    / (docFreq + 0.5));
+        }
+
+        // the best messages so far, worst first
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(max + 1,
+                new Comparator<Candidate>()
+                {
+                    public int compare(Candidate a, Candidate b)
+                    {
+                        int c = Double.compare(a.score, b.score);
+                        return c != 0 ? c : Long.compare(a.order, b.order);
+                    }
+                });
+        for (int s = 0; s < current.length; s++)
+        {
+            searchSegment(current[s], s, found[s], idf, averageLength,
+                    filter, max, best);
+        }
+
+        Candidate[] sorted = best.toArray(new Candidate[best.size()]);
+        Arrays.sort(sorted, Collections.reverseOrder(best.comparator()));
+        ArrayList<Hit> hits = new ArrayList<Hit>(sorted.length);
+        for (Candidate candidate : sorted)
+        {
+            hits.add(new Hit(candidate.segment.time(candidate.doc),
+                    new String(candidate.segment.text(candidate.doc),
+                            StandardCharsets.UTF_8)));
+        }
+        return hits;
+    }
+
+    /**
+     * Stops the threads once the waiting messages are indexed and flushed.
+     */
+    public void close()
+    {
+        publish(indexer.next(), null, null);
+        indexer.stop();
+        closed = true;
+        merger.shutdown();
+    }
+
+    /**
+     * Scores the messages of one segment holding any of the terms, walking
+     * the postings of the terms side by side in message order.
+     */
+    private void searchSegment(SearchSegment segment, int segmentNumber,
+            SearchSegment.TermCursor[] terms, double[] idf,
+            double averageLength, ScopeFilter filter, int max,
+            PriorityQueue<Candidate> best)
+    {
+        // the scopes of the segment the searching user may see
+        String[] scopes = segment.scopes();
+        boolean[] allowed = new boolean[scopes.length];
+        boolean any = false;
+        for (int i = 0; i < scopes.length; i++)
+        {
+            allowed[i] = filter.accept(scopes[i]);
+            any |= allowed[i];
+        }
+        if (!any)
+        {
+            return;
+        }
+
+        int n = 0;
+        SearchSegment.PostingsCursor[] postings = new SearchSegment.PostingsCursor[terms.length];
+        double[] weights = new double[terms.length];
+        for (int t = 0; t < terms.length; t++)
+        {
+            if (terms[t] != null)
+            {
+                postings[n] = segment.postings(terms[t]);
+                postings[n].next();
+                weights[n] = idf[t];
+                n++;
+            }
+        }
+
+        int checked = -1;
+        while (true)
+        {
+            int doc = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++)
+            {
+                doc = Math.min(doc, postings[i].doc);
+            }
+            if (doc == Integer.MAX_VALUE)
+            {
+                return;
+            }
+
+            // skip the blocks where no message can make the cut: up to the
+            // first block end, every message scores at most the sum of the
+            // scores of the most occurrences in the shortest message of the
+            // current blocks; the sum is only worked out again once past
+            // the first block end
+            if (best.size() == max && doc > checked)
+            {
+                double blockBound = 0;
+                int end = Integer.MAX_VALUE;
+                for (int i = 0; i < n; i++)
+                {
+                    if (postings[i].doc != Integer.MAX_VALUE)
+                    {
+                        int freq = postings[i].blockMaxFreq;
+                        double length = postings[i].blockMinNorm
+                                / averageLength;
+                        blockBound += weights[i] * freq * (K1 + 1)
+                                / (freq + K1 * (1 - B + B * length));
+                        end = Math.min(end, postings[i].blockLast);
+                    }
+                }
+                if (blockBound < best.peek().score)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        postings[i].advanceBeyond(end);
+                    }
+                    continue;
+                }
+                checked = end;
+            }
+
+            // skip the scoring when the message cannot make the cut even
+            // if it were as short as can be
+            double bound = 0;
+            for (int i = 0; i < n; i++)
+            {
+                if (postings[i].doc == doc)
+                {
+                    int freq = postings[i].freq;
+                    bound += weights[i] * freq * (K1 + 1)
+                            / (freq + K1 * (1 - B));
+                }
+            }
+            if ((best.size() < max || bound >= best.peek().score)
+                    && allowed[segment.scope(doc)])
+            {
+                double length = segment.norm(doc) / averageLength;
+                double score = 0;
+                for (int i = 0; i < n; i++)
+                {
+                    if (postings[i].doc == doc)
+                    {
+                        int freq = postings[i].freq;
+                        score += weights[i] * freq * (K1 + 1)
+                                / (freq + K1 * (1 - B + B * length));
+                    }
+                }
+                Candidate candidate = new Candidate(segment, doc, score,
+                        ((long) segmentNumber << 32) | doc);
+                if (best.size() < max)
+                {
+                    best.add(candidate);
+                }
+                else if (best.comparator().compare(candidate, best.peek()) > 0)
+                {
+                    best.poll();
+                    best.add(candidate);
+                }
+            }
+
+            for (int i = 0; i < n; i++)
+            {
+                if (postings[i].doc == doc)
+                {
+                    postings[i].next();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a message to the indexer in a claimed slot, or a request to
+     * flush if the message is null.
+     */
+    private void publish(long sequence, String scope, String message)
+    {
+        Entry entry = indexer.get(sequence);
+        entry.scope = scope;
+        entry.message = message;
+        entry.time = System.currentTimeMillis();
+        indexer.publish(sequence);
+    }
+
+    /**
+     * Indexes a message, or flushes. Called by the indexer thread only.
+     */
+    private void index(Entry entry)
+    {
+        if (entry.message == null)
+        {
+            flush();
+            return;
+        }
+
+        // the ring's entry is reused; keep a copy
+        Entry doc = new Entry();
+        doc.scope = entry.scope;
+        doc.message = entry.message;
+        doc.time = entry.time;
+        entry.scope = null;
+        entry.message = null;
+
+        int number = pending.size();
+        HashMap<String, int[]> counts = tokenize(doc.message, termCounts);
+        for (java.util.Map.Entry<String, int[]> term : counts.entrySet())
+        {
+            doc.tokens += term.getValue()[0];
+            Postings postings = pendingPostings.get(term.getKey());
+            if (postings == null)
+            {
+                postings = new Postings();
+                pendingPostings.put(term.getKey(), postings);
+            }
+            postings.add(number, term.getValue()[0]);
+        }
+        pending.add(doc);
+        pendingCount = pending.size();
+        if (pending.size() >= FLUSH_DOCS)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the waiting messages as a new segment. Called by the indexer
+     * thread only.
+     */
+    private void flush()
+    {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+        {
+            System.out.println("SearchIndex: " + lost
+                    + " messages not indexed while the indexer was behind");
+        }
+        if (pending.isEmpty())
+        {
+            return;
+        }
+        File file = newSegmentFile();
+        SearchSegment.Writer writer = null;
+        try
+        {
+            writer = new SearchSegment.Writer(file);
+            SearchSegment.Scopes scopes = new SearchSegment.Scopes();
+            for (Entry doc : pending)
+            {
+                writer.addDoc(doc.time, scopes.number(doc.scope), doc.tokens,
+                        doc.message.getBytes(StandardCharsets.UTF_8));
+            }
+            writer.startPostings();
+            String[] terms = pendingPostings.keySet().toArray(
+                    new String[pendingPostings.size()]);
+            Arrays.sort(terms);
+            for (String term : terms)
+            {
+                Postings postings = pendingPostings.get(term);
+                writer.startTerm(term);
+                for (int i = 0; i < postings.size; i += 2)
+                {
+                    writer.addPosting(postings.data[i], postings.data[i + 1]);
+                }
+                writer.endTerm();
+            }
+            writer.finish(scopes.names());
+            writer = null;
+
+            SearchSegment segment = new SearchSegment(file);
+            synchronized (this)
+            {
+                SearchSegment[] updated = Arrays.copyOf(segments,
+                        segments.length + 1);
+                updated[segments.length] = segment;
+                replace(updated);
+            }
+        }
+        catch (IOException e)
+        {
+            // the messages are dropped from the index
+            e.printStackTrace();
+            if (writer != null)
+            {
+                writer.abort();
+            }
+            file.delete();
+        }
+        pending.clear();
+        pendingPostings.clear();
+        pendingCount = 0;
+        maybeMerge();
+    }
+
+    /**
+     * Starts merging the oldest run of <code>MERGE_FACTOR</code>
+     * segments of the same tier, unless a merge is running.
+     */
+    private synchronized void maybeMerge()
+    {
+        if (merging || closed)
+        {
+            return;
+        }
+        // a run starts at a segment and takes the following segments of
+        // the same or a lower tier, until it holds MERGE_FACTOR segments of
+        // the first one's tier; the smaller ones are merged along
+        SearchSegment[] current = segments;
+        for (int start = 0; start < current.length; start++)
+        {
+            int tier = tier(current[start].length());
+            int count = 0;
+            long size = 0;
+            int end = start;
+            for (; end < current.length; end++)
+            {
+                int t = tier(current[end].length());
+                if (t > tier)
+                {
+                    break;
+                }
+                size += current[end].length();
+                if (t == tier && ++count == MERGE_FACTOR)
+                {
+                    break;
+                }
+            }
+            if (count < MERGE_FACTOR || size > MAX_SEGMENT_BYTES)
+            {
+                continue;
+            }
+            final SearchSegment[] run = Arrays.copyOfRange(current, start,
+                    end + 1);
+            merging = true;
+            merger.execute(new Runnable()
+            {
+                public void run()
+                {
+                    merge(run);
+                }
+            });
+            return;
+        }
+    }
+
+    /**
+     * Merges consecutive segments into one. Called by the merger thread
+     * only.
+     */
+    private void merge(SearchSegment[] run)
+    {
+        File file = newSegmentFile();
+        SearchSegment.Writer writer = null;
+        try
+        {
+            writer = new SearchSegment.Writer(file);
+            SearchSegment.Scopes scopes = new SearchSegment.Scopes();
+            int[] bases = new int[run.length];
+            int base = 0;
+            for (int s = 0; s < run.length; s++)
+            {
+                bases[s] = base;
+                SearchSegment segment = run[s];
+                String[] names = segment.scopes();
+                for (int doc = 0; doc < segment.docCount(); doc++)
+                {
+                    writer.addDoc(segment.time(doc), scopes.number(names[segment
+                            .scope(doc)]), segment.norm(doc), segment.text(doc));
+                }
+                base += segment.docCount();
+            }
+            writer.startPostings();
+
+            // walk the dictionaries side by side, in term order
+            PriorityQueue<MergeCursor> queue = new PriorityQueue<MergeCursor>();
+            for (int s = 0; s < run.length; s++)
+            {
+                MergeCursor cursor = new MergeCursor(s, run[s].terms());
+                if (cursor.terms.next())
+                {
+                    queue.add(cursor);
+                }
+            }
+            ArrayList<MergeCursor> same = new ArrayList<MergeCursor>();
+            while (!queue.isEmpty())
+            {
+                String term = queue.peek().terms.term;
+                while (!queue.isEmpty() && queue.peek().terms.term.equals(term))
+                {
+                    same.add(queue.poll());
+                }
+                writer.startTerm(term);
+                for (MergeCursor cursor : same)
+                {
+                    SearchSegment.PostingsCursor postings = run[cursor.segment]
+                            .postings(cursor.terms);
+                    while (postings.next())
+                    {
+                        writer.addPosting(bases[cursor.segment] + postings.doc,
+                                postings.freq);
+                    }
+                }
+                writer.endTerm();
+                for (MergeCursor cursor : same)
+                {
+                    if (cursor.terms.next())
+                    {
+                        queue.add(cursor);
+                    }
+                }
+                same.clear();
+            }
+            writer.finish(scopes.names());
+            writer = null;
+
+            SearchSegment merged = new SearchSegment(file);
+            synchronized (this)
+            {
+                // flushes only append, so the run is still consecutive
+                SearchSegment[] current = segments;
+                int start = Arrays.asList(current).indexOf(run[0]);
+                SearchSegment[] updated = new SearchSegment[current.length
+                        - run.length + 1];
+                System.arraycopy(current, 0, updated, 0, start);
+                updated[start] = merged;
+                System.arraycopy(current, start + run.length, updated,
+                        start + 1, current.length - start - run.length);
+                replace(updated);
+            }
+            // searches still reading them keep their mappings
+            for (SearchSegment segment : run)
+            {
+                segment.file().delete();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            if (writer != null)
+            {
+                writer.abort();
+            }
+            file.delete();
+        }
+        synchronized (this)
+        {
+            merging = false;
+        }
+        maybeMerge();
+    }
+
+    /**
+     * Makes new segments current and lists them in the segments file,
+     * replaced atomically. Called with this lock held.
+     */
+    private void replace(SearchSegment[] updated) throws IOException
+    {
+        File temporary = new File(directory, SEGMENTS_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try
+        {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                    file, StandardCharsets.UTF_8));
+            for (SearchSegment segment : updated)
+            {
+                out.write(segment.file().getName());
+                out.write('\n');
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        finally
+        {
+            file.close();
+        }
+        Files.move(temporary.toPath(),
+                new File(directory, SEGMENTS_FILE).toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        segments = updated;
+    }
+
+    /**
+     * Names a new segment file.
+     */
+    private synchronized File newSegmentFile()
+    {
+        return new File(directory, String.format("%020d", nextSegment++)
+                + SEGMENT_SUFFIX);
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @param channelName the name of a channel.
+     * @return the scope of the messages sent to the channel.
+     */
+    public static String channelScope(String channelName)
+    {
+        return "#" + channelName;
+    }
+
+    /**
+     * @param a the login id of one user.
+     * @param b the login id of the other user.
+     * @return the scope of the private messages between two users.
+     */
+    public static String privateScope(String a, String b)
+    {
+        // login ids cannot contain ':'
+        return a.compareTo(b) <= 0 ? "@" + a + ":" + b : "@" + b + ":" + a;
+    }
+
+    /**
+     * @param scope a scope.
+     * @param loginid the login id of a user.
+     * @return true if the scope is a private conversation of the user.
+     */
+    public static boolean isPrivateScopeOf(String scope, String loginid)
+    {
+        if (!scope.startsWith("@"))
+        {
+            return false;
+        }
+        int colon = scope.indexOf(':');
+        return scope.regionMatches(1, loginid, 0, colon - 1)
+                && loginid.length() == colon - 1
+                || scope.regionMatches(colon + 1, loginid, 0, loginid.length())
+                && scope.length() == colon + 1 + loginid.length();
+    }
+
+    /**
+     * Splits a text into lower case terms of letters and digits.
+     * @return the number of occurrences of each term.
+     */
+    private static HashMap<String, int[]> tokenize(String text)
+    {
+        return tokenize(text, new HashMap<String, int[]>());
+    }
+
+    private static HashMap<String, int[]> tokenize(String text,
+            HashMap<String, int[]> counts)
+    {
+        counts.clear();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int length = lower.length();
+        int i = 0;
+        while (i < length)
+        {
+            while (i < length && !Character.isLetterOrDigit(lower.charAt(i)))
+            {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(lower.charAt(i)))
+            {
+                i++;
+            }
+            if (i > start && i - start <= MAX_TERM_LENGTH)
+            {
+                String term = lower.substring(start, i);
+                int[] count = counts.get(term);
+                if (count == null)
+                {
+                    counts.put(term, new int[] { 1 });
+                }
+                else
+                {
+                    count[0]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The tier of a segment: segments of the same tier are within a factor
+     * <code>MERGE_FACTOR</code> in size.
+     */
+    private static int tier(long length)
+    {
+        int tier = 0;
+        for (long size = TIER_BYTES; size <= length; size *= MERGE_FACTOR)
+        {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * A message waiting to be indexed or flushed; a null message asks for a
+     * flush. Entries in the ring buffer are recycled.
+     */
+    private static class Entry
+    {
+        String scope;
+        String message;
+        long time;
+        int tokens;
+    }
+
+    /**
+     * The postings of a term in memory, as pairs of message number and
+     * number of occurrences.
+     */
+    private static class Postings
+    {
+        int[] data = new int[4];
+        int size;
+
+        void add(int doc, int freq)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = doc;
+            data[size++] = freq;
+        }
+    }
+
+    /**
+     * A message in the running best results.
+     */
+    private static class Candidate
+    {
+        final SearchSegment segment;
+        final int doc;
+        final double score;
+        final long order;
+
+        Candidate(SearchSegment segment, int doc, double score, long order)
+        {
+            this.segment = segment;
+            this.doc = doc;
+            this.score = score;
+            this.order = order;
+        }
+    }
+
+    /**
+     * The dictionary of one of the segments being merged.
+     */
+    private static class MergeCursor implements Comparable<MergeCursor>
+    {
+        final int segment;
+        final SearchSegment.TermCursor terms;
+
+        MergeCursor(int segment, SearchSegment.TermCursor terms)
+        {
+            this.segment = segment;
+            this.terms = terms;
+        }
+
+        public int compareTo(MergeCursor other)
+        {
+            int c = terms.term.compareTo(other.terms.term);
+            return c != 0 ? c : Integer.compare(segment, other.segment);
+        }
+    }
+}
+// End of SearchIndex class
@@ -0,0 +1,686 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One immutable segment file of the search index, memory-mapped once
+ * written. A segment holds consecutive messages, numbered from 0, and the
+ * inverted index of their terms:
+ * <ul>
+ * <li>the messages, each a long time, an int length and the message in
+ * UTF-8, followed by the position of each message, its scope number and
+ * its number of terms (capped at 255);
+ * <li>the postings of each term, in blocks of <code>BLOCK_SIZE</code>
+ * messages: each block starts with the gap from the previous block's last
+ * message number, its length in bytes, the highest number of occurrences
+ * and the fewest terms of a message in the block, so that searches can
+ * skip blocks whose messages cannot rank; then for every message holding the term, the gap
+ * from the previous message number and the number of occurrences, as
+ * varints;
+ * <li>the terms in sorted order, each with its number of messages and the
+ * position of its postings;
+ * <li>the scope names, then a fixed size footer locating each part.
+ * </ul>
+ * A sparse index holds every <code>INDEX_INTERVAL</code>th term, so a
+ * lookup is a binary search in memory and a short scan of the file. A
+ * segment may be read from any thread.
+ */
+class SearchSegment
+{
+    // Class variables *************************************************
+
+    /**
+     * Number of terms between two entries of the sparse index.
+     */
+    final static int INDEX_INTERVAL = 32;
+
+    /**
+     * Number of postings per block.
+     */
+    final static int BLOCK_SIZE = 128;
+
+    /**
+     * Marks a segment file.
+     */
+    final private static int MAGIC = 0x53494458;
+
+    /**
+     * Bytes of the footer.
+     */
+    final private static int FOOTER = 44;
+
+    // Instance variables **********************************************
+
+    /**
+     * The segment file.
+     */
+    private File file;
+
+    /**
+     * The mapped file. Readers use duplicates, so that positions are not
+     * shared between threads.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Number of messages.
+     */
+    private int docCount;
+
+    /**
+     * Number of terms.
+     */
+    private int termCount;
+
+    /**
+     * Number of terms of all messages.
+     */
+    private long totalTokens;
+
+    /**
+     * Positions of the parts of the file.
+     */
+    private int offsetsPos, scopesPos, normsPos, dictPos;
+
+    /**
+     * The scope names, by scope number.
+     */
+    private String[] scopes;
+
+    /**
+     * Terms 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL... and the positions of
+     * their entries.
+     */
+    private String[] indexTerms;
+    private int[] indexPositions;
+
+    // Constructors ****************************************************
+
+    /**
+     * Maps a segment file and reads its terms into the sparse index.
+     * @param file the segment file.
+     * @throws IOException if the file cannot be mapped or is damaged.
+     */
+    SearchSegment(File file) throws IOException
+    {
+        this.file = file;
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try
+        {
+            if (channel.size() < FOOTER || channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException(file + " is not a segment");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        finally
+        {
+            // the mapping stays valid once the channel is closed
+            channel.close();
+        }
+
+        ByteBuffer footer = buffer.duplicate();
+        footer.position(buffer.capacity() - FOOTER);
+        if (footer.getInt() != MAGIC)
+        {
+            throw new IOException(file + " is not a segment");
+        }
+        docCount = footer.getInt();
+        termCount = footer.getInt();
+        totalTokens = footer.getLong();
+        offsetsPos = footer.getInt();
+        scopesPos = footer.getInt();
+        normsPos = footer.getInt();
+        footer.getInt(); // postings
+        dictPos = footer.getInt();
+        int scopeDictPos = footer.getInt();
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(scopeDictPos);
+        scopes = new String[readVarint(in)];
+        for (int i = 0; i < scopes.length; i++)
+        {
+            scopes[i] = readString(in);
+        }
+
+        indexTerms = new String[(termCount + INDEX_INTERVAL - 1)
+                / INDEX_INTERVAL];
+        indexPositions = new int[indexTerms.length];
+        TermCursor terms = terms();
+        for (int i = 0; i < termCount; i++)
+        {
+            int position = terms.in.position();
+            terms.next();
+            if (i % INDEX_INTERVAL == 0)
+            {
+                indexTerms[i / INDEX_INTERVAL] = terms.term;
+                indexPositions[i / INDEX_INTERVAL] = position;
+            }
+        }
+    }
+
+    // Instance methods ************************************************
+
+    File file()
+    {
+        return file;
+    }
+
+    long length()
+    {
+        return buffer.capacity();
+    }
+
+    int docCount()
+    {
+        return docCount;
+    }
+
+    long totalTokens()
+    {
+        return totalTokens;
+    }
+
+    String[] scopes()
+    {
+        return scopes;
+    }
+
+    long time(int doc)
+    {
+        return buffer.getLong(buffer.getInt(offsetsPos + 4 * doc));
+    }
+
+    /**
+     * @return the message, in UTF-8.
+     */
+    byte[] text(int doc)
+    {
+        int position = buffer.getInt(offsetsPos + 4 * doc);
+        byte[] text = new byte[buffer.getInt(position + 8)];
+        ByteBuffer in = buffer.duplicate();
+        in.position(position + 12);
+        in.get(text);
+        return text;
+    }
+
+    int scope(int doc)
+    {
+        return buffer.getInt(scopesPos + 4 * doc);
+    }
+
+    /**
+     * @return the number of terms of the message, capped at 255.
+     */
+    int norm(int doc)
+    {
+        return buffer.get(normsPos + doc) & 0xff;
+    }
+
+    /**
+     * Looks a term up.
+     * @param term the term.
+     * @return a cursor on the term's entry, or null if no message holds the
+     * term.
+     */
+    TermCursor lookup(String term)
+    {
+        // the last indexed term not after the term
+        int low = 0;
+        int high = indexTerms.length - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if (indexTerms[middle].compareTo(term) <= 0)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        if (found < 0)
+        {
+            return null;
+        }
+
+        TermCursor cursor = new TermCursor(indexPositions[found],
+                termCount - found * INDEX_INTERVAL);
+        for (int i = 0; i < INDEX_INTERVAL && cursor.next(); i++)
+        {
+            int c = cursor.term.compareTo(term);
+            if (c == 0)
+            {
+                return cursor;
+            }
+            if (c > 0)
+            {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a cursor over all the terms, in order.
+     */
+    TermCursor terms()
+    {
+        return new TermCursor(dictPos, termCount);
+    }
+
+    /**
+     * @return a cursor over the postings of the term a cursor is on.
+     */
+    PostingsCursor postings(TermCursor term)
+    {
+        return new PostingsCursor(term.postings, term.docFreq);
+    }
+
+    /**
+     * Reads the terms of the dictionary in order.
+     */
+    class TermCursor
+    {
+        final ByteBuffer in = buffer.duplicate();
+        private int remaining;
+        String term;
+        int docFreq;
+        int postings;
+
+        TermCursor(int position, int remaining)
+        {
+            in.position(position);
+            this.remaining = remaining;
+        }
+
+        /**
+         * Moves to the next term.
+         * @return false if there are no more terms.
+         */
+        boolean next()
+        {
+            if (remaining == 0)
+            {
+                return false;
+            }
+            remaining--;
+            term = readString(in);
+            docFreq = readVarint(in);
+            postings = readVarint(in);
+            return true;
+        }
+    }
+
+    /**
+     * Reads the postings of one term in message order. The cursor is always
+     * on a block, whose last message and highest number of occurrences are
+     * known before its postings are decoded.
+     */
+    class PostingsCursor
+    {
+        private final ByteBuffer in = buffer.duplicate();
+        private int remaining;
+        private int blockRemaining;
+        private int blockEnd;
+
+        /**
+         * The current message and its number of occurrences of the term.
+         */
+        int doc;
+        int freq;
+
+        /**
+         * The last message, the highest number of occurrences and the fewest
+         * terms of a message of the current block.
+         */
+        int blockLast;
+        int blockMaxFreq;
+        int blockMinNorm;
+
+        PostingsCursor(int position, int remaining)
+        {
+            in.position(position);
+            this.remaining = remaining;
+        }
+
+        /**
+         * Moves to the next message holding the term.
+         * @return false if there are no more.
+         */
+        boolean next()
+        {
+            if (blockRemaining == 0 && !nextBlock())
+            {
+                return false;
+            }
+            blockRemaining--;
+            doc += readVarint(in);
+            freq = readVarint(in);
+            return true;
+        }
+
+        /**
+         * Moves to the first message holding the term after a message,
+         * skipping the blocks that end before it without decoding them.
+         * @param target the message number.
+         */
+        void advanceBeyond(int target)
+        {
+            while (doc <= target)
+            {
+                if (blockRemaining == 0 && !nextBlock())
+                {
+                    return;
+                }
+                if (blockLast <= target)
+                {
+                    // skip the rest of the block
+                    in.position(blockEnd);
+                    doc = blockLast;
+                    blockRemaining = 0;
+                    continue;
+                }
+                blockRemaining--;
+                doc += readVarint(in);
+                freq = readVarint(in);
+            }
+        }
+
+        /**
+         * Reads the header of the next block.
+         */
+        private boolean nextBlock()
+        {
+            if (remaining == 0)
+            {
+                doc = Integer.MAX_VALUE;
+                return false;
+            }
+            blockRemaining = Math.min(BLOCK_SIZE, remaining);
+            remaining -= blockRemaining;
+            blockLast = doc + readVarint(in);
+            int length = readVarint(in);
+            blockMaxFreq = in.get() & 0xff;
+            blockMinNorm = in.get() & 0xff;
+            blockEnd = in.position() + length;
+            return true;
+        }
+    }
+
+    // Class methods ***************************************************
+
+    static int readVarint(ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0;; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(OutputStream out, String s)
+            throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes a segment file: first every message, then the postings of
+     * each term in term order, then the scope names. The file is synced
+     * before <code>finish</code> returns.
+     */
+    static class Writer
+    {
+        private FileOutputStream file;
+        private DataOutputStream out;
+        private int[] offsets = new int[1024];
+        private int[] scopes = new int[1024];
+        private byte[] norms = new byte[1024];
+        private int docCount;
+        private long totalTokens;
+        private int offsetsPos, scopesPos, normsPos, postingsPos;
+        private ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        private int termCount;
+        private int termPos;
+        private int termFreq;
+        private int blockLastDoc;
+        private int[] blockDocs = new int[BLOCK_SIZE];
+        private int[] blockFreqs = new int[BLOCK_SIZE];
+        private int blockCount;
+        private ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+        Writer(File file) throws IOException
+        {
+            this.file = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(this.file,
+                    64 * 1024));
+        }
+
+        /**
+         * @return the number of bytes written so far.
+         */
+        int size()
+        {
+            return out.size();
+        }
+
+        void addDoc(long time, int scope, int tokens, byte[] text)
+                throws IOException
+        {
+            if (docCount == offsets.length)
+            {
+                offsets = java.util.Arrays.copyOf(offsets, docCount * 2);
+                scopes = java.util.Arrays.copyOf(scopes, docCount * 2);
+                norms = java.util.Arrays.copyOf(norms, docCount * 2);
+            }
+            offsets[docCount] = out.size();
+            scopes[docCount] = scope;
+            norms[docCount] = (byte) Math.min(255, tokens);
+            docCount++;
+            totalTokens += tokens;
+            out.writeLong(time);
+            out.writeInt(text.length);
+            out.write(text);
+        }
+
+        /**
+         * Ends the messages; terms may be added from now on.
+         */
+        void startPostings() throws IOException
+        {
+            offsetsPos = out.size();
+            for (int i = 0; i < docCount; i++)
+            {
+                out.writeInt(offsets[i]);
+            }
+            scopesPos = out.size();
+            for (int i = 0; i < docCount; i++)
+            {
+                out.writeInt(scopes[i]);
+            }
+            normsPos = out.size();
+            out.write(norms, 0, docCount);
+            postingsPos = out.size();
+        }
+
+        /**
+         * Starts the postings of a term, which must come after the previous
+         * term in order.
+         */
+        void startTerm(String term) throws IOException
+        {
+            writeString(dict, term);
+            termPos = out.size();
+            termFreq = 0;
+            blockLastDoc = 0;
+            blockCount = 0;
+        }
+
+        /**
+         * Adds a message to the postings of the current term, after the
+         * previous one.
+         */
+        void addPosting(int doc, int freq) throws IOException
+        {
+            blockDocs[blockCount] = doc;
+            blockFreqs[blockCount] = freq;
+            blockCount++;
+            termFreq++;
+            if (blockCount == BLOCK_SIZE)
+            {
+                writeBlock();
+            }
+        }
+
+        void endTerm() throws IOException
+        {
+            if (blockCount > 0)
+            {
+                writeBlock();
+            }
+            writeVarint(dict, termFreq);
+            writeVarint(dict, termPos);
+            termCount++;
+        }
+
+        /**
+         * Writes the buffered postings of the current term as a block.
+         */
+        private void writeBlock() throws IOException
+        {
+            block.reset();
+            int previous = blockLastDoc;
+            int maxFreq = 0;
+            int minNorm = 255;
+            for (int i = 0; i < blockCount; i++)
+            {
+                writeVarint(block, blockDocs[i] - previous);
+                writeVarint(block, blockFreqs[i]);
+                previous = blockDocs[i];
+                maxFreq = Math.max(maxFreq, blockFreqs[i]);
+                minNorm = Math.min(minNorm, norms[blockDocs[i]] & 0xff);
+            }
+            writeVarint(out, previous - blockLastDoc);
+            writeVarint(out, block.size());
+            out.write(Math.min(255, maxFreq));
+            out.write(minNorm);
+            block.writeTo(out);
+            blockLastDoc = previous;
+            blockCount = 0;
+        }
+
+        /**
+         * Writes the dictionary, the scope names and the footer, and syncs
+         * the file.
+         */
+        void finish(List<String> scopeNames) throws IOException
+        {
+            int dictPos = out.size();
+            dict.writeTo(out);
+            int scopeDictPos = out.size();
+            writeVarint(out, scopeNames.size());
+            for (String scope : scopeNames)
+            {
+                writeString(out, scope);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(docCount);
+            out.writeInt(termCount);
+            out.writeLong(totalTokens);
+            out.writeInt(offsetsPos);
+            out.writeInt(scopesPos);
+            out.writeInt(normsPos);
+            out.writeInt(postingsPos);
+            out.writeInt(dictPos);
+            out.writeInt(scopeDictPos);
+            out.flush();
+            file.getFD().sync();
+            out.close();
+        }
+
+        /**
+         * Closes an unfinished file.
+         */
+        void abort()
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                // the file is deleted anyway
+            }
+        }
+    }
+
+    /**
+     * Scope numbers of a segment being written.
+     */
+    static class Scopes
+    {
+        private java.util.HashMap<String, Integer> numbers = new java.util.HashMap<String, Integer>();
+        private ArrayList<String> names = new ArrayList<String>();
+
+        int number(String scope)
+        {
+            Integer number = numbers.get(scope);
+            if (number == null)
+            {
+                number = names.size();
+                numbers.put(scope, number);
+                names.add(scope);
+            }
+            return number;
+        }
+
+        List<String> names()
+        {
+            return names;
+        }
+    }
+}
+// End of SearchSegment class
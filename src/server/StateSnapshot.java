@@ -0,0 +1,408 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class saves the state of the users (their channels, current channel,
+ * monitors and away messages) to a binary file, and loads it back when the
+ * server restarts. Login ids and channel names are written once, in a table
+ * of strings, and the users refer to them by number, so a channel with many
+ * members costs a few bytes per member. The table and the users are split
+ * in blocks whose lengths are in the header, so that loading decodes every
+ * block in parallel: first the strings, then the users.
+ * <p>
+ * A snapshot is written to a temporary file and moved over the previous
+ * one, so a crash while saving leaves the previous snapshot in place.
+ */
+public class StateSnapshot
+{
+    // Class variables *************************************************
+
+    /**
+     * The first bytes of a snapshot file.
+     */
+    final private static int MAGIC = 0x53435331;
+
+    /**
+     * The number of strings in a block of the table.
+     */
+    final private static int STRINGS_PER_BLOCK = 8192;
+
+    /**
+     * The number of users in a block.
+     */
+    final private static int USERS_PER_BLOCK = 2048;
+
+    // Class methods ***************************************************
+
+    /**
+     * Saves the state of the users.
+     * @param file the snapshot file, replaced.
+     * @param users the state of each user, by login id.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public static void save(File file, Map<String, ReplicaState.User> users)
+            throws IOException
+    {
+        // number the strings in the order they are first met
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (Map.Entry<String, ReplicaState.User> entry : users.entrySet())
+        {
+            ReplicaState.User user = entry.getValue();
+            id(entry.getKey(), ids, strings);
+            for (String channelName : user.channels)
+            {
+                id(channelName, ids, strings);
+            }
+            for (String monitor : user.monitors)
+            {
+                id(monitor, ids, strings);
+            }
+        }
+
+        List<byte[]> stringBlocks = new ArrayList<byte[]>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < strings.size(); i++)
+        {
+            writeString(bytes, strings.get(i));
+            if ((i + 1) % STRINGS_PER_BLOCK == 0 || i == strings.size() - 1)
+            {
+                stringBlocks.add(bytes.toByteArray());
+                bytes.reset();
+            }
+        }
+
+        List<byte[]> userBlocks = new ArrayList<byte[]>();
+        int count = 0;
+        for (Map.Entry<String, ReplicaState.User> entry : users.entrySet())
+        {
+            ReplicaState.User user = entry.getValue();
+            writeVarint(bytes, ids.get(entry.getKey()));
+            writeVarint(bytes, user.channels.size());
+            for (String channelName : user.channels)
+            {
+                writeVarint(bytes, ids.get(channelName));
+            }
+            writeVarint(bytes, user.channel == null ? 0
+                    : ids.get(user.channel) + 1);
+            writeVarint(bytes, user.monitors.size());
+            for (String monitor : user.monitors)
+            {
+                writeVarint(bytes, ids.get(monitor));
+            }
+            writeVarint(bytes, user.away.size());
+            for (String message : user.away)
+            {
+                writeString(bytes, message);
+            }
+            if (++count % USERS_PER_BLOCK == 0 || count == users.size())
+            {
+                userBlocks.add(bytes.toByteArray());
+                bytes.reset();
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(out, 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeLong(System.currentTimeMillis());
+            output.writeInt(strings.size());
+            output.writeInt(users.size());
+            output.writeInt(stringBlocks.size());
+            for (byte[] block : stringBlocks)
+            {
+                output.writeInt(block.length);
+            }
+            output.writeInt(userBlocks.size());
+            for (byte[] block : userBlocks)
+            {
+                output.writeInt(block.length);
+            }
+            for (byte[] block : stringBlocks)
+            {
+                output.write(block);
+            }
+            for (byte[] block : userBlocks)
+            {
+                output.write(block);
+            }
+            output.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the state of the users, decoding the blocks of the snapshot
+     * with several threads.
+     * @param file the snapshot file.
+     * @param threads the number of threads decoding blocks.
+     * @return the state of each user, by login id.
+     * @throws IOException if the snapshot cannot be read or is damaged.
+     */
+    public static Map<String, ReplicaState.User> load(File file, int threads)
+            throws IOException
+    {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer header = ByteBuffer.wrap(data);
+        final String[] strings;
+        int userCount;
+        int[] stringBlocks;
+        int[] userBlocks;
+        try
+        {
+            if (header.getInt() != MAGIC)
+            {
+                throw new IOException("Not a state snapshot: " + file);
+            }
+            header.getLong();
+            strings = new String[header.getInt()];
+            userCount = header.getInt();
+            stringBlocks = new int[header.getInt()];
+            for (int i = 0; i < stringBlocks.length; i++)
+            {
+                stringBlocks[i] = header.getInt();
+            }
+            userBlocks = new int[header.getInt()];
+            for (int i = 0; i < userBlocks.length; i++)
+            {
+                userBlocks[i] = header.getInt();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Damaged state snapshot: " + file, e);
+        }
+
+        ExecutorService decoders = Executors.newFixedThreadPool(
+                Math.max(1, threads), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable task)
+                    {
+                        Thread thread = new Thread(task, "StateSnapshot loader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try
+        {
+            // the strings first, since the users refer to them
+            List<Callable<Object>> stringTasks = new ArrayList<Callable<Object>>();
+            int offset = header.position();
+            for (int i = 0; i < stringBlocks.length; i++)
+            {
+                final int from = offset;
+                final int to = offset + stringBlocks[i];
+                final int first = i * STRINGS_PER_BLOCK;
+                stringTasks.add(new Callable<Object>()
+                {
+                    public Object call() throws IOException
+                    {
+                        Decoder decoder = new Decoder(data, from, to);
+                        int last = Math.min(strings.length, first
+                                + STRINGS_PER_BLOCK);
+                        for (int id = first; id < last; id++)
+                        {
+                            strings[id] = decoder.string();
+                        }
+                        return null;
+                    }
+                });
+                offset = to;
+            }
+            for (Future<Object> done : decoders.invokeAll(stringTasks))
+            {
+                done.get();
+            }
+
+            List<Callable<Map<String, ReplicaState.User>>> userTasks = new ArrayList<Callable<Map<String, ReplicaState.User>>>();
+            for (int i = 0; i < userBlocks.length; i++)
+            {
+                final int from = offset;
+                final int to = offset + userBlocks[i];
+                userTasks.add(new Callable<Map<String, ReplicaState.User>>()
+                {
+                    public Map<String, ReplicaState.User> call()
+                            throws IOException
+                    {
+                        return decodeUsers(new Decoder(data, from, to), strings);
+                    }
+                });
+                offset = to;
+            }
+            if (offset != data.length)
+            {
+                throw new IOException("Damaged state snapshot: " + file);
+            }
+            HashMap<String, ReplicaState.User> users = new HashMap<String, ReplicaState.User>(
+                    userCount * 4 / 3 + 1);
+            for (Future<Map<String, ReplicaState.User>> done : decoders
+                    .invokeAll(userTasks))
+            {
+                users.putAll(done.get());
+            }
+            return users;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading " + file, e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Damaged state snapshot: " + file,
+                    e.getCause());
+        }
+        finally
+        {
+            decoders.shutdown();
+        }
+    }
+
+    /**
+     * Decodes one block of users.
+     */
+    private static Map<String, ReplicaState.User> decodeUsers(
+            Decoder decoder, String[] strings) throws IOException
+    {
+        HashMap<String, ReplicaState.User> users = new HashMap<String, ReplicaState.User>(
+                USERS_PER_BLOCK * 4 / 3 + 1);
+        while (decoder.hasMore())
+        {
+            String loginid = strings[decoder.varint()];
+            ReplicaState.User user = new ReplicaState.User();
+            for (int n = decoder.varint(); n > 0; n--)
+            {
+                user.channels.add(strings[decoder.varint()]);
+            }
+            int channel = decoder.varint();
+            user.channel = channel == 0 ? null : strings[channel - 1];
+            for (int n = decoder.varint(); n > 0; n--)
+            {
+                user.monitors.add(strings[decoder.varint()]);
+            }
+            for (int n = decoder.varint(); n > 0; n--)
+            {
+                user.away.addLast(decoder.string());
+            }
+            users.put(loginid, user);
+        }
+        return users;
+    }
+
+    private static void id(String string, HashMap<String, Integer> ids,
+            List<String> strings)
+    {
+        if (!ids.containsKey(string))
+        {
+            ids.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string)
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads the varints and strings of one block.
+     */
+    private static class Decoder
+    {
+        final byte[] data;
+        int position;
+        final int end;
+
+        Decoder(byte[] data, int from, int to) throws IOException
+        {
+            if (from < 0 || to > data.length || from > to)
+            {
+                throw new IOException("block out of the file");
+            }
+            this.data = data;
+            this.position = from;
+            this.end = to;
+        }
+
+        boolean hasMore()
+        {
+            return position < end;
+        }
+
+        int varint() throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                if (position >= end)
+                {
+                    throw new IOException("truncated block");
+                }
+                byte b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0)
+                {
+                    return value;
+                }
+            }
+            throw new IOException("bad varint");
+        }
+
+        String string() throws IOException
+        {
+            int length = varint();
+            if (length > end - position)
+            {
+                throw new IOException("truncated block");
+            }
+            String string = new String(data, position, length,
+                    StandardCharsets.UTF_8);
+            position += length;
+            return string;
+        }
+    }
+}
+// End of StateSnapshot class
@@ -0,0 +1,180 @@
+package server;
+
+import java.util.ArrayList;
+
+/**
+ * This class runs tasks at given times, using a hashed timing wheel driven
+ * by a single thread. Time is divided into ticks; a task goes in the slot of
+ * the tick it is due at, and wraps around the wheel as many rounds as needed
+ * for far deadlines. Scheduling and expiring a task take constant time
+ * whatever the number of pending tasks, and tasks run no earlier than their
+ * deadline and at most a tick later.
+ * <p>
+ * Tasks run on the wheel's thread and should be short, e.g. handing work to
+ * another thread.
+ */
+public class TimingWheel
+{
+    // Instance variables **********************************************
+
+    /**
+     * Length of a tick, in milliseconds.
+     */
+    private long tick;
+
+    /**
+     * The slots, one per tick of a round of the wheel.
+     */
+    private ArrayList<Timeout>[] slots;
+
+    /**
+     * Time of tick 0.
+     */
+    private long startTime;
+
+    /**
+     * The next tick to be processed. Guarded by this.
+     */
+    private long currentTick;
+
+    /**
+     * The thread turning the wheel.
+     */
+    private Thread thread;
+
+    /**
+     * Set to stop the thread.
+     */
+    private volatile boolean stopped;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a timing wheel and starts its thread.
+     * @param name the name of the thread.
+     * @param tick the length of a tick, in milliseconds.
+     * @param size the number of slots.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, long tick, int size)
+    {
+        this.tick = tick;
+        slots = new ArrayList[size];
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new ArrayList<Timeout>();
+        }
+        startTime = System.currentTimeMillis();
+
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                turn();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Schedules a task.
+     * @param deadline the time to run the task at, as given by
+     * <code>System.currentTimeMillis()</code>.
+     * @param task the task.
+     */
+    public synchronized void schedule(long deadline, Runnable task)
+    {
+        // round up, so a task never runs early; past deadlines run next
+        long due = Math.max(currentTick, (deadline - startTime + tick - 1)
+                / tick);
+        long rounds = (due - currentTick) / slots.length;
+        slots[(int) (due % slots.length)].add(new Timeout(rounds, task));
+    }
+
+    /**
+     * Stops the wheel; pending tasks are dropped.
+     */
+    public void stop()
+    {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Runs the due tasks of each tick in turn.
+     */
+    private void turn()
+    {
+        ArrayList<Runnable> due = new ArrayList<Runnable>();
+        while (!stopped)
+        {
+            long now = System.currentTimeMillis();
+            synchronized (this)
+            {
+                // catch up on every tick that has passed
+                while (startTime + currentTick * tick <= now)
+                {
+                    ArrayList<Timeout> slot = slots[(int) (currentTick
+                            % slots.length)];
+                    for (int i = slot.size() - 1; i >= 0; i--)
+                    {
+                        Timeout timeout = slot.get(i);
+                        if (timeout.rounds == 0)
+                        {
+                            due.add(timeout.task);
+                            slot.set(i, slot.get(slot.size() - 1));
+                            slot.remove(slot.size() - 1);
+                        }
+                        else
+                        {
+                            timeout.rounds--;
+                        }
+                    }
+                    currentTick++;
+                }
+            }
+
+            for (Runnable task : due)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+
+            try
+            {
+                Thread.sleep(Math.max(1, startTime + currentTick * tick
+                        - System.currentTimeMillis()));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    private static class Timeout
+    {
+        long rounds;
+        final Runnable task;
+
+        Timeout(long rounds, Runnable task)
+        {
+            this.rounds = rounds;
+            this.task = task;
+        }
+    }
+}
+// End of TimingWheel class
@@ -0,0 +1,138 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * This class maps login ids onto the connections logged in with them, so
+ * that a user's connections can be found in O(1) instead of by scanning
+ * every connected client. A user may have several sessions at once. It is
+ * safe to use from several threads at once; lookups never lock.
+ */
+public class UserIndex
+{
+    // Class variables *************************************************
+
+    /**
+     * Returned for users that are not logged in.
+     */
+    final private static ConnectionToClient[] NO_SESSIONS = new ConnectionToClient[0];
+
+    // Instance variables **********************************************
+
+    /**
+     * The sessions of each logged in user. The arrays are never modified
+     * once stored; changes replace them.
+     */
+    private ConcurrentHashMap<String, ConnectionToClient[]> sessions = new ConcurrentHashMap<String, ConnectionToClient[]>();
+
+    // Instance methods ************************************************
+
+    /**
+     * Records that a connection is logged in as a user.
+     * @param loginid the user's login id.
+     * @param client the connection.
+     */
+    public void add(String loginid, final ConnectionToClient client)
+    {
+        sessions.compute(loginid,
+                new BiFunction<String, ConnectionToClient[], ConnectionToClient[]>()
+                {
+                    public ConnectionToClient[] apply(String key,
+                            ConnectionToClient[] current)
+                    {
+                        if (current == null)
+                        {
+                            return new ConnectionToClient[] { client };
+                        }
+                        for (ConnectionToClient c : current)
+                        {
+                            if (c == client)
+                            {
+                                return current;
+                            }
+                        }
+                        ConnectionToClient[] updated = new ConnectionToClient[current.length + 1];
+                        System.arraycopy(current, 0, updated, 0, current.length);
+                        updated[current.length] = client;
+                        return updated;
+                    }
+                });
+    }
+
+    /**
+     * Records that a connection is no longer logged in as a user. The user
+     * is forgotten with its last session.
+     * @param loginid the user's login id.
+     * @param client the connection.
+     */
+    public void remove(String loginid, final ConnectionToClient client)
+    {
+        sessions.computeIfPresent(loginid,
+                new BiFunction<String, ConnectionToClient[], ConnectionToClient[]>()
+                {
+                    public ConnectionToClient[] apply(String key,
+                            ConnectionToClient[] current)
+                    {
+                        for (int i = 0; i < current.length; i++)
+                        {
+                            if (current[i] == client)
+                            {
+                                if (current.length == 1)
+                                {
+                                    return null;
+                                }
+                                ConnectionToClient[] updated = new ConnectionToClient[current.length - 1];
+                                System.arraycopy(current, 0, updated, 0, i);
+                                System.arraycopy(current, i + 1, updated, i,
+                                        current.length - i - 1);
+                                return updated;
+                            }
+                        }
+                        return current;
+                    }
+                });
+    }
+
+    /**
+     * Returns the connections logged in as a user. The array is shared and
+     * must not be modified.
+     * @param loginid the user's login id.
+     * @return the sessions, an empty array if the user is not logged in.
+     */
+    public ConnectionToClient[] sessions(String loginid)
+    {
+        ConnectionToClient[] current = sessions.get(loginid);
+        return current == null ? NO_SESSIONS : current;
+    }
+
+    /**
+     * @param loginid the user's login id.
+     * @return true if the user has at least one session.
+     */
+    public boolean isOnline(String loginid)
+    {
+        return sessions.containsKey(loginid);
+    }
+
+    /**
+     * @return a live view of the login ids of the users with at least one
+     * session.
+     */
+    public Set<String> names()
+    {
+        return sessions.keySet();
+    }
+
+    /**
+     * @return the number of users with at least one session.
+     */
+    public int size()
+    {
+        return sessions.size();
+    }
+}
+// End of UserIndex class
@@ -4,11 +4,10 @@ package ui;
 // license found at www.lloseng.com 
 
 import java.io.*;
-import java.util.Observable;
-import java.util.Observer;
 import java.util.StringTokenizer;
 
-import com.lloseng.ocsf.client.ObservableClient;
+import com.lloseng.ocsf.client.ClientEvent;
+import com.lloseng.ocsf.client.ClientListener;
 
 import client.*;
 import common.*;
@@ -22,7 +21,7 @@ import common.*;
  * @author Dr Robert Lagani&egrave;re
  * @version July 2000
  */
-public class ClientConsole implements ChatIF, Observer
+public class ClientConsole implements ChatIF, ClientListener
 {
     // Class variables *************************************************
 
@@ -51,7 +50,7 @@ public class ClientConsole implements ChatIF, Observer
         try
         {
             client = new ChatClient(loginid, password, host, port, this);
-            client.addObserver(this);
+            client.addClientListener(this);
         }
         catch (IOException exception)
         {
@@ -311,7 +310,33 @@ public class ClientConsole implements ChatIF, Observer
             {
                 try
                 {
-                    client.leave();
+                    if(sb.hasMoreTokens())
+                    {
+                        client.leave(sb.nextToken());
+                    }
+                    else
+                    {
+                        client.leave();
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#say"))
+            {
+                if(sb.countTokens() < 2)
+                {
+                    this.display("Error. Invalid request");
+                    return;
+                }
+                String channelName = sb.nextToken();
+                // the rest of the line, spacing included
+                String msg = sb.nextToken("").trim();
+                try
+                {
+                    client.say(channelName, msg);
                 }
                 catch (IOException e)
                 {
@@ -322,7 +347,15 @@ public class ClientConsole implements ChatIF, Observer
             {
                 try
                 {
-                    client.displayChannels();
+                    if(sb.hasMoreTokens())
+                    {
+                        // prefix:p, page:n and version:v
+                        client.displayChannels(sb.nextToken("").trim());
+                    }
+                    else
+                    {
+                        client.displayChannels();
+                    }
                 }
                 catch (IOException e)
                 {
@@ -349,7 +382,14 @@ public class ClientConsole implements ChatIF, Observer
             {
                 try
                 {
-                    client.back();
+                    if(sb.hasMoreTokens())
+                    {
+                        client.back(sb.nextToken());
+                    }
+                    else
+                    {
+                        client.back();
+                    }
                 }
                 catch (IOException e)
                 {
@@ -367,6 +407,142 @@ public class ClientConsole implements ChatIF, Observer
                     e.printStackTrace();
                 }
             }
+            else if(command.equals("#history"))
+            {
+                if(sb.countTokens() < 1)
+                {
+                    this.display("Error. Invalid request");
+                    return;
+                }
+                try
+                {
+                    client.history(sb.nextToken());
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#watch") || command.equals("#unwatch"))
+            {
+                if(sb.countTokens() < 1)
+                {
+                    this.display("Error. Invalid request");
+                    return;
+                }
+                // the rest of the line, one or more login ids
+                String loginids = sb.nextToken("").trim();
+                try
+                {
+                    if(command.equals("#watch"))
+                    {
+                        client.watch(loginids);
+                    }
+                    else
+                    {
+                        client.unwatch(loginids);
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#ignore") || command.equals("#unignore")
+                    || command.equals("#mute") || command.equals("#unmute"))
+            {
+                if(sb.countTokens() < 1)
+                {
+                    this.display("Error. Invalid request");
+                    return;
+                }
+                try
+                {
+                    if(command.endsWith("ignore"))
+                    {
+                        client.ignore(sb.nextToken(),
+                                command.equals("#ignore"));
+                    }
+                    else
+                    {
+                        client.mute(sb.nextToken(), command.equals("#mute"));
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#filters"))
+            {
+                try
+                {
+                    client.filters();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#upload"))
+            {
+                if(sb.countTokens() < 2)
+                {
+                    this.display("Error. Usage: #upload <channel|@loginid> <file>");
+                    return;
+                }
+                try
+                {
+                    client.upload(sb.nextToken(),
+                            new File(sb.nextToken("").trim()));
+                }
+                catch (FileNotFoundException e)
+                {
+                    this.display("Error. Cannot read " + e.getMessage());
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if(command.equals("#download"))
+            {
+                if(sb.countTokens() < 1)
+                {
+                    this.display("Error. Usage: #download <id> [file]");
+                    return;
+                }
+                try
+                {
+                    long id = Long.parseLong(sb.nextToken());
+                    client.download(id, sb.hasMoreTokens() ? new File(sb
+                            .nextToken("").trim()) : null);
+                }
+                catch (NumberFormatException e)
+                {
+                    this.display("Error. Usage: #download <id> [file]");
+                }
+                catch (IOException e)
+                {
+                    this.display("Error. " + e.getMessage());
+                }
+            }
+            else if(command.equals("#search"))
+            {
+                if(sb.countTokens() < 1)
+                {
+                    this.display("Error. Invalid request");
+                    return;
+                }
+                try
+                {
+                    client.search(sb.nextToken("").trim());
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
         }
 
         // message is not a command
@@ -374,7 +550,7 @@ public class ClientConsole implements ChatIF, Observer
         {
             try
             {
-                client.sendToServer(message);
+                client.send(message);
             }
             catch (IOException e)
             {
@@ -391,34 +567,34 @@ public class ClientConsole implements ChatIF, Observer
         }
     }
     
-    public void update(Observable obs, Object message)
+    /**
+     * This method overrides the method in the ClientListener interface. It
+     * displays messages from the server and terminates the client when the
+     * connection fails.
+     * @param event the client event.
+     */
+    public void clientEvent(ClientEvent event)
     {
-        if(message instanceof String)
+        if (event.getType() == ClientEvent.Type.MESSAGE
+                && event.getMessage() instanceof String)
         {
-            System.out.println(message);
+            System.out.println(event.getMessage());
         }
-        else if(message instanceof Exception)
+        else if (event.getType() == ClientEvent.Type.CONNECTION_EXCEPTION)
         {
+            // message displayed to client when server shuts down
+            this.display("Server has shut down. Terminating client.");
+
+            event.getException().printStackTrace();
+
+            //terminates the client
             try
             {
-                throw (Exception) message;
+                client.quit();
             }
-            catch(Exception e)
+            catch (IOException e1)
             {
-                // message displayed to client when server shuts down
-                this.display("Server has shut down. Terminating client.");
-                
-                e.printStackTrace();
-                
-                //terminates the client
-                try
-                {
-                    client.quit();
-                }
-                catch (IOException e1)
-                {
-                    e1.printStackTrace();
-                }
+                e1.printStackTrace();
             }
         }
     }
@@ -4,16 +4,46 @@ package ui;
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Scanner;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.lloseng.ocsf.server.*;
 
 import common.ChatIF;
+import server.AccountStore;
+import server.Authenticator;
+import server.AwayMessages;
+import server.ChannelDirectory;
+import server.ChannelHistory;
+import server.ChannelRegistry;
+import server.DelegationRegistry;
+import server.CommandHandler;
+import server.CommandLine;
+import server.CommandTable;
+import server.Federation;
+import server.FileTransfer;
+import server.FilterRegistry;
+import server.MessageFormatter;
+import server.OfflineInbox;
+import server.PresenceService;
+import server.ReplayWindow;
+import server.ReplicaState;
+import server.Replication;
+import server.SearchIndex;
+import server.StateSnapshot;
+import server.UserIndex;
 
 /**
  * This class overrides some of the methods in the abstract 
@@ -38,14 +68,115 @@ public class EchoServer extends ObservableServer
     ChatIF serverUI;
 
     /**
-     * Hashtable to store client's username and password pairs
+     * The client's username and password pairs, persisted to ACCOUNT_FILE
      */
-    private Hashtable<String, String> accounts;
+    private AccountStore accounts;
 
     /**
-     * Hashtable to store channel information
+     * Verifies logins on worker threads
      */
-    private Hashtable<String, ArrayList<ConnectionToClient>> channels;
+    private Authenticator authenticator;
+
+    /**
+     * The channels and their members
+     */
+    private ChannelRegistry channels;
+
+    /**
+     * The connections of each logged in user
+     */
+    private UserIndex users;
+
+    /**
+     * The commands clients can send
+     */
+    private CommandTable commands;
+
+    /**
+     * Renders the messages sent to clients
+     */
+    private MessageFormatter formatter;
+
+    /**
+     * The messages sent to each channel
+     */
+    private ChannelHistory history;
+
+    /**
+     * The private messages kept for users who are not connected
+     */
+    private OfflineInbox inbox;
+
+    /**
+     * Tells clients when the users they watch log in and out
+     */
+    private PresenceService presence;
+
+    /**
+     * The links to the other nodes of the cluster
+     */
+    private Federation federation;
+
+    /**
+     * The sorted list of channels sent by #displayChannels
+     */
+    private ChannelDirectory directory;
+
+    /**
+     * The monitors of the clients that are away
+     */
+    private DelegationRegistry delegations = new DelegationRegistry();
+
+    /**
+     * The users each user ignores and the channels each user muted
+     */
+    private FilterRegistry filters = new FilterRegistry();
+
+    /**
+     * Streams the state of the users to a standby server
+     */
+    private Replication replication;
+
+    /**
+     * The full-text index of channel and private messages
+     */
+    private SearchIndex search;
+
+    /**
+     * Stages the files users share and sends them to the recipients
+     */
+    private FileTransfer transfers;
+
+    /**
+     * The port of the file transfers, 0 for any free port
+     */
+    private volatile int filePort;
+
+    /**
+     * Runs, under the server lock, the rest of the commands that waited for
+     * a channel's shard or for a password check
+     */
+    private ExecutorService completions = Executors
+            .newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, "Command completions");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The command line reused by each thread to tokenize messages
+     */
+    private ThreadLocal<CommandLine> commandLines = new ThreadLocal<CommandLine>()
+    {
+        protected CommandLine initialValue()
+        {
+            return new CommandLine();
+        }
+    };
 
     // Class variables *************************************************
 
@@ -59,6 +190,72 @@ public class EchoServer extends ObservableServer
      */
     final private static String ACCOUNT_FILE = "accounts.txt";
 
+    /**
+     * The default directory of the channel histories
+     */
+    final private static String HISTORY_DIRECTORY = "history";
+
+    /**
+     * The default directory of the offline inboxes
+     */
+    final private static String INBOX_DIRECTORY = "inbox";
+
+    /**
+     * How long offline messages are kept, in milliseconds
+     */
+    final private static long INBOX_TIME_TO_LIVE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The directory of the away message spill files
+     */
+    final private static String AWAY_DIRECTORY = "away";
+
+    /**
+     * The number of away messages sent per frame by #retrieve
+     */
+    final private static int AWAY_PAGE_SIZE = 50;
+
+    /**
+     * The default milliseconds between two presence messages to a client
+     */
+    final private static long PRESENCE_INTERVAL = 1000;
+
+    /**
+     * The number of channels sent per page by #displayChannels
+     */
+    final private static int CHANNEL_PAGE_SIZE = 50;
+
+    /**
+     * The most messages sent for one #history command
+     */
+    final private static int MAX_HISTORY = 1000;
+
+    /**
+     * The default directory of the search index
+     */
+    final private static String SEARCH_DIRECTORY = "search";
+
+    /**
+     * The most messages sent for one #search command
+     */
+    final private static int MAX_SEARCH_HITS = 10;
+
+    /**
+     * The default file of the snapshot of the users' state
+     */
+    final private static String STATE_FILE = "state.snapshot";
+
+    /**
+     * The interval between two snapshots of the users' state, in
+     * milliseconds
+     */
+    final private static long SNAPSHOT_INTERVAL = 60 * 1000;
+
+    /**
+     * The default directory of the files being shared
+     */
+    final private static String TRANSFER_DIRECTORY = "transfers";
+
     // Constructors ****************************************************
 
     /**
@@ -70,389 +267,1845 @@ public class EchoServer extends ObservableServer
     {
         super(port);
         this.serverUI = serverUI;
-        channels = new Hashtable<String, ArrayList<ConnectionToClient>>();
-        accounts = new Hashtable<String, String>();
+        channels = new ChannelRegistry();
+        federation = new Federation(new Federation.Handler()
+        {
+            public void channelMessage(String channelName, String sender,
+                    String message)
+            {
+                history.append(channelName, message);
+                search.add(SearchIndex.channelScope(channelName), message);
+                channels.broadcast(channelName, message, filters.check(
+                        sender, channelName));
+            }
+
+            public void privateMessage(String recipient, String sender,
+                    String message)
+            {
+                search.add(SearchIndex.privateScope(sender, recipient),
+                        formatter.privateFrom(sender, message));
+                deliverPrivate(recipient, sender, message,
+                        users.sessions(recipient));
+            }
+
+            public void broadcast(String message)
+            {
+                sendToAllClients(message);
+            }
+
+            public void channelsChanged()
+            {
+                directory.changed();
+            }
+
+            public void presenceChanged(String loginid)
+            {
+                presence.changed(loginid);
+            }
+        });
+        presence = new PresenceService(new PresenceService.Source()
+        {
+            public boolean isOnline(String loginid)
+            {
+                return users.isOnline(loginid) || federation.hasUser(loginid);
+            }
+        }, PRESENCE_INTERVAL);
+
+        // tell the other nodes which channels have members here
+        channels.setListener(new ChannelRegistry.Listener()
+        {
+            public void channelCreated(String channelName)
+            {
+                directory.changed();
+                federation.channelUp(channelName);
+            }
+
+            public void channelRemoved(String channelName)
+            {
+                directory.changed();
+                federation.channelDown(channelName);
+            }
+        });
+
+        // the channels on this node and on the others, for #displayChannels
+        directory = new ChannelDirectory(new ChannelDirectory.Source()
+        {
+            public Collection<String> channelNames()
+            {
+                Set<String> channelNames = new HashSet<String>(channels
+                        .names());
+                channelNames.addAll(federation.remoteChannels());
+                return channelNames;
+            }
+
+            public int memberCount(String channelName)
+            {
+                // only the members on this node are known
+                return channels.exists(channelName) ? channels
+                        .memberCount(channelName) : -1;
+            }
+        });
+        users = new UserIndex();
+        formatter = new MessageFormatter();
+        history = new ChannelHistory(HISTORY_DIRECTORY);
+        commands = new CommandTable();
+        registerCommands();
 
-        // import accounts from text file
-        File accountFile = new File(ACCOUNT_FILE);
+        // import accounts from the snapshot and log files
         try
         {
-            Scanner input = new Scanner(new FileReader(accountFile));
-            while (input.hasNextLine())
+            accounts = new AccountStore(ACCOUNT_FILE);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + ACCOUNT_FILE, e);
+        }
+        authenticator = new Authenticator(accounts);
+        replication = new Replication(accounts);
+
+        // users reconnecting after a restart get their channels back
+        loadState();
+        Thread snapshotter = new Thread(new Runnable()
+        {
+            public void run()
             {
-                String[] nextAccount = input.nextLine().split(":");
-                accounts.put(nextAccount[0], nextAccount[1]);
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(SNAPSHOT_INTERVAL);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    saveState();
+                }
             }
-            input.close();
+        }, "State snapshotter");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+
+        try
+        {
+            inbox = new OfflineInbox(INBOX_DIRECTORY, INBOX_TIME_TO_LIVE);
         }
-        catch (FileNotFoundException e)
+        catch (IOException e)
         {
+            throw new RuntimeException("Cannot open " + INBOX_DIRECTORY, e);
+        }
 
+        try
+        {
+            search = new SearchIndex(SEARCH_DIRECTORY);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + SEARCH_DIRECTORY, e);
         }
+
+        // the recipients are offered a file once it is staged
+        transfers = new FileTransfer(TRANSFER_DIRECTORY,
+                new FileTransfer.Listener()
+                {
+                    public void uploaded(FileTransfer.Upload upload)
+                    {
+                        offer(upload);
+                    }
+                });
     }
 
     // Instance methods ************************************************
 
     /**
-     * This method handles any messages received from the client.
+     * This method handles any messages received from the client, under the
+     * server lock.
      * @param msg The message received from the client.
      * @param client The connection from which the message originated.
      */
     public void handleMessageFromClient(Object msg, ConnectionToClient client)
     {
-        // if the client is in a channel
-        if (client.getInfo("channel") != null)
+        // a client's messages wait for its command still completing
+        if (client.getInfo("completing") != null)
         {
-            // send message to channel members
-            sendMessageToChannel((String) client.getInfo("channel"), msg,
-                    (String) client.getInfo("loginid"), client);
+            defer(client, msg);
             return;
         }
 
-        String message = (String) msg;
-        String[] line = message.split(" ");
-        if (line[0].equals("#login"))
+        CommandLine line = commandLines.get().parse((String) msg);
+
+        // commands are handled wherever the client is
+        if (line.isCommand())
         {
-            // if username does not exist, create new account
-            if (!accounts.containsKey(line[1]))
-            {
-                accounts.put(line[1], line[2]);
-            }
+            commands.dispatch(client, line);
+            return;
+        }
 
-            // if the username/password does not match
-            if (!accounts.get(line[1]).equalsIgnoreCase(line[2]))
-            {
-                try
-                {
-                    // display error, terminate client
-                    client
-                            .sendToClient("Invalid username/password...disconnecting");
-                    client.close();
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-            else
-            {
+        // if the client has a current channel
+        if (client.getInfo("channel") != null)
+        {
+            // send message to channel members
+            sendMessageToChannel((String) client.getInfo("channel"),
+                    line.text(), (String) client.getInfo("loginid"));
+            return;
+        }
 
-                System.out.println("Message received: " + msg + " from "
-                        + client.getInfo("loginid"));
-                client.setInfo("loginid", line[1]); // Save client's login id
-                String loginMessage = client.getInfo("loginid")
-                        + " has logged on.";
-                System.out.println(loginMessage);
-                this.sendToAllClients(loginMessage); // Notify clients that
-                // this
-                // client has logged on
-            }
+        System.out.println("Message received: " + msg + " from "
+                + client.getInfo("loginid"));
+        String loginid = (String) client.getInfo("loginid");
+        // Messages sent to clients prefixed by this cleint's login id
+        String rendered = formatter.broadcast(loginid, line.text());
+        FilterRegistry.Check check = filters.check(loginid, null);
+        if (check == null)
+        {
+            this.sendToAllClients(rendered);
         }
-        else if (line[0].equals("#private")) // if it is a private message
+        else
         {
-            // get all connected clients
-            Thread[] clientThreadList = getClientConnections();
+            sendToAllClients(rendered, check);
+        }
+        federation.broadcast(rendered);
+    }
 
-            // iterate through all clients
-            for (int i = 0; i < clientThreadList.length; i++)
-            {
-                try
-                {
-                    ConnectionToClient currClient = (ConnectionToClient) clientThreadList[i];
+    /**
+     * Accepts links from the other nodes of the cluster.
+     * @param port the port to listen on for links.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void federate(int port) throws IOException
+    {
+        federation.listen(port);
+    }
 
-                    // if the login id matches the client
-                    if (currClient.getInfo("loginid").equals(line[1]))
-                    {
-                        // send the message to this client
-                        String privateMessage = "";
-                        for (int j = 2; j < line.length; j++)
-                        {
-                            privateMessage += line[j] + " ";
-                        }
+    /**
+     * Links to another node of the cluster, and keeps the link up.
+     * @param host the host of the node.
+     * @param port the port the node listens on for links.
+     */
+    public void link(String host, int port)
+    {
+        federation.link(host, port);
+    }
 
-                        client.sendToClient("To "
-                                + currClient.getInfo("loginid") + ":> "
-                                + privateMessage);
-                        currClient.sendToClient("From "
-                                + client.getInfo("loginid") + ":> "
-                                + privateMessage);
+    /**
+     * Changes how often clients are told of the users logging in and out.
+     * @param interval the interval, in milliseconds.
+     */
+    public void setPresenceInterval(long interval)
+    {
+        presence.setInterval(interval);
+    }
 
-                        if (currClient.getInfo("monitor") != null)
-                        {
-                            ((ConnectionToClient) currClient.getInfo("monitor"))
-                                    .sendToClient("Message for: "
-                                            + currClient.getInfo("loginid")
-                                            + " from "
-                                            + client.getInfo("loginid") + "> "
-                                            + privateMessage);
-                            
-                            // store all messages being monitored
-                            Stack<String> awayMessages = (Stack<String>) currClient.getInfo("awayMessages");
-                            awayMessages.push("From " + client.getInfo("loginid") + ":> " + privateMessage);
-                        }
-                        break;
-                    }
-                }
-                catch (Exception ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
-        }
-        else if (line[0].equals("#create")) // if it is a create command
+    /**
+     * Accepts a standby server, which is sent the state of the users and
+     * can take over if this server dies.
+     * @param port the port to listen on for a standby.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void replicate(int port) throws IOException
+    {
+        replication.listen(port);
+    }
+
+    /**
+     * Makes this server the standby of a primary: it copies the primary's
+     * state instead of listening for clients, and listens on its port once
+     * the primary is gone and the port is free. Clients that reconnect and log in get back their
+     * channels, monitors and away messages.
+     * @param host the host of the primary.
+     * @param port the port the primary accepts a standby on.
+     */
+    public void standby(String host, int port)
+    {
+        replication.follow(host, port, new Replication.Listener()
         {
-            // if the channel already exists
-            if (channels.containsKey(line[1]))
+            public boolean takeOver(long silentMillis)
             {
+                // the port is free once the primary's process is gone
                 try
                 {
-                    client.sendToClient("Error. Channel name taken");
+                    listen();
                 }
                 catch (IOException e)
                 {
-                    e.printStackTrace();
+                    return false;
                 }
+                System.out.println("Took over port " + getPort() + " "
+                        + silentMillis + " ms after the primary was last heard");
+                return true;
             }
-            else
-            {
-                // create the channel
-                ArrayList<ConnectionToClient> newChannel = new ArrayList<ConnectionToClient>();
+        });
+    }
 
-                // add the client
-                newChannel.add(client);
-                client.setInfo("channel", line[1]);
+    /**
+     * Saves the channels, current channel, monitors and away messages of
+     * the users in the snapshot file, to be given back to them when they
+     * log in after a restart. Done on a schedule and when the server quits.
+     * @return a description of the snapshot, for the server console.
+     */
+    public String saveState()
+    {
+        long start = System.nanoTime();
+        Map<String, ReplicaState.User> state = replication.copyState();
+        try
+        {
+            StateSnapshot.save(new File(STATE_FILE), state);
+        }
+        catch (IOException e)
+        {
+            String error = "ERROR - Could not save the state snapshot: "
+                    + e.getMessage();
+            System.out.println(error);
+            return error;
+        }
+        return "State snapshot saved: " + describe(state) + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms";
+    }
 
-                // add channel to hashtable
-                channels.put(line[1], newChannel);
+    /**
+     * Loads the snapshot file, if any. The state of each user is handed out
+     * when the user logs in.
+     */
+    private void loadState()
+    {
+        File file = new File(STATE_FILE);
+        if (!file.exists())
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            Map<String, ReplicaState.User> state = StateSnapshot.load(file,
+                    threads);
+            replication.addSavedState(state);
+            System.out.println("State snapshot loaded: " + describe(state)
+                    + " in " + (System.nanoTime() - start) / 1000000
+                    + " ms with " + threads + " threads");
+        }
+        catch (IOException e)
+        {
+            // a damaged snapshot only costs the users their channels
+            System.out.println("ERROR - Could not load the state snapshot: "
+                    + e.getMessage());
+        }
+    }
 
-                try
-                {
-                    client.sendToClient("You've joined channel " + line[1]);
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
+    private static String describe(Map<String, ReplicaState.User> state)
+    {
+        long memberships = 0;
+        long away = 0;
+        for (ReplicaState.User user : state.values())
+        {
+            memberships += user.channels.size();
+            away += user.away.size();
+        }
+        return state.size() + " users, " + memberships
+                + " channel memberships, " + away + " away messages";
+    }
+
+    /**
+     * @return the replication lag to the standby, or the state copied from
+     * the primary, for the server console.
+     */
+    public String getReplicationStats()
+    {
+        return replication.stats();
+    }
+
+    /**
+     * Listens for the file transfers on a port, instead of any free port
+     * bound at the first upload.
+     * @param port the port of the file transfers.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void listenForFiles(int port) throws IOException
+    {
+        filePort = transfers.listen(port);
+    }
+
+    /**
+     * @return the transfers in progress and the files staged, for the
+     * server console.
+     */
+    public String getFileStats()
+    {
+        return transfers.stats();
+    }
+
+    /**
+     * @return the traffic and round trip time of each link to another node,
+     * for the server console.
+     */
+    public String getFederationStats()
+    {
+        return federation.stats();
+    }
+
+    /**
+     * @return the load of each channel shard, for the server console.
+     */
+    public String getShardStats()
+    {
+        return channels.shardStats();
+    }
+
+    /**
+     * Registers the handlers of the commands clients can send.
+     */
+    private void registerCommands()
+    {
+        commands.register("#login", 2, "#login <loginid> <password>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        login(client, line);
+                    }
+                });
+        commands.register("#id", 2, "#id <n> <message>", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                identified(client, line);
+            }
+        });
+        commands.register("#private", 2, "#private <loginid> <message>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        privateMessage(client, line);
+                    }
+                });
+        commands.register("#create", 1, "#create <channel>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        create(client, line);
+                    }
+                });
+        commands.register("#join", 1, "#join <channel>", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                join(client, line);
+            }
+        });
+        commands.register("#leave", 0, "#leave [channel]",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        leave(client, line);
+                    }
+                });
+        commands.register("#say", 2, "#say <channel> <message>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        say(client, line);
+                    }
+                });
+        commands.register("#displayChannels", 0,
+                "#displayChannels [prefix:<p>] [page:<n>] [version:<v>]",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        displayChannels(client, line);
+                    }
+                });
+        commands.register("#select", 1, "#select <loginid>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        select(client, line);
+                    }
+                });
+        commands.register("#back", 0, "#back [loginid]", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                back(client, line);
+            }
+        });
+        commands.register("#retrieve", 0, "#retrieve", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                retrieve(client);
+            }
+        });
+        commands.register("#history", 1, "#history <n>", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                history(client, line);
+            }
+        });
+        commands.register("#refetch", 4,
+                "#refetch <channel> <epoch> <from> <to>", new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        refetch(client, line);
+                    }
+                });
+        commands.register("#search", 1, "#search [in:<channel>] <terms>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        search(client, line);
+                    }
+                });
+        commands.register("#watch", 1, "#watch <loginid>... | #watch *",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        watch(client, line);
+                    }
+                });
+        commands.register("#unwatch", 1, "#unwatch <loginid>... | #unwatch *",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        unwatch(client, line);
+                    }
+                });
+        commands.register("#ignore", 1, "#ignore <loginid>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        filter(client, line, true, false);
+                    }
+                });
+        commands.register("#unignore", 1, "#unignore <loginid>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        filter(client, line, false, false);
+                    }
+                });
+        commands.register("#mute", 1, "#mute <channel>", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                filter(client, line, true, true);
+            }
+        });
+        commands.register("#unmute", 1, "#unmute <channel>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        filter(client, line, false, true);
+                    }
+                });
+        commands.register("#filters", 0, "#filters", new CommandHandler()
+        {
+            public void handle(ConnectionToClient client, CommandLine line)
+                    throws IOException
+            {
+                listFilters(client);
+            }
+        });
+        commands.register("#upload", 4,
+                "#upload <tag> <channel|@loginid> <size> <name>",
+                new CommandHandler()
+                {
+                    public void handle(ConnectionToClient client,
+                            CommandLine line) throws IOException
+                    {
+                        upload(client, line);
+                    }
+                });
+    }
+
+    /**
+     * Handles #login: logs the client in, creating its account if needed.
+     * @param client the connection the command came from.
+     * @param line #login loginid password
+     */
+    private void login(final ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        final String loginid = line.arg(1);
+        String password = line.arg(2);
+
+        // the account files hold one loginid:password record per line
+        if (loginid.indexOf(':') >= 0)
+        {
+            client.sendToClient("Error. Login id cannot contain ':'");
+            return;
+        }
+
+        // the password is checked by a worker; the login completes, and the
+        // client's next messages are handled, once it is done
+        hold(client);
+        boolean queued = authenticator.login(loginid, password,
+                new Authenticator.Callback()
+                {
+                    public void authenticated(final boolean success)
+                    {
+                        complete(client, new Completion()
+                        {
+                            public void run() throws IOException
+                            {
+                                completeLogin(client, loginid, success);
+                            }
+                        });
+                    }
+                });
+        if (!queued)
+        {
+            release(client);
+            client.sendToClient("Error. Server busy, try again later");
+        }
+    }
+
+    /**
+     * Completes #login once the password has been checked, under the server
+     * lock, unless the client has disconnected meanwhile.
+     * @param client the connection the command came from.
+     * @param loginid the login id.
+     * @param success true if the password matched.
+     */
+    private void completeLogin(final ConnectionToClient client,
+            String loginid, boolean success) throws IOException
+    {
+        // if the username/password does not match
+        if (!success)
+        {
+            // display error, terminate client
+            client.sendToClient("Invalid username/password...disconnecting");
+            client.close();
+            return;
+        }
+
+        System.out.println("Message received: #login " + loginid
+                + " from " + client.getInfo("loginid"));
+
+        if (!addSession(client, loginid))
+        {
+            return;
+        }
+        String loginMessage = loginid + " has logged on.";
+        System.out.println(loginMessage);
+        // the watchers of the client are told in the next presence
+        // message
+        client.sendToClient(loginMessage);
+
+        // the state the user had on the primary this server took over
+        restore(client, loginid);
+
+        // private messages received while offline, in a few frames
+        inbox.deliver(loginid, new OfflineInbox.Recipient()
+        {
+            boolean first = true;
+
+            public void deliver(String page) throws IOException
+            {
+                if (first)
+                {
+                    client.sendToClient("====Messages received while offline====");
+                    first = false;
+                }
+                client.sendToClient(page);
+            }
+        });
+    }
+
+    /**
+     * Gives a client logging in the state its user had on the primary, if
+     * this server took over from one: its channels, current channel,
+     * monitors and away messages, and the users it monitored. The channels
+     * are joined one after the other, and the rest is restored after the
+     * last; if the client disconnects before, the state is kept for its
+     * next login.
+     * @param client the connection logging in.
+     * @param loginid the login id.
+     */
+    private void restore(ConnectionToClient client, String loginid)
+            throws IOException
+    {
+        ReplicaState.User user = replication.restore(loginid);
+        if (user != null)
+        {
+            client.setInfo("restoring", user);
+            restoreChannels(client, loginid, user, user.channels.iterator());
+        }
+
+        // the users that had selected this user as monitor
+        List<String> delegators = replication.restoreDelegators(loginid);
+        if (delegators != null)
+        {
+            for (String delegator : delegators)
+            {
+                // a delegator still being restored adds this monitor itself
+                // once its away messages are set up
+                ConnectionToClient[] sessions = users.sessions(delegator);
+                if (sessions.length > 0
+                        && sessions[0].getInfo("restoring") == null
+                        && delegations.add(sessions[0], client))
+                {
+                    replication.monitorAdded(delegator, loginid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins a restored client to the next of its channels, creating the
+     * channels that no longer exist, then restores the rest of its state.
+     */
+    private void restoreChannels(final ConnectionToClient client,
+            final String loginid, final ReplicaState.User user,
+            final Iterator<String> channelNames) throws IOException
+    {
+        if (!channelNames.hasNext())
+        {
+            restored(client, loginid, user);
+            return;
+        }
+        final String channelName = channelNames.next();
+        channels.join(channelName, client, true, new ChannelCompletion(client)
+        {
+            void completed(boolean applied) throws IOException
+            {
+                if (applied)
+                {
+                    replication.joined(loginid, channelName);
+                }
+                restoreChannels(client, loginid, user, channelNames);
+            }
+        });
+    }
+
+    /**
+     * Restores the current channel, monitors and away messages of a client
+     * once it has joined its channels.
+     */
+    private void restored(ConnectionToClient client, String loginid,
+            ReplicaState.User user) throws IOException
+    {
+        client.setInfo("restoring", null);
+
+        if (user.channel != null
+                && channels.isMember(user.channel, client))
+        {
+            client.setInfo("channel", user.channel);
+            replication.switched(loginid, user.channel);
+        }
+
+        // away messages are kept from the first monitor on
+        if (!user.monitors.isEmpty() || !user.away.isEmpty())
+        {
+            AwayMessages awayMessages = new AwayMessages(new File(
+                    AWAY_DIRECTORY));
+            for (String message : user.away)
+            {
+                awayMessages.add(message);
+                replication.awayMessage(loginid, message);
+            }
+            client.setInfo("awayMessages", awayMessages);
+        }
+        for (String monitor : user.monitors)
+        {
+            ConnectionToClient[] sessions = users.sessions(monitor);
+            if (sessions.length > 0 && delegations.add(client, sessions[0]))
+            {
+                replication.monitorAdded(loginid, monitor);
+            }
+        }
+        client.sendToClient("Session restored: " + user.channels.size()
+                + " channels, " + user.monitors.size() + " monitors, "
+                + user.away.size() + " away messages");
+    }
+
+    /**
+     * Records the login id of a client. Synchronized with
+     * <code>clientDisconnected</code> so that a client leaving while its
+     * password was being checked is not left in the user index.
+     * @param client the connection.
+     * @param loginid the login id.
+     * @return false if the client has already disconnected.
+     */
+    synchronized private boolean addSession(ConnectionToClient client,
+            String loginid)
+    {
+        if (client.getInfo("disconnected") != null)
+        {
+            return false;
+        }
+
+        // a connection logging in again drops its previous identity
+        if (client.getInfo("loginid") != null)
+        {
+            removeSession(client);
+        }
+        client.setInfo("loginid", loginid); // Save client's login id
+        users.add(loginid, client);
+        filters.login((Integer) client.getInfo("connectionId"), loginid);
+        federation.userUp(loginid);
+        presence.changed(loginid);
+        return true;
+    }
+
+    /**
+     * Forgets the login id of a client, and tells the other nodes when it
+     * was the user's last session here. Called with this lock held.
+     * @param client the connection.
+     */
+    private void removeSession(ConnectionToClient client)
+    {
+        String loginid = (String) client.getInfo("loginid");
+        users.remove(loginid, client);
+        if (!users.isOnline(loginid))
+        {
+            federation.userDown(loginid);
+            replication.loggedOff(loginid);
+        }
+        presence.changed(loginid);
+    }
+
+    /**
+     * Handles #private: sends a message to every session of a user, on this
+     * node and on the others, and to the user's monitors if the user is away.
+     * @param client the connection the command came from.
+     * @param line #private loginid message...
+     */
+    private void privateMessage(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        String sender = (String) client.getInfo("loginid");
+        if (sender == null)
+        {
+            client.sendToClient("Error. You must be logged in to send private messages");
+            return;
+        }
+
+        // get every session of the recipient on this node
+        String recipient = line.arg(1);
+        ConnectionToClient[] recipients = users.sessions(recipient);
+        boolean remote = federation.hasUser(recipient);
+        if (recipients.length == 0 && !remote
+                && !accounts.containsKey(recipient))
+        {
+            return;
+        }
+
+        String privateMessage = line.rest(2);
+        client.sendToClient(formatter.privateTo(recipient, privateMessage));
+        search.add(SearchIndex.privateScope(sender, recipient),
+                formatter.privateFrom(sender, privateMessage));
+
+        // keep it until the recipient logs in, unless the recipient
+        // ignores the sender, who is not told, as when online
+        if (recipients.length == 0 && !remote)
+        {
+            if (filters.ignores(recipient, sender))
+            {
+                return;
+            }
+            inbox.add(recipient, formatter.privateFrom(sender,
+                    privateMessage));
+            client.sendToClient(recipient
+                    + " is offline, the message will be delivered at next login");
+            return;
+        }
+
+        // the other nodes render and deliver it to their own sessions
+        if (remote)
+        {
+            federation.sendPrivate(recipient, sender, privateMessage);
+        }
+        deliverPrivate(recipient, sender, privateMessage, recipients);
+    }
+
+    /**
+     * Sends a private message to sessions of its recipient on this node,
+     * and to their monitors. If the recipient has logged off in the
+     * meantime, the message is kept for the next login.
+     * @param recipient the login id of the recipient.
+     * @param sender the login id of the sender.
+     * @param privateMessage the text of the message.
+     * @param recipients the sessions of the recipient.
+     */
+    private void deliverPrivate(String recipient, String sender,
+            String privateMessage, ConnectionToClient[] recipients)
+    {
+        // an ignored sender is not told
+        if (filters.ignores(recipient, sender))
+        {
+            return;
+        }
+
+        // render each form of the message once for all recipients
+        String received = formatter.privateFrom(sender, privateMessage);
+        String monitored = null;
+        if (recipients.length == 0 && !federation.hasUser(recipient))
+        {
+            inbox.add(recipient, received);
+            return;
+        }
+
+        // a monitor of several sessions of the recipient gets one copy
+        ArrayList<ConnectionToClient> forwarded = null;
+        for (ConnectionToClient currClient : recipients)
+        {
+            try
+            {
+                // send the message to this client
+                currClient.sendToClient(received);
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            ConnectionToClient[] monitors = delegations.monitorsOf(currClient);
+            if (monitors.length == 0)
+            {
+                continue;
+            }
+
+            // store all messages being monitored
+            AwayMessages awayMessages = (AwayMessages) currClient
+                    .getInfo("awayMessages");
+            awayMessages.add(received);
+            replication.awayMessage(recipient, received);
+
+            // every monitor is sent the same rendered message
+            if (monitored == null)
+            {
+                monitored = formatter.monitored(recipient, sender,
+                        privateMessage);
+            }
+            for (ConnectionToClient monitor : monitors)
+            {
+                if (recipients.length > 1)
+                {
+                    if (forwarded == null)
+                    {
+                        forwarded = new ArrayList<ConnectionToClient>();
+                    }
+                    else if (forwarded.contains(monitor))
+                    {
+                        continue;
+                    }
+                    forwarded.add(monitor);
+                }
+                try
+                {
+                    monitor.sendToClient(monitored);
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles #create: creates a channel with the client as first member,
+     * and makes it the client's current channel.
+     * @param client the connection the command came from.
+     * @param line #create channel
+     */
+    private void create(final ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        // create the channel with the client as its first member,
+        // unless the channel already exists here or on another node
+        final String channelName = line.arg(1);
+        if (federation.hasChannel(channelName))
+        {
+            client.sendToClient("Error. Channel name taken");
+            return;
+        }
+        channels.create(channelName, client, new ChannelCompletion(client)
+        {
+            void completed(boolean applied) throws IOException
+            {
+                if (!applied)
+                {
+                    client.sendToClient("Error. Channel name taken");
+                    return;
+                }
+                client.setInfo("channel", channelName);
+                replicateJoin(client, channelName);
+                client.sendToClient("You've joined channel " + channelName);
+            }
+        });
+    }
+
+    /**
+     * Handles #join: adds the client to an existing channel, and makes it the
+     * client's current channel.
+     * @param client the connection the command came from.
+     * @param line #join channel
+     */
+    private void join(final ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        // if the client is already in that channel
+        final String channelName = line.arg(1);
+        if (channels.isMember(channelName, client))
+        {
+            client.sendToClient("Error. You are already in " + channelName);
+            return;
+        }
+
+        // add the client, unless the channel does not exist; a channel
+        // with members on other nodes only is started here
+        channels.join(channelName, client, federation.hasChannel(channelName),
+                new ChannelCompletion(client)
+                {
+                    void completed(boolean applied) throws IOException
+                    {
+                        if (!applied)
+                        {
+                            client.sendToClient("Error. Channel does not exist");
+                            return;
+                        }
+                        client.setInfo("channel", channelName);
+                        replicateJoin(client, channelName);
+                        client.sendToClient("You've successfully joined "
+                                + channelName);
+                    }
+                });
+    }
+
+    /**
+     * Records for the standby that a client joined a channel, which became
+     * its current channel.
+     */
+    private void replicateJoin(ConnectionToClient client, String channelName)
+    {
+        String loginid = (String) client.getInfo("loginid");
+        replication.joined(loginid, channelName);
+        replication.switched(loginid, channelName);
+    }
+
+    /**
+     * Handles #leave: removes the client from a channel, by default its
+     * current channel.
+     * @param client the connection the command came from.
+     * @param line #leave [channel]
+     */
+    private void leave(final ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        final String current = (String) client.getInfo("channel");
+        final String channelName = line.argCount() > 0 ? line.arg(1)
+                : current;
+
+        // if the client is not in a channel
+        if (channelName == null)
+        {
+            client.sendToClient("Error. You are not in a channel");
+            return;
+        }
+
+        // remove the client, the channel goes away with its last member
+        channels.leave(channelName, client, new ChannelCompletion(client)
+        {
+            void completed(boolean applied) throws IOException
+            {
+                if (!applied)
+                {
+                    client.sendToClient("Error. You are not in "
+                            + channelName);
+                    return;
+                }
+                if (channelName.equals(current))
+                {
+                    client.setInfo("channel", null);
+                }
+                replication.left((String) client.getInfo("loginid"),
+                        channelName);
+                client.sendToClient("You've left " + channelName);
+            }
+        });
+    }
+
+    /**
+     * Handles #say: sends a message to one of the client's channels, which
+     * need not be its current channel.
+     * @param client the connection the command came from.
+     * @param line #say channel message...
+     */
+    private void say(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        String channelName = line.arg(1);
+        if (!channels.isMember(channelName, client))
+        {
+            client.sendToClient("Error. You are not in " + channelName);
+            return;
+        }
+        sendMessageToChannel(channelName, line.rest(2),
+                (String) client.getInfo("loginid"));
+    }
+
+    /**
+     * Handles #displayChannels: sends a page of the channels whose names
+     * start with a prefix, with their number of members, or tells the
+     * client that the channels are unchanged since the version it has.
+     * @param client the connection the command came from.
+     * @param line #displayChannels [prefix:p] [page:n] [version:v]
+     */
+    private void displayChannels(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        String prefix = "";
+        int page = 1;
+        long version = -1;
+        try
+        {
+            for (int i = 1; i <= line.argCount(); i++)
+            {
+                String option = line.arg(i);
+                if (option.startsWith("prefix:"))
+                {
+                    prefix = option.substring(7);
+                }
+                else if (option.startsWith("page:"))
+                {
+                    page = Integer.parseInt(option.substring(5));
+                }
+                else if (option.startsWith("version:"))
+                {
+                    version = Long.parseLong(option.substring(8));
+                }
+                else
+                {
+                    throw new NumberFormatException(option);
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            client.sendToClient("Error. Usage: #displayChannels [prefix:<p>] [page:<n>] [version:<v>]");
+            return;
+        }
+
+        // the channel list has not changed since the client's copy
+        if (version >= 0 && version == directory.version())
+        {
+            client.sendToClient("Channels not modified (version " + version
+                    + ")");
+            return;
+        }
+
+        // construct the page and send it to the client
+        ChannelDirectory.Page channelPage = directory.page(prefix, page,
+                CHANNEL_PAGE_SIZE);
+        StringBuilder channelList = new StringBuilder("Available Channels (")
+                .append(channelPage.matching).append(" channels, page ")
+                .append(channelPage.number).append(" of ")
+                .append(channelPage.pageCount).append(", version ")
+                .append(channelPage.version).append("):\n");
+        for (int i = 0; i < channelPage.names.length; i++)
+        {
+            channelList.append(channelPage.names[i]);
+            int members = channelPage.memberCounts[i];
+            if (members < 0)
+            {
+                channelList.append(" (on other nodes)");
+            }
+            else
+            {
+                channelList.append(" (").append(members).append(
+                        members == 1 ? " member)" : " members)");
+            }
+            channelList.append('\n');
+        }
+        client.sendToClient(channelList.toString());
+    }
+
+    /**
+     * Handles #select: makes another user a monitor of the client's private
+     * messages while the client is away. A client may have several
+     * monitors.
+     * @param client the connection the command came from.
+     * @param line #select loginid
+     */
+    private void select(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        // get a session of the selected user
+        ConnectionToClient[] sessions = users.sessions(line.arg(1));
+        if (sessions.length == 0)
+        {
+            return;
+        }
+        ConnectionToClient currClient = sessions[0];
+
+        // store messages when client is away, from the first monitor on
+        if (delegations.monitorsOf(client).length == 0)
+        {
+            AwayMessages previous = (AwayMessages) client
+                    .getInfo("awayMessages");
+            if (previous != null)
+            {
+                previous.close();
+            }
+            client.setInfo("awayMessages", new AwayMessages(new File(
+                    AWAY_DIRECTORY)));
+            replication.awayCleared((String) client.getInfo("loginid"));
+        }
+
+        // lock in client for monitoring
+        if (!delegations.add(client, currClient))
+        {
+            client.sendToClient("Error. " + line.arg(1)
+                    + " is already your monitor");
+            return;
+        }
+        replication.monitorAdded((String) client.getInfo("loginid"),
+                line.arg(1));
+        currClient.sendToClient("**Congratulations!** \n You have been selected to be a message monitor by "
+                + client.getInfo("loginid"));
+    }
+
+    /**
+     * Handles #back: relieves the client's monitors, or one of them.
+     * @param client the connection the command came from.
+     * @param line #back [loginid]
+     */
+    private void back(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        ConnectionToClient[] relieved;
+        if (line.argCount() == 0)
+        {
+            relieved = delegations.removeMonitors(client);
+        }
+        else
+        {
+            // the sessions of the user that monitor the client
+            ArrayList<ConnectionToClient> monitors = new ArrayList<ConnectionToClient>();
+            for (ConnectionToClient session : users.sessions(line.arg(1)))
+            {
+                if (delegations.remove(client, session))
+                {
+                    monitors.add(session);
+                }
+            }
+            relieved = monitors.toArray(new ConnectionToClient[monitors
+                    .size()]);
+        }
+        if (relieved.length == 0)
+        {
+            client.sendToClient("Error. You have no monitor");
+            return;
+        }
+
+        String loginid = (String) client.getInfo("loginid");
+        String message = loginid + " is back\n"
+                + "You are relieved of your monitoring duties";
+        for (ConnectionToClient monitor : relieved)
+        {
+            replication.monitorRemoved(loginid, (String) monitor
+                    .getInfo("loginid"));
+            monitor.sendToClient(message);
+        }
+    }
+
+    /**
+     * Handles #retrieve: sends the client the messages received while it
+     * was away.
+     * @param client the connection the command came from.
+     */
+    private void retrieve(final ConnectionToClient client) throws IOException
+    {
+        AwayMessages awayMessages = (AwayMessages) client
+                .getInfo("awayMessages");
+        if (awayMessages == null)
+        {
+            client.sendToClient("Error. You have no away messages");
+            return;
+        }
+
+        // all messages sent to user during the time user is away is forwarded to user
+        // in pages of several messages per frame
+        client.sendToClient("====Start Away Messages====");
+        awayMessages.pages(AWAY_PAGE_SIZE, new AwayMessages.PageHandler()
+        {
+            public void page(String page) throws IOException
+            {
+                client.sendToClient(page);
+            }
+        });
+        client.sendToClient("====End Away Messages====");
+    }
+
+    /**
+     * Handles #history: sends the last messages of the client's channel.
+     * @param client the connection the command came from.
+     * @param line #history n
+     */
+    private void history(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        // if the client is not in a channel
+        String channelName = (String) client.getInfo("channel");
+        if (channelName == null)
+        {
+            client.sendToClient("Error. You are not in a channel");
+            return;
+        }
+
+        int n;
+        try
+        {
+            n = Integer.parseInt(line.arg(1));
+        }
+        catch (NumberFormatException e)
+        {
+            client.sendToClient("Error. Usage: #history <n>");
+            return;
+        }
+
+        for (String message : history.last(channelName, Math.min(n,
+                MAX_HISTORY)))
+        {
+            client.sendToClient(message);
+        }
+    }
+
+    /**
+     * Handles #refetch: sends again the messages of a channel a client
+     * found missing from the sequence numbers it received.
+     * @param client the connection the command came from.
+     * @param line #refetch channel epoch from to
+     */
+    private void refetch(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        String channelName = line.arg(1);
+        if (!channels.isMember(channelName, client))
+        {
+            client.sendToClient("Error. You are not a member of "
+                    + channelName);
+            return;
+        }
+        long epoch;
+        long from;
+        long to;
+        try
+        {
+            epoch = Long.parseLong(line.arg(2));
+            from = Long.parseLong(line.arg(3));
+            to = Long.parseLong(line.arg(4));
+        }
+        catch (NumberFormatException e)
+        {
+            client.sendToClient("Error. Usage: #refetch <channel> <epoch> <from> <to>");
+            return;
+        }
+        channels.refetch(channelName, client, epoch, from, to);
+    }
+
+    /**
+     * Handles #search: sends the best ranked messages holding the terms, in
+     * the channels the client is a member of, or in one of them, and in the
+     * client's private conversations.
+     * @param client the connection the command came from.
+     * @param line #search [in:channel] terms...
+     */
+    private void search(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        final String loginid = (String) client.getInfo("loginid");
+        String query = line.rest(1);
+        final HashSet<String> scopes = new HashSet<String>();
+        if (line.arg(1).startsWith("in:"))
+        {
+            String channelName = line.arg(1).substring(3);
+            if (!channels.isMember(channelName, client))
+            {
+                client.sendToClient("Error. You are not a member of "
+                        + channelName);
+                return;
+            }
+            scopes.add(SearchIndex.channelScope(channelName));
+            query = line.rest(2);
+        }
+        else
+        {
+            for (String channelName : channels.channelsOf(client))
+            {
+                scopes.add(SearchIndex.channelScope(channelName));
+            }
+        }
+        // a client that has not logged in has no private conversations
+        final boolean privates = loginid != null
+                && !line.arg(1).startsWith("in:");
+
+        long start = System.nanoTime();
+        List<SearchIndex.Hit> hits = search.search(query,
+                new SearchIndex.ScopeFilter()
+                {
+                    public boolean accept(String scope)
+                    {
+                        return scopes.contains(scope) || (privates
+                                && SearchIndex.isPrivateScopeOf(scope,
+                                        loginid));
+                    }
+                }, MAX_SEARCH_HITS);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        // one frame for the whole result
+        StringBuilder reply = new StringBuilder("Search: ")
+                .append(hits.size()).append(hits.size() == 1 ? " hit" : " hits")
+                .append(" for '").append(query).append("' (")
+                .append(elapsed).append(" ms)");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (SearchIndex.Hit hit : hits)
+        {
+            reply.append('\n').append(format.format(new Date(hit.time)))
+                    .append(' ').append(hit.message);
+        }
+        client.sendToClient(reply.toString());
+    }
+
+    /**
+     * Handles #watch: subscribes the client to the presence of some users,
+     * or of everyone with *.
+     * @param client the connection the command came from.
+     * @param line #watch loginid... or #watch *
+     */
+    private void watch(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        StringBuilder reply = new StringBuilder("Watching");
+        for (int i = 1; i <= line.argCount(); i++)
+        {
+            String loginid = line.arg(i);
+            presence.watch(client, loginid);
+            if (loginid.equals(PresenceService.EVERYONE))
+            {
+                reply.append(" everyone");
+            }
+            else
+            {
+                boolean online = users.isOnline(loginid)
+                        || federation.hasUser(loginid);
+                reply.append(' ').append(loginid).append(
+                        online ? " (online)" : " (offline)");
+            }
+            reply.append(i < line.argCount() ? "," : "");
+        }
+        client.sendToClient(reply.toString());
+    }
+
+    /**
+     * Handles #unwatch: unsubscribes the client from the presence of some
+     * users, or of everyone with *.
+     * @param client the connection the command came from.
+     * @param line #unwatch loginid... or #unwatch *
+     */
+    private void unwatch(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        for (int i = 1; i <= line.argCount(); i++)
+        {
+            presence.unwatch(client, line.arg(i));
+        }
+        client.sendToClient("Stopped watching " + line.rest(1));
+    }
+
+    /**
+     * Handles #id: a message or command numbered by the client, so that a
+     * client retrying it after a timeout does not have it handled twice.
+     * A new id is handled and acknowledged with #ack n; an id already seen
+     * in the session is only acknowledged, with #ack n duplicate.
+     * @param client the connection the command came from.
+     * @param line #id n message...
+     */
+    private void identified(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        long id;
+        try
+        {
+            id = Long.parseLong(line.arg(1));
         }
-        else if (line[0].equals("#join")) // if it is a join command
+        catch (NumberFormatException e)
         {
-            // if the client is already in a channel
-            if (client.getInfo("channel") != null)
-            {
-                try
-                {
-                    client.sendToClient("Error. You are already in a channel");
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-
-                return;
-            }
+            client.sendToClient("Error. Bad message id " + line.arg(1));
+            return;
+        }
+        if (id <= 0)
+        {
+            client.sendToClient("Error. Bad message id " + line.arg(1));
+            return;
+        }
 
-            // if the channel does not exist
-            if (!channels.containsKey(line[1]))
-            {
-                try
-                {
-                    client.sendToClient("Error. Channel does not exist");
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+        // the window lives as long as the connection
+        ReplayWindow window = (ReplayWindow) client.getInfo("replayWindow");
+        if (window == null)
+        {
+            window = new ReplayWindow();
+            client.setInfo("replayWindow", window);
+        }
+        if (!window.accept(id))
+        {
+            client.sendToClient("#ack " + id + " duplicate");
+            return;
+        }
 
-                return;
-            }
+        // the line is parsed again; take the message out first
+        String message = line.rest(2);
+        handleMessageFromClient(message, client);
+        client.sendToClient("#ack " + id);
+    }
 
-            // get the channel
-            ArrayList<ConnectionToClient> theChannel = channels.get(line[1]);
+    /**
+     * Handles #ignore, #unignore, #mute and #unmute: changes what the
+     * client's user filters out. Ignored users' channel, broadcast and
+     * private messages are dropped; muted channels' messages are dropped.
+     * @param client the connection the command came from.
+     * @param line the command and the login id or channel.
+     * @param add true to start filtering, false to stop.
+     * @param channel true for a channel, false for a user.
+     */
+    private void filter(ConnectionToClient client, CommandLine line,
+            boolean add, boolean channel) throws IOException
+    {
+        String loginid = (String) client.getInfo("loginid");
+        if (loginid == null)
+        {
+            client.sendToClient("Error. You must be logged in to filter messages");
+            return;
+        }
+        String name = line.arg(1);
+        if (!channel && name.equals(loginid))
+        {
+            client.sendToClient("Error. You cannot ignore yourself");
+            return;
+        }
+        boolean changed;
+        if (channel)
+        {
+            changed = add ? filters.mute(loginid, name) : filters.unmute(
+                    loginid, name);
+        }
+        else
+        {
+            changed = add ? filters.ignore(loginid, name) : filters
+                    .unignore(loginid, name);
+        }
+        String what = (channel ? "channel " : "") + name;
+        if (!changed)
+        {
+            client.sendToClient("Error. " + what + " is "
+                    + (add ? "already" : "not")
+                    + (channel ? " muted" : " ignored"));
+        }
+        else
+        {
+            client.sendToClient((add ? "" : "No longer ")
+                    + (channel ? (add ? "Muting " : "muting ") : (add
+                            ? "Ignoring " : "ignoring ")) + what);
+        }
+    }
 
-            // add the client
-            theChannel.add(client);
-            client.setInfo("channel", line[1]);
+    /**
+     * Handles #filters: lists the users and channels the client's user
+     * filters out.
+     * @param client the connection the command came from.
+     */
+    private void listFilters(ConnectionToClient client) throws IOException
+    {
+        String loginid = (String) client.getInfo("loginid");
+        if (loginid == null)
+        {
+            client.sendToClient("Error. You must be logged in to filter messages");
+            return;
+        }
+        List<String> ignored = filters.ignored(loginid);
+        List<String> muted = filters.muted(loginid);
+        client.sendToClient("Ignoring: "
+                + (ignored.isEmpty() ? "nobody" : String.join(", ", ignored))
+                + "\nMuted channels: "
+                + (muted.isEmpty() ? "none" : String.join(", ", muted)));
+    }
 
-            try
-            {
-                client.sendToClient("You've successfully joined " + line[1]);
-            }
-            catch (IOException e)
+    /**
+     * Handles #upload: gives the client a token to send a file to a channel
+     * it is a member of, or to a user logged in on this node, on the port
+     * of the file transfers. The reply is #upload-ready tag port token, or
+     * #upload-failed tag reason; the tag is the client's own name for the
+     * upload. The recipients are offered the file once it is received.
+     * @param client the connection the command came from.
+     * @param line #upload tag target size name...
+     */
+    private void upload(ConnectionToClient client, CommandLine line)
+            throws IOException
+    {
+        String tag = line.arg(1);
+        String target = line.arg(2);
+        String loginid = (String) client.getInfo("loginid");
+        String reason = null;
+        long size = -1;
+        try
+        {
+            size = Long.parseLong(line.arg(3));
+        }
+        catch (NumberFormatException e)
+        {
+            // reported below
+        }
+        if (loginid == null)
+        {
+            reason = "You must be logged in to send files";
+        }
+        else if (size < 0 || size > FileTransfer.MAX_FILE_SIZE)
+        {
+            reason = "Bad size " + line.arg(3);
+        }
+        else if (target.startsWith("@"))
+        {
+            // files are kept on this node, so only its users can get them
+            if (users.sessions(target.substring(1)).length == 0)
             {
-                e.printStackTrace();
+                reason = target.substring(1) + " is not logged in here";
             }
         }
-        else if (line[0].equals("#displayChannels")) // if it is a
-        // displayChannels
-        // command
+        else if (!channels.isMember(target, client))
+        {
+            reason = "You are not a member of " + target;
+        }
+        if (reason != null)
         {
-            // get all the channel names
-            Set<String> channelNames = channels.keySet();
+            client.sendToClient("#upload-failed " + tag + " " + reason);
+            return;
+        }
 
-            // construct the list and send to the client
-            String channelList = "Available Channels:\n";
-            for (String s : channelNames)
-            {
-                channelList += s + "\n";
-            }
-            try
-            {
-                client.sendToClient(channelList);
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-            }
+        try
+        {
+            // any free port is bound at the first upload
+            filePort = transfers.listen(filePort);
         }
-        else if (line[0].equals("#select"))
+        catch (IOException e)
         {
-            // get all connected clients
-            Thread[] clientThreadList = getClientConnections();
+            client.sendToClient("#upload-failed " + tag
+                    + " Files cannot be received now");
+            return;
+        }
+        FileTransfer.Upload upload = transfers.announce(loginid, target,
+                line.rest(4), size);
+        client.sendToClient("#upload-ready " + tag + " " + filePort + " "
+                + upload.token);
+    }
 
-            for (int i = 0; i < clientThreadList.length; i++)
-            {
-                try
-                {
-                    ConnectionToClient currClient = (ConnectionToClient) clientThreadList[i];
+    /**
+     * Offers a file just uploaded to the members of its channel, or to the
+     * sessions of its recipient, as #file id port token sender size name.
+     * Those who filter out the sender or the channel are not offered it.
+     * @param upload the file.
+     */
+    private void offer(FileTransfer.Upload upload)
+    {
+        String offer = "#file " + upload.id + " " + filePort + " "
+                + upload.token + " " + upload.sender + " " + upload.size
+                + " " + upload.name;
+        if (!upload.target.startsWith("@"))
+        {
+            channels.broadcast(upload.target, offer, filters.check(
+                    upload.sender, upload.target));
+            return;
+        }
 
-                    // if the login id matches the client
-                    if (currClient.getInfo("loginid").equals(line[1]))
-                    {
-                        // lock in client for monitoring
-                        client.setInfo("monitor", currClient);
-                        
-                        // store messages when client is away
-                        client.setInfo("awayMessages", new Stack<String>());
-                        currClient.setInfo("monitee", client);
-                        currClient
-                                .sendToClient("**Congratulations!** \n You have been selected to be a message monitor by "
-                                        + client.getInfo("loginid"));
-                        break;
-                    }
-                }
-                catch (Exception ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
+        String recipient = upload.target.substring(1);
+        if (filters.ignores(recipient, upload.sender))
+        {
+            return;
         }
-        else if (line[0].equals("#back"))
+        for (ConnectionToClient session : users.sessions(recipient))
         {
-            ConnectionToClient monitee = (ConnectionToClient) client
-                    .getInfo("monitor");
             try
             {
-                monitee.sendToClient(client.getInfo("loginid") + " is back\n"
-                        + "You are relieved of your monitoring duties");
-                monitee.setInfo("monitee", null);
+                session.sendToClient(offer);
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                // the recipient went away
             }
-
-            client.setInfo("monitor", null);
         }
-        else if (line[0].equals("#retrieve"))
+    }
+
+    /**
+     * Makes a client's next messages wait until its command in progress
+     * completes. Called with the server lock held.
+     * @param client the connection.
+     */
+    private void hold(ConnectionToClient client)
+    {
+        Integer completing = (Integer) client.getInfo("completing");
+        client.setInfo("completing", completing == null ? 1 : completing + 1);
+    }
+
+    /**
+     * Ends a hold of a client, and handles the messages it sent meanwhile
+     * once none is left. Called with the server lock held.
+     * @param client the connection.
+     */
+    private void release(ConnectionToClient client)
+    {
+        int completing = (Integer) client.getInfo("completing") - 1;
+        client.setInfo("completing", completing == 0 ? null : completing);
+        Deferred deferred = (Deferred) client.getInfo("deferred");
+        while (deferred != null && !deferred.isEmpty()
+                && client.getInfo("completing") == null
+                && client.getInfo("disconnected") == null)
         {
-            Stack<String> awayMessages = (Stack<String>) client.getInfo("awayMessages");
             try
             {
-                // all messages sent to user during the time user is away is forwarded to user
-                client.sendToClient("====Start Away Messages====");
-                for(String s: awayMessages)
-                {
-                    client.sendToClient(s);
-                }
-                client.sendToClient("====End Away Messages====");
+                handleMessageFromClient(deferred.poll(), client);
             }
-            catch (IOException e)
+            catch (RuntimeException e)
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                // as on the connection's thread, the next message goes on
+                clientException(client, e);
             }
         }
-        else
+    }
+
+    /**
+     * Keeps a message of a client until its command in progress completes.
+     * Called with the server lock held.
+     */
+    private void defer(ConnectionToClient client, Object message)
+    {
+        Deferred deferred = (Deferred) client.getInfo("deferred");
+        if (deferred == null)
         {
-            System.out.println("Message received: " + msg + " from "
-                    + client.getInfo("loginid"));
-            String loginid = (String) client.getInfo("loginid");
-            // Messages sent to clients prefixed by this cleint's login id
-            this.sendToAllClients(loginid + " says: " + msg);
+            deferred = new Deferred();
+            client.setInfo("deferred", deferred);
         }
+        deferred.add(message);
     }
 
     /**
-     * Sends a message to all the clients in a channel
-     * @param channelName name of the channel
-     * @param message message to send
-     * @param loginid login id of the sender
+     * Runs the rest of a client's command on the completions thread, under
+     * the server lock like the handling of the client's messages and of
+     * its disconnection, then releases the client. Nothing runs for a
+     * client that disconnected meanwhile.
+     * @param client the connection.
+     * @param completion the rest of the command.
      */
-    private void sendMessageToChannel(String channelName, Object msg,
-            String loginid, ConnectionToClient client)
+    private void complete(final ConnectionToClient client,
+            final Completion completion)
     {
-        String message = (String) msg;
-        String[] line = message.split(" ");
-        
-        if (line[0].equals("#leave")) // if it is a leave command
+        completions.execute(new Runnable()
         {
-            // if the client is not in a channel
-            if (client.getInfo("channel") == null)
+            public void run()
             {
-                try
+                runLocked(new Runnable()
                 {
-                    client.sendToClient("Error. You are not in a channel");
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-
-                return;
+                    public void run()
+                    {
+                        try
+                        {
+                            if (client.getInfo("disconnected") == null)
+                            {
+                                completion.run();
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            e.printStackTrace();
+                        }
+                        finally
+                        {
+                            release(client);
+                        }
+                    }
+                });
             }
+        });
+    }
 
-            // get the channel
-            ArrayList<ConnectionToClient> theChannel = channels.get(channelName);
-
-            // remove the client
-            theChannel.remove(client);
-            
-            if(theChannel.size() == 0)
+    /**
+     * Sends a message to all the clients that a filter does not block.
+     * @param message the message.
+     * @param filter the filter.
+     */
+    private void sendToAllClients(Object message, ChannelRegistry.Filter filter)
+    {
+        for (Thread thread : getClientConnections())
+        {
+            ConnectionToClient client = (ConnectionToClient) thread;
+            Integer connectionId = (Integer) client.getInfo("connectionId");
+            if (connectionId != null && filter.blocks(connectionId))
             {
-                channels.remove(channelName);
+                continue;
             }
-            
-            client.setInfo("channel", null);
-
             try
             {
-                client.sendToClient("You've left " + channelName);
+                client.sendToClient(message);
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                // as in sendToAllClients, a failed client is skipped
             }
         }
-        else
-        {
-            // get the channel
-            ArrayList<ConnectionToClient> theChannel = channels.get(channelName);
+    }
 
-            // send to all clients in channel
-            for (ConnectionToClient c : theChannel)
-            {
-                try
-                {
-                    c.sendToClient("Channel: " + channelName + "> " + loginid
-                            + " says: " + message);
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Sends a message to all the clients in a channel
+     * @param channelName name of the channel
+     * @param message message to send
+     * @param loginid login id of the sender
+     */
+    private void sendMessageToChannel(String channelName, String message,
+            String loginid)
+    {
+        // render the message once; the channel's shard sends it to the
+        // members
+        String rendered = formatter.channelMessage(channelName, loginid,
+                message);
+        history.append(channelName, rendered);
+        search.add(SearchIndex.channelScope(channelName), rendered);
+        channels.broadcast(channelName, rendered, filters.check(loginid,
+                channelName));
+        federation.sendToChannel(channelName, loginid == null ? ""
+                : loginid, rendered);
     }
 
     /**
@@ -471,25 +2124,9 @@ public class EchoServer extends ObservableServer
      */
     protected void serverStopped()
     {
-        // save the accounts to file
-        File accountFile = new File(ACCOUNT_FILE);
-        try
-        {
-            PrintWriter output = new PrintWriter(accountFile);
-
-            Set<String> accountList = accounts.keySet();
-
-            for (String key : accountList)
-            {
-                output.println(key + ":" + accounts.get(key));
-            }
-
-            output.close();
-        }
-        catch (FileNotFoundException e)
-        {
-            e.printStackTrace();
-        }
+        // accounts are logged as they are created; only wait for the
+        // last ones to reach the disk
+        accounts.flush();
         System.out.println("Server has stopped listening for connections.");
     }
 
@@ -504,6 +2141,7 @@ public class EchoServer extends ObservableServer
          * client.toString()); // displays message on server console when the
          * client connects System.out.println(client + " has logged on.");
          */
+        channels.register(client);
         try
         {
             client.sendToClient("");
@@ -524,25 +2162,81 @@ public class EchoServer extends ObservableServer
      */
     synchronized protected void clientDisconnected(ConnectionToClient client)
     {
-        // if the client logging off is a monitor
-        if (client.getInfo("monitee") != null)
+        // if the client logging off is a monitor, let the monitees know
+        // that their monitor is gone
+        ConnectionToClient[] monitees = delegations.removeDelegators(client);
+        if (monitees.length > 0)
         {
-            // let the monitee know that their monitor is gone
-            try
+            String message = "Your monitor, " + client.getInfo("loginid")
+                    + ", has logged off";
+            for (ConnectionToClient monitee : monitees)
             {
-                ((ConnectionToClient) client.getInfo("monitee"))
-                        .sendToClient("Your monitor, "
-                                + client.getInfo("loginid")
-                                + ", has logged off");
+                replication.monitorRemoved((String) monitee
+                        .getInfo("loginid"), (String) client.getInfo("loginid"));
+                try
+                {
+                    monitee.sendToClient(message);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
             }
-            catch (IOException e)
+        }
+
+        // relieve the monitors of the client logging off
+        ConnectionToClient[] monitors = delegations.removeMonitors(client);
+        if (monitors.length > 0)
+        {
+            String message = client.getInfo("loginid") + " has logged off\n"
+                    + "You are relieved of your monitoring duties";
+            for (ConnectionToClient monitor : monitors)
             {
-                e.printStackTrace();
+                replication.monitorRemoved((String) client.getInfo("loginid"),
+                        (String) monitor.getInfo("loginid"));
+                try
+                {
+                    monitor.sendToClient(message);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
             }
+        }
+
+        // forget the session; a session restored in part is restored
+        // again at the next login
+        if (client.getInfo("loginid") != null)
+        {
+            removeSession(client);
+        }
+        ReplicaState.User restoring = (ReplicaState.User) client
+                .getInfo("restoring");
+        if (restoring != null)
+        {
+            replication.addSavedState(Collections.singletonMap(
+                    (String) client.getInfo("loginid"), restoring));
+        }
+
+        // remove the client from its channels and subscriptions
+        if (client.getInfo("connectionId") != null)
+        {
+            filters.logout((Integer) client.getInfo("connectionId"));
+        }
+        channels.unregister(client);
+        presence.remove(client);
+        client.setInfo("channel", null);
 
-            ((ConnectionToClient) client.getInfo("monitee")).setInfo("monitee",
-                    null);
+        // drop the messages kept while the client was away
+        if (client.getInfo("awayMessages") != null)
+        {
+            ((AwayMessages) client.getInfo("awayMessages")).close();
         }
+
+        // logins still being checked are dropped
+        client.setInfo("disconnected", Boolean.TRUE);
+
         // displays message on server console when the client disconnects
         System.out.println(client.getInfo("loginid") + " has logged off.");
     }
@@ -552,6 +2246,9 @@ public class EchoServer extends ObservableServer
      */
     public void quit() throws IOException
     {
+        // saved before the connections close and the users log off
+        System.out.println(saveState());
+        transfers.close();
         close();
 
     }
@@ -572,6 +2269,55 @@ public class EchoServer extends ObservableServer
     public void startListening() throws IOException
     {
         listen();
-    }     
+    }
+
+    /**
+     * The rest of a command, once what it waited for is done.
+     */
+    private interface Completion
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * The rest of a command after a membership change, run by complete once
+     * the channel's shard has applied it. The client's next messages wait
+     * from the construction on.
+     */
+    private abstract class ChannelCompletion implements
+            ChannelRegistry.Change
+    {
+        final private ConnectionToClient client;
+
+        /**
+         * Called with the server lock held.
+         */
+        ChannelCompletion(ConnectionToClient client)
+        {
+            this.client = client;
+            hold(client);
+        }
+
+        public void changed(final boolean applied)
+        {
+            complete(client, new Completion()
+            {
+                public void run() throws IOException
+                {
+                    completed(applied);
+                }
+            });
+        }
+
+        abstract void completed(boolean applied) throws IOException;
+    }
+
+    /**
+     * The messages a client sent while its command was completing.
+     */
+    private static class Deferred extends ArrayDeque<Object>
+    {
+        private static final long serialVersionUID = 1L;
+    }
 }
 // End of EchoServer class
@@ -0,0 +1,450 @@
+package ui;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+
+import client.VirtualUser;
+import common.LatencyHistogram;
+
+/**
+ * Drives a chat server with many simulated users from a single thread. Every
+ * user has its own non-blocking connection, and the scenario (login rate,
+ * channel creation and joins, message rate, private message and monitoring
+ * mix) is read from a properties file and/or <code>key=value</code> command
+ * line arguments. Chat messages carry the send time, so every delivery seen
+ * by any user yields an end-to-end latency sample.
+ * <p>
+ * With <code>ports=p1,p2,...</code> the users are spread over the nodes of a
+ * cluster on the same host, and deliveries between users of different nodes
+ * are also reported apart as cross-node latency.
+ * <p>
+ * Usage: <code>java ui.LoadGenerator [scenario.properties] [key=value]...</code>
+ */
+public class LoadGenerator
+{
+    // Class variables *************************************************
+
+    /**
+     * Marker that precedes the sender and send time in generated messages.
+     */
+    final private static String TAG = "~lg ";
+
+    /**
+     * Password used by every simulated user.
+     */
+    final private static String PASSWORD = "loadgen";
+
+    // Instance variables **********************************************
+
+    private String host;
+    private int[] ports;
+    private int users;
+    private double loginRate;
+    private int channels;
+    private double joinFraction;
+    private double messageRate;
+    private double privateFraction;
+    private double monitorFraction;
+    private long durationNanos;
+    private long reportNanos;
+
+    private Random random;
+    private Selector selector;
+    private VirtualUser[] population;
+    private ArrayList<VirtualUser> online = new ArrayList<VirtualUser>();
+    private PriorityQueue<VirtualUser> schedule = new PriorityQueue<VirtualUser>(
+            16, new Comparator<VirtualUser>()
+            {
+                public int compare(VirtualUser a, VirtualUser b)
+                {
+                    return Long.compare(a.getNextActionAt(),
+                            b.getNextActionAt());
+                }
+            });
+
+    private LatencyHistogram latency = new LatencyHistogram();
+    private LatencyHistogram totalLatency = new LatencyHistogram();
+    private LatencyHistogram loginLatency = new LatencyHistogram();
+    private LatencyHistogram crossNodeLatency = new LatencyHistogram();
+    private long sent;
+    private long delivered;
+    private long totalSent;
+    private long totalDelivered;
+    private long privates;
+    private long failures;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a load generator from a scenario.
+     * @param scenario the scenario settings.
+     */
+    public LoadGenerator(Properties scenario)
+    {
+        host = scenario.getProperty("host", "localhost");
+        String[] portList = scenario.getProperty("ports",
+                scenario.getProperty("port",
+                        Integer.toString(EchoServer.DEFAULT_PORT))).split(",");
+        ports = new int[portList.length];
+        for (int i = 0; i < ports.length; i++)
+        {
+            ports[i] = Integer.parseInt(portList[i].trim());
+        }
+        users = Integer.parseInt(scenario.getProperty("users", "1000"));
+        loginRate = Double.parseDouble(scenario.getProperty("loginRate",
+                "200"));
+        channels = Integer.parseInt(scenario.getProperty("channels", "10"));
+        joinFraction = Double.parseDouble(scenario.getProperty(
+                "joinFraction", "0.5"));
+        messageRate = Double.parseDouble(scenario.getProperty("messageRate",
+                "0.5"));
+        privateFraction = Double.parseDouble(scenario.getProperty(
+                "privateFraction", "0.2"));
+        monitorFraction = Double.parseDouble(scenario.getProperty(
+                "monitorFraction", "0.01"));
+        durationNanos = (long) (Double.parseDouble(scenario.getProperty(
+                "duration", "60")) * 1e9);
+        reportNanos = (long) (Double.parseDouble(scenario.getProperty(
+                "reportInterval", "5")) * 1e9);
+        random = new Random(Long.parseLong(scenario.getProperty("seed", "1")));
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Runs the scenario until its duration has elapsed, then prints a
+     * summary.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public void run() throws IOException
+    {
+        selector = Selector.open();
+        population = new VirtualUser[users];
+        for (int i = 0; i < users; i++)
+        {
+            population[i] = new VirtualUser("lg" + i);
+            if (channels > 0 && random.nextDouble() < joinFraction)
+            {
+                population[i].setChannelName("lg-channel-"
+                        + random.nextInt(channels));
+            }
+        }
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + reportNanos;
+        long lastReport = start;
+        int connected = 0;
+        ArrayList<String> messages = new ArrayList<String>();
+
+        while (System.nanoTime() < end)
+        {
+            long now = System.nanoTime();
+
+            // open new connections at the configured login rate
+            long due = Math.min(users,
+                    (long) ((now - start) / 1e9 * loginRate) + 1);
+            while (connected < due)
+            {
+                VirtualUser user = population[connected++];
+                user.setConnectStartedAt(now);
+                try
+                {
+                    user.connect(host, ports[(connected - 1) % ports.length],
+                            selector);
+                }
+                catch (IOException e)
+                {
+                    failures++;
+                }
+            }
+
+            selector.select(1);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+                VirtualUser user = (VirtualUser) key.attachment();
+                try
+                {
+                    if (key.isConnectable() && user.finishConnect())
+                    {
+                        user.send("#login " + user.getLoginId() + " "
+                                + PASSWORD);
+                    }
+                    if (key.isValid() && key.isReadable())
+                    {
+                        boolean open = user.read(messages);
+                        now = System.nanoTime();
+                        for (String message : messages)
+                        {
+                            receive(user, message, now);
+                        }
+                        messages.clear();
+                        if (!open)
+                        {
+                            disconnect(user);
+                            continue;
+                        }
+                    }
+                    if (key.isValid() && key.isWritable())
+                    {
+                        user.flush();
+                    }
+                }
+                catch (IOException e)
+                {
+                    disconnect(user);
+                }
+            }
+
+            now = System.nanoTime();
+            while (!schedule.isEmpty()
+                    && schedule.peek().getNextActionAt() <= now)
+            {
+                VirtualUser user = schedule.poll();
+                act(user, now);
+                if (user.isLoggedIn())
+                {
+                    scheduleNext(user, now);
+                }
+            }
+
+            if (now >= nextReport)
+            {
+                report((now - lastReport) / 1e9, latency);
+                totalLatency.add(latency);
+                latency.reset();
+                lastReport = now;
+                nextReport += reportNanos;
+            }
+        }
+
+        totalLatency.add(latency);
+        System.out.println("==== Summary ====");
+        System.out.println("users online: " + online.size() + "/" + users
+                + ", failures: " + failures);
+        System.out.println("login latency (us): p50="
+                + loginLatency.percentile(0.5) + " p99="
+                + loginLatency.percentile(0.99) + " p999="
+                + loginLatency.percentile(0.999));
+        System.out.println("private messages sent: " + privates);
+        if (ports.length > 1)
+        {
+            System.out.println("cross-node deliveries: "
+                    + crossNodeLatency.getCount() + ", latency(us) p50="
+                    + crossNodeLatency.percentile(0.5) + " p99="
+                    + crossNodeLatency.percentile(0.99) + " p999="
+                    + crossNodeLatency.percentile(0.999));
+        }
+        // fold in the final partial interval, which was never reported
+        sent += totalSent;
+        delivered += totalDelivered;
+        report(durationNanos / 1e9, totalLatency);
+
+        for (VirtualUser user : population)
+        {
+            user.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Handles a message delivered to a simulated user.
+     */
+    private void receive(VirtualUser user, String message, long now)
+    {
+        if (message == null)
+        {
+            return;
+        }
+        int tag = message.indexOf(TAG);
+        if (tag >= 0)
+        {
+            int space = message.indexOf(' ', tag + TAG.length());
+            int stop = message.indexOf(' ', space + 1);
+            try
+            {
+                long sentAt = Long.parseLong(message.substring(space + 1,
+                        stop < 0 ? message.length() : stop));
+                latency.record((now - sentAt) / 1000);
+                delivered++;
+                if (ports.length > 1
+                        && nodeOf(message.substring(tag + TAG.length(),
+                                space)) != nodeOf(user.getLoginId()))
+                {
+                    crossNodeLatency.record((now - sentAt) / 1000);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // not a well-formed timestamp, e.g. truncated by the server
+            }
+        }
+        else if (!user.isLoggedIn()
+                && message.equals(user.getLoginId() + " has logged on."))
+        {
+            user.setLoggedIn(true);
+            online.add(user);
+            loginLatency.record((now - user.getConnectStartedAt()) / 1000);
+            if (user.getChannelName() != null)
+            {
+                user.send("#create " + user.getChannelName());
+            }
+            scheduleNext(user, now);
+        }
+        else if (message.startsWith("You've joined channel")
+                || message.startsWith("You've successfully joined"))
+        {
+            user.setInChannel(true);
+        }
+    }
+
+    /**
+     * Returns the index of the node a simulated user connects to.
+     */
+    private int nodeOf(String loginid)
+    {
+        return Integer.parseInt(loginid.substring(2)) % ports.length;
+    }
+
+    /**
+     * Performs the next scripted action of a simulated user.
+     */
+    private void act(VirtualUser user, long now)
+    {
+        if (!user.isLoggedIn())
+        {
+            return;
+        }
+        if (user.getChannelName() != null && !user.isInChannel())
+        {
+            // the channel may not have been created yet, keep trying
+            user.send("#join " + user.getChannelName());
+            return;
+        }
+
+        double r = random.nextDouble();
+        if (r < monitorFraction)
+        {
+            if (user.getMonitor() == null)
+            {
+                VirtualUser monitor = online.get(random.nextInt(online.size()));
+                user.setMonitor(monitor.getLoginId());
+                user.send("#select " + monitor.getLoginId());
+            }
+            else
+            {
+                user.send("#retrieve");
+                user.send("#back");
+                user.setMonitor(null);
+            }
+        }
+        else if (r < monitorFraction + privateFraction)
+        {
+            VirtualUser target = online.get(random.nextInt(online.size()));
+            user.send("#private " + target.getLoginId() + " " + TAG
+                    + user.getLoginId() + " " + System.nanoTime());
+            privates++;
+        }
+        else
+        {
+            user.send(TAG + user.getLoginId() + " " + System.nanoTime());
+        }
+        sent++;
+    }
+
+    /**
+     * Schedules the next action of a user with exponentially distributed
+     * think times.
+     */
+    private void scheduleNext(VirtualUser user, long now)
+    {
+        double delay = -Math.log(1.0 - random.nextDouble()) / messageRate;
+        user.setNextActionAt(now + (long) (delay * 1e9));
+        schedule.add(user);
+    }
+
+    /**
+     * Forgets a user whose connection was lost.
+     */
+    private void disconnect(VirtualUser user)
+    {
+        user.close();
+        if (user.isLoggedIn())
+        {
+            user.setLoggedIn(false);
+            online.remove(user);
+            schedule.remove(user);
+        }
+        failures++;
+    }
+
+    /**
+     * Prints throughput and latency for an interval.
+     */
+    private void report(double seconds, LatencyHistogram histogram)
+    {
+        System.out.println(String.format(
+                "online=%d sent/s=%.0f delivered/s=%.0f latency(us) p50=%d p99=%d p999=%d max=%d",
+                online.size(), sent / seconds, delivered / seconds,
+                histogram.percentile(0.5), histogram.percentile(0.99),
+                histogram.percentile(0.999), histogram.getMax()));
+        totalSent += sent;
+        totalDelivered += delivered;
+        sent = 0;
+        delivered = 0;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * Runs a load test.
+     * @param args an optional scenario file followed by key=value overrides.
+     */
+    public static void main(String[] args)
+    {
+        Properties scenario = new Properties();
+        try
+        {
+            for (String arg : args)
+            {
+                int eq = arg.indexOf('=');
+                if (eq > 0)
+                {
+                    scenario.setProperty(arg.substring(0, eq),
+                            arg.substring(eq + 1));
+                }
+                else
+                {
+                    FileReader reader = new FileReader(arg);
+                    Properties file = new Properties();
+                    file.load(reader);
+                    reader.close();
+                    for (String name : file.stringPropertyNames())
+                    {
+                        if (!scenario.containsKey(name))
+                        {
+                            scenario.setProperty(name, file.getProperty(name));
+                        }
+                    }
+                }
+            }
+            new LoadGenerator(scenario).run();
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR - Load test failed: " + e.getMessage());
+        }
+    }
+}
+// End of LoadGenerator class
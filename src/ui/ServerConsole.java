@@ -6,8 +6,7 @@ package ui;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 
 import common.ChatIF;
@@ -16,7 +15,7 @@ import common.ChatIF;
  * This class constructs the UI for a chat server. It implements the chat
  * interface in order to activate the display() method.
  */
-public class ServerConsole implements ChatIF, Observer
+public class ServerConsole implements ChatIF
 {
     // Class variables *************************************************
 
@@ -41,7 +40,6 @@ public class ServerConsole implements ChatIF, Observer
     public ServerConsole(int port)
     {
         server = new EchoServer(port, this);
-        server.addObserver(this);
     }
 
     // Instance methods ************************************************
@@ -133,6 +131,76 @@ public class ServerConsole implements ChatIF, Observer
                 String port = Integer.toString(server.getPort());
                 this.display(port);
             }
+            else if (command.equals("#shards"))
+            {
+                this.display(server.getShardStats());
+            }
+            else if (command.equals("#federate"))
+            {
+                try
+                {
+                    server.federate(Integer.parseInt(sb.nextToken()));
+                }
+                catch (RuntimeException e)
+                {
+                    this.display("Usage: #federate <port>");
+                }
+                catch (IOException e)
+                {
+                    this.display("Error! Cannot listen for other nodes: "
+                            + e.getMessage());
+                }
+            }
+            else if (command.equals("#link"))
+            {
+                if (!link(sb.hasMoreTokens() ? sb.nextToken() : ""))
+                {
+                    this.display("Usage: #link <host>:<port>");
+                }
+            }
+            else if (command.equals("#federation"))
+            {
+                this.display(server.getFederationStats());
+            }
+            else if (command.equals("#replicate"))
+            {
+                try
+                {
+                    server.replicate(Integer.parseInt(sb.nextToken()));
+                }
+                catch (RuntimeException e)
+                {
+                    this.display("Usage: #replicate <port>");
+                }
+                catch (IOException e)
+                {
+                    this.display("Error! Cannot listen for a standby: "
+                            + e.getMessage());
+                }
+            }
+            else if (command.equals("#replication"))
+            {
+                this.display(server.getReplicationStats());
+            }
+            else if (command.equals("#snapshot"))
+            {
+                this.display(server.saveState());
+            }
+            else if (command.equals("#files"))
+            {
+                this.display(server.getFileStats());
+            }
+            else if (command.equals("#setpresence"))
+            {
+                try
+                {
+                    server.setPresenceInterval(Long.parseLong(sb.nextToken()));
+                }
+                catch (RuntimeException e)
+                {
+                    this.display("Usage: #setpresence <milliseconds>");
+                }
+            }
         }
 
         // message is not a command
@@ -143,6 +211,26 @@ public class ServerConsole implements ChatIF, Observer
         }
     }
 
+    /**
+     * Links the server to another node of the cluster.
+     * @param address the node's host and federation port, as host:port.
+     * @return false if the address is malformed.
+     */
+    private boolean link(String address)
+    {
+        int colon = address.lastIndexOf(':');
+        try
+        {
+            server.link(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)));
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            return false;
+        }
+    }
+
     /**
      * This method overrides the method in the ChatIF interface. It displays a
      * message onto the screen.
@@ -167,11 +255,50 @@ public class ServerConsole implements ChatIF, Observer
 
     /**
      * This method is responsible for the creation of the Server UI.
+     * Usage: <code>java ui.ServerConsole [replicate=port]
+     * [standby=host:port] [files=port] [port [federationPort [host:port]...]]</code>,
+     * where the optional federation port accepts links from other nodes of
+     * a cluster and each host:port is a node to link to. With replicate, the
+     * server accepts a standby on that port; with standby, it is the standby
+     * of the primary accepting standbys at host:port, and only listens for
+     * clients once the primary is gone. A standby must run on the primary's
+     * machine, which only accepts standbys on its loopback address, and in
+     * its own directory, as it keeps its own copy of the account files.
+     * The state of the users is saved in a snapshot every minute and when
+     * the server quits, and loaded when it starts. With files, the files
+     * users share are received and sent on that port, instead of any free
+     * port bound at the first upload.
      */
     public static void main(String[] args)
     {
         int port = 0; // Port to listen on
 
+        // the replication options may come anywhere
+        String replicate = null;
+        String standby = null;
+        String files = null;
+        ArrayList<String> positional = new ArrayList<String>();
+        for (String arg : args)
+        {
+            if (arg.startsWith("replicate="))
+            {
+                replicate = arg.substring(10);
+            }
+            else if (arg.startsWith("standby="))
+            {
+                standby = arg.substring(8);
+            }
+            else if (arg.startsWith("files="))
+            {
+                files = arg.substring(6);
+            }
+            else
+            {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[positional.size()]);
+
         try
         {
             port = Integer.parseInt(args[0]); // Get port from command line
@@ -181,30 +308,73 @@ public class ServerConsole implements ChatIF, Observer
             port = DEFAULT_PORT; // Set port to 5555
         }
         ServerConsole chat = new ServerConsole(port);
-        try
+        if (args.length > 1)
         {
-            chat.listen(); // Start listening for connections
+            try
+            {
+                chat.server.federate(Integer.parseInt(args[1]));
+            }
+            catch (Exception ex)
+            {
+                System.out.println("ERROR - Could not listen for other nodes!");
+            }
+            for (int i = 2; i < args.length; i++)
+            {
+                if (!chat.link(args[i]))
+                {
+                    System.out.println("ERROR - Bad node address " + args[i]);
+                }
+            }
         }
-        catch (Exception ex)
+        if (replicate != null)
         {
-            System.out.println("ERROR - Could not listen for clients!");
+            try
+            {
+                chat.server.replicate(Integer.parseInt(replicate));
+            }
+            catch (Exception ex)
+            {
+                System.out.println("ERROR - Could not listen for a standby!");
+            }
         }
-        chat.accept(); // Wait for console data
-    }
-
-    public void update(Observable obs, Object message)
-    {
-        if(message instanceof Exception)
+        if (files != null)
+        {
+            try
+            {
+                chat.server.listenForFiles(Integer.parseInt(files));
+            }
+            catch (Exception ex)
+            {
+                System.out.println("ERROR - Could not listen for files!");
+            }
+        }
+        if (standby != null)
+        {
+            // the port is taken over once the primary is gone
+            int colon = standby.lastIndexOf(':');
+            try
+            {
+                chat.server.standby(standby.substring(0, colon),
+                        Integer.parseInt(standby.substring(colon + 1)));
+            }
+            catch (RuntimeException ex)
+            {
+                System.out.println("ERROR - Bad primary address " + standby);
+                return;
+            }
+        }
+        else
         {
             try
             {
-                throw (Exception) message;
+                chat.listen(); // Start listening for connections
             }
-            catch(Exception e)
+            catch (Exception ex)
             {
-                
+                System.out.println("ERROR - Could not listen for clients!");
             }
         }
+        chat.accept(); // Wait for console data
     }
 }
 // End of ServerConsole class